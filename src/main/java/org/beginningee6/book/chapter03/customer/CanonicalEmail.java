@@ -0,0 +1,30 @@
+package org.beginningee6.book.chapter03.customer;
+
+import java.util.Locale;
+
+/**
+ * メールアドレスの正規化。
+ *
+ * 前後の空白を除き、英字を小文字にする。ドメイン部は
+ * 大文字・小文字を区別しない。ローカル部は規格上は区別されるが、
+ * 実際にはほとんどのメールサーバーが区別しないため、同じ顧客と
+ * みなす。ローカル部の「.」や「+」以降の扱いはメールサービスに
+ * よって異なるため、変更しない。
+ */
+public final class CanonicalEmail {
+
+	private CanonicalEmail() {}
+
+	/**
+	 * 正規化したメールアドレスを返す。
+	 *
+	 * @return 正規化したメールアドレス。nullまたは空白だけの場合はnull
+	 */
+	public static String of(String email) {
+		if (email == null) {
+			return null;
+		}
+		String trimmed = email.trim();
+		return trimmed.length() == 0 ? null : trimmed.toLowerCase(Locale.ENGLISH);
+	}
+}
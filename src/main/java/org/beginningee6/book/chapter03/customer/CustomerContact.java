@@ -0,0 +1,24 @@
+package org.beginningee6.book.chapter03.customer;
+
+/**
+ * 連絡先を持つ顧客エンティティ（Customer06、Customer07_1、
+ * Customer07_2、Customer11）に共通するインターフェース。
+ *
+ * CustomerEmailListenerとCustomerEmailIndexは、
+ * このインターフェースを通してエンティティの
+ * メールアドレスを参照する。
+ */
+public interface CustomerContact {
+
+	Long getId();
+
+	String getEmail();
+
+	/**
+	 * 正規化したメールアドレス（CanonicalEmail）。
+	 * canonicalEmailカラムにマッピングされ、検索に使用する。
+	 */
+	String getCanonicalEmail();
+
+	String getPhoneNumber();
+}
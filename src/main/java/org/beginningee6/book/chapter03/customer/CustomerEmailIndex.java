@@ -0,0 +1,524 @@
+package org.beginningee6.book.chapter03.customer;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.SessionContext;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.Timeout;
+import javax.ejb.Timer;
+import javax.ejb.TimerConfig;
+import javax.ejb.TimerService;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceException;
+import javax.persistence.Table;
+import javax.persistence.metamodel.EntityType;
+import javax.sql.DataSource;
+
+/**
+ * 顧客エンティティを正規化したメールアドレスで検索するインデックス。
+ *
+ * 会員登録時の重複チェックでは、ほとんどの場合メールアドレスは
+ * まだ登録されていないが、その確認のためにデータベースへの
+ * アクセスが発生する。このクラスでは、エンティティクラスごとに
+ * 登録済みの正規化したメールアドレスを保持するブルームフィルタ
+ * （EmailBloomFilter）を先に調べ、確実に存在しないメールアドレスは
+ * データベースにアクセスせずに判定する。フィルタで判定できない
+ * 場合は、canonicalEmailカラムをJPQLで検索する。
+ *
+ * 起動時に、CustomerContactを実装するエンティティのテーブルの
+ * canonicalEmailカラムにインデックスを作成する。
+ * （注）JPA 2.0にはインデックスを定義するアノテーションが無いため、
+ * JDBCでCREATE INDEXを実行する。
+ *
+ * canonicalEmailカラムが追加される前に登録された行は
+ * canonicalEmailがnullのままであるため、起動後にタイマーにより
+ * 非同期にbackfill()を実行し、BACKFILL_BATCH_SIZE件ずつ
+ * 別のトランザクションで正規化したメールアドレスを設定する。
+ * 設定したメールアドレスはフィルタにも登録する。
+ *
+ * フィルタは、エンティティクラスごとに最初の検索時に
+ * テーブルから作成する。追加・変更されたメールアドレスは
+ * CustomerEmailListenerによりフラッシュの前に登録される。
+ * ロールバックされた場合は偽陽性となるだけで、誤って
+ * 「存在しない」と判定することはない。削除・変更前の
+ * メールアドレスのビットは残るため、削除が多くなったら
+ * rebuild()で作成し直すこと。作成し直している間やその直前に
+ * 登録されたメールアドレスは、コミット前で検索結果に含まれない
+ * 可能性があるため、RECENT_WINDOW_MILLISの間は保持しておき
+ * 新しいフィルタにも登録する。
+ *
+ * フィルタの作成のためのテーブルの読み込みはロックの外で行い、
+ * 作成したフィルタにロックの中で最近登録されたメールアドレスを
+ * 登録してから置き換える。作成中も、それまでのフィルタによる
+ * 検索や登録は待たされない。
+ *
+ * 検索にかかった時間はLatencyHistogramに記録し、
+ * パーセンタイルを公開する。
+ *
+ * 状態は同期ブロックで保護し、データベースの検索は
+ * ロックの外で行う（ConcurrencyManagementType.BEAN）。
+ */
+@Singleton
+@Startup
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class CustomerEmailIndex {
+
+	private static final Logger logger = Logger.getLogger(CustomerEmailIndex.class.getName());
+
+	/**
+	 * 目標とする偽陽性率
+	 */
+	public static final double TARGET_FALSE_POSITIVE_RATE = 0.01;
+
+	/**
+	 * 正規化したメールアドレスのカラム名
+	 */
+	public static final String CANONICAL_EMAIL_COLUMN = "canonicalEmail";
+
+	/**
+	 * フィルタを作成する際の最小の想定件数
+	 */
+	static final int MINIMUM_CAPACITY = 1024;
+
+	/**
+	 * 再作成時に新しいフィルタにも登録する、最近登録された
+	 * メールアドレスの保持期間（トランザクションタイムアウトより長くする）
+	 */
+	static final long RECENT_WINDOW_MILLIS = 10 * 60 * 1000L;
+
+	/**
+	 * 1回のトランザクションでcanonicalEmailを設定する件数
+	 */
+	static final int BACKFILL_BATCH_SIZE = 500;
+
+	// Derbyの「インデックスがすでに存在する」エラーのSQLSTATE
+	private static final String INDEX_EXISTS = "X0Y32";
+
+	@PersistenceContext
+	private EntityManager em;
+
+	// jbossas-ds.xmlのデータソース（java:/が補われてバインドされる）
+	@Resource(lookup = "java:/jdbc/BeginningJavaEE6Chapter03")
+	private DataSource dataSource;
+
+	@Resource
+	private SessionContext context;
+
+	@Resource
+	private TimerService timerService;
+
+	private final Object lock = new Object();
+
+	// エンティティクラスごとのフィルタ（作成されていない場合はエントリが無い）
+	private final Map<Class<?>, EmailBloomFilter> filters = new HashMap<Class<?>, EmailBloomFilter>();
+
+	// 最近登録されたメールアドレス（登録時刻の昇順）
+	private final LinkedList<RecentEmail> recentEmails = new LinkedList<RecentEmail>();
+
+	private final LatencyHistogram latencies = new LatencyHistogram();
+
+	private long negativeCount;
+	private long falsePositiveCount;
+	private long truePositiveCount;
+	private long removalCount;
+
+	/**
+	 * CustomerContactを実装するエンティティのテーブルに、
+	 * canonicalEmailカラムのインデックスを作成する。
+	 * 既存の行へのcanonicalEmailの設定は、デプロイを
+	 * 遅らせないようタイマーにより非同期に行う。
+	 */
+	@PostConstruct
+	public void initialize() {
+		for (Class<? extends CustomerContact> type : contactTypes()) {
+			createIndex(tableName(type));
+		}
+		timerService.createSingleActionTimer(0, new TimerConfig("backfill", false));
+	}
+
+	/**
+	 * すべてのエンティティクラスについて、既存の行に
+	 * canonicalEmailを設定する。
+	 */
+	@Timeout
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public void backfillAll(Timer timer) {
+		for (Class<? extends CustomerContact> type : contactTypes()) {
+			int updated = backfill(type);
+			if (updated > 0) {
+				logger.info("Backfilled " + CANONICAL_EMAIL_COLUMN + " of " + updated + " " + entityName(type));
+			}
+		}
+	}
+
+	/**
+	 * canonicalEmailがnullの既存の行に、正規化したメールアドレスを
+	 * 設定する。行はIDの順にBACKFILL_BATCH_SIZE件ずつ読み込み、
+	 * 別のトランザクションで更新する。
+	 *
+	 * @return 設定した件数
+	 */
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public int backfill(Class<? extends CustomerContact> type) {
+
+		CustomerEmailIndex self = context.getBusinessObject(CustomerEmailIndex.class);
+		int updated = 0;
+		long afterId = Long.MIN_VALUE;
+		while (true) {
+			List<Object[]> rows = em.createQuery("SELECT c.id, c.email FROM " + entityName(type)
+					+ " c WHERE c.canonicalEmail IS NULL AND c.email IS NOT NULL AND c.id > :afterId"
+					+ " ORDER BY c.id", Object[].class)
+				.setParameter("afterId", afterId)
+				.setMaxResults(BACKFILL_BATCH_SIZE)
+				.getResultList();
+			if (rows.isEmpty()) {
+				return updated;
+			}
+
+			// 正規化できないメールアドレスの行は、次回以降も読み飛ばされる
+			Map<Long, String> canonicalEmails = new LinkedHashMap<Long, String>();
+			for (Object[] row : rows) {
+				String canonical = CanonicalEmail.of((String) row[1]);
+				if (canonical != null) {
+					canonicalEmails.put((Long) row[0], canonical);
+				}
+			}
+			if (!canonicalEmails.isEmpty()) {
+				updated += self.updateCanonicalEmails(type, canonicalEmails);
+			}
+			afterId = (Long) rows.get(rows.size() - 1)[0];
+		}
+	}
+
+	/**
+	 * 行のcanonicalEmailを設定し、フィルタにも登録する。
+	 * backfill()から新しいトランザクションで呼び出される。
+	 * その間にcanonicalEmailが設定された行は更新しない。
+	 *
+	 * @param canonicalEmails IDごとの正規化したメールアドレス
+	 * @return 更新した件数
+	 */
+	@TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+	public int updateCanonicalEmails(Class<? extends CustomerContact> type, Map<Long, String> canonicalEmails) {
+		int updated = 0;
+		for (Map.Entry<Long, String> entry : canonicalEmails.entrySet()) {
+			int count = em.createQuery("UPDATE " + entityName(type)
+					+ " c SET c.canonicalEmail = :email WHERE c.id = :id AND c.canonicalEmail IS NULL")
+				.setParameter("email", entry.getValue())
+				.setParameter("id", entry.getKey())
+				.executeUpdate();
+			if (count > 0) {
+				// ロールバックされた場合は偽陽性となるだけである
+				add(type, entry.getValue());
+				updated += count;
+			}
+		}
+		return updated;
+	}
+
+	/**
+	 * メールアドレスのエンティティが存在するかどうかを判定する。
+	 * 大文字・小文字と前後の空白は区別しない。
+	 */
+	public boolean exists(Class<? extends CustomerContact> type, String email) {
+		return find(type, email) != null;
+	}
+
+	/**
+	 * メールアドレスのエンティティを検索する。
+	 * 大文字・小文字と前後の空白は区別しない。
+	 *
+	 * @return エンティティ。存在しない場合はnull。
+	 *         同じメールアドレスのエンティティが複数ある場合はIDが最小のもの
+	 */
+	public <T extends CustomerContact> T find(Class<T> type, String email) {
+
+		long start = System.nanoTime();
+		String canonical = CanonicalEmail.of(email);
+		if (canonical == null) {
+			return null;
+		}
+
+		ensureFilter(type);
+		synchronized (lock) {
+			if (!filters.get(type).mightContain(canonical)) {
+				negativeCount++;
+				latencies.record(System.nanoTime() - start);
+				return null;
+			}
+		}
+
+		List<T> found = em.createQuery("SELECT c FROM " + entityName(type)
+				+ " c WHERE c.canonicalEmail = :email ORDER BY c.id", type)
+			.setParameter("email", canonical)
+			.setMaxResults(1)
+			.getResultList();
+
+		synchronized (lock) {
+			if (found.isEmpty()) {
+				falsePositiveCount++;
+			} else {
+				truePositiveCount++;
+			}
+			latencies.record(System.nanoTime() - start);
+		}
+		return found.isEmpty() ? null : found.get(0);
+	}
+
+	/**
+	 * 正規化したメールアドレスを登録する。CustomerEmailListenerから呼び出される。
+	 */
+	public void add(Class<?> type, String canonicalEmail) {
+		if (canonicalEmail == null) {
+			return;
+		}
+		synchronized (lock) {
+			long now = System.currentTimeMillis();
+			for (Iterator<RecentEmail> i = recentEmails.iterator(); i.hasNext();) {
+				if (i.next().addedAt >= now - RECENT_WINDOW_MILLIS) {
+					break;
+				}
+				i.remove();
+			}
+			recentEmails.add(new RecentEmail(now, type, canonicalEmail));
+
+			EmailBloomFilter filter = filters.get(type);
+			if (filter != null) {
+				filter.put(canonicalEmail);
+			}
+		}
+	}
+
+	/**
+	 * エンティティが削除されたことを記録する。
+	 */
+	public void recordRemoval() {
+		synchronized (lock) {
+			removalCount++;
+		}
+	}
+
+	/**
+	 * エンティティクラスのテーブルの全件からフィルタを作成し直す。
+	 */
+	public void rebuild(Class<? extends CustomerContact> type) {
+		EmailBloomFilter filter = load(type);
+		synchronized (lock) {
+			install(type, filter);
+			removalCount = 0;
+		}
+	}
+
+	/**
+	 * 検索にかかった時間のパーセンタイル
+	 *
+	 * @param percentile パーセンタイル（0〜100）
+	 * @return 時間（ナノ秒）。検索していない場合は0
+	 */
+	public long getLatencyPercentile(double percentile) {
+		synchronized (lock) {
+			return latencies.percentile(percentile);
+		}
+	}
+
+	/**
+	 * 検索にかかった時間の最大値（ナノ秒）
+	 */
+	public long getMaximumLatency() {
+		synchronized (lock) {
+			return latencies.getMaximum();
+		}
+	}
+
+	/**
+	 * 検索の回数
+	 */
+	public long getLookupCount() {
+		synchronized (lock) {
+			return latencies.getTotalCount();
+		}
+	}
+
+	/**
+	 * データベースにアクセスせずに「存在しない」と判定した回数
+	 */
+	public long getNegativeCount() {
+		synchronized (lock) {
+			return negativeCount;
+		}
+	}
+
+	public long getFalsePositiveCount() {
+		synchronized (lock) {
+			return falsePositiveCount;
+		}
+	}
+
+	public long getTruePositiveCount() {
+		synchronized (lock) {
+			return truePositiveCount;
+		}
+	}
+
+	/**
+	 * 存在しないメールアドレスの検索のうち、フィルタで判定できなかった割合
+	 */
+	public double getObservedFalsePositiveRate() {
+		synchronized (lock) {
+			long absent = falsePositiveCount + negativeCount;
+			return absent == 0 ? 0 : (double) falsePositiveCount / absent;
+		}
+	}
+
+	/**
+	 * 前回の作成以降に削除されたエンティティの件数
+	 */
+	public long getRemovalCount() {
+		synchronized (lock) {
+			return removalCount;
+		}
+	}
+
+	/**
+	 * 統計情報をリセットする。
+	 */
+	public void resetStatistics() {
+		synchronized (lock) {
+			negativeCount = 0;
+			falsePositiveCount = 0;
+			truePositiveCount = 0;
+			latencies.reset();
+		}
+	}
+
+	/**
+	 * エンティティクラスのフィルタが作成されていない場合は作成する。
+	 * テーブルの読み込みはロックの外で行うため、ロックを保持せずに呼び出すこと。
+	 */
+	private void ensureFilter(Class<?> type) {
+		synchronized (lock) {
+			if (filters.containsKey(type)) {
+				return;
+			}
+		}
+		EmailBloomFilter filter = load(type);
+		synchronized (lock) {
+			// 読み込み中に他のスレッドが作成した場合はそのフィルタを使用する
+			if (!filters.containsKey(type)) {
+				install(type, filter);
+			}
+		}
+	}
+
+	/**
+	 * 作成したフィルタに最近登録されたメールアドレスを登録し、
+	 * エンティティクラスのフィルタとする。読み込みの間に
+	 * add()で登録されたメールアドレスも、ここで登録される。
+	 * ロックを保持して呼び出すこと。
+	 */
+	private void install(Class<?> type, EmailBloomFilter filter) {
+		for (RecentEmail recent : recentEmails) {
+			if (recent.type == type) {
+				filter.put(recent.email);
+			}
+		}
+		filters.put(type, filter);
+	}
+
+	/**
+	 * テーブルの全件からフィルタを作成する。
+	 * ロックを保持せずに呼び出すこと。
+	 */
+	private EmailBloomFilter load(Class<?> type) {
+
+		List<String> emails = em.createQuery("SELECT c.canonicalEmail FROM " + entityName(type)
+				+ " c WHERE c.canonicalEmail IS NOT NULL", String.class).getResultList();
+
+		EmailBloomFilter filter = new EmailBloomFilter(
+				Math.max(MINIMUM_CAPACITY, emails.size() * 2), TARGET_FALSE_POSITIVE_RATE);
+		for (String email : emails) {
+			filter.put(email);
+		}
+		return filter;
+	}
+
+	private List<Class<? extends CustomerContact>> contactTypes() {
+		List<Class<? extends CustomerContact>> types = new ArrayList<Class<? extends CustomerContact>>();
+		for (EntityType<?> entity : em.getMetamodel().getEntities()) {
+			Class<?> type = entity.getJavaType();
+			if (CustomerContact.class.isAssignableFrom(type)) {
+				types.add(type.asSubclass(CustomerContact.class));
+			}
+		}
+		return types;
+	}
+
+	private String entityName(Class<?> type) {
+		return em.getMetamodel().entity(type).getName();
+	}
+
+	private static String tableName(Class<?> type) {
+		Table table = type.getAnnotation(Table.class);
+		return table != null && table.name().length() > 0 ? table.name() : type.getSimpleName();
+	}
+
+	private void createIndex(String table) {
+		Connection connection = null;
+		Statement statement = null;
+		try {
+			connection = dataSource.getConnection();
+			statement = connection.createStatement();
+			statement.executeUpdate("CREATE INDEX " + table + "_email ON " + table
+					+ " (" + CANONICAL_EMAIL_COLUMN + ")");
+			logger.info("Created index on " + table + "." + CANONICAL_EMAIL_COLUMN);
+		} catch (SQLException e) {
+			if (!INDEX_EXISTS.equals(e.getSQLState())) {
+				throw new PersistenceException("Failed to create index on " + table, e);
+			}
+			logger.log(Level.FINE, "Index already exists on " + table, e);
+		} finally {
+			try {
+				if (statement != null) {
+					statement.close();
+				}
+				if (connection != null) {
+					connection.close();
+				}
+			} catch (SQLException e) {
+				logger.log(Level.WARNING, "Failed to close connection", e);
+			}
+		}
+	}
+
+	private static class RecentEmail {
+
+		final long addedAt;
+		final Class<?> type;
+		final String email;
+
+		RecentEmail(long addedAt, Class<?> type, String email) {
+			this.addedAt = addedAt;
+			this.type = type;
+			this.email = email;
+		}
+	}
+}
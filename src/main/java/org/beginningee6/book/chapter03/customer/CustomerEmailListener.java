@@ -0,0 +1,54 @@
+package org.beginningee6.book.chapter03.customer;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.persistence.PostRemove;
+import javax.persistence.PrePersist;
+import javax.persistence.PreUpdate;
+
+/**
+ * 顧客エンティティのメールアドレスの追加・変更・削除を
+ * CustomerEmailIndexに通知するエンティティリスナー。
+ *
+ * ＠PostPersistはINSERTの発行時（フラッシュ時）まで
+ * 遅れる場合があり、その間に同じトランザクション内で
+ * 検索すると「存在しない」と判定されてしまうため、
+ * persist()の時点で呼び出される＠PrePersistで登録する。
+ *
+ * エンティティリスナーにはインジェクションが行われない
+ * ため、CustomerEmailIndexはJNDIでルックアップする。
+ * CustomerEmailIndexがデプロイされていない場合は何もしない。
+ */
+public class CustomerEmailListener {
+
+	private static final Logger logger = Logger.getLogger(CustomerEmailListener.class.getName());
+
+	@PrePersist
+	@PreUpdate
+	public void add(Object entity) {
+		CustomerEmailIndex index = lookup();
+		if (index != null) {
+			index.add(Entities.entityClass(entity), ((CustomerContact) entity).getCanonicalEmail());
+		}
+	}
+
+	@PostRemove
+	public void remove(Object entity) {
+		CustomerEmailIndex index = lookup();
+		if (index != null) {
+			index.recordRemoval();
+		}
+	}
+
+	private CustomerEmailIndex lookup() {
+		try {
+			return (CustomerEmailIndex) new InitialContext().lookup("java:module/CustomerEmailIndex");
+		} catch (NamingException e) {
+			logger.log(Level.FINE, "CustomerEmailIndex is not available", e);
+			return null;
+		}
+	}
+}
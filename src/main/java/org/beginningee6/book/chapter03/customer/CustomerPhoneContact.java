@@ -0,0 +1,18 @@
+package org.beginningee6.book.chapter03.customer;
+
+/**
+ * 電話番号で検索できる顧客エンティティ（Customer06、Customer11）
+ * のインターフェース。
+ *
+ * CustomerPhoneListenerとCustomerPhoneIndexは、
+ * このインターフェースを通してエンティティの
+ * 電話番号を参照する。
+ */
+public interface CustomerPhoneContact extends CustomerContact {
+
+	/**
+	 * 数字だけにした電話番号（PhoneDigits）。
+	 * phoneDigitsカラムにマッピングされ、検索に使用する。
+	 */
+	String getPhoneDigits();
+}
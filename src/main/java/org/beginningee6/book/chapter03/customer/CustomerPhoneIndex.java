@@ -0,0 +1,442 @@
+package org.beginningee6.book.chapter03.customer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.SessionContext;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.Timeout;
+import javax.ejb.Timer;
+import javax.ejb.TimerConfig;
+import javax.ejb.TimerService;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.metamodel.EntityType;
+
+/**
+ * 顧客エンティティを電話番号の前方一致で検索するインデックス。
+ *
+ * phoneNumberカラムの書式は統一されていないため、
+ * LIKE 'prefix%'の検索では書式の違う電話番号が見つからず、
+ * カラムの値の先頭が一致しないため索引も使えない。
+ * このクラスでは、エンティティクラスごとに数字だけにした
+ * 電話番号（phoneDigitsカラム）とIDを圧縮トライ（PhoneTrie）で
+ * メモリ上に保持し、前方一致するIDをデータベースに
+ * アクセスせずに返す。返す件数はMAXIMUM_RESULTSまでに制限する。
+ *
+ * トライは、エンティティクラスごとに最初の検索時に
+ * テーブルから作成する。追加・変更・削除は
+ * CustomerPhoneListenerによりコミットの後に反映される。
+ * 変更前の電話番号がわかるよう、IDごとの電話番号も保持する。
+ *
+ * トライの作成のためのテーブルの読み込みはロックの外で行い、
+ * 読み込み中に通知された登録を作成したトライにロックの中で
+ * 反映してから置き換える。作成中も、それまでのトライによる
+ * 検索や登録は待たされない。
+ *
+ * トライはphoneDigitsがnullの行を含まないため、phoneDigitsカラムが
+ * 追加される前に登録された行は検索されない。起動後にタイマーにより
+ * 非同期にbackfill()を実行し、BACKFILL_BATCH_SIZE件ずつ別の
+ * トランザクションでphoneNumberから数字だけにした電話番号を
+ * 設定する。設定した電話番号は、コミットの後にトライにも登録する。
+ *
+ * （注）JPQLの一括更新・削除ではエンティティリスナーが
+ * 呼び出されないため、その後はrebuild()で作成し直すこと。
+ *
+ * 検索にかかった時間はLatencyHistogramに記録し、
+ * パーセンタイルを公開する。
+ *
+ * 状態は同期ブロックで保護し、データベースの検索は
+ * ロックの外で行う（ConcurrencyManagementType.BEAN）。
+ */
+@Singleton
+@Startup
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+public class CustomerPhoneIndex {
+
+	private static final Logger logger = Logger.getLogger(CustomerPhoneIndex.class.getName());
+
+	/**
+	 * 1回の検索で返す最大件数
+	 */
+	public static final int MAXIMUM_RESULTS = 100;
+
+	/**
+	 * 1回のトランザクションでphoneDigitsを設定する件数
+	 */
+	static final int BACKFILL_BATCH_SIZE = 500;
+
+	@PersistenceContext
+	private EntityManager em;
+
+	@Resource
+	private SessionContext context;
+
+	@Resource
+	private TimerService timerService;
+
+	private final Object lock = new Object();
+
+	// エンティティクラスごとのトライ（作成されていない場合はエントリが無い）
+	private final Map<Class<?>, PhoneEntries> entries = new HashMap<Class<?>, PhoneEntries>();
+
+	// 作成中のトライごとの、読み込み中に通知された登録
+	private final List<Loading> loadings = new ArrayList<Loading>();
+
+	private final LatencyHistogram latencies = new LatencyHistogram();
+
+	/**
+	 * 既存の行へのphoneDigitsの設定を、デプロイを遅らせないよう
+	 * タイマーにより非同期に行う。
+	 */
+	@PostConstruct
+	public void initialize() {
+		timerService.createSingleActionTimer(0, new TimerConfig("backfill", false));
+	}
+
+	/**
+	 * すべてのエンティティクラスについて、既存の行に
+	 * phoneDigitsを設定する。
+	 */
+	@Timeout
+	public void backfillAll(Timer timer) {
+		for (Class<? extends CustomerPhoneContact> type : phoneContactTypes()) {
+			int updated = backfill(type);
+			if (updated > 0) {
+				logger.info("Backfilled phoneDigits of " + updated + " " + entityName(type));
+			}
+		}
+	}
+
+	/**
+	 * phoneDigitsがnullの既存の行に、数字だけにした電話番号を
+	 * 設定する。行はIDの順にBACKFILL_BATCH_SIZE件ずつ読み込み、
+	 * 別のトランザクションで更新する。更新した行は、コミットの
+	 * 後にトライに登録する。
+	 *
+	 * @return 設定した件数
+	 */
+	public int backfill(Class<? extends CustomerPhoneContact> type) {
+
+		CustomerPhoneIndex self = context.getBusinessObject(CustomerPhoneIndex.class);
+		int updated = 0;
+		long afterId = Long.MIN_VALUE;
+		while (true) {
+			List<Object[]> rows = em.createQuery("SELECT c.id, c.phoneNumber FROM " + entityName(type)
+					+ " c WHERE c.phoneDigits IS NULL AND c.phoneNumber IS NOT NULL AND c.id > :afterId"
+					+ " ORDER BY c.id", Object[].class)
+				.setParameter("afterId", afterId)
+				.setMaxResults(BACKFILL_BATCH_SIZE)
+				.getResultList();
+			if (rows.isEmpty()) {
+				return updated;
+			}
+
+			// 数字を含まない電話番号の行は、次回以降も読み飛ばされる
+			Map<Long, String> phoneDigits = new LinkedHashMap<Long, String>();
+			for (Object[] row : rows) {
+				String digits = PhoneDigits.of((String) row[1]);
+				if (digits != null) {
+					phoneDigits.put((Long) row[0], digits);
+				}
+			}
+			if (!phoneDigits.isEmpty()) {
+				// 新しいトランザクションはメソッドの終了時にコミットされている
+				Map<Long, String> committed = self.updatePhoneDigits(type, phoneDigits);
+				for (Map.Entry<Long, String> entry : committed.entrySet()) {
+					put(type, entry.getKey(), entry.getValue());
+				}
+				updated += committed.size();
+			}
+			afterId = (Long) rows.get(rows.size() - 1)[0];
+		}
+	}
+
+	/**
+	 * 行のphoneDigitsを設定する。backfill()から新しい
+	 * トランザクションで呼び出される。その間にphoneDigitsが
+	 * 設定された行は更新しない。
+	 *
+	 * @param phoneDigits IDごとの数字だけにした電話番号
+	 * @return 更新した行の、IDごとの数字だけにした電話番号
+	 */
+	@TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+	public Map<Long, String> updatePhoneDigits(Class<? extends CustomerPhoneContact> type,
+			Map<Long, String> phoneDigits) {
+		Map<Long, String> updated = new LinkedHashMap<Long, String>();
+		for (Map.Entry<Long, String> entry : phoneDigits.entrySet()) {
+			int count = em.createQuery("UPDATE " + entityName(type)
+					+ " c SET c.phoneDigits = :digits WHERE c.id = :id AND c.phoneDigits IS NULL")
+				.setParameter("digits", entry.getValue())
+				.setParameter("id", entry.getKey())
+				.executeUpdate();
+			if (count > 0) {
+				updated.put(entry.getKey(), entry.getValue());
+			}
+		}
+		return updated;
+	}
+
+	/**
+	 * 電話番号が前方一致するエンティティのIDを、電話番号の昇順に返す。
+	 * 電話番号の数字以外の文字は無視する。
+	 *
+	 * @param phoneNumber 電話番号の先頭部分
+	 * @param maxResults 最大件数（MAXIMUM_RESULTSを超える場合はMAXIMUM_RESULTS）
+	 * @return ID。数字を含まない場合は空のリスト
+	 */
+	public List<Long> findIds(Class<? extends CustomerPhoneContact> type, String phoneNumber, int maxResults) {
+
+		long start = System.nanoTime();
+		String prefix = PhoneDigits.of(phoneNumber);
+		if (prefix == null) {
+			return new ArrayList<Long>();
+		}
+
+		ensureEntries(type);
+		synchronized (lock) {
+			List<Long> ids = entries.get(type).trie.findByPrefix(prefix, Math.min(maxResults, MAXIMUM_RESULTS));
+			latencies.record(System.nanoTime() - start);
+			return ids;
+		}
+	}
+
+	/**
+	 * 電話番号が前方一致するエンティティを、電話番号の昇順に返す。
+	 * IDをfindIds()で求めた後、エンティティをまとめて読み込む。
+	 *
+	 * @param phoneNumber 電話番号の先頭部分
+	 * @param maxResults 最大件数（MAXIMUM_RESULTSを超える場合はMAXIMUM_RESULTS）
+	 */
+	public <T extends CustomerPhoneContact> List<T> find(Class<T> type, String phoneNumber, int maxResults) {
+
+		List<Long> ids = findIds(type, phoneNumber, maxResults);
+		if (ids.isEmpty()) {
+			return new ArrayList<T>();
+		}
+
+		List<T> loaded = em.createQuery("SELECT c FROM " + entityName(type)
+				+ " c WHERE c.id IN :ids", type)
+			.setParameter("ids", ids)
+			.getResultList();
+
+		Map<Long, T> byId = new HashMap<Long, T>();
+		for (T entity : loaded) {
+			byId.put(entity.getId(), entity);
+		}
+		List<T> found = new ArrayList<T>(ids.size());
+		for (Long id : ids) {
+			T entity = byId.get(id);
+			// 検索の後に削除された場合は含めない
+			if (entity != null) {
+				found.add(entity);
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * エンティティの電話番号を登録する。変更前の電話番号の登録は削除する。
+	 * CustomerPhoneListenerから呼び出される。
+	 *
+	 * @param phoneDigits 数字だけにした電話番号。nullの場合は登録を削除する
+	 */
+	public void put(Class<?> type, Long id, String phoneDigits) {
+		synchronized (lock) {
+			PhoneEntries phoneEntries = entries.get(type);
+			// 作成されていない場合は、作成時にテーブルから読み込まれる
+			if (phoneEntries != null) {
+				phoneEntries.put(id, phoneDigits);
+			}
+			// 作成中のトライには、読み込みが終わった後に反映する
+			for (Loading loading : loadings) {
+				if (loading.type == type) {
+					loading.puts.put(id, phoneDigits);
+				}
+			}
+		}
+	}
+
+	/**
+	 * エンティティの電話番号の登録を削除する。
+	 * CustomerPhoneListenerから呼び出される。
+	 */
+	public void remove(Class<?> type, Long id) {
+		put(type, id, null);
+	}
+
+	/**
+	 * エンティティクラスのテーブルの全件からトライを作成し直す。
+	 */
+	public void rebuild(Class<? extends CustomerPhoneContact> type) {
+		build(type, true);
+	}
+
+	/**
+	 * 登録されている電話番号の件数
+	 */
+	public int getSize(Class<? extends CustomerPhoneContact> type) {
+		ensureEntries(type);
+		synchronized (lock) {
+			return entries.get(type).trie.size();
+		}
+	}
+
+	/**
+	 * 検索にかかった時間のパーセンタイル
+	 *
+	 * @param percentile パーセンタイル（0〜100）
+	 * @return 時間（ナノ秒）。検索していない場合は0
+	 */
+	public long getLatencyPercentile(double percentile) {
+		synchronized (lock) {
+			return latencies.percentile(percentile);
+		}
+	}
+
+	/**
+	 * 検索にかかった時間の最大値（ナノ秒）
+	 */
+	public long getMaximumLatency() {
+		synchronized (lock) {
+			return latencies.getMaximum();
+		}
+	}
+
+	/**
+	 * 検索の回数
+	 */
+	public long getLookupCount() {
+		synchronized (lock) {
+			return latencies.getTotalCount();
+		}
+	}
+
+	/**
+	 * 統計情報をリセットする。
+	 */
+	public void resetStatistics() {
+		synchronized (lock) {
+			latencies.reset();
+		}
+	}
+
+	/**
+	 * エンティティクラスのトライが作成されていない場合は作成する。
+	 * ロックを保持せずに呼び出すこと。
+	 */
+	private void ensureEntries(Class<?> type) {
+		synchronized (lock) {
+			if (entries.containsKey(type)) {
+				return;
+			}
+		}
+		build(type, false);
+	}
+
+	/**
+	 * テーブルの全件からトライを作成し、読み込み中に通知された
+	 * 登録を反映してから置き換える。ロックを保持せずに呼び出すこと。
+	 *
+	 * @param replace 作成済みのトライを置き換える場合はtrue。
+	 *        falseの場合は、他のスレッドが先に作成していれば何もしない
+	 */
+	private void build(Class<?> type, boolean replace) {
+
+		Loading loading = new Loading(type);
+		synchronized (lock) {
+			loadings.add(loading);
+		}
+		try {
+			PhoneEntries phoneEntries = load(type);
+			synchronized (lock) {
+				if (replace || !entries.containsKey(type)) {
+					for (Map.Entry<Long, String> put : loading.puts.entrySet()) {
+						phoneEntries.put(put.getKey(), put.getValue());
+					}
+					entries.put(type, phoneEntries);
+				}
+			}
+		} finally {
+			synchronized (lock) {
+				loadings.remove(loading);
+			}
+		}
+	}
+
+	/**
+	 * テーブルの全件からトライを作成する。
+	 * ロックを保持せずに呼び出すこと。
+	 */
+	private PhoneEntries load(Class<?> type) {
+
+		List<Object[]> rows = em.createQuery("SELECT c.id, c.phoneDigits FROM " + entityName(type)
+				+ " c WHERE c.phoneDigits IS NOT NULL", Object[].class).getResultList();
+
+		PhoneEntries phoneEntries = new PhoneEntries();
+		for (Object[] row : rows) {
+			phoneEntries.put((Long) row[0], (String) row[1]);
+		}
+		return phoneEntries;
+	}
+
+	private List<Class<? extends CustomerPhoneContact>> phoneContactTypes() {
+		List<Class<? extends CustomerPhoneContact>> types = new ArrayList<Class<? extends CustomerPhoneContact>>();
+		for (EntityType<?> entity : em.getMetamodel().getEntities()) {
+			Class<?> type = entity.getJavaType();
+			if (CustomerPhoneContact.class.isAssignableFrom(type)) {
+				types.add(type.asSubclass(CustomerPhoneContact.class));
+			}
+		}
+		return types;
+	}
+
+	private String entityName(Class<?> type) {
+		return em.getMetamodel().entity(type).getName();
+	}
+
+	/**
+	 * 作成中のトライのエンティティクラスと、読み込み中に通知された
+	 * IDごとの電話番号（削除の場合はnull）
+	 */
+	private static class Loading {
+
+		final Class<?> type;
+		final Map<Long, String> puts = new HashMap<Long, String>();
+
+		Loading(Class<?> type) {
+			this.type = type;
+		}
+	}
+
+	/**
+	 * エンティティクラスごとのトライと、IDごとの電話番号
+	 */
+	private static class PhoneEntries {
+
+		final PhoneTrie trie = new PhoneTrie();
+		final Map<Long, String> digitsById = new HashMap<Long, String>();
+
+		void put(Long id, String phoneDigits) {
+			String previous = phoneDigits == null ? digitsById.remove(id) : digitsById.put(id, phoneDigits);
+			if (previous != null && !previous.equals(phoneDigits)) {
+				trie.remove(previous, id);
+			}
+			if (phoneDigits != null) {
+				trie.put(phoneDigits, id);
+			}
+		}
+	}
+}
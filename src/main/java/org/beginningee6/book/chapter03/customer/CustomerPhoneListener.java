@@ -0,0 +1,69 @@
+package org.beginningee6.book.chapter03.customer;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.naming.NamingException;
+import javax.persistence.PostPersist;
+import javax.persistence.PostRemove;
+import javax.persistence.PostUpdate;
+
+import org.beginningee6.book.chapter03.util.TransactionCompletion;
+
+/**
+ * 顧客エンティティの電話番号の追加・変更・削除を
+ * CustomerPhoneIndexに通知するエンティティリスナー。
+ *
+ * ロールバックされた変更が検索結果に残らないよう、
+ * 通知はトランザクションのコミット後に行う。
+ *
+ * CustomerPhoneIndexがデプロイされていない場合は何もしない。
+ */
+public class CustomerPhoneListener {
+
+	private static final Logger logger = Logger.getLogger(CustomerPhoneListener.class.getName());
+
+	@PostPersist
+	@PostUpdate
+	public void put(Object entity) {
+
+		final Class<?> type = Entities.entityClass(entity);
+		final Long id = ((CustomerPhoneContact) entity).getId();
+		final String phoneDigits = ((CustomerPhoneContact) entity).getPhoneDigits();
+
+		try {
+			final CustomerPhoneIndex index =
+					TransactionCompletion.lookup("java:module/CustomerPhoneIndex", CustomerPhoneIndex.class);
+
+			TransactionCompletion.afterCommit(new Runnable() {
+
+				public void run() {
+					index.put(type, id, phoneDigits);
+				}
+			});
+		} catch (NamingException e) {
+			logger.log(Level.FINE, "CustomerPhoneIndex is not available", e);
+		}
+	}
+
+	@PostRemove
+	public void remove(Object entity) {
+
+		final Class<?> type = Entities.entityClass(entity);
+		final Long id = ((CustomerPhoneContact) entity).getId();
+
+		try {
+			final CustomerPhoneIndex index =
+					TransactionCompletion.lookup("java:module/CustomerPhoneIndex", CustomerPhoneIndex.class);
+
+			TransactionCompletion.afterCommit(new Runnable() {
+
+				public void run() {
+					index.remove(type, id);
+				}
+			});
+		} catch (NamingException e) {
+			logger.log(Level.FINE, "CustomerPhoneIndex is not available", e);
+		}
+	}
+}
@@ -0,0 +1,24 @@
+package org.beginningee6.book.chapter03.customer;
+
+import javax.persistence.Entity;
+
+/**
+ * エンティティリスナーなどで使用するエンティティのユーティリティ。
+ */
+final class Entities {
+
+	private Entities() {}
+
+	/**
+	 * エンティティのインスタンスの、＠Entityアノテーションが
+	 * 付与されたクラスを返す（プロキシの場合はそのスーパークラス）。
+	 */
+	static Class<?> entityClass(Object entity) {
+		for (Class<?> type = entity.getClass(); type != null; type = type.getSuperclass()) {
+			if (type.isAnnotationPresent(Entity.class)) {
+				return type;
+			}
+		}
+		return entity.getClass();
+	}
+}
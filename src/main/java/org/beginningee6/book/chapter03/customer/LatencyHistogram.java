@@ -0,0 +1,85 @@
+package org.beginningee6.book.chapter03.customer;
+
+import java.util.Arrays;
+
+/**
+ * 処理時間（ナノ秒）の分布を固定サイズの配列で記録し、
+ * パーセンタイルを求めるヒストグラム。
+ *
+ * 2のべき乗ごとの範囲をさらに2^SUB_BUCKET_BITS個に分割した
+ * バケットに記録するため、記録した値の相対誤差は
+ * 1/2^SUB_BUCKET_BITS（12.5%）以内となる。記録はO(1)で、
+ * 記録件数によらずメモリ使用量は一定である。
+ *
+ * このクラスはスレッドセーフではない。
+ */
+final class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	private final long[] counts = new long[64 * SUB_BUCKETS];
+	private long totalCount;
+	private long maximum;
+
+	void record(long nanos) {
+		long value = Math.max(0, nanos);
+		counts[index(value)]++;
+		totalCount++;
+		maximum = Math.max(maximum, value);
+	}
+
+	/**
+	 * パーセンタイルの値を返す。値が記録されたバケットの上限
+	 * （記録された最大値を超えない）を返す。
+	 *
+	 * @param percentile パーセンタイル（0〜100）
+	 * @return パーセンタイルの値（ナノ秒）。記録が無い場合は0
+	 */
+	long percentile(double percentile) {
+		if (totalCount == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * totalCount));
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min(upperBound(i), maximum);
+			}
+		}
+		return maximum;
+	}
+
+	long getTotalCount() {
+		return totalCount;
+	}
+
+	long getMaximum() {
+		return maximum;
+	}
+
+	void reset() {
+		Arrays.fill(counts, 0);
+		totalCount = 0;
+		maximum = 0;
+	}
+
+	private static int index(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return ((exponent - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + sub;
+	}
+
+	private static long upperBound(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int exponent = (index >>> SUB_BUCKET_BITS) + SUB_BUCKET_BITS - 1;
+		int sub = index & (SUB_BUCKETS - 1);
+		return ((long) (SUB_BUCKETS + sub + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+	}
+}
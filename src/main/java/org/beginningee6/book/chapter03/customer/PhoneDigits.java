@@ -0,0 +1,33 @@
+package org.beginningee6.book.chapter03.customer;
+
+/**
+ * 電話番号の正規化。
+ *
+ * 電話番号は「03-1234-5678」「(03)1234 5678」「０３１２３４５６７８」
+ * のように書式が統一されていないため、数字だけを取り出して
+ * 半角の数字の文字列にする。国番号（「+81」など）と
+ * 市外局番の先頭の「0」の変換は行わない。
+ */
+public final class PhoneDigits {
+
+	private PhoneDigits() {}
+
+	/**
+	 * 数字だけにした電話番号を返す。
+	 *
+	 * @return 数字だけにした電話番号。nullまたは数字を含まない場合はnull
+	 */
+	public static String of(String phoneNumber) {
+		if (phoneNumber == null) {
+			return null;
+		}
+		StringBuilder digits = new StringBuilder(phoneNumber.length());
+		for (int i = 0; i < phoneNumber.length(); i++) {
+			int digit = Character.digit(phoneNumber.charAt(i), 10);
+			if (digit >= 0) {
+				digits.append((char) ('0' + digit));
+			}
+		}
+		return digits.length() == 0 ? null : digits.toString();
+	}
+}
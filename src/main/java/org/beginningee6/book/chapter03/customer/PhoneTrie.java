@@ -0,0 +1,271 @@
+package org.beginningee6.book.chapter03.customer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 数字だけにした電話番号（PhoneDigits）からIDを検索する
+ * 圧縮トライ（基数木）。
+ *
+ * 子が1つだけのノードは親の辺にまとめる（辺のラベルを
+ * 複数の数字の文字列とする）ため、ノードの数は電話番号の
+ * 件数の2倍程度に収まる。子は数字ごとの配列で保持する。
+ *
+ * 前方一致の検索は、前方一致の長さ分だけ木をたどった後、
+ * そのノード以下を電話番号の昇順に最大件数に達するまで
+ * たどる。時間は登録件数によらず、前方一致の長さと
+ * 最大件数に比例する。
+ *
+ * 同じ電話番号に複数のIDを登録できる。
+ *
+ * このクラスはスレッドセーフではない。
+ */
+final class PhoneTrie {
+
+	private static final int RADIX = 10;
+
+	private final Node root = new Node("");
+	private int size;
+	private int nodeCount = 1;
+
+	/**
+	 * 電話番号とIDを登録する。すでに登録されている場合は何もしない。
+	 */
+	void put(String digits, long id) {
+
+		Node node = root;
+		int i = 0;
+		while (i < digits.length()) {
+			int digit = digit(digits, i);
+			Node child = node.child(digit);
+			if (child == null) {
+				child = new Node(digits.substring(i));
+				node.setChild(digit, child);
+				nodeCount++;
+				node = child;
+				break;
+			}
+
+			int common = commonPrefixLength(child.label, digits, i);
+			if (common < child.label.length()) {
+				// 辺の途中で分岐するため、共通部分のノードを挿入する
+				Node middle = new Node(child.label.substring(0, common));
+				child.label = child.label.substring(common);
+				middle.setChild(digit(child.label, 0), child);
+				node.setChild(digit, middle);
+				nodeCount++;
+				child = middle;
+			}
+			node = child;
+			i += common;
+		}
+
+		if (node.add(id)) {
+			size++;
+		}
+	}
+
+	/**
+	 * 電話番号とIDの登録を削除する。
+	 *
+	 * @return 登録されていた場合はtrue
+	 */
+	boolean remove(String digits, long id) {
+
+		Node parent = null;
+		Node node = root;
+		int i = 0;
+		while (i < digits.length()) {
+			Node child = node.child(digit(digits, i));
+			if (child == null || !digits.startsWith(child.label, i)) {
+				return false;
+			}
+			parent = node;
+			node = child;
+			i += child.label.length();
+		}
+
+		if (!node.remove(id)) {
+			return false;
+		}
+		size--;
+
+		if (node != root && node.idCount == 0) {
+			if (node.childCount == 0) {
+				parent.setChild(digit(node.label, 0), null);
+				nodeCount--;
+				// 親が子1つだけの中間ノードになった場合はまとめる
+				if (parent != root && parent.idCount == 0 && parent.childCount == 1) {
+					merge(parent);
+				}
+			} else if (node.childCount == 1) {
+				merge(node);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 電話番号が前方一致するIDを、電話番号の昇順に返す。
+	 *
+	 * @param prefix 数字だけにした電話番号の先頭部分
+	 * @param maxResults 最大件数
+	 */
+	List<Long> findByPrefix(String prefix, int maxResults) {
+
+		List<Long> found = new ArrayList<Long>(Math.min(maxResults, 16));
+		if (maxResults <= 0) {
+			return found;
+		}
+
+		Node node = root;
+		int i = 0;
+		while (i < prefix.length()) {
+			Node child = node.child(digit(prefix, i));
+			if (child == null) {
+				return found;
+			}
+			int remaining = prefix.length() - i;
+			if (child.label.length() > remaining) {
+				// 前方一致の末尾が辺の途中にある
+				if (!child.label.startsWith(prefix.substring(i))) {
+					return found;
+				}
+			} else if (!prefix.startsWith(child.label, i)) {
+				return found;
+			}
+			node = child;
+			i += child.label.length();
+		}
+
+		collect(node, found, maxResults);
+		return found;
+	}
+
+	/**
+	 * 登録されている電話番号とIDの組の件数
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * ノードの数（ルートを含む）
+	 */
+	int nodeCount() {
+		return nodeCount;
+	}
+
+	private static void collect(Node node, List<Long> found, int maxResults) {
+		for (int i = 0; i < node.idCount; i++) {
+			if (found.size() >= maxResults) {
+				return;
+			}
+			found.add(node.ids[i]);
+		}
+		if (node.children == null) {
+			return;
+		}
+		for (Node child : node.children) {
+			if (found.size() >= maxResults) {
+				return;
+			}
+			if (child != null) {
+				collect(child, found, maxResults);
+			}
+		}
+	}
+
+	/**
+	 * IDを持たず子が1つだけのノードを、その子とまとめる。
+	 */
+	private void merge(Node node) {
+		Node child = null;
+		for (Node candidate : node.children) {
+			if (candidate != null) {
+				child = candidate;
+				break;
+			}
+		}
+		node.label = node.label + child.label;
+		node.children = child.children;
+		node.childCount = child.childCount;
+		node.ids = child.ids;
+		node.idCount = child.idCount;
+		nodeCount--;
+	}
+
+	private static int commonPrefixLength(String label, String digits, int offset) {
+		int length = Math.min(label.length(), digits.length() - offset);
+		int i = 0;
+		while (i < length && label.charAt(i) == digits.charAt(offset + i)) {
+			i++;
+		}
+		return i;
+	}
+
+	private static int digit(String digits, int index) {
+		int digit = digits.charAt(index) - '0';
+		if (digit < 0 || digit >= RADIX) {
+			throw new IllegalArgumentException("Not a digit: " + digits);
+		}
+		return digit;
+	}
+
+	private static class Node {
+
+		String label;
+		Node[] children;
+		int childCount;
+		long[] ids;
+		int idCount;
+
+		Node(String label) {
+			this.label = label;
+		}
+
+		Node child(int digit) {
+			return children == null ? null : children[digit];
+		}
+
+		void setChild(int digit, Node child) {
+			if (children == null) {
+				children = new Node[RADIX];
+			}
+			if (children[digit] == null && child != null) {
+				childCount++;
+			} else if (children[digit] != null && child == null) {
+				childCount--;
+			}
+			children[digit] = child;
+		}
+
+		boolean add(long id) {
+			for (int i = 0; i < idCount; i++) {
+				if (ids[i] == id) {
+					return false;
+				}
+			}
+			if (ids == null) {
+				ids = new long[1];
+			} else if (idCount == ids.length) {
+				long[] grown = new long[idCount * 2];
+				System.arraycopy(ids, 0, grown, 0, idCount);
+				ids = grown;
+			}
+			ids[idCount++] = id;
+			return true;
+		}
+
+		boolean remove(long id) {
+			for (int i = 0; i < idCount; i++) {
+				if (ids[i] == id) {
+					System.arraycopy(ids, i + 1, ids, i, idCount - i - 1);
+					idCount--;
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+}
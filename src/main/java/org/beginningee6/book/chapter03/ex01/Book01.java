@@ -3,24 +3,82 @@ package org.beginningee6.book.chapter03.ex01;
 import java.io.Serializable;
 
 import javax.persistence.Entity;
+import javax.persistence.EntityListeners;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
 import javax.persistence.Table;
+import javax.persistence.TableGenerator;
+import javax.persistence.UniqueConstraint;
 
 /**
  * ＠Tableアノテーションにより、データベースの
  * テーブル名をbook_ex01として明示的に指定する。
+ * 
+ * IDは＠TableGeneratorアノテーションにより、採番用の
+ * テーブル（id_gen_ex01）から、allocationSize件分の
+ * ブロック単位でまとめて払い出す。
+ * 
+ * これにより、大量のエンティティを永続化する場合でも
+ * 採番のためのデータベースアクセスはブロックごとに
+ * １回で済む（BookBulkLoaderを参照）。
+ * 
+ * ブロックの割り当て方式（hi/loかpooledか）は
+ * 永続化プロバイダの設定により選択する。
+ * Hibernateの場合はhibernate.id.new_generator_mappings
+ * がtrueの場合にpooled、falseの場合にhi/loとなる。
+ * ブロックのサイズはorm.xmlでallocationSizeを
+ * 上書きすることで変更できる。
+ * 
+ * isbnカラムには一意制約を設定し、ISBNによる検索で
+ * インデックスが利用されるようにしている。
+ * ISBNによる検索結果はBookCatalogでキャッシュされ、
+ * 更新・削除時にはBookCatalogListenerによって
+ * キャッシュが無効化される。
+ * 
+ * また、価格やページ数の分析に使用するBookAnalyticsの
+ * スナップショットの差分読み込みのために、追加・更新・削除を
+ * BookAnalyticsListenerによって通知する。
+ * 
+ * titleとdescriptionによる全文検索のための
+ * BookSearchIndexも、BookSearchIndexListenerによって
+ * 追加・更新・削除に合わせて更新される。
  */
 @Entity
-@Table(name = "book_ex01")		// データベース上のテーブル名を明示的に指定
+@Table(name = "book_ex01",		// データベース上のテーブル名を明示的に指定
+		uniqueConstraints = @UniqueConstraint(columnNames = "isbn"))	// isbnの一意制約
+@NamedQueries({
+	@NamedQuery(name = "findBookByIsbn", query = "SELECT b FROM Book01 b WHERE b.isbn = :isbn"),
+	@NamedQuery(name = "findBooksAfterId", query = "SELECT b FROM Book01 b WHERE b.id > :lastId ORDER BY b.id"),
+	@NamedQuery(name = "findBookColumnsAfterId",
+			query = "SELECT b.id, b.price, b.nbOfPage, b.illustrations FROM Book01 b WHERE b.id > :lastId ORDER BY b.id"),
+	@NamedQuery(name = "findBookColumnsByIds",
+			query = "SELECT b.id, b.price, b.nbOfPage, b.illustrations FROM Book01 b WHERE b.id IN :ids"),
+	@NamedQuery(name = "findBookTextsAfterId",
+			query = "SELECT b.id, b.title, b.description FROM Book01 b WHERE b.id > :lastId ORDER BY b.id"),
+	@NamedQuery(name = "findBooksByIds", query = "SELECT b FROM Book01 b WHERE b.id IN :ids")
+})
+@EntityListeners({BookCatalogListener.class, BookAnalyticsListener.class, BookSearchIndexListener.class})
 public class Book01 implements Serializable {
 	
 	private static final long serialVersionUID = 1L;
 
+	/**
+	 * 採番テーブルから１回で払い出すIDの件数
+	 */
+	public static final int ID_ALLOCATION_SIZE = 50;
+
 	@Id
-	@GeneratedValue(strategy = GenerationType.AUTO)
-	private Long id;	// 値の自動生成の仕方を'自動'（デフォルト）に指定
+	@GeneratedValue(strategy = GenerationType.TABLE, generator = "book01IdGenerator")
+	@TableGenerator(name = "book01IdGenerator",		// 採番テーブルによるIDの生成を指定
+			table = "id_gen_ex01",					// 採番テーブルのテーブル名
+			pkColumnName = "gen_name",
+			valueColumnName = "gen_value",
+			pkColumnValue = "book_ex01",
+			allocationSize = ID_ALLOCATION_SIZE)	// ブロック単位でIDを払い出す
+	private Long id;
 	
 	private String title;
 	private Float price;
@@ -42,6 +100,18 @@ public class Book01 implements Serializable {
 		this.illustrations = illustrations;
 	}
 
+	/**
+	 * IDを含めて全フィールドをコピーする。
+	 * 
+	 * BookCatalogがキャッシュ内のインスタンスを
+	 * 呼び出し側と共有しないために使用する。
+	 */
+	Book01(Book01 other) {
+		this(other.title, other.price, other.description, other.isbn,
+				other.nbOfPage, other.illustrations);
+		this.id = other.id;
+	}
+
 	public String getTitle() {
 		return title;
 	}
@@ -0,0 +1,157 @@
+package org.beginningee6.book.chapter03.ex01;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+/**
+ * 書籍の価格とページ数の分析に使用する
+ * BookColumnSnapshotを保持するシングルトン。
+ *
+ * スナップショットは射影クエリ（findBookColumnsAfterId）で
+ * id、price、nbOfPage、illustrationsだけを読み込んで作成する。
+ * エンティティを生成しないため、永続化コンテキストも使用しない。
+ *
+ * refresh()は全件を読み込み直す。refreshIncrementally()は、
+ * BookAnalyticsListenerから通知された追加・更新・削除された
+ * エンティティと、スナップショットの最大IDより大きいIDの
+ * 行だけを読み込んで、既存のスナップショットに反映する。
+ *
+ * スナップショットは不変であり、読み込みの完了時に
+ * 置き換えるため、参照側は同期を必要としない。
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class BookAnalytics {
+
+	/**
+	 * 1回の検索で読み込む件数
+	 */
+	static final int FETCH_SIZE = 1000;
+
+	@PersistenceContext
+	private EntityManager em;
+
+	private volatile BookColumnSnapshot snapshot = BookColumnSnapshot.EMPTY;
+
+	// 次回のrefreshIncrementally()で読み込み直すエンティティのID
+	private final Set<Long> changedIds = new HashSet<Long>();
+
+	private final Object refreshLock = new Object();
+
+	/**
+	 * 現在のスナップショットを返す。データベースにはアクセスしない。
+	 */
+	public BookColumnSnapshot getSnapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * 全件を読み込んでスナップショットを作成し直す。
+	 */
+	public BookColumnSnapshot refresh() {
+		synchronized (refreshLock) {
+			// 読み込み中に発生した変更は次回の差分読み込みで反映する
+			drainChangedIds();
+
+			BookColumnSnapshot.Builder builder = new BookColumnSnapshot.Builder(FETCH_SIZE);
+			long lastId = Long.MIN_VALUE;
+			List<Object[]> chunk;
+			do {
+				chunk = findColumnsAfter(lastId);
+				for (Object[] row : chunk) {
+					builder.add(row);
+					lastId = (Long) row[0];
+				}
+			} while (chunk.size() == FETCH_SIZE);
+
+			snapshot = builder.build();
+			return snapshot;
+		}
+	}
+
+	/**
+	 * 前回の読み込み以降に変更された行だけを読み込み、
+	 * スナップショットに反映する。
+	 */
+	public BookColumnSnapshot refreshIncrementally() {
+		synchronized (refreshLock) {
+			BookColumnSnapshot current = snapshot;
+			Set<Long> changed = drainChangedIds();
+
+			// IDの昇順に並べ、重複を除く
+			TreeMap<Long, Object[]> rows = new TreeMap<Long, Object[]>();
+
+			// 最大IDより後に追加された行
+			long lastId = current.getMaxId();
+			List<Object[]> chunk;
+			do {
+				chunk = findColumnsAfter(lastId);
+				for (Object[] row : chunk) {
+					rows.put((Long) row[0], row);
+					lastId = (Long) row[0];
+				}
+			} while (chunk.size() == FETCH_SIZE);
+
+			// 通知された追加・更新・削除された行
+			List<Long> pending = new ArrayList<Long>(changed);
+			for (int from = 0; from < pending.size(); from += FETCH_SIZE) {
+				List<Long> ids = pending.subList(from, Math.min(pending.size(), from + FETCH_SIZE));
+				for (Object[] row : em.createNamedQuery("findBookColumnsByIds", Object[].class)
+						.setParameter("ids", ids)
+						.getResultList()) {
+					rows.put((Long) row[0], row);
+				}
+			}
+
+			// 読み込めなかった行は削除されている
+			Set<Long> removed = new HashSet<Long>(changed);
+			removed.removeAll(rows.keySet());
+
+			snapshot = current.merge(rows.values(), removed);
+			return snapshot;
+		}
+	}
+
+	/**
+	 * 次回のrefreshIncrementally()で読み込み直すエンティティを登録する。
+	 * BookAnalyticsListenerから呼び出される。
+	 */
+	public void markChanged(Long id) {
+		synchronized (changedIds) {
+			changedIds.add(id);
+		}
+	}
+
+	/**
+	 * 読み込みを待っている変更の件数
+	 */
+	public int getPendingChangeCount() {
+		synchronized (changedIds) {
+			return changedIds.size();
+		}
+	}
+
+	private Set<Long> drainChangedIds() {
+		synchronized (changedIds) {
+			Set<Long> drained = new HashSet<Long>(changedIds);
+			changedIds.clear();
+			return drained;
+		}
+	}
+
+	private List<Object[]> findColumnsAfter(long lastId) {
+		return em.createNamedQuery("findBookColumnsAfterId", Object[].class)
+				.setParameter("lastId", lastId)
+				.setMaxResults(FETCH_SIZE)
+				.getResultList();
+	}
+}
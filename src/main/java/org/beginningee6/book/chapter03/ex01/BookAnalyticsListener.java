@@ -0,0 +1,46 @@
+package org.beginningee6.book.chapter03.ex01;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.naming.NamingException;
+import javax.persistence.PostPersist;
+import javax.persistence.PostRemove;
+import javax.persistence.PostUpdate;
+
+import org.beginningee6.book.chapter03.util.TransactionCompletion;
+
+/**
+ * Book01エンティティの追加・更新・削除をBookAnalyticsに
+ * 通知するエンティティリスナー。
+ *
+ * コミット前に差分読み込みが行われると変更前の値を
+ * 読み込んでしまうため、通知はトランザクションの完了後に行う。
+ *
+ * BookAnalyticsがデプロイされていない場合は何もしない。
+ */
+public class BookAnalyticsListener {
+
+	private static final Logger logger = Logger.getLogger(BookAnalyticsListener.class.getName());
+
+	@PostPersist
+	@PostUpdate
+	@PostRemove
+	public void markChanged(Book01 book) {
+
+		final Long id = book.getId();
+
+		try {
+			final BookAnalytics analytics = TransactionCompletion.lookup("java:module/BookAnalytics", BookAnalytics.class);
+
+			TransactionCompletion.afterCompletion(new Runnable() {
+
+				public void run() {
+					analytics.markChanged(id);
+				}
+			});
+		} catch (NamingException e) {
+			logger.log(Level.FINE, "BookAnalytics is not available", e);
+		}
+	}
+}
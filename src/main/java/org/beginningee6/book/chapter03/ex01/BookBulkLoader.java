@@ -0,0 +1,79 @@
+package org.beginningee6.book.chapter03.ex01;
+
+import javax.ejb.Stateless;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+/**
+ * Book01エンティティを大量に永続化するためのローダー。
+ *
+ * persist()したエンティティをbatchSize件ごとにflush()して
+ * データベースへ書き出し、clear()により永続化コンテキストから
+ * 切り離す。これにより、永続化コンテキストが保持する
+ * エンティティの数がbatchSize件を超えないようにする。
+ *
+ * flush()時に発行されるINSERT文は、永続化プロバイダの
+ * JDBCバッチ（Hibernateの場合はhibernate.jdbc.batch_size）
+ * によってまとめて実行されるため、batchSizeはJDBCバッチの
+ * サイズと揃えておくとよい。
+ *
+ * IDの採番はBook01の＠TableGeneratorによりブロック単位で
+ * 行われるため、１件ごとの採番のためのアクセスは発生しない。
+ *
+ * （注）１回のload()の呼び出しが１つのトランザクションとなる。
+ * 数十万件規模のデータを読み込む場合は、呼び出し側で入力を
+ * 適当な件数に分割してload()を繰り返し呼び出すこと。
+ */
+@Stateless
+public class BookBulkLoader {
+
+	/**
+	 * flush()およびclear()を行う間隔のデフォルト値
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 50;
+
+	@PersistenceContext
+	private EntityManager em;
+
+	/**
+	 * デフォルトのバッチサイズでBook01エンティティを永続化する。
+	 *
+	 * @param books 永続化するエンティティ
+	 * @return 永続化した件数
+	 */
+	public int load(Iterable<Book01> books) {
+		return load(books, DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * 指定したバッチサイズごとにflush()とclear()を行いながら
+	 * Book01エンティティを永続化する。
+	 *
+	 * @param books 永続化するエンティティ
+	 * @param batchSize flush()およびclear()を行う間隔
+	 * @return 永続化した件数
+	 */
+	public int load(Iterable<Book01> books, int batchSize) {
+
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
+		}
+
+		int count = 0;
+		for (Book01 book : books) {
+			em.persist(book);
+
+			if (++count % batchSize == 0) {
+				// まとめてINSERTを発行し、永続化コンテキストを空にする
+				em.flush();
+				em.clear();
+			}
+		}
+
+		// 端数の書き出し
+		em.flush();
+		em.clear();
+
+		return count;
+	}
+}
@@ -0,0 +1,217 @@
+package org.beginningee6.book.chapter03.ex01;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+/**
+ * ISBNをキーとしてBook01エンティティを検索するカタログ。
+ *
+ * 検索結果をISBN→Book01のキャッシュに保持し、
+ * キャッシュに無い場合にのみデータベースを検索する
+ * （リードスルー）。
+ *
+ * キャッシュの件数はmaximumSizeを上限とし、上限を超えた
+ * 場合は最も長い間参照されていないエントリから削除する（LRU）。
+ *
+ * エンティティの更新・削除時には、BookCatalogListenerが
+ * トランザクションの完了後にinvalidate()を呼び出して
+ * 該当するエントリを削除する。データベースの検索中に
+ * 無効化が行われた場合は、検索結果が古い可能性があるため
+ * キャッシュしない。
+ *
+ * キャッシュの状態は同期ブロックで保護し、データベースの
+ * 検索はロックの外で行うため、コンテナによる排他制御は
+ * 使用しない（ConcurrencyManagementType.BEAN）。
+ *
+ * キャッシュのサイズを調整するために、ヒット、ミス、
+ * 追い出しの回数を取得できる。
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class BookCatalog {
+
+	/**
+	 * キャッシュするエントリ数の上限のデフォルト値
+	 */
+	public static final int DEFAULT_MAXIMUM_SIZE = 10000;
+
+	@PersistenceContext
+	private EntityManager em;
+
+	private final Object lock = new Object();
+
+	private int maximumSize = DEFAULT_MAXIMUM_SIZE;
+
+	// アクセス順に並ぶLinkedHashMapによりLRUを実現する
+	private final LinkedHashMap<String, Book01> cache =
+			new LinkedHashMap<String, Book01>(16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Book01> eldest) {
+			if (size() > maximumSize) {
+				isbnById.remove(eldest.getValue().getId());
+				evictionCount++;
+				return true;
+			}
+			return false;
+		}
+	};
+
+	// ISBNが変更された場合に古いエントリを削除するためのID→ISBNの対応
+	private final Map<Long, String> isbnById = new HashMap<Long, String>();
+
+	// 無効化のたびに増加する。検索の前後で変化していれば
+	// 検索したエンティティをキャッシュしない
+	private long invalidationCount;
+
+	private long hitCount;
+	private long missCount;
+	private long evictionCount;
+
+	/**
+	 * ISBNでBook01エンティティを検索する。
+	 *
+	 * 返されるインスタンスはキャッシュ内のインスタンスの
+	 * コピーであるため、変更してマージしてもキャッシュの
+	 * 内容には影響しない。
+	 *
+	 * @param isbn ISBN
+	 * @return 該当するエンティティ。存在しない場合はnull
+	 */
+	public Book01 findByIsbn(String isbn) {
+
+		long invalidationsBefore;
+		synchronized (lock) {
+			Book01 cached = cache.get(isbn);
+			if (cached != null) {
+				hitCount++;
+				return new Book01(cached);
+			}
+			missCount++;
+			invalidationsBefore = invalidationCount;
+		}
+
+		List<Book01> found = em.createNamedQuery("findBookByIsbn", Book01.class)
+				.setParameter("isbn", isbn)
+				.getResultList();
+		if (found.isEmpty()) {
+			return null;
+		}
+
+		Book01 book = new Book01(found.get(0));
+		synchronized (lock) {
+			if (invalidationCount == invalidationsBefore) {
+				cache.put(isbn, book);
+				isbnById.put(book.getId(), isbn);
+			}
+		}
+		return new Book01(book);
+	}
+
+	/**
+	 * 指定したエンティティに対応するキャッシュのエントリを削除する。
+	 *
+	 * ISBNが変更されている場合に備え、IDに対応する
+	 * 古いISBNのエントリも削除する。
+	 *
+	 * @param id エンティティのID
+	 * @param isbn エンティティの現在のISBN
+	 */
+	public void invalidate(Long id, String isbn) {
+		synchronized (lock) {
+			invalidationCount++;
+			String oldIsbn = isbnById.remove(id);
+			if (oldIsbn != null) {
+				cache.remove(oldIsbn);
+			}
+			if (isbn != null) {
+				cache.remove(isbn);
+			}
+		}
+	}
+
+	/**
+	 * キャッシュのすべてのエントリを削除する。
+	 *
+	 * JPQLの一括更新・一括削除ではエンティティの
+	 * ライフサイクルイベントが発生しないため、
+	 * それらを実行した場合はこのメソッドを呼び出すこと。
+	 */
+	public void clear() {
+		synchronized (lock) {
+			invalidationCount++;
+			cache.clear();
+			isbnById.clear();
+		}
+	}
+
+	/**
+	 * 統計情報をリセットする。
+	 */
+	public void resetStatistics() {
+		synchronized (lock) {
+			hitCount = 0;
+			missCount = 0;
+			evictionCount = 0;
+		}
+	}
+
+	public int getMaximumSize() {
+		synchronized (lock) {
+			return maximumSize;
+		}
+	}
+
+	/**
+	 * キャッシュするエントリ数の上限を設定する。
+	 * 上限を超えているエントリは古いものから削除される。
+	 */
+	public void setMaximumSize(int maximumSize) {
+		if (maximumSize < 1) {
+			throw new IllegalArgumentException("maximumSize must be positive: " + maximumSize);
+		}
+		synchronized (lock) {
+			this.maximumSize = maximumSize;
+			while (cache.size() > maximumSize) {
+				Map.Entry<String, Book01> eldest = cache.entrySet().iterator().next();
+				cache.remove(eldest.getKey());
+				isbnById.remove(eldest.getValue().getId());
+				evictionCount++;
+			}
+		}
+	}
+
+	public int getSize() {
+		synchronized (lock) {
+			return cache.size();
+		}
+	}
+
+	public long getHitCount() {
+		synchronized (lock) {
+			return hitCount;
+		}
+	}
+
+	public long getMissCount() {
+		synchronized (lock) {
+			return missCount;
+		}
+	}
+
+	public long getEvictionCount() {
+		synchronized (lock) {
+			return evictionCount;
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package org.beginningee6.book.chapter03.ex01;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.naming.NamingException;
+import javax.persistence.PostRemove;
+import javax.persistence.PostUpdate;
+
+import org.beginningee6.book.chapter03.util.TransactionCompletion;
+
+/**
+ * Book01エンティティの更新・削除をBookCatalogに通知する
+ * エンティティリスナー。
+ *
+ * ＠PostUpdate、＠PostRemoveはフラッシュ時に呼び出されるが、
+ * その時点ではまだ変更がコミットされていないため、
+ * キャッシュの無効化はトランザクションの完了後に行う。
+ * コミット前に他のトランザクションが古い値を読み込んで
+ * キャッシュしても、完了後の無効化により削除される。
+ *
+ * BookCatalogがデプロイされていない場合は何もしない。
+ */
+public class BookCatalogListener {
+
+	private static final Logger logger = Logger.getLogger(BookCatalogListener.class.getName());
+
+	@PostUpdate
+	@PostRemove
+	public void invalidate(Book01 book) {
+
+		final Long id = book.getId();
+		final String isbn = book.getIsbn();
+
+		try {
+			final BookCatalog catalog = TransactionCompletion.lookup("java:module/BookCatalog", BookCatalog.class);
+
+			TransactionCompletion.afterCompletion(new Runnable() {
+
+				public void run() {
+					// ロールバックされた場合も無効化して問題ない
+					catalog.invalidate(id, isbn);
+				}
+			});
+		} catch (NamingException e) {
+			logger.log(Level.FINE, "BookCatalog is not available", e);
+		}
+	}
+}
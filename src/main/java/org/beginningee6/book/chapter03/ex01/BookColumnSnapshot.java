@@ -0,0 +1,364 @@
+package org.beginningee6.book.chapter03.ex01;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * Book01のprice、nbOfPage、illustrationsをカラムごとの
+ * プリミティブ型の配列として保持するスナップショット。
+ *
+ * エンティティをFloat、Integer、Booleanのフィールドを持つ
+ * オブジェクトとして1件ずつ保持する代わりに、
+ * float[]、int[]、BitSetに詰めて保持することで、
+ * メモリ使用量を抑え、集計やヒストグラム、範囲による
+ * 絞り込みを配列の走査だけで行えるようにする。
+ *
+ * 各行はIDの昇順に並んでおり、行番号で各カラムの値を参照する。
+ * nullの値はpriceNulls、pageNullsのビットで表す。
+ * illustrationsがnullの行は、illustrationsのビットが立っていない
+ * （falseと同じ）ものとして扱う。
+ *
+ * インスタンスは不変であり、BookAnalyticsによる再読み込みでは
+ * 新しいインスタンスに置き換えられる。
+ */
+public final class BookColumnSnapshot {
+
+	/**
+	 * 行を1件も持たないスナップショット
+	 */
+	public static final BookColumnSnapshot EMPTY = new Builder(0).build();
+
+	private final int size;
+	private final long[] ids;
+	private final float[] prices;
+	private final int[] pages;
+	private final BitSet illustrations;
+	private final BitSet priceNulls;
+	private final BitSet pageNulls;
+
+	private BookColumnSnapshot(Builder builder) {
+		this.size = builder.size;
+		this.ids = builder.ids;
+		this.prices = builder.prices;
+		this.pages = builder.pages;
+		this.illustrations = builder.illustrations;
+		this.priceNulls = builder.priceNulls;
+		this.pageNulls = builder.pageNulls;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public long getId(int row) {
+		checkRow(row);
+		return ids[row];
+	}
+
+	/**
+	 * 最も大きいID。行が無い場合はLong.MIN_VALUE
+	 */
+	public long getMaxId() {
+		return size == 0 ? Long.MIN_VALUE : ids[size - 1];
+	}
+
+	/**
+	 * IDに対応する行番号。存在しない場合は負の値
+	 */
+	public int rowOf(long id) {
+		return Arrays.binarySearch(ids, 0, size, id);
+	}
+
+	public Float getPrice(int row) {
+		checkRow(row);
+		return priceNulls.get(row) ? null : prices[row];
+	}
+
+	public Integer getNbOfPage(int row) {
+		checkRow(row);
+		return pageNulls.get(row) ? null : pages[row];
+	}
+
+	public boolean hasIllustrations(int row) {
+		checkRow(row);
+		return illustrations.get(row);
+	}
+
+	/**
+	 * 全行のpriceを集計する。
+	 */
+	public ColumnStatistics priceStatistics() {
+		return priceStatistics(allRows());
+	}
+
+	/**
+	 * 指定した行のpriceを集計する。
+	 */
+	public ColumnStatistics priceStatistics(BitSet rows) {
+		int count = 0;
+		double sum = 0;
+		float min = Float.POSITIVE_INFINITY;
+		float max = Float.NEGATIVE_INFINITY;
+		for (int row = rows.nextSetBit(0); row >= 0 && row < size; row = rows.nextSetBit(row + 1)) {
+			if (priceNulls.get(row)) {
+				continue;
+			}
+			float price = prices[row];
+			count++;
+			sum += price;
+			if (price < min) min = price;
+			if (price > max) max = price;
+		}
+		return new ColumnStatistics(count, sum, min, max);
+	}
+
+	/**
+	 * 全行のnbOfPageを集計する。
+	 */
+	public ColumnStatistics pageStatistics() {
+		return pageStatistics(allRows());
+	}
+
+	/**
+	 * 指定した行のnbOfPageを集計する。
+	 */
+	public ColumnStatistics pageStatistics(BitSet rows) {
+		int count = 0;
+		long sum = 0;
+		int min = Integer.MAX_VALUE;
+		int max = Integer.MIN_VALUE;
+		for (int row = rows.nextSetBit(0); row >= 0 && row < size; row = rows.nextSetBit(row + 1)) {
+			if (pageNulls.get(row)) {
+				continue;
+			}
+			int page = pages[row];
+			count++;
+			sum += page;
+			if (page < min) min = page;
+			if (page > max) max = page;
+		}
+		return new ColumnStatistics(count, sum, min, max);
+	}
+
+	/**
+	 * [min, max]の範囲をbins個の等幅の区間に分け、各区間に含まれる
+	 * priceの件数を数える。maxと等しい値は最後の区間に含める。
+	 * 範囲外の値とnullは数えない。
+	 */
+	public int[] priceHistogram(float min, float max, int bins) {
+		checkHistogram(min, max, bins);
+		int[] histogram = new int[bins];
+		double width = ((double) max - min) / bins;
+		for (int row = 0; row < size; row++) {
+			if (priceNulls.get(row)) {
+				continue;
+			}
+			float price = prices[row];
+			if (price < min || price > max) {
+				continue;
+			}
+			histogram[Math.min(bins - 1, (int) ((price - min) / width))]++;
+		}
+		return histogram;
+	}
+
+	/**
+	 * [min, max]の範囲をbins個の等幅の区間に分け、各区間に含まれる
+	 * nbOfPageの件数を数える。maxと等しい値は最後の区間に含める。
+	 * 範囲外の値とnullは数えない。
+	 */
+	public int[] pageHistogram(int min, int max, int bins) {
+		checkHistogram(min, max, bins);
+		int[] histogram = new int[bins];
+		double width = ((double) max - min) / bins;
+		for (int row = 0; row < size; row++) {
+			if (pageNulls.get(row)) {
+				continue;
+			}
+			int page = pages[row];
+			if (page < min || page > max) {
+				continue;
+			}
+			histogram[Math.min(bins - 1, (int) ((page - min) / width))]++;
+		}
+		return histogram;
+	}
+
+	/**
+	 * priceがfrom以上to未満の行を返す。
+	 */
+	public BitSet filterByPrice(float from, float to) {
+		BitSet rows = new BitSet(size);
+		for (int row = 0; row < size; row++) {
+			float price = prices[row];
+			if (price >= from && price < to && !priceNulls.get(row)) {
+				rows.set(row);
+			}
+		}
+		return rows;
+	}
+
+	/**
+	 * nbOfPageがfrom以上to未満の行を返す。
+	 */
+	public BitSet filterByPages(int from, int to) {
+		BitSet rows = new BitSet(size);
+		for (int row = 0; row < size; row++) {
+			int page = pages[row];
+			if (page >= from && page < to && !pageNulls.get(row)) {
+				rows.set(row);
+			}
+		}
+		return rows;
+	}
+
+	/**
+	 * illustrationsがtrueの行を返す。
+	 */
+	public BitSet withIllustrations() {
+		return (BitSet) illustrations.clone();
+	}
+
+	/**
+	 * 全行を返す。
+	 */
+	public BitSet allRows() {
+		BitSet rows = new BitSet(size);
+		rows.set(0, size);
+		return rows;
+	}
+
+	/**
+	 * 指定した行のIDを昇順で返す。
+	 */
+	public long[] ids(BitSet rows) {
+		long[] result = new long[rows.cardinality()];
+		int i = 0;
+		for (int row = rows.nextSetBit(0); row >= 0 && row < size; row = rows.nextSetBit(row + 1)) {
+			result[i++] = ids[row];
+		}
+		return i == result.length ? result : Arrays.copyOf(result, i);
+	}
+
+	/**
+	 * 変更された行を反映した新しいスナップショットを作成する。
+	 *
+	 * @param changedRows 追加または更新された行（id, price, nbOfPage, illustrations）。
+	 *                    IDの昇順に並んでいて、IDが重複していないこと
+	 * @param removedIds 削除された行のID
+	 */
+	BookColumnSnapshot merge(Collection<Object[]> changedRows, Set<Long> removedIds) {
+
+		Builder builder = new Builder(size + changedRows.size());
+
+		int row = 0;
+		for (Object[] changed : changedRows) {
+			long changedId = (Long) changed[0];
+
+			// 変更された行より前の既存の行をコピーする
+			while (row < size && ids[row] < changedId) {
+				copyRow(builder, row++, removedIds);
+			}
+			if (row < size && ids[row] == changedId) {
+				row++;		// 既存の行を変更後の値で置き換える
+			}
+			builder.add(changed);
+		}
+		while (row < size) {
+			copyRow(builder, row++, removedIds);
+		}
+
+		return builder.build();
+	}
+
+	private void copyRow(Builder builder, int row, Set<Long> removedIds) {
+		if (removedIds.contains(ids[row])) {
+			return;
+		}
+		builder.add(ids[row],
+				priceNulls.get(row) ? null : prices[row],
+				pageNulls.get(row) ? null : pages[row],
+				illustrations.get(row));
+	}
+
+	private void checkRow(int row) {
+		if (row < 0 || row >= size) {
+			throw new IndexOutOfBoundsException("row: " + row + ", size: " + size);
+		}
+	}
+
+	private static void checkHistogram(double min, double max, int bins) {
+		if (bins < 1) {
+			throw new IllegalArgumentException("bins must be positive: " + bins);
+		}
+		if (!(min < max)) {
+			throw new IllegalArgumentException("min must be less than max: " + min + ", " + max);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "BookColumnSnapshot [size=" + size + ", maxId=" + getMaxId() + "]";
+	}
+
+	/**
+	 * IDの昇順に行を追加してスナップショットを作成する。
+	 */
+	static class Builder {
+
+		private int size;
+		private long[] ids;
+		private float[] prices;
+		private int[] pages;
+		private final BitSet illustrations = new BitSet();
+		private final BitSet priceNulls = new BitSet();
+		private final BitSet pageNulls = new BitSet();
+
+		Builder(int capacity) {
+			ids = new long[capacity];
+			prices = new float[capacity];
+			pages = new int[capacity];
+		}
+
+		/**
+		 * 射影クエリの1行（id, price, nbOfPage, illustrations）を追加する。
+		 */
+		void add(Object[] row) {
+			add((Long) row[0], (Float) row[1], (Integer) row[2], (Boolean) row[3]);
+		}
+
+		void add(long id, Float price, Integer nbOfPage, Boolean illustrated) {
+			if (size > 0 && ids[size - 1] >= id) {
+				throw new IllegalArgumentException("rows must be added in ascending id order: " + id);
+			}
+			if (size == ids.length) {
+				int capacity = Math.max(16, size * 2);
+				ids = Arrays.copyOf(ids, capacity);
+				prices = Arrays.copyOf(prices, capacity);
+				pages = Arrays.copyOf(pages, capacity);
+			}
+
+			ids[size] = id;
+			if (price == null) {
+				priceNulls.set(size);
+			} else {
+				prices[size] = price;
+			}
+			if (nbOfPage == null) {
+				pageNulls.set(size);
+			} else {
+				pages[size] = nbOfPage;
+			}
+			if (Boolean.TRUE.equals(illustrated)) {
+				illustrations.set(size);
+			}
+			size++;
+		}
+
+		BookColumnSnapshot build() {
+			return new BookColumnSnapshot(this);
+		}
+	}
+}
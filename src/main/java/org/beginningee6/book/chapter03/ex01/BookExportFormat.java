@@ -0,0 +1,133 @@
+package org.beginningee6.book.chapter03.ex01;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * BookExporterが出力するファイル形式。
+ *
+ * CSV：ヘッダ行の後に1行1件で出力する（UTF-8）。
+ * カンマ、ダブルクォート、改行を含む値はダブルクォートで囲む。
+ * nullは空の値として出力する。
+ *
+ * BINARY：DataOutputStreamによる可変長のバイナリ形式。
+ * 先頭にMAGIC（int）を出力し、各行は
+ * 行マーカー（byte:1）、id（long）、nullのフィールドを
+ * 表すビットマスク（byte）、nullでないフィールドの値の順で出力する。
+ * 最後に終端マーカー（byte:0）を出力する。
+ */
+public enum BookExportFormat {
+
+	CSV {
+		@Override
+		RowWriter createWriter(OutputStream out) throws IOException {
+			final Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+			writer.write("id,title,price,description,isbn,nbOfPage,illustrations\n");
+
+			return new RowWriter() {
+
+				public void write(Book01 book) throws IOException {
+					writer.write(String.valueOf(book.getId()));
+					writer.write(',');
+					writeText(book.getTitle());
+					writer.write(',');
+					writeValue(book.getPrice());
+					writer.write(',');
+					writeText(book.getDescription());
+					writer.write(',');
+					writeText(book.getIsbn());
+					writer.write(',');
+					writeValue(book.getNbOfPage());
+					writer.write(',');
+					writeValue(book.getIllustrations());
+					writer.write('\n');
+				}
+
+				public void finish() throws IOException {
+					writer.flush();
+				}
+
+				private void writeValue(Object value) throws IOException {
+					if (value != null) {
+						writer.write(value.toString());
+					}
+				}
+
+				private void writeText(String value) throws IOException {
+					if (value == null) {
+						return;
+					}
+					if (value.indexOf(',') < 0 && value.indexOf('"') < 0
+							&& value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+						writer.write(value);
+						return;
+					}
+					writer.write('"');
+					writer.write(value.replace("\"", "\"\""));
+					writer.write('"');
+				}
+			};
+		}
+	},
+
+	BINARY {
+		@Override
+		RowWriter createWriter(OutputStream out) throws IOException {
+			final DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+			data.writeInt(MAGIC);
+
+			return new RowWriter() {
+
+				public void write(Book01 book) throws IOException {
+					int nulls = 0;
+					if (book.getTitle() == null)			nulls |= 0x01;
+					if (book.getPrice() == null)			nulls |= 0x02;
+					if (book.getDescription() == null)		nulls |= 0x04;
+					if (book.getIsbn() == null)				nulls |= 0x08;
+					if (book.getNbOfPage() == null)			nulls |= 0x10;
+					if (book.getIllustrations() == null)	nulls |= 0x20;
+
+					data.writeByte(1);
+					data.writeLong(book.getId());
+					data.writeByte(nulls);
+					if (book.getTitle() != null)			data.writeUTF(book.getTitle());
+					if (book.getPrice() != null)			data.writeFloat(book.getPrice());
+					if (book.getDescription() != null)		data.writeUTF(book.getDescription());
+					if (book.getIsbn() != null)				data.writeUTF(book.getIsbn());
+					if (book.getNbOfPage() != null)			data.writeInt(book.getNbOfPage());
+					if (book.getIllustrations() != null)	data.writeBoolean(book.getIllustrations());
+				}
+
+				public void finish() throws IOException {
+					data.writeByte(0);
+					data.flush();
+				}
+			};
+		}
+	};
+
+	/**
+	 * BINARY形式の先頭に出力する識別子（"BK01"）
+	 */
+	public static final int MAGIC = 0x424B3031;
+
+	abstract RowWriter createWriter(OutputStream out) throws IOException;
+
+	/**
+	 * 1件ずつエンティティを出力するライター
+	 */
+	interface RowWriter {
+
+		void write(Book01 book) throws IOException;
+
+		/**
+		 * バッファの内容を出力する。出力先のストリームはクローズしない。
+		 */
+		void finish() throws IOException;
+	}
+}
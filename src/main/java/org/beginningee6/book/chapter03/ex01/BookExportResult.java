@@ -0,0 +1,57 @@
+package org.beginningee6.book.chapter03.ex01;
+
+import java.io.Serializable;
+
+/**
+ * BookExporterによるエクスポートの結果。
+ *
+ * 出力した件数とバイト数、所要時間を保持し、
+ * スループットを計算する。
+ */
+public class BookExportResult implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final long rows;
+	private final long bytes;
+	private final long elapsedNanos;
+
+	public BookExportResult(long rows, long bytes, long elapsedNanos) {
+		this.rows = rows;
+		this.bytes = bytes;
+		this.elapsedNanos = elapsedNanos;
+	}
+
+	public long getRows() {
+		return rows;
+	}
+
+	public long getBytes() {
+		return bytes;
+	}
+
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+
+	/**
+	 * 1秒あたりの出力件数
+	 */
+	public double getRowsPerSecond() {
+		return elapsedNanos == 0 ? 0 : rows * 1e9 / elapsedNanos;
+	}
+
+	/**
+	 * 1秒あたりの出力バイト数
+	 */
+	public double getBytesPerSecond() {
+		return elapsedNanos == 0 ? 0 : bytes * 1e9 / elapsedNanos;
+	}
+
+	@Override
+	public String toString() {
+		return "BookExportResult [rows=" + rows + ", bytes=" + bytes
+				+ ", elapsedNanos=" + elapsedNanos + ", rowsPerSecond="
+				+ getRowsPerSecond() + "]";
+	}
+}
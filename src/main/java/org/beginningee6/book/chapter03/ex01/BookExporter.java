@@ -0,0 +1,130 @@
+package org.beginningee6.book.chapter03.ex01;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.ejb.Stateless;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+/**
+ * book_ex01テーブルの全件をストリームに出力するエクスポーター。
+ *
+ * getResultList()で全件を取得すると、すべてのエンティティが
+ * 同時に永続化コンテキストとヒープに載ってしまう。
+ *
+ * そこで、IDの昇順にfetchSize件ずつ、前回の最後のIDより
+ * 大きいIDを条件として読み進める（キーセット方式の前方向
+ * カーソル）。これにより、読み進めるほど検索が遅くなることはない。
+ *
+ * 出力はトランザクションの外（NOT_SUPPORTED）で行う。
+ * 全件の出力が1つのトランザクションになってタイムアウトしたり、
+ * 読み込んだエンティティが永続化コンテキストに溜まったりしない
+ * よう、fetchSize件ずつの検索はそれぞれ独立して実行され、
+ * 検索結果のエンティティはすぐに永続化コンテキストから
+ * 切り離される。件数に関わらずメモリ使用量はfetchSize件分に
+ * 抑えられる。
+ *
+ * （注）JPA 2.0にはスクロール可能な結果セットを扱うAPIが
+ * 無いため、このような分割検索で前方向カーソルを実現している。
+ */
+@Stateless
+@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+public class BookExporter {
+
+	private static final Logger logger = Logger.getLogger(BookExporter.class.getName());
+
+	/**
+	 * 1回の検索で読み込む件数のデフォルト値
+	 */
+	public static final int DEFAULT_FETCH_SIZE = 500;
+
+	@PersistenceContext
+	private EntityManager em;
+
+	/**
+	 * デフォルトの読み込み件数で全件を出力する。
+	 *
+	 * @param out 出力先。このメソッドではクローズしない
+	 * @param format 出力形式
+	 * @return 出力件数とスループット
+	 */
+	public BookExportResult export(OutputStream out, BookExportFormat format) throws IOException {
+		return export(out, format, DEFAULT_FETCH_SIZE);
+	}
+
+	/**
+	 * fetchSize件ずつ読み込みながら全件を出力する。
+	 *
+	 * @param out 出力先。このメソッドではクローズしない
+	 * @param format 出力形式
+	 * @param fetchSize 1回の検索で読み込む件数
+	 * @return 出力件数とスループット
+	 */
+	public BookExportResult export(OutputStream out, BookExportFormat format, int fetchSize)
+			throws IOException {
+
+		if (fetchSize < 1) {
+			throw new IllegalArgumentException("fetchSize must be positive: " + fetchSize);
+		}
+
+		long start = System.nanoTime();
+
+		CountingOutputStream counting = new CountingOutputStream(out);
+		BookExportFormat.RowWriter writer = format.createWriter(counting);
+
+		long rows = 0;
+		long lastId = Long.MIN_VALUE;
+		while (true) {
+			List<Book01> chunk = em.createNamedQuery("findBooksAfterId", Book01.class)
+					.setParameter("lastId", lastId)
+					.setMaxResults(fetchSize)
+					.getResultList();
+
+			for (Book01 book : chunk) {
+				writer.write(book);
+				lastId = book.getId();
+				rows++;
+			}
+
+			if (chunk.size() < fetchSize) {
+				break;
+			}
+		}
+		writer.finish();
+
+		BookExportResult result = new BookExportResult(rows, counting.count, System.nanoTime() - start);
+		logger.info("Exported book_ex01 as " + format + ": " + result);
+
+		return result;
+	}
+
+	/**
+	 * 出力したバイト数を数えるストリーム
+	 */
+	private static class CountingOutputStream extends FilterOutputStream {
+
+		private long count;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+}
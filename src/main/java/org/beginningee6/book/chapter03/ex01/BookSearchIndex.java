@@ -0,0 +1,361 @@
+package org.beginningee6.book.chapter03.ex01;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+/**
+ * Book01のtitleとdescriptionに含まれる単語による
+ * 全文検索のための転置インデックス。
+ *
+ * LIKE '%単語%'による検索はインデックスを利用できないため、
+ * 単語ごとにその単語を含むエンティティのIDを
+ * PostingList（圧縮したポスティングリスト）としてメモリ上に保持する。
+ *
+ * 検索結果は、各単語の出現回数（titleは2倍の重み）に
+ * 単語の希少さ（IDF）を掛けたスコアの合計の降順に並べた
+ * IDのリストとして返す。エンティティが必要な場合は
+ * findBooks()でまとめて読み込む。
+ *
+ * インデックスはBookSearchIndexListenerにより、コミットされた
+ * 追加・更新・削除に合わせて更新される。JPQLの一括更新・
+ * 一括削除を行った場合や起動直後は、rebuild()で作成し直すこと。
+ *
+ * rebuild()は新しいマップにインデックスを作成した後、
+ * 書き込みロックを取得して置き換える。作成中も検索には
+ * それまでのインデックスが使用され、作成中に行われた
+ * 登録・削除は置き換えの前に新しいインデックスにも反映される。
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class BookSearchIndex {
+
+	/**
+	 * titleに含まれる単語の重み
+	 */
+	static final int TITLE_WEIGHT = 2;
+
+	/**
+	 * descriptionに含まれる単語の重み
+	 */
+	static final int DESCRIPTION_WEIGHT = 1;
+
+	/**
+	 * 再作成時に1回の検索で読み込む件数
+	 */
+	static final int FETCH_SIZE = 1000;
+
+	@PersistenceContext
+	private EntityManager em;
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	// 単語→ポスティングリスト
+	private Map<String, PostingList> postings = new HashMap<String, PostingList>();
+
+	// 更新・削除時に古い単語を取り除くためのID→単語
+	private Map<Long, String[]> termsById = new HashMap<Long, String[]>();
+
+	// 再作成中に行われた登録・削除（再作成中でない場合はnull）
+	private List<PendingUpdate> pendingUpdates;
+
+	// 再作成を同時に1つだけ行うためのロック
+	private final Object rebuildLock = new Object();
+
+	/**
+	 * エンティティの単語をインデックスに登録する。
+	 * 既に登録されている場合は置き換える。
+	 */
+	public void index(Long id, String title, String description) {
+
+		Map<String, Integer> frequencies = frequencies(title, description);
+
+		lock.writeLock().lock();
+		try {
+			put(postings, termsById, id, frequencies);
+			if (pendingUpdates != null) {
+				pendingUpdates.add(new PendingUpdate(id, frequencies));
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * エンティティをインデックスから取り除く。
+	 */
+	public void remove(Long id) {
+		lock.writeLock().lock();
+		try {
+			removeTerms(postings, termsById, id);
+			if (pendingUpdates != null) {
+				pendingUpdates.add(new PendingUpdate(id, null));
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * 検索語のいずれかを含むエンティティのIDを、スコアの降順で返す。
+	 *
+	 * @param query 検索語（空白などで区切る）
+	 * @param limit 返す件数の上限
+	 */
+	public List<Long> search(String query, int limit) {
+
+		if (limit < 1) {
+			throw new IllegalArgumentException("limit must be positive: " + limit);
+		}
+
+		Set<String> terms = new LinkedHashSet<String>(BookTokenizer.tokenize(query));
+		Map<Long, Double> scores = new HashMap<Long, Double>();
+
+		lock.readLock().lock();
+		try {
+			int documents = termsById.size();
+			for (String term : terms) {
+				PostingList list = postings.get(term);
+				if (list == null) {
+					continue;
+				}
+
+				double idf = Math.log(1.0 + (double) documents / list.size());
+				long[] ids = new long[list.size()];
+				int[] frequencies = new int[list.size()];
+				int count = list.decode(ids, frequencies);
+				for (int i = 0; i < count; i++) {
+					Double score = scores.get(ids[i]);
+					scores.put(ids[i], (score == null ? 0 : score) + frequencies[i] * idf);
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		return top(scores, limit);
+	}
+
+	/**
+	 * IDのリストに対応するエンティティを1回の検索で読み込み、
+	 * IDのリストと同じ順序で返す。存在しないIDは無視する。
+	 */
+	public List<Book01> findBooks(List<Long> ids) {
+		if (ids.isEmpty()) {
+			return new ArrayList<Book01>();
+		}
+
+		Map<Long, Book01> found = new HashMap<Long, Book01>();
+		for (Book01 book : em.createNamedQuery("findBooksByIds", Book01.class)
+				.setParameter("ids", ids)
+				.getResultList()) {
+			found.put(book.getId(), book);
+		}
+
+		List<Book01> books = new ArrayList<Book01>(ids.size());
+		for (Long id : ids) {
+			Book01 book = found.get(id);
+			if (book != null) {
+				books.add(book);
+			}
+		}
+		return books;
+	}
+
+	/**
+	 * book_ex01の全件からインデックスを作成し直す。
+	 */
+	public void rebuild() {
+
+		synchronized (rebuildLock) {
+			lock.writeLock().lock();
+			try {
+				pendingUpdates = new ArrayList<PendingUpdate>();
+			} finally {
+				lock.writeLock().unlock();
+			}
+
+			try {
+				Map<String, PostingList> newPostings = new HashMap<String, PostingList>();
+				Map<Long, String[]> newTermsById = new HashMap<Long, String[]>();
+
+				long lastId = Long.MIN_VALUE;
+				List<Object[]> chunk;
+				do {
+					chunk = em.createNamedQuery("findBookTextsAfterId", Object[].class)
+							.setParameter("lastId", lastId)
+							.setMaxResults(FETCH_SIZE)
+							.getResultList();
+					for (Object[] row : chunk) {
+						lastId = (Long) row[0];
+						put(newPostings, newTermsById, lastId, frequencies((String) row[1], (String) row[2]));
+					}
+				} while (chunk.size() == FETCH_SIZE);
+
+				lock.writeLock().lock();
+				try {
+					// 作成中に行われた登録・削除を反映してから置き換える
+					for (PendingUpdate update : pendingUpdates) {
+						if (update.frequencies == null) {
+							removeTerms(newPostings, newTermsById, update.id);
+						} else {
+							put(newPostings, newTermsById, update.id, update.frequencies);
+						}
+					}
+					postings = newPostings;
+					termsById = newTermsById;
+				} finally {
+					lock.writeLock().unlock();
+				}
+			} finally {
+				lock.writeLock().lock();
+				try {
+					pendingUpdates = null;
+				} finally {
+					lock.writeLock().unlock();
+				}
+			}
+		}
+	}
+
+	/**
+	 * 登録されているエンティティの件数
+	 */
+	public int getDocumentCount() {
+		lock.readLock().lock();
+		try {
+			return termsById.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * 登録されている単語の種類の数
+	 */
+	public int getTermCount() {
+		lock.readLock().lock();
+		try {
+			return postings.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * ポスティングリストの圧縮後の合計バイト数
+	 */
+	public long getPostingBytes() {
+		lock.readLock().lock();
+		try {
+			long bytes = 0;
+			for (PostingList list : postings.values()) {
+				bytes += list.byteSize();
+			}
+			return bytes;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * エンティティの単語を指定したマップに登録する。
+	 * 既に登録されている場合は置き換える。
+	 */
+	private static void put(Map<String, PostingList> postings, Map<Long, String[]> termsById,
+			Long id, Map<String, Integer> frequencies) {
+		removeTerms(postings, termsById, id);
+		for (Map.Entry<String, Integer> entry : frequencies.entrySet()) {
+			PostingList list = postings.get(entry.getKey());
+			if (list == null) {
+				list = new PostingList();
+				postings.put(entry.getKey(), list);
+			}
+			list.put(id, entry.getValue());
+		}
+		termsById.put(id, frequencies.keySet().toArray(new String[frequencies.size()]));
+	}
+
+	private static void removeTerms(Map<String, PostingList> postings, Map<Long, String[]> termsById, Long id) {
+		String[] terms = termsById.remove(id);
+		if (terms == null) {
+			return;
+		}
+		for (String term : terms) {
+			PostingList list = postings.get(term);
+			list.remove(id);
+			if (list.size() == 0) {
+				postings.remove(term);
+			}
+		}
+	}
+
+	private static Map<String, Integer> frequencies(String title, String description) {
+		Map<String, Integer> frequencies = new HashMap<String, Integer>();
+		count(frequencies, title, TITLE_WEIGHT);
+		count(frequencies, description, DESCRIPTION_WEIGHT);
+		return frequencies;
+	}
+
+	private static void count(Map<String, Integer> frequencies, String text, int weight) {
+		for (String token : BookTokenizer.tokenize(text)) {
+			Integer frequency = frequencies.get(token);
+			frequencies.put(token, (frequency == null ? 0 : frequency) + weight);
+		}
+	}
+
+	private static List<Long> top(Map<Long, Double> scores, int limit) {
+
+		// スコアが最も低いものを先頭に置き、上位limit件だけを残す
+		PriorityQueue<Map.Entry<Long, Double>> queue = new PriorityQueue<Map.Entry<Long, Double>>(
+				limit + 1, new Comparator<Map.Entry<Long, Double>>() {
+
+			public int compare(Map.Entry<Long, Double> a, Map.Entry<Long, Double> b) {
+				int result = a.getValue().compareTo(b.getValue());
+				// 同じスコアの場合はIDの小さいものを優先する
+				return result != 0 ? result : b.getKey().compareTo(a.getKey());
+			}
+		});
+		for (Map.Entry<Long, Double> entry : scores.entrySet()) {
+			queue.add(entry);
+			if (queue.size() > limit) {
+				queue.poll();
+			}
+		}
+
+		List<Long> ids = new ArrayList<Long>(queue.size());
+		while (!queue.isEmpty()) {
+			ids.add(queue.poll().getKey());
+		}
+		Collections.reverse(ids);
+		return ids;
+	}
+
+	/**
+	 * 再作成中に行われた登録・削除
+	 */
+	private static class PendingUpdate {
+
+		final Long id;
+		final Map<String, Integer> frequencies;		// 削除の場合はnull
+
+		PendingUpdate(Long id, Map<String, Integer> frequencies) {
+			this.id = id;
+			this.frequencies = frequencies;
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package org.beginningee6.book.chapter03.ex01;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.naming.NamingException;
+import javax.persistence.PostPersist;
+import javax.persistence.PostRemove;
+import javax.persistence.PostUpdate;
+
+import org.beginningee6.book.chapter03.util.TransactionCompletion;
+
+/**
+ * Book01エンティティの追加・更新・削除をBookSearchIndexに
+ * 反映するエンティティリスナー。
+ *
+ * ロールバックされた変更が検索結果に現れないように、
+ * インデックスの更新はトランザクションがコミットされた後に行う。
+ *
+ * BookSearchIndexがデプロイされていない場合は何もしない。
+ */
+public class BookSearchIndexListener {
+
+	private static final Logger logger = Logger.getLogger(BookSearchIndexListener.class.getName());
+
+	@PostPersist
+	@PostUpdate
+	public void index(Book01 book) {
+
+		final Long id = book.getId();
+		final String title = book.getTitle();
+		final String description = book.getDescription();
+
+		try {
+			final BookSearchIndex index = TransactionCompletion.lookup("java:module/BookSearchIndex", BookSearchIndex.class);
+
+			TransactionCompletion.afterCommit(new Runnable() {
+
+				public void run() {
+					index.index(id, title, description);
+				}
+			});
+		} catch (NamingException e) {
+			logger.log(Level.FINE, "BookSearchIndex is not available", e);
+		}
+	}
+
+	@PostRemove
+	public void remove(Book01 book) {
+
+		final Long id = book.getId();
+
+		try {
+			final BookSearchIndex index = TransactionCompletion.lookup("java:module/BookSearchIndex", BookSearchIndex.class);
+
+			TransactionCompletion.afterCommit(new Runnable() {
+
+				public void run() {
+					index.remove(id);
+				}
+			});
+		} catch (NamingException e) {
+			logger.log(Level.FINE, "BookSearchIndex is not available", e);
+		}
+	}
+}
@@ -0,0 +1,35 @@
+package org.beginningee6.book.chapter03.ex01;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * BookSearchIndexで使用する単語の分割処理。
+ *
+ * 文字と数字が連続する部分を1つの単語とし、
+ * 小文字に変換して返す。それ以外の文字は区切りとして扱う。
+ */
+final class BookTokenizer {
+
+	private BookTokenizer() {}
+
+	static List<String> tokenize(String text) {
+		List<String> tokens = new ArrayList<String>();
+		if (text == null) {
+			return tokens;
+		}
+
+		int start = -1;
+		for (int i = 0; i <= text.length(); i++) {
+			boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+			if (wordChar && start < 0) {
+				start = i;
+			} else if (!wordChar && start >= 0) {
+				tokens.add(text.substring(start, i).toLowerCase(Locale.ENGLISH));
+				start = -1;
+			}
+		}
+		return tokens;
+	}
+}
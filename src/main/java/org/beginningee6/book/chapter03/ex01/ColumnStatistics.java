@@ -0,0 +1,52 @@
+package org.beginningee6.book.chapter03.ex01;
+
+import java.io.Serializable;
+
+/**
+ * BookColumnSnapshotの1つのカラムに対する集計結果。
+ *
+ * nullの値は集計の対象としない。対象が0件の場合、
+ * min、max、meanはNaNとなる。
+ */
+public class ColumnStatistics implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int count;
+	private final double sum;
+	private final double min;
+	private final double max;
+
+	public ColumnStatistics(int count, double sum, double min, double max) {
+		this.count = count;
+		this.sum = sum;
+		this.min = count == 0 ? Double.NaN : min;
+		this.max = count == 0 ? Double.NaN : max;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public double getSum() {
+		return sum;
+	}
+
+	public double getMin() {
+		return min;
+	}
+
+	public double getMax() {
+		return max;
+	}
+
+	public double getMean() {
+		return count == 0 ? Double.NaN : sum / count;
+	}
+
+	@Override
+	public String toString() {
+		return "ColumnStatistics [count=" + count + ", sum=" + sum + ", min="
+				+ min + ", max=" + max + ", mean=" + getMean() + "]";
+	}
+}
@@ -0,0 +1,148 @@
+package org.beginningee6.book.chapter03.ex01;
+
+import java.util.Arrays;
+
+/**
+ * BookSearchIndexの1つの単語に対するポスティングリスト。
+ *
+ * 単語を含むエンティティのIDと出現回数（重み付き）の組を
+ * IDの昇順に並べ、IDは直前のIDとの差分として、
+ * いずれも可変長整数（7ビットずつ、最上位ビットが継続フラグ）で
+ * バイト配列に詰めて保持する。
+ *
+ * 多くの場合、新しいエンティティのIDはそれまでのIDより
+ * 大きいため、追加は配列の末尾への書き込みだけで済む。
+ * それ以外の追加と削除では、リスト全体を展開して作り直す。
+ *
+ * このクラスはスレッドセーフではない。
+ */
+final class PostingList {
+
+	private byte[] data = new byte[8];
+	private int length;
+	private int size;
+	private long lastId = Long.MIN_VALUE;
+
+	/**
+	 * エントリの件数（この単語を含むエンティティの数）
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * 圧縮後のバイト数
+	 */
+	int byteSize() {
+		return length;
+	}
+
+	/**
+	 * IDに対する出現回数を設定する。既に存在する場合は置き換える。
+	 */
+	void put(long id, int frequency) {
+		if (size == 0 || id > lastId) {
+			append(id, frequency);
+			return;
+		}
+
+		long[] ids = new long[size + 1];
+		int[] frequencies = new int[size + 1];
+		int count = decode(ids, frequencies);
+		int position = Arrays.binarySearch(ids, 0, count, id);
+		if (position >= 0) {
+			frequencies[position] = frequency;
+		} else {
+			position = -position - 1;
+			System.arraycopy(ids, position, ids, position + 1, count - position);
+			System.arraycopy(frequencies, position, frequencies, position + 1, count - position);
+			ids[position] = id;
+			frequencies[position] = frequency;
+			count++;
+		}
+		encode(ids, frequencies, count);
+	}
+
+	/**
+	 * IDのエントリを削除する。
+	 */
+	void remove(long id) {
+		long[] ids = new long[size];
+		int[] frequencies = new int[size];
+		int count = decode(ids, frequencies);
+		int position = Arrays.binarySearch(ids, 0, count, id);
+		if (position < 0) {
+			return;
+		}
+		System.arraycopy(ids, position + 1, ids, position, count - position - 1);
+		System.arraycopy(frequencies, position + 1, frequencies, position, count - position - 1);
+		encode(ids, frequencies, count - 1);
+	}
+
+	/**
+	 * 全エントリを展開する。
+	 *
+	 * @return 展開したエントリの件数
+	 */
+	int decode(long[] ids, int[] frequencies) {
+		int offset = 0;
+		long id = 0;
+		for (int i = 0; i < size; i++) {
+			long gap = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = data[offset++];
+				gap |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			} while (b < 0);
+			id = i == 0 ? (gap >>> 1) ^ -(gap & 1) : id + gap;
+
+			int frequency = 0;
+			shift = 0;
+			do {
+				b = data[offset++];
+				frequency |= (b & 0x7F) << shift;
+				shift += 7;
+			} while (b < 0);
+
+			ids[i] = id;
+			frequencies[i] = frequency;
+		}
+		return size;
+	}
+
+	private void encode(long[] ids, int[] frequencies, int count) {
+		length = 0;
+		size = 0;
+		lastId = Long.MIN_VALUE;
+		for (int i = 0; i < count; i++) {
+			append(ids[i], frequencies[i]);
+		}
+	}
+
+	private void append(long id, int frequency) {
+		// 先頭のIDは負の値も短く格納できるようにジグザグ符号化する
+		long gap = size == 0 ? (id << 1) ^ (id >> 63) : id - lastId;
+		ensureCapacity(length + 15);
+		length = writeVarLong(gap, length);
+		length = writeVarLong(frequency, length);
+		lastId = id;
+		size++;
+	}
+
+	private int writeVarLong(long value, int offset) {
+		while ((value & ~0x7FL) != 0) {
+			data[offset++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		data[offset++] = (byte) value;
+		return offset;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity > data.length) {
+			data = Arrays.copyOf(data, Math.max(capacity, data.length * 2));
+		}
+	}
+}
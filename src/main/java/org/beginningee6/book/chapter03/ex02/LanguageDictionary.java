@@ -0,0 +1,145 @@
+package org.beginningee6.book.chapter03.ex02;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+/**
+ * 複合主キーのlanguageに使用する言語の辞書。
+ *
+ * データベースから読み込んだエンティティの言語は、
+ * 同じ値であってもエンティティごとに別のStringの
+ * インスタンスとなる。この辞書では言語ごとに1つの
+ * 正規のインスタンスと、0から始まる連番のコードを
+ * 割り当てる。
+ *
+ * intern()は正規のインスタンスを返し、code()は
+ * コードを返す。NewsKey02、NewsKey03では言語をコードで保持する。
+ * ex02とex03のエンティティはこのクラスを共有する。
+ *
+ * 言語は検索条件などとして利用者が指定した値からも
+ * 登録されるため、コードを割り当てる言語は
+ * MAXIMUM_LANGUAGE_LENGTH文字以下、件数はMAXIMUM_LANGUAGESまでに
+ * 制限する。それ以外の言語にはUNASSIGNEDを返し、intern()は
+ * 引数をそのまま返す。一度割り当てたコードは削除しない。
+ *
+ * コードの検索はConcurrentHashMapで行い、
+ * 新しいコードの割り当てのみを同期ブロックで行う。
+ */
+public final class LanguageDictionary {
+
+	private static final Logger logger = Logger.getLogger(LanguageDictionary.class.getName());
+
+	/**
+	 * nullの言語を表すコード
+	 */
+	public static final int NO_LANGUAGE = -1;
+
+	/**
+	 * コードを割り当てなかった言語を表すコード
+	 */
+	public static final int UNASSIGNED = -2;
+
+	/**
+	 * コードを割り当てる言語の最大件数
+	 */
+	public static final int MAXIMUM_LANGUAGES = 64;
+
+	/**
+	 * コードを割り当てる言語の最大文字数（「zh-Hant-TW」のような言語タグを想定）
+	 */
+	public static final int MAXIMUM_LANGUAGE_LENGTH = 16;
+
+	private static final ConcurrentMap<String, Integer> codes = new ConcurrentHashMap<String, Integer>();
+
+	private static final Object lock = new Object();
+
+	// コードから正規のインスタンスへの対応（割り当てのたびにコピーして置き換える）
+	private static volatile String[] languages = new String[0];
+
+	private LanguageDictionary() {}
+
+	/**
+	 * 言語の正規のインスタンスを返す。
+	 *
+	 * @return 同じ値の言語に対して常に同じインスタンス。
+	 *         languageがnullの場合はnull。コードを割り当てなかった
+	 *         言語の場合はlanguageそのもの
+	 */
+	public static String intern(String language) {
+		if (language == null) {
+			return null;
+		}
+		int code = code(language);
+		return code == UNASSIGNED ? language : languages[code];
+	}
+
+	/**
+	 * 言語のコードを返す。初めての言語の場合は新しいコードを割り当てる。
+	 *
+	 * @return 言語のコード。languageがnullの場合はNO_LANGUAGE。
+	 *         長すぎる言語や、割り当てたコードがMAXIMUM_LANGUAGESに
+	 *         達している場合はUNASSIGNED
+	 */
+	public static int code(String language) {
+		if (language == null) {
+			return NO_LANGUAGE;
+		}
+
+		Integer code = codes.get(language);
+		if (code != null) {
+			return code;
+		}
+		if (language.length() > MAXIMUM_LANGUAGE_LENGTH) {
+			return UNASSIGNED;
+		}
+
+		synchronized (lock) {
+			code = codes.get(language);
+			if (code != null) {
+				return code;
+			}
+
+			String[] current = languages;
+			if (current.length >= MAXIMUM_LANGUAGES) {
+				return UNASSIGNED;
+			}
+
+			String[] assigned = new String[current.length + 1];
+			System.arraycopy(current, 0, assigned, 0, current.length);
+			// 部分文字列の場合に元の文字列を保持しないようコピーする
+			assigned[current.length] = new String(language);
+
+			languages = assigned;
+			codes.put(assigned[current.length], current.length);
+			if (assigned.length == MAXIMUM_LANGUAGES) {
+				logger.warning("LanguageDictionary is full; further languages are not interned");
+			}
+			return current.length;
+		}
+	}
+
+	/**
+	 * コードに対応する言語を返す。
+	 *
+	 * @return 言語の正規のインスタンス。codeがNO_LANGUAGEの場合はnull
+	 * @throws IllegalArgumentException 割り当てられていないコードの場合
+	 */
+	public static String language(int code) {
+		if (code == NO_LANGUAGE) {
+			return null;
+		}
+		String[] current = languages;
+		if (code < 0 || code >= current.length) {
+			throw new IllegalArgumentException("Unknown language code: " + code);
+		}
+		return current[code];
+	}
+
+	/**
+	 * 割り当てたコードの件数
+	 */
+	public static int size() {
+		return languages.length;
+	}
+}
@@ -4,7 +4,10 @@ import java.io.Serializable;
 
 import javax.persistence.EmbeddedId;
 import javax.persistence.Entity;
+import javax.persistence.EntityListeners;
+import javax.persistence.NamedQueries;
 import javax.persistence.NamedQuery;
+import javax.persistence.PostLoad;
 import javax.persistence.Table;
 
 /**
@@ -23,10 +26,34 @@ import javax.persistence.Table;
  * 
  * SELECT n.id.title FROM News03 n
  * 
+ * findNewsPageAfterは、複合主キー（title, language）の順序で
+ * 指定した複合主キーより後のエンティティを検索する
+ * キーセット方式のページングに使用する（News02Repositoryを参照）。
+ * 
+ * findNewsLanguagesByTitlesは、複数のタイトルに対して存在する
+ * 翻訳の言語をまとめて検索する（NewsLanguageResolverを参照）。
+ * NewsLanguageListenerにより、エンティティの変更時には
+ * NewsLanguageResolverのキャッシュが無効化される。
+ * 
+ * データベースから読み込んだ複合主キーの言語は、
+ * ＠PostLoadでLanguageDictionaryの正規のインスタンスに置き換える。
+ * 
  */
 @Entity
 @Table(name = "news_ex02")
-@NamedQuery(name = "findAllNewsTitles", query = "SELECT n.id.title FROM News02 n")
+@EntityListeners(NewsLanguageListener.class)
+@NamedQueries({
+	@NamedQuery(name = "findAllNewsTitles", query = "SELECT n.id.title FROM News02 n"),
+	@NamedQuery(name = "findFirstNewsPage",
+			query = "SELECT n FROM News02 n ORDER BY n.id.title, n.id.language"),
+	@NamedQuery(name = "findNewsPageAfter",
+			query = "SELECT n FROM News02 n"
+				+ " WHERE n.id.title >= :title AND (n.id.title > :title OR n.id.language > :language)"
+				+ " ORDER BY n.id.title, n.id.language"),
+	@NamedQuery(name = "findNewsLanguagesByTitles",
+			query = "SELECT n.id.title, n.id.language FROM News02 n"
+				+ " WHERE n.id.title IN :titles ORDER BY n.id.title, n.id.language")
+})
 public class News02 implements Serializable {
 	
 	private static final long serialVersionUID = 1L;
@@ -44,6 +71,16 @@ public class News02 implements Serializable {
 		this.content = content;
 	}
 
+	/**
+	 * 読み込んだ複合主キーの言語を正規のインスタンスに置き換える。
+	 */
+	@PostLoad
+	void internLanguage() {
+		if (id != null) {
+			id.internLanguage();
+		}
+	}
+
 	public NewsId02 getId() {
 		return id;
 	}
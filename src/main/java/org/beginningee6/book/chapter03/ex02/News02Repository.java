@@ -0,0 +1,142 @@
+package org.beginningee6.book.chapter03.ex02;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.ejb.Stateless;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.TypedQuery;
+
+/**
+ * News02エンティティを複合主キーで検索するリポジトリ。
+ *
+ * em.find()を複合主キーごとに呼び出すと、
+ * (title, language)の組ごとに1回ずつSELECT文が発行される。
+ *
+ * findAll()では、複合主キーをtitleごとにまとめ、
+ *
+ * SELECT n FROM News02 n
+ *  WHERE (n.id.title = :t0 AND n.id.language IN :l0)
+ *     OR (n.id.title = :t1 AND n.id.language IN :l1) ...
+ *
+ * のようなクエリにより、最大MAX_KEYS_PER_QUERY件の
+ * 複合主キーを1回のSELECT文で検索する。
+ *
+ * （注）JPQLでは(n.id.title, n.id.language) IN (...)のような
+ * 組によるIN条件を記述できないため、ORで条件を連結している。
+ *
+ * findPage()は複合主キーの順序によるキーセット方式の
+ * ページングを行う。OFFSETによるページングと異なり、
+ * 前のページの最後の複合主キーより後ろを主キーの
+ * インデックスで直接検索するため、何ページ目であっても
+ * 1ページあたりのコストは変わらない。
+ */
+@Stateless
+public class News02Repository {
+
+	/**
+	 * 1回のSELECT文で検索する複合主キーの最大件数
+	 */
+	public static final int MAX_KEYS_PER_QUERY = 100;
+
+	@PersistenceContext
+	private EntityManager em;
+
+	/**
+	 * 複数の複合主キーに対応するエンティティをまとめて検索する。
+	 *
+	 * @param ids 検索する複合主キー
+	 * @return 見つかったエンティティと見つからなかった複合主キー
+	 */
+	public NewsLookup02 findAll(Collection<NewsId02> ids) {
+
+		Map<NewsId02, News02> found = new LinkedHashMap<NewsId02, News02>();
+		Set<NewsId02> missing = new LinkedHashSet<NewsId02>();
+
+		// titleごとにlanguageをまとめる
+		Map<String, List<String>> languagesByTitle = new LinkedHashMap<String, List<String>>();
+		int keys = 0;
+		for (NewsId02 id : new LinkedHashSet<NewsId02>(ids)) {
+			missing.add(id);
+			if (id.getTitle() == null || id.getLanguage() == null) {
+				continue;		// 主キーにnullを含むエンティティは存在しない
+			}
+
+			List<String> languages = languagesByTitle.get(id.getTitle());
+			if (languages == null) {
+				languages = new ArrayList<String>();
+				languagesByTitle.put(id.getTitle(), languages);
+			}
+			languages.add(id.getLanguage());
+
+			if (++keys == MAX_KEYS_PER_QUERY) {
+				collect(languagesByTitle, found);
+				languagesByTitle.clear();
+				keys = 0;
+			}
+		}
+		if (keys > 0) {
+			collect(languagesByTitle, found);
+		}
+
+		missing.removeAll(found.keySet());
+		return new NewsLookup02(found, missing);
+	}
+
+	/**
+	 * 複合主キーの順序で、指定した複合主キーより後ろの
+	 * エンティティを最大pageSize件返す。
+	 *
+	 * @param after 前のページの最後のエンティティの複合主キー。
+	 *              最初のページを取得する場合はnull
+	 * @param pageSize 1ページの件数
+	 * @return 次のページのエンティティ。pageSize件未満の場合は最後のページ
+	 */
+	public List<News02> findPage(NewsId02 after, int pageSize) {
+
+		if (pageSize < 1) {
+			throw new IllegalArgumentException("pageSize must be positive: " + pageSize);
+		}
+
+		TypedQuery<News02> query;
+		if (after == null) {
+			query = em.createNamedQuery("findFirstNewsPage", News02.class);
+		} else {
+			query = em.createNamedQuery("findNewsPageAfter", News02.class)
+					.setParameter("title", after.getTitle())
+					.setParameter("language", after.getLanguage());
+		}
+		return query.setMaxResults(pageSize).getResultList();
+	}
+
+	private void collect(Map<String, List<String>> languagesByTitle, Map<NewsId02, News02> found) {
+
+		StringBuilder jpql = new StringBuilder("SELECT n FROM News02 n WHERE ");
+		int i = 0;
+		for (int n = languagesByTitle.size(); i < n; i++) {
+			if (i > 0) {
+				jpql.append(" OR ");
+			}
+			jpql.append("(n.id.title = :t").append(i)
+				.append(" AND n.id.language IN :l").append(i).append(')');
+		}
+
+		TypedQuery<News02> query = em.createQuery(jpql.toString(), News02.class);
+		i = 0;
+		for (Map.Entry<String, List<String>> entry : languagesByTitle.entrySet()) {
+			query.setParameter("t" + i, entry.getKey());
+			query.setParameter("l" + i, entry.getValue());
+			i++;
+		}
+
+		for (News02 news : query.getResultList()) {
+			found.put(news.getId(), news);
+		}
+	}
+}
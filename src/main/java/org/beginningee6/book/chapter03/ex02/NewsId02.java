@@ -15,6 +15,14 @@ import javax.persistence.Embeddable;
  * hashCode()とequals()メソッドを適切に
  * 実装する。
  * 
+ * languageはLanguageDictionaryにより正規のインスタンスに
+ * 置き換え、同じ言語の複合主キーで文字列を共有する。
+ * フィールドアクセスのため、データベースから読み込んだ
+ * 場合はコンストラクタやsetterメソッドを経由しない。
+ * その場合はNews02の＠PostLoadでinternLanguage()を実行する。
+ * また、マップの検索のたびに計算し直さないよう、
+ * hashCode()の値を保持する（値を変更した場合は再計算する）。
+ * 
  * ＠Embeddableアノテーションが付加されたクラスは
  * 独自のテーブルを持つエンティティではなく、その
  * 各フィールドはそのIDを＠EmbeddedIdアノテーション
@@ -29,11 +37,15 @@ public class NewsId02 implements Serializable {
 	private String title;
 	private String language;
 	
+	// 計算済みのハッシュ値（0の場合は未計算）。
+	// transientのため永続化・シリアライズの対象とはならない
+	private transient int hash;
+	
 	public NewsId02() {}
 
 	public NewsId02(String title, String language) {
 		this.title = title;
-		this.language = language;
+		this.language = LanguageDictionary.intern(language);
 	}
 
 	public String getTitle() {
@@ -42,6 +54,7 @@ public class NewsId02 implements Serializable {
 
 	public void setTitle(String title) {
 		this.title = title;
+		this.hash = 0;
 	}
 
 	public String getLanguage() {
@@ -49,7 +62,16 @@ public class NewsId02 implements Serializable {
 	}
 
 	public void setLanguage(String language) {
-		this.language = language;
+		this.language = LanguageDictionary.intern(language);
+		this.hash = 0;
+	}
+
+	/**
+	 * languageを正規のインスタンスに置き換える。
+	 * 値は変わらないため、ハッシュ値は再計算しない。
+	 */
+	void internLanguage() {
+		this.language = LanguageDictionary.intern(language);
 	}
 
 	/**
@@ -57,11 +79,15 @@ public class NewsId02 implements Serializable {
 	 */
 	@Override
 	public int hashCode() {
-		final int prime = 31;
-		int result = 1;
-		result = prime * result
-				+ ((language == null) ? 0 : language.hashCode());
-		result = prime * result + ((title == null) ? 0 : title.hashCode());
+		int result = hash;
+		if (result == 0) {
+			final int prime = 31;
+			result = 1;
+			result = prime * result
+					+ ((language == null) ? 0 : language.hashCode());
+			result = prime * result + ((title == null) ? 0 : title.hashCode());
+			hash = result;
+		}
 		return result;
 	}
 
@@ -0,0 +1,85 @@
+package org.beginningee6.book.chapter03.ex02;
+
+/**
+ * キャッシュやインデックスのキーとして使用する、
+ * News02の複合主キーの圧縮形式。
+ *
+ * titleは参照のまま保持し、languageはLanguageDictionaryの
+ * コードとしてintで保持する。コードが割り当てられなかった
+ * 言語（LanguageDictionary.UNASSIGNED）の場合だけ、
+ * 言語を文字列のまま保持する。ハッシュ値は生成時に
+ * 計算して保持するため、マップの検索のたびに
+ * 文字列のハッシュ値を計算し直すことはない。
+ * equals()もコードの比較とtitleの比較のみで判定する
+ * （コードが割り当てられなかった言語の場合は言語の文字列も比較する）。
+ *
+ * このクラスのインスタンスは変更不可である。言語のコードは
+ * JVMごとに割り当てられるため、シリアライズはできない。
+ */
+public final class NewsKey02 {
+
+	private final String title;
+	private final int languageCode;
+	private final String unassignedLanguage;	// コードが割り当てられなかった場合の言語（それ以外はnull）
+	private final int hash;
+
+	private NewsKey02(String title, int languageCode, String unassignedLanguage) {
+		this.title = title;
+		this.languageCode = languageCode;
+		this.unassignedLanguage = unassignedLanguage;
+		this.hash = 31 * (title == null ? 0 : title.hashCode())
+				+ (unassignedLanguage == null ? languageCode : unassignedLanguage.hashCode());
+	}
+
+	public static NewsKey02 of(String title, String language) {
+		int code = LanguageDictionary.code(language);
+		return new NewsKey02(title, code, code == LanguageDictionary.UNASSIGNED ? language : null);
+	}
+
+	public static NewsKey02 of(NewsId02 id) {
+		return of(id.getTitle(), id.getLanguage());
+	}
+
+	public String getTitle() {
+		return title;
+	}
+
+	public int getLanguageCode() {
+		return languageCode;
+	}
+
+	public String getLanguage() {
+		return unassignedLanguage != null ? unassignedLanguage : LanguageDictionary.language(languageCode);
+	}
+
+	/**
+	 * 複合主キーに変換する。
+	 */
+	public NewsId02 toId() {
+		return new NewsId02(title, getLanguage());
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof NewsKey02))
+			return false;
+		NewsKey02 other = (NewsKey02) obj;
+		if (hash != other.hash || languageCode != other.languageCode)
+			return false;
+		if (unassignedLanguage != null && !unassignedLanguage.equals(other.unassignedLanguage))
+			return false;
+		return title == null ? other.title == null : title.equals(other.title);
+	}
+
+	@Override
+	public String toString() {
+		return "NewsKey02 [title=" + title + ", language=" + getLanguage() + "]";
+	}
+}
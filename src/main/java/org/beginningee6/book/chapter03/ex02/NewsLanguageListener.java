@@ -0,0 +1,49 @@
+package org.beginningee6.book.chapter03.ex02;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.naming.NamingException;
+import javax.persistence.PostPersist;
+import javax.persistence.PostRemove;
+import javax.persistence.PostUpdate;
+
+import org.beginningee6.book.chapter03.util.TransactionCompletion;
+
+/**
+ * News02エンティティの追加・更新・削除を
+ * NewsLanguageResolverに通知するエンティティリスナー。
+ *
+ * 変更がコミットされる前に他のトランザクションが
+ * 言語の一覧を読み込んでキャッシュしても削除されるよう、
+ * キャッシュの無効化はトランザクションの完了後に行う。
+ *
+ * NewsLanguageResolverがデプロイされていない場合は何もしない。
+ */
+public class NewsLanguageListener {
+
+	private static final Logger logger = Logger.getLogger(NewsLanguageListener.class.getName());
+
+	@PostPersist
+	@PostUpdate
+	@PostRemove
+	public void invalidate(News02 news) {
+
+		final String title = news.getId().getTitle();
+
+		try {
+			final NewsLanguageResolver resolver =
+					TransactionCompletion.lookup("java:module/NewsLanguageResolver", NewsLanguageResolver.class);
+
+			TransactionCompletion.afterCompletion(new Runnable() {
+
+				public void run() {
+					// ロールバックされた場合も無効化して問題ない
+					resolver.invalidate(title);
+				}
+			});
+		} catch (NamingException e) {
+			logger.log(Level.FINE, "NewsLanguageResolver is not available", e);
+		}
+	}
+}
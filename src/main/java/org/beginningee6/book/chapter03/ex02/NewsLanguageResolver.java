@@ -0,0 +1,264 @@
+package org.beginningee6.book.chapter03.ex02;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+/**
+ * ニュースのタイトルと希望する言語のリストから、
+ * 実際に存在する翻訳の複合主キーを決定するリゾルバ。
+ *
+ * 希望する言語ごとにem.find()を呼び出すと、見つかるまで
+ * 言語の数だけSELECT文が発行される。このクラスでは、
+ * タイトルごとに存在する言語の一覧をキャッシュに保持し、
+ * resolve()ではキャッシュのみから最適な言語を決定する。
+ *
+ * preload()により、複数のタイトルの言語の一覧を
+ *
+ * SELECT n.id.title, n.id.language FROM News02 n
+ *  WHERE n.id.title IN :titles
+ *
+ * の1回のSELECT文でまとめて読み込むことができる。
+ * 翻訳が1件も無いタイトルも、空の一覧としてキャッシュする。
+ *
+ * キャッシュの件数はmaximumSizeを上限とし、上限を超えた
+ * 場合は最も長い間参照されていないタイトルから削除する（LRU）。
+ *
+ * News02エンティティの追加・更新・削除時には、
+ * NewsLanguageListenerがトランザクションの完了後に
+ * invalidate()を呼び出して該当するタイトルを削除する。
+ * 読み込み中に無効化が行われた場合、読み込んだ一覧は
+ * 古い可能性があるためキャッシュしない。
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class NewsLanguageResolver {
+
+	/**
+	 * キャッシュするタイトル数の上限のデフォルト値
+	 */
+	public static final int DEFAULT_MAXIMUM_SIZE = 10000;
+
+	/**
+	 * 1回のSELECT文で読み込むタイトルの最大件数
+	 */
+	public static final int MAX_TITLES_PER_QUERY = 100;
+
+	@PersistenceContext
+	private EntityManager em;
+
+	private final Object lock = new Object();
+
+	private int maximumSize = DEFAULT_MAXIMUM_SIZE;
+
+	// アクセス順に並ぶLinkedHashMapによりLRUを実現する
+	private final LinkedHashMap<String, List<String>> cache =
+			new LinkedHashMap<String, List<String>>(16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, List<String>> eldest) {
+			if (size() > maximumSize) {
+				evictionCount++;
+				return true;
+			}
+			return false;
+		}
+	};
+
+	// 無効化のたびに増加する。読み込みの前後で変化していれば
+	// 読み込んだ一覧をキャッシュしない
+	private long invalidationCount;
+
+	private long hitCount;
+	private long missCount;
+	private long evictionCount;
+
+	/**
+	 * 希望する言語のリストのうち、翻訳が存在する最初の言語の
+	 * 複合主キーを返す。
+	 *
+	 * タイトルの言語の一覧がキャッシュに無い場合は読み込む。
+	 *
+	 * @param title タイトル
+	 * @param preferredLanguages 希望する言語（優先度の高い順）
+	 * @return 翻訳が存在する言語の複合主キー。
+	 *         いずれの言語の翻訳も存在しない場合はnull
+	 */
+	public NewsId02 resolve(String title, List<String> preferredLanguages) {
+
+		List<String> available = getAvailableLanguages(title);
+		for (String language : preferredLanguages) {
+			if (available.contains(language)) {
+				return new NewsId02(title, language);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * タイトルに対して翻訳が存在する言語の一覧を返す。
+	 *
+	 * @return 言語の一覧（変更不可）。翻訳が無い場合は空の一覧
+	 */
+	public List<String> getAvailableLanguages(String title) {
+
+		synchronized (lock) {
+			List<String> cached = cache.get(title);
+			if (cached != null) {
+				hitCount++;
+				return cached;
+			}
+			missCount++;
+		}
+
+		return load(Collections.singleton(title)).get(title);
+	}
+
+	/**
+	 * 複数のタイトルの言語の一覧をまとめて読み込み、キャッシュする。
+	 * すでにキャッシュされているタイトルは読み込まない。
+	 *
+	 * @return 新たに読み込んだタイトルの件数
+	 */
+	public int preload(Collection<String> titles) {
+
+		List<String> uncached = new ArrayList<String>();
+		synchronized (lock) {
+			for (String title : new LinkedHashSet<String>(titles)) {
+				if (title != null && !cache.containsKey(title)) {
+					uncached.add(title);
+				}
+			}
+		}
+
+		for (int i = 0; i < uncached.size(); i += MAX_TITLES_PER_QUERY) {
+			load(uncached.subList(i, Math.min(uncached.size(), i + MAX_TITLES_PER_QUERY)));
+		}
+		return uncached.size();
+	}
+
+	/**
+	 * 指定したタイトルのキャッシュを削除する。
+	 */
+	public void invalidate(String title) {
+		synchronized (lock) {
+			invalidationCount++;
+			cache.remove(title);
+		}
+	}
+
+	/**
+	 * キャッシュのすべてのエントリを削除する。
+	 *
+	 * JPQLの一括更新・一括削除ではエンティティの
+	 * ライフサイクルイベントが発生しないため、
+	 * それらを実行した場合はこのメソッドを呼び出すこと。
+	 */
+	public void clear() {
+		synchronized (lock) {
+			invalidationCount++;
+			cache.clear();
+		}
+	}
+
+	/**
+	 * 統計情報をリセットする。
+	 */
+	public void resetStatistics() {
+		synchronized (lock) {
+			hitCount = 0;
+			missCount = 0;
+			evictionCount = 0;
+		}
+	}
+
+	public int getMaximumSize() {
+		synchronized (lock) {
+			return maximumSize;
+		}
+	}
+
+	/**
+	 * キャッシュするタイトル数の上限を設定する。
+	 * 上限を超えているエントリは古いものから削除される。
+	 */
+	public void setMaximumSize(int maximumSize) {
+		if (maximumSize < 1) {
+			throw new IllegalArgumentException("maximumSize must be positive: " + maximumSize);
+		}
+		synchronized (lock) {
+			this.maximumSize = maximumSize;
+			while (cache.size() > maximumSize) {
+				cache.remove(cache.keySet().iterator().next());
+				evictionCount++;
+			}
+		}
+	}
+
+	public int getSize() {
+		synchronized (lock) {
+			return cache.size();
+		}
+	}
+
+	public long getHitCount() {
+		synchronized (lock) {
+			return hitCount;
+		}
+	}
+
+	public long getMissCount() {
+		synchronized (lock) {
+			return missCount;
+		}
+	}
+
+	public long getEvictionCount() {
+		synchronized (lock) {
+			return evictionCount;
+		}
+	}
+
+	private Map<String, List<String>> load(Collection<String> titles) {
+
+		long invalidationsBefore;
+		synchronized (lock) {
+			invalidationsBefore = invalidationCount;
+		}
+
+		Map<String, List<String>> languagesByTitle = new LinkedHashMap<String, List<String>>();
+		for (String title : titles) {
+			languagesByTitle.put(title, new ArrayList<String>());
+		}
+
+		List<Object[]> rows = em.createNamedQuery("findNewsLanguagesByTitles", Object[].class)
+				.setParameter("titles", titles)
+				.getResultList();
+		for (Object[] row : rows) {
+			languagesByTitle.get(row[0]).add(LanguageDictionary.intern((String) row[1]));
+		}
+
+		for (Map.Entry<String, List<String>> entry : languagesByTitle.entrySet()) {
+			entry.setValue(Collections.unmodifiableList(entry.getValue()));
+		}
+
+		synchronized (lock) {
+			if (invalidationCount == invalidationsBefore) {
+				cache.putAll(languagesByTitle);
+			}
+		}
+		return languagesByTitle;
+	}
+}
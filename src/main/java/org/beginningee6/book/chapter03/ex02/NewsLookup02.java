@@ -0,0 +1,49 @@
+package org.beginningee6.book.chapter03.ex02;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * News02Repository.findAll()による複数の複合主キーでの
+ * 検索結果。
+ *
+ * 見つかったエンティティを複合主キーをキーとするMapで、
+ * 見つからなかった複合主キーをSetで保持する。
+ */
+public class NewsLookup02 implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final Map<NewsId02, News02> found;
+	private final Set<NewsId02> missing;
+
+	public NewsLookup02(Map<NewsId02, News02> found, Set<NewsId02> missing) {
+		this.found = Collections.unmodifiableMap(found);
+		this.missing = Collections.unmodifiableSet(missing);
+	}
+
+	/**
+	 * 見つかったエンティティ（複合主キー→エンティティ）
+	 */
+	public Map<NewsId02, News02> getFound() {
+		return found;
+	}
+
+	/**
+	 * 見つからなかった複合主キー
+	 */
+	public Set<NewsId02> getMissing() {
+		return missing;
+	}
+
+	public News02 get(NewsId02 id) {
+		return found.get(id);
+	}
+
+	@Override
+	public String toString() {
+		return "NewsLookup02 [found=" + found.keySet() + ", missing=" + missing + "]";
+	}
+}
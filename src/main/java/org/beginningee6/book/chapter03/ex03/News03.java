@@ -3,11 +3,16 @@ package org.beginningee6.book.chapter03.ex03;
 import java.io.Serializable;
 
 import javax.persistence.Entity;
+import javax.persistence.EntityListeners;
 import javax.persistence.Id;
 import javax.persistence.IdClass;
+import javax.persistence.NamedQueries;
 import javax.persistence.NamedQuery;
+import javax.persistence.PostLoad;
 import javax.persistence.Table;
 
+import org.beginningee6.book.chapter03.ex02.LanguageDictionary;
+
 /**
  * 複合主キーの指定（＠IdClassアノテーション使用）。
  * 
@@ -28,11 +33,33 @@ import javax.persistence.Table;
  * 
  * "SELECT n.title FROM News03 n"
  * との違いに注意。
+ * 
+ * findNewsPageAfterは、複合主キー（title, language）の順序で
+ * 指定した複合主キーより後のエンティティを検索する
+ * キーセット方式のページングに使用する（News03Repositoryを参照）。
+ * 
+ * 存在しない複合主キーでの検索をデータベースにアクセスせずに
+ * 判定するため、複合主キーをNewsKeyFilterListenerによって
+ * NewsKeyFilterに登録する。
+ * 
+ * languageはLanguageDictionaryの正規のインスタンスに置き換える。
+ * フィールドアクセスのため、データベースから読み込んだ場合は
+ * コンストラクタを経由しないので、＠PostLoadで置き換える。
  */
 @Entity
 @Table(name = "news_ex03")
 @IdClass(NewsId03.class)		// NewsId03を主キークラスに指定
-@NamedQuery(name = "findAllNewsTitles", query = "SELECT n.title FROM News03 n")
+@NamedQueries({
+	@NamedQuery(name = "findAllNewsTitles", query = "SELECT n.title FROM News03 n"),
+	@NamedQuery(name = "findFirstNewsPage",
+			query = "SELECT n FROM News03 n ORDER BY n.title, n.language"),
+	@NamedQuery(name = "findNewsPageAfter",
+			query = "SELECT n FROM News03 n"
+				+ " WHERE n.title >= :title AND (n.title > :title OR n.language > :language)"
+				+ " ORDER BY n.title, n.language"),
+	@NamedQuery(name = "findAllNewsKeys", query = "SELECT n.title, n.language FROM News03 n")
+})
+@EntityListeners(NewsKeyFilterListener.class)
 public class News03 implements Serializable {
 	
 	private static final long serialVersionUID = 1L;
@@ -48,10 +75,18 @@ public class News03 implements Serializable {
 
 	public News03(String title, String language, String content) {
 		this.title = title;
-		this.language = language;
+		this.language = LanguageDictionary.intern(language);
 		this.content = content;
 	}
 
+	/**
+	 * 読み込んだ言語を正規のインスタンスに置き換える。
+	 */
+	@PostLoad
+	void internLanguage() {
+		language = LanguageDictionary.intern(language);
+	}
+
 	public String getTitle() {
 		return title;
 	}
@@ -0,0 +1,77 @@
+package org.beginningee6.book.chapter03.ex03;
+
+import java.util.List;
+
+import javax.ejb.EJB;
+import javax.ejb.Stateless;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.TypedQuery;
+
+/**
+ * News03エンティティを複合主キーで検索するリポジトリ。
+ *
+ * findPage()は複合主キーの順序によるキーセット方式の
+ * ページングを行う。OFFSETによるページングと異なり、
+ * 前のページの最後の複合主キーより後ろを主キーの
+ * インデックスで直接検索するため、何ページ目であっても
+ * 1ページあたりのコストは変わらない。
+ *
+ * ＠IdClassを使用しているため、クエリではn.id.titleではなく
+ * n.titleのように複合主キーのフィールドを指定する
+ * （News02Repositoryとの違いに注意）。
+ *
+ * find()は、NewsKeyFilterにより確実に存在しないと判定できる
+ * 複合主キーについては、データベースにアクセスせずにnullを返す。
+ */
+@Stateless
+public class News03Repository {
+
+	@PersistenceContext
+	private EntityManager em;
+
+	@EJB
+	private NewsKeyFilter keyFilter;
+
+	/**
+	 * 複合主キーでエンティティを検索する。
+	 *
+	 * @return 該当するエンティティ。存在しない場合はnull
+	 */
+	public News03 find(NewsId03 id) {
+
+		if (!keyFilter.mightExist(id)) {
+			return null;		// データベースにアクセスせずに判定できた
+		}
+
+		News03 news = em.find(News03.class, id);
+		keyFilter.recordLookup(news != null);
+		return news;
+	}
+
+	/**
+	 * 複合主キーの順序で、指定した複合主キーより後ろの
+	 * エンティティを最大pageSize件返す。
+	 *
+	 * @param after 前のページの最後のエンティティの複合主キー。
+	 *              最初のページを取得する場合はnull
+	 * @param pageSize 1ページの件数
+	 * @return 次のページのエンティティ。pageSize件未満の場合は最後のページ
+	 */
+	public List<News03> findPage(NewsId03 after, int pageSize) {
+
+		if (pageSize < 1) {
+			throw new IllegalArgumentException("pageSize must be positive: " + pageSize);
+		}
+
+		TypedQuery<News03> query;
+		if (after == null) {
+			query = em.createNamedQuery("findFirstNewsPage", News03.class);
+		} else {
+			query = em.createNamedQuery("findNewsPageAfter", News03.class)
+					.setParameter("title", after.getTitle())
+					.setParameter("language", after.getLanguage());
+		}
+		return query.setMaxResults(pageSize).getResultList();
+	}
+}
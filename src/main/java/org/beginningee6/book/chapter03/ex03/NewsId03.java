@@ -2,6 +2,8 @@ package org.beginningee6.book.chapter03.ex03;
 
 import java.io.Serializable;
 
+import org.beginningee6.book.chapter03.ex02.LanguageDictionary;
+
 /**
  * 複合主キーを表現するクラス。
  * 
@@ -18,6 +20,11 @@ import java.io.Serializable;
  * 定義と異なり、このクラス自体はアノテーションを付加する必要はなく、
  * 単なるPOJOでよいが、hashCode()とequals()メソッドを適切に
  * 実装する必要がある。
+ * 
+ * languageはLanguageDictionaryにより正規のインスタンスに
+ * 置き換え、同じ言語の複合主キーで文字列を共有する。
+ * また、マップの検索のたびに計算し直さないよう、
+ * hashCode()の値を保持する。
  */
 public class NewsId03 implements Serializable {
 	
@@ -26,11 +33,15 @@ public class NewsId03 implements Serializable {
 	private String title;
 	private String language;
 	
+	// 計算済みのハッシュ値（0の場合は未計算）。
+	// transientのためシリアライズの対象とはならない
+	private transient int hash;
+	
 	public NewsId03() {}
 
 	public NewsId03(String title, String language) {
 		this.title = title;
-		this.language = language;
+		this.language = LanguageDictionary.intern(language);
 	}
 
 	public String getTitle() {
@@ -43,11 +54,15 @@ public class NewsId03 implements Serializable {
 
 	@Override
 	public int hashCode() {
-		final int prime = 31;
-		int result = 1;
-		result = prime * result
-				+ ((language == null) ? 0 : language.hashCode());
-		result = prime * result + ((title == null) ? 0 : title.hashCode());
+		int result = hash;
+		if (result == 0) {
+			final int prime = 31;
+			result = 1;
+			result = prime * result
+					+ ((language == null) ? 0 : language.hashCode());
+			result = prime * result + ((title == null) ? 0 : title.hashCode());
+			hash = result;
+		}
 		return result;
 	}
 
@@ -0,0 +1,103 @@
+package org.beginningee6.book.chapter03.ex03;
+
+/**
+ * News03の複合主キー（title, language）に対するブルームフィルタ。
+ *
+ * mightContain()がfalseを返した複合主キーは確実に存在しない。
+ * trueを返した場合は、存在しない可能性（偽陽性）がある。
+ *
+ * ビット配列のサイズとハッシュ関数の数は、想定する件数と
+ * 目標とする偽陽性率から決定する。複合主キーのハッシュには
+ * 64ビットのFNV-1aを使用し、その上位と下位の32ビットを
+ * 組み合わせて（ダブルハッシング）k個のビット位置を求める。
+ *
+ * 要素を削除することはできないため、削除されたエンティティの
+ * ビットは残り、偽陽性率を高める要因となる。
+ *
+ * このクラスはスレッドセーフではない。
+ */
+final class NewsKeyBloomFilter {
+
+	private final long[] bits;
+	private final int bitCount;
+	private final int hashCount;
+	private int insertions;
+
+	/**
+	 * @param expectedInsertions 想定する要素の件数
+	 * @param falsePositiveRate 目標とする偽陽性率
+	 */
+	NewsKeyBloomFilter(int expectedInsertions, double falsePositiveRate) {
+		int n = Math.max(1, expectedInsertions);
+		long m = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+		this.bitCount = (int) Math.max(64, Math.min(Integer.MAX_VALUE - 63, m));
+		this.hashCount = Math.max(1, (int) Math.round((double) bitCount / n * Math.log(2)));
+		this.bits = new long[(bitCount + 63) / 64];
+	}
+
+	void put(String title, String language) {
+		long hash = hash(title, language);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		for (int i = 1; i <= hashCount; i++) {
+			int position = index(h1 + i * h2);
+			bits[position >>> 6] |= 1L << position;
+		}
+		insertions++;
+	}
+
+	boolean mightContain(String title, String language) {
+		long hash = hash(title, language);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		for (int i = 1; i <= hashCount; i++) {
+			int position = index(h1 + i * h2);
+			if ((bits[position >>> 6] & (1L << position)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 登録した要素の件数から求めた、現在の偽陽性率の期待値
+	 */
+	double expectedFalsePositiveRate() {
+		return Math.pow(1 - Math.exp(-(double) hashCount * insertions / bitCount), hashCount);
+	}
+
+	int getInsertions() {
+		return insertions;
+	}
+
+	int getBitCount() {
+		return bitCount;
+	}
+
+	int getHashCount() {
+		return hashCount;
+	}
+
+	private int index(int combined) {
+		return (combined & Integer.MAX_VALUE) % bitCount;
+	}
+
+	private static long hash(String title, String language) {
+		long hash = 0xcbf29ce484222325L;
+		hash = hash(hash, title);
+		hash = (hash ^ 0xFFFF) * 0x100000001b3L;		// titleとlanguageの区切り
+		return hash(hash, language);
+	}
+
+	private static long hash(long hash, String value) {
+		if (value == null) {
+			return hash;
+		}
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			hash = (hash ^ (c & 0xFF)) * 0x100000001b3L;
+			hash = (hash ^ (c >>> 8)) * 0x100000001b3L;
+		}
+		return hash;
+	}
+}
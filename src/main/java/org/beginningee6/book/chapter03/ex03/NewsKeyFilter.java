@@ -0,0 +1,263 @@
+package org.beginningee6.book.chapter03.ex03;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+/**
+ * news_ex03に存在する複合主キーを保持するブルームフィルタを
+ * 管理するシングルトン。
+ *
+ * 存在しない翻訳の検索（em.find()）でもデータベースへの
+ * アクセスが発生するため、News03Repository.find()では
+ * 先にこのフィルタを調べ、確実に存在しない複合主キーは
+ * データベースにアクセスせずにnullを返す。
+ *
+ * 追加されたエンティティはNewsKeyFilterListenerにより
+ * persist()の時点で登録される。ロールバックされた場合は
+ * 偽陽性となるだけで、誤って「存在しない」と判定することはない。
+ *
+ * 削除されたエンティティのビットは残るため、削除が多くなったら
+ * rebuild()でnews_ex03から作成し直すこと。作成し直している間や
+ * その直前に登録された複合主キーは、コミット前で検索結果に
+ * 含まれない可能性があるため、RECENT_WINDOW_MILLISの間は
+ * 保持しておき新しいフィルタにも登録する。
+ *
+ * フィルタの作成のためのnews_ex03の読み込みはロックの外で行い、
+ * 作成したフィルタにロックの中で最近登録された複合主キーを
+ * 登録してから置き換える。persist()の中でadd()を呼び出す
+ * トランザクションが、読み込みの間ロックを待たされることはない。
+ *
+ * 目標とする偽陽性率に加えて、現在の件数から求めた偽陽性率の
+ * 期待値と、実際に観測した偽陽性率を公開する。
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class NewsKeyFilter {
+
+	/**
+	 * 目標とする偽陽性率
+	 */
+	public static final double TARGET_FALSE_POSITIVE_RATE = 0.01;
+
+	/**
+	 * フィルタを作成する際の最小の想定件数
+	 */
+	static final int MINIMUM_CAPACITY = 1024;
+
+	/**
+	 * 再作成時に新しいフィルタにも登録する、最近登録された
+	 * 複合主キーの保持期間（トランザクションタイムアウトより長くする）
+	 */
+	static final long RECENT_WINDOW_MILLIS = 10 * 60 * 1000L;
+
+	@PersistenceContext
+	private EntityManager em;
+
+	private final Object lock = new Object();
+
+	private NewsKeyBloomFilter filter;
+
+	// 最近登録された複合主キー（登録時刻の昇順）
+	private final LinkedList<RecentKey> recentKeys = new LinkedList<RecentKey>();
+
+	private long negativeCount;
+	private long falsePositiveCount;
+	private long truePositiveCount;
+	private long removalCount;
+
+	/**
+	 * 複合主キーが存在する可能性があるかどうかを判定する。
+	 * フィルタが作成されていない場合は、news_ex03から作成する。
+	 *
+	 * @return falseの場合は確実に存在しない
+	 */
+	public boolean mightExist(NewsId03 id) {
+		ensureFilter();
+		synchronized (lock) {
+			boolean result = filter.mightContain(id.getTitle(), id.getLanguage());
+			if (!result) {
+				negativeCount++;
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * 複合主キーを登録する。NewsKeyFilterListenerから呼び出される。
+	 */
+	public void add(String title, String language) {
+		synchronized (lock) {
+			long now = System.currentTimeMillis();
+			for (Iterator<RecentKey> i = recentKeys.iterator(); i.hasNext();) {
+				if (i.next().addedAt >= now - RECENT_WINDOW_MILLIS) {
+					break;
+				}
+				i.remove();
+			}
+			recentKeys.add(new RecentKey(now, title, language));
+
+			if (filter != null) {
+				filter.put(title, language);
+			}
+		}
+	}
+
+	/**
+	 * エンティティが削除されたことを記録する。
+	 */
+	public void recordRemoval() {
+		synchronized (lock) {
+			removalCount++;
+		}
+	}
+
+	/**
+	 * mightExist()がtrueを返したエンティティの検索結果を記録する。
+	 */
+	public void recordLookup(boolean found) {
+		synchronized (lock) {
+			if (found) {
+				truePositiveCount++;
+			} else {
+				falsePositiveCount++;
+			}
+		}
+	}
+
+	/**
+	 * news_ex03の全件からフィルタを作成し直す。
+	 */
+	public void rebuild() {
+		NewsKeyBloomFilter rebuilt = load();
+		synchronized (lock) {
+			install(rebuilt);
+		}
+	}
+
+	/**
+	 * 登録件数から求めた現在の偽陽性率の期待値
+	 */
+	public double getExpectedFalsePositiveRate() {
+		synchronized (lock) {
+			return filter == null ? 0 : filter.expectedFalsePositiveRate();
+		}
+	}
+
+	/**
+	 * 存在しない複合主キーの検索のうち、フィルタで判定できなかった割合
+	 */
+	public double getObservedFalsePositiveRate() {
+		synchronized (lock) {
+			long absent = falsePositiveCount + negativeCount;
+			return absent == 0 ? 0 : (double) falsePositiveCount / absent;
+		}
+	}
+
+	/**
+	 * データベースにアクセスせずに「存在しない」と判定した回数
+	 */
+	public long getNegativeCount() {
+		synchronized (lock) {
+			return negativeCount;
+		}
+	}
+
+	public long getFalsePositiveCount() {
+		synchronized (lock) {
+			return falsePositiveCount;
+		}
+	}
+
+	public long getTruePositiveCount() {
+		synchronized (lock) {
+			return truePositiveCount;
+		}
+	}
+
+	/**
+	 * 前回の作成以降に削除されたエンティティの件数
+	 */
+	public long getRemovalCount() {
+		synchronized (lock) {
+			return removalCount;
+		}
+	}
+
+	/**
+	 * 統計情報をリセットする。
+	 */
+	public void resetStatistics() {
+		synchronized (lock) {
+			negativeCount = 0;
+			falsePositiveCount = 0;
+			truePositiveCount = 0;
+		}
+	}
+
+	/**
+	 * フィルタが作成されていない場合は、news_ex03から作成する。
+	 * ロックを保持せずに呼び出すこと。
+	 */
+	private void ensureFilter() {
+		synchronized (lock) {
+			if (filter != null) {
+				return;
+			}
+		}
+		NewsKeyBloomFilter loaded = load();
+		synchronized (lock) {
+			// 読み込みの間に他のスレッドが作成した場合はそれを使用する
+			if (filter == null) {
+				install(loaded);
+			}
+		}
+	}
+
+	/**
+	 * news_ex03の全件からフィルタを作成する。
+	 * ロックを保持せずに呼び出すこと。
+	 */
+	private NewsKeyBloomFilter load() {
+
+		List<Object[]> keys = em.createNamedQuery("findAllNewsKeys", Object[].class).getResultList();
+
+		NewsKeyBloomFilter loaded = new NewsKeyBloomFilter(
+				Math.max(MINIMUM_CAPACITY, keys.size() * 2), TARGET_FALSE_POSITIVE_RATE);
+		for (Object[] key : keys) {
+			loaded.put((String) key[0], (String) key[1]);
+		}
+		return loaded;
+	}
+
+	/**
+	 * 作成したフィルタに最近登録された複合主キーを登録してから、
+	 * フィルタを置き換える。ロックを保持して呼び出すこと。
+	 */
+	private void install(NewsKeyBloomFilter loaded) {
+		for (RecentKey key : recentKeys) {
+			loaded.put(key.title, key.language);
+		}
+		filter = loaded;
+		removalCount = 0;
+	}
+
+	private static class RecentKey {
+
+		final long addedAt;
+		final String title;
+		final String language;
+
+		RecentKey(long addedAt, String title, String language) {
+			this.addedAt = addedAt;
+			this.title = title;
+			this.language = language;
+		}
+	}
+}
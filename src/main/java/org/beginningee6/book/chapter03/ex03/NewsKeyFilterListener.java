@@ -0,0 +1,52 @@
+package org.beginningee6.book.chapter03.ex03;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.persistence.PostRemove;
+import javax.persistence.PrePersist;
+
+/**
+ * News03エンティティの追加・削除をNewsKeyFilterに
+ * 通知するエンティティリスナー。
+ *
+ * ＠PostPersistはINSERTの発行時（フラッシュ時）まで
+ * 遅れる場合があり、その間に同じトランザクション内で
+ * 検索すると「存在しない」と判定されてしまうため、
+ * persist()の時点で呼び出される＠PrePersistで登録する。
+ *
+ * エンティティリスナーにはインジェクションが行われない
+ * ため、NewsKeyFilterはJNDIでルックアップする。
+ * NewsKeyFilterがデプロイされていない場合は何もしない。
+ */
+public class NewsKeyFilterListener {
+
+	private static final Logger logger = Logger.getLogger(NewsKeyFilterListener.class.getName());
+
+	@PrePersist
+	public void add(News03 news) {
+		NewsKeyFilter filter = lookup();
+		if (filter != null) {
+			filter.add(news.getTitle(), news.getLanguage());
+		}
+	}
+
+	@PostRemove
+	public void remove(News03 news) {
+		NewsKeyFilter filter = lookup();
+		if (filter != null) {
+			filter.recordRemoval();
+		}
+	}
+
+	private NewsKeyFilter lookup() {
+		try {
+			return (NewsKeyFilter) new InitialContext().lookup("java:module/NewsKeyFilter");
+		} catch (NamingException e) {
+			logger.log(Level.FINE, "NewsKeyFilter is not available", e);
+			return null;
+		}
+	}
+}
@@ -0,0 +1,305 @@
+package org.beginningee6.book.chapter03.ex04;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * wavのデータをCHUNK_SIZEバイトのチャンクに分割して
+ * Deflateで圧縮・伸長するコーデック（WavCodec.DEFLATEの実装）。
+ *
+ * 圧縮したデータの形式は以下のとおり。
+ *
+ * int MAGIC
+ * チャンクごとに { int 元のバイト数, int 圧縮後のバイト数, 圧縮したデータ }
+ *
+ * encode()はチャンクを1つずつ順に圧縮する。チャンクは独立して
+ * 圧縮できるため、TrackAudioStoreはdeflate()をWavChunkDeflaterの
+ * 非同期メソッド（コンテナのスレッドプール）で並列に実行し、
+ * assemble()で連結する。
+ * （注）EJBモジュール内で独自のスレッドプールを作成すると、
+ * 再デプロイのたびにスレッドとクラスローダーが解放されずに残る。
+ *
+ * また、チャンクの先頭には元のバイト数と圧縮後のバイト数が
+ * あるため、ストリームとして伸長する場合は、1チャンク分の
+ * ヒープだけで伸長でき、読み飛ばすチャンクは伸長せずに済む。
+ */
+final class ChunkedDeflateCodec {
+
+	/**
+	 * チャンクの元のバイト数
+	 */
+	static final int CHUNK_SIZE = 1024 * 1024;
+
+	static final int MAGIC = 0x57415644;	// "WAVD"
+
+	private ChunkedDeflateCodec() {}
+
+	/**
+	 * データを圧縮する。
+	 */
+	static byte[] encode(byte[] data) {
+
+		int chunks = chunkCount(data.length);
+		List<byte[]> compressed = new ArrayList<byte[]>(chunks);
+		for (int i = 0; i < chunks; i++) {
+			compressed.add(deflate(data, i * CHUNK_SIZE, chunkLength(data.length, i)));
+		}
+		return assemble(data.length, compressed);
+	}
+
+	/**
+	 * 元のバイト数のデータを分割するチャンクの数（空のデータも1チャンク）
+	 */
+	static int chunkCount(int length) {
+		return Math.max(1, (length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+	}
+
+	/**
+	 * index番目のチャンクの元のバイト数
+	 */
+	static int chunkLength(int length, int index) {
+		return Math.min(CHUNK_SIZE, length - index * CHUNK_SIZE);
+	}
+
+	/**
+	 * チャンクごとに圧縮したデータを、圧縮したデータの形式に連結する。
+	 *
+	 * @param length 元のバイト数
+	 * @param compressed deflate()で圧縮したチャンク（チャンクの順）
+	 */
+	static byte[] assemble(int length, List<byte[]> compressed) {
+
+		int size = 4;
+		for (byte[] chunk : compressed) {
+			size += 8 + chunk.length;
+		}
+		byte[] encoded = new byte[size];
+		int position = writeInt(encoded, 0, MAGIC);
+		for (int i = 0; i < compressed.size(); i++) {
+			byte[] chunk = compressed.get(i);
+			position = writeInt(encoded, position, chunkLength(length, i));
+			position = writeInt(encoded, position, chunk.length);
+			System.arraycopy(chunk, 0, encoded, position, chunk.length);
+			position += chunk.length;
+		}
+		return encoded;
+	}
+
+	/**
+	 * 圧縮したデータを伸長する。
+	 */
+	static byte[] decode(byte[] encoded) {
+
+		if (encoded.length < 4 || readInt(encoded, 0) != MAGIC) {
+			throw new IllegalArgumentException("Not a chunked deflate payload");
+		}
+
+		// チャンクの位置を求める
+		List<int[]> chunks = new ArrayList<int[]>();		// { 元の位置, 元のバイト数, 圧縮後の位置, 圧縮後のバイト数 }
+		int originalLength = 0;
+		int position = 4;
+		while (position < encoded.length) {
+			int length = readInt(encoded, position);
+			int compressedLength = readInt(encoded, position + 4);
+			chunks.add(new int[] { originalLength, length, position + 8, compressedLength });
+			originalLength += length;
+			position += 8 + compressedLength;
+		}
+
+		byte[] decoded = new byte[originalLength];
+		for (int[] chunk : chunks) {
+			inflate(encoded, chunk[2], chunk[3], decoded, chunk[0], chunk[1]);
+		}
+		return decoded;
+	}
+
+	/**
+	 * 圧縮したデータのストリームを、チャンクごとに伸長する
+	 * ストリームを返す。
+	 */
+	static InputStream decode(InputStream encoded) throws IOException {
+		return new InflatingInputStream(encoded);
+	}
+
+	/**
+	 * 1つのチャンクを圧縮する。
+	 */
+	static byte[] deflate(byte[] data, int offset, int length) {
+		Deflater deflater = new Deflater();
+		try {
+			deflater.setInput(data, offset, length);
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 64);
+			byte[] buffer = new byte[64 * 1024];
+			while (!deflater.finished()) {
+				int size = deflater.deflate(buffer);
+				out.write(buffer, 0, size);
+			}
+			return out.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static void inflate(byte[] encoded, int offset, int length, byte[] decoded, int position, int size) {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(encoded, offset, length);
+			int inflated = 0;
+			while (inflated < size) {
+				int count = inflater.inflate(decoded, position + inflated, size - inflated);
+				if (count == 0 && (inflater.finished() || inflater.needsInput())) {
+					break;
+				}
+				inflated += count;
+			}
+			if (inflated != size) {
+				throw new IllegalArgumentException("Truncated chunk: " + inflated + " of " + size + " bytes");
+			}
+		} catch (DataFormatException e) {
+			throw new IllegalArgumentException("Broken chunk", e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	private static int writeInt(byte[] bytes, int position, int value) {
+		bytes[position] = (byte) (value >>> 24);
+		bytes[position + 1] = (byte) (value >>> 16);
+		bytes[position + 2] = (byte) (value >>> 8);
+		bytes[position + 3] = (byte) value;
+		return position + 4;
+	}
+
+	private static int readInt(byte[] bytes, int position) {
+		return ((bytes[position] & 0xFF) << 24) | ((bytes[position + 1] & 0xFF) << 16)
+				| ((bytes[position + 2] & 0xFF) << 8) | (bytes[position + 3] & 0xFF);
+	}
+
+	/**
+	 * 圧縮したデータのストリームを1チャンクずつ伸長するストリーム
+	 */
+	private static class InflatingInputStream extends InputStream {
+
+		private final DataInputStream in;
+		private byte[] chunk = new byte[0];
+		private int position;
+
+		InflatingInputStream(InputStream encoded) throws IOException {
+			this.in = new DataInputStream(encoded);
+			if (in.readInt() != MAGIC) {
+				throw new IOException("Not a chunked deflate payload");
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (!fill()) {
+				return -1;
+			}
+			return chunk[position++] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (!fill()) {
+				return -1;
+			}
+			int size = Math.min(len, chunk.length - position);
+			System.arraycopy(chunk, position, b, off, size);
+			position += size;
+			return size;
+		}
+
+		/**
+		 * 読み飛ばすチャンクは伸長せずに、圧縮したデータを読み飛ばす。
+		 */
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = 0;
+			while (skipped < n) {
+				if (position < chunk.length) {
+					int size = (int) Math.min(n - skipped, chunk.length - position);
+					position += size;
+					skipped += size;
+					continue;
+				}
+
+				int length;
+				try {
+					length = in.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+				int compressedLength = in.readInt();
+				if (n - skipped >= length) {
+					skipFully(compressedLength);
+					skipped += length;
+				} else {
+					inflateNext(length, compressedLength);
+				}
+			}
+			return skipped;
+		}
+
+		@Override
+		public int available() {
+			return chunk.length - position;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+
+		private boolean fill() throws IOException {
+			while (position >= chunk.length) {
+				int length;
+				try {
+					length = in.readInt();
+				} catch (EOFException e) {
+					return false;
+				}
+				inflateNext(length, in.readInt());
+			}
+			return true;
+		}
+
+		private void inflateNext(int length, int compressedLength) throws IOException {
+			byte[] compressed = new byte[compressedLength];
+			in.readFully(compressed);
+			chunk = new byte[length];
+			position = 0;
+			try {
+				inflate(compressed, 0, compressedLength, chunk, 0, length);
+			} catch (IllegalArgumentException e) {
+				throw new IOException(e.getMessage());
+			}
+		}
+
+		private void skipFully(int n) throws IOException {
+			int remaining = n;
+			while (remaining > 0) {
+				int skipped = in.skipBytes(remaining);
+				if (skipped <= 0) {
+					if (in.read() == -1) {
+						throw new EOFException();
+					}
+					skipped = 1;
+				}
+				remaining -= skipped;
+			}
+		}
+	}
+}
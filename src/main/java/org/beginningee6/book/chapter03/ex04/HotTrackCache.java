@@ -0,0 +1,571 @@
+package org.beginningee6.book.chapter03.ex04;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.EJB;
+import javax.ejb.Schedule;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.Timeout;
+import javax.ejb.Timer;
+import javax.ejb.TimerConfig;
+import javax.ejb.TimerService;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+
+/**
+ * よく再生されるトラックのwavのデータをローカルのファイルに
+ * 書き出し、メモリマップして返すキャッシュ。
+ *
+ * 一部のトラックに再生が集中する場合でも、TrackAudioStoreでは
+ * 再生のたびにデータベースからwavを読み込む。このクラスでは、
+ * 一度読み込んだwavをSPILL_DIRECTORY_PROPERTYシステムプロパティで
+ * 指定したディレクトリ（デフォルトは一時ディレクトリの下の
+ * track_ex04_hot）のファイルに書き出し、以降はそのファイルを
+ * メモリマップしたMappedByteBufferを返す。ファイルへの書き出しは
+ * CHUNK_SIZEバイトずつ行うため、wav全体をヒープに読み込むことはない。
+ *
+ * キャッシュするファイルの合計バイト数はmaximumBytesを上限とし、
+ * 上限を超えた場合はevictionPolicy（LRUまたはLFU）に従って
+ * 追い出す。上限より大きいwavはキャッシュしない。
+ *
+ * トラックごとの参照回数は定期的に、およびアンデプロイ時に
+ * 統計ファイルに保存する。起動時には古いファイルを削除した後、
+ * 統計ファイルの参照回数が多い順にトラックを読み込み直す。
+ * 読み込みはデプロイを遅らせないようタイマーにより非同期に行う。
+ *
+ * wavが更新・削除された場合は、TrackCacheInvalidationにより
+ * エンティティリスナーとTrackAudioStore、TrackExternalStorageが
+ * トランザクションの完了後にinvalidate()を呼び出して
+ * エントリを削除する。
+ *
+ * wavがTrackBlobStoreに格納されている場合は、そのファイルを
+ * メモリマップしたものを返す（キャッシュはしない）。
+ *
+ * キャッシュの状態は同期ブロックで保護し、ファイルの
+ * 書き出しはロックの外で行う（ConcurrencyManagementType.BEAN）。
+ */
+@Singleton
+@Startup
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+public class HotTrackCache {
+
+	private static final Logger logger = Logger.getLogger(HotTrackCache.class.getName());
+
+	/**
+	 * 書き出し先のディレクトリを指定するシステムプロパティ
+	 */
+	public static final String SPILL_DIRECTORY_PROPERTY = "beginningee6.chapter03.track.hotcache";
+
+	/**
+	 * キャッシュするファイルの合計バイト数の上限のデフォルト値（256メガバイト）
+	 */
+	public static final long DEFAULT_MAXIMUM_BYTES = 256L * 1024 * 1024;
+
+	/**
+	 * 統計ファイルに保存するトラック数の上限
+	 */
+	public static final int MAXIMUM_STATISTICS_ENTRIES = 10000;
+
+	static final String STATISTICS_FILE = "access-statistics.txt";
+
+	private static final String SPILL_SUFFIX = ".wav";
+
+	@EJB
+	private TrackAudioStore audioStore;
+
+	@EJB
+	private TrackExternalStorage externalStorage;
+
+	@Resource
+	private TimerService timerService;
+
+	private File directory;
+
+	private final Object lock = new Object();
+
+	private long maximumBytes = DEFAULT_MAXIMUM_BYTES;
+	private HotTrackEvictionPolicy evictionPolicy = HotTrackEvictionPolicy.LFU;
+
+	// アクセス順に並ぶLinkedHashMap（先頭が最も長い間参照されていないエントリ）
+	private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<Long, Entry>(16, 0.75f, true);
+	private long totalBytes;
+
+	// キャッシュしていないトラックも含めた参照回数
+	private final Map<Long, Long> accessCounts = new HashMap<Long, Long>();
+
+	// 無効化のたびに増加する。読み込みの前後で変化していれば
+	// 読み込んだファイルをキャッシュしない
+	private long invalidationCount;
+
+	// 書き出すファイルの名前の連番
+	private long spillSequence;
+
+	private long hitCount;
+	private long missCount;
+	private long evictionCount;
+
+	@PostConstruct
+	public void initialize() {
+
+		String path = System.getProperty(SPILL_DIRECTORY_PROPERTY);
+		directory = path != null
+				? new File(path)
+				: new File(System.getProperty("java.io.tmpdir"), "track_ex04_hot");
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IllegalStateException("Cannot create hot track directory: " + directory);
+		}
+
+		// 停止中の更新を反映できないため、前回のファイルは使用しない
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.getName().endsWith(SPILL_SUFFIX)) {
+					file.delete();
+				}
+			}
+		}
+
+		timerService.createSingleActionTimer(0, new TimerConfig("warm-up", false));
+		logger.info("Hot track cache: " + directory.getAbsolutePath());
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		saveStatistics();
+		clear();
+	}
+
+	/**
+	 * wavのデータを返す。
+	 *
+	 * @param id Track04エンティティのID
+	 * @return wavのデータ（読み込み専用）。エンティティが存在しない場合、
+	 *         またはwavがnullの場合はnull
+	 */
+	public ByteBuffer get(Long id) throws IOException {
+
+		long invalidationsBefore;
+		synchronized (lock) {
+			Long count = accessCounts.get(id);
+			accessCounts.put(id, count == null ? 1 : count + 1);
+
+			Entry entry = entries.get(id);
+			if (entry != null) {
+				hitCount++;
+				entry.accessCount++;
+				return entry.buffer.asReadOnlyBuffer();
+			}
+			missCount++;
+			invalidationsBefore = invalidationCount;
+		}
+
+		return load(id, invalidationsBefore);
+	}
+
+	/**
+	 * 指定したトラックのエントリを削除する。
+	 */
+	public void invalidate(Long id) {
+		synchronized (lock) {
+			invalidationCount++;
+			Entry entry = entries.remove(id);
+			if (entry != null) {
+				discard(entry);
+			}
+		}
+	}
+
+	/**
+	 * すべてのエントリを削除する。
+	 */
+	public void clear() {
+		synchronized (lock) {
+			invalidationCount++;
+			for (Entry entry : entries.values()) {
+				discard(entry);
+			}
+			entries.clear();
+		}
+	}
+
+	/**
+	 * 統計ファイルのトラックを、参照回数の多い順に
+	 * 合計バイト数の上限まで読み込む。
+	 * 起動時にタイマーから呼び出される。
+	 */
+	@Timeout
+	public void warmUp(Timer timer) {
+
+		Map<Long, Long> statistics = loadStatistics();
+		List<Map.Entry<Long, Long>> ranking = sortByCount(statistics);
+
+		int loaded = 0;
+		for (Map.Entry<Long, Long> ranked : ranking) {
+			synchronized (lock) {
+				if (totalBytes >= maximumBytes) {
+					break;
+				}
+				Long count = accessCounts.get(ranked.getKey());
+				accessCounts.put(ranked.getKey(), (count == null ? 0 : count) + ranked.getValue());
+				if (entries.containsKey(ranked.getKey())) {
+					continue;
+				}
+			}
+
+			try {
+				if (load(ranked.getKey(), currentInvalidationCount()) != null) {
+					loaded++;
+				}
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Failed to warm up Track04: " + ranked.getKey(), e);
+			} catch (RuntimeException e) {
+				logger.log(Level.WARNING, "Failed to warm up Track04: " + ranked.getKey(), e);
+			}
+		}
+
+		logger.info("Warmed up " + loaded + " hot tracks of " + ranking.size());
+	}
+
+	/**
+	 * 参照回数を統計ファイルに保存する。
+	 */
+	@Schedule(hour = "*", minute = "*/5", persistent = false)
+	public void saveStatistics() {
+
+		List<Map.Entry<Long, Long>> ranking;
+		synchronized (lock) {
+			ranking = sortByCount(accessCounts);
+			if (ranking.size() > MAXIMUM_STATISTICS_ENTRIES) {
+				// 参照回数の少ないトラックの統計は保持しない
+				for (Map.Entry<Long, Long> dropped
+						: ranking.subList(MAXIMUM_STATISTICS_ENTRIES, ranking.size())) {
+					accessCounts.remove(dropped.getKey());
+				}
+				ranking = ranking.subList(0, MAXIMUM_STATISTICS_ENTRIES);
+			}
+		}
+
+		File file = new File(directory, STATISTICS_FILE);
+		File temporary = new File(directory, STATISTICS_FILE + ".tmp");
+		try {
+			Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temporary), "UTF-8"));
+			try {
+				for (Map.Entry<Long, Long> entry : ranking) {
+					writer.write(entry.getKey() + " " + entry.getValue() + "\n");
+				}
+			} finally {
+				writer.close();
+			}
+			if (file.exists() && !file.delete()) {
+				throw new IOException("Cannot replace " + file);
+			}
+			if (!temporary.renameTo(file)) {
+				throw new IOException("Cannot rename " + temporary + " to " + file);
+			}
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Failed to save hot track statistics", e);
+		}
+	}
+
+	/**
+	 * 統計ファイルから参照回数を読み込む。
+	 *
+	 * @return トラックのID→参照回数。統計ファイルが無い場合は空
+	 */
+	Map<Long, Long> loadStatistics() {
+
+		Map<Long, Long> statistics = new HashMap<Long, Long>();
+		File file = new File(directory, STATISTICS_FILE);
+		if (!file.isFile()) {
+			return statistics;
+		}
+
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					String[] fields = line.trim().split(" ");
+					if (fields.length == 2) {
+						statistics.put(Long.valueOf(fields[0]), Long.valueOf(fields[1]));
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Failed to load hot track statistics", e);
+		} catch (NumberFormatException e) {
+			logger.log(Level.WARNING, "Broken hot track statistics: " + file, e);
+		}
+		return statistics;
+	}
+
+	/**
+	 * 参照回数をリセットし、統計ファイルを削除する。
+	 */
+	public void resetAccessStatistics() {
+		synchronized (lock) {
+			accessCounts.clear();
+			new File(directory, STATISTICS_FILE).delete();
+		}
+	}
+
+	/**
+	 * ヒット、ミス、追い出しの回数をリセットする。
+	 */
+	public void resetStatistics() {
+		synchronized (lock) {
+			hitCount = 0;
+			missCount = 0;
+			evictionCount = 0;
+		}
+	}
+
+	public long getMaximumBytes() {
+		synchronized (lock) {
+			return maximumBytes;
+		}
+	}
+
+	/**
+	 * キャッシュするファイルの合計バイト数の上限を設定する。
+	 * 上限を超えている場合は追い出しを行う。
+	 */
+	public void setMaximumBytes(long maximumBytes) {
+		if (maximumBytes < 1) {
+			throw new IllegalArgumentException("maximumBytes must be positive: " + maximumBytes);
+		}
+		synchronized (lock) {
+			this.maximumBytes = maximumBytes;
+			evict(0);
+		}
+	}
+
+	public HotTrackEvictionPolicy getEvictionPolicy() {
+		synchronized (lock) {
+			return evictionPolicy;
+		}
+	}
+
+	public void setEvictionPolicy(HotTrackEvictionPolicy evictionPolicy) {
+		if (evictionPolicy == null) {
+			throw new IllegalArgumentException("evictionPolicy must not be null");
+		}
+		synchronized (lock) {
+			this.evictionPolicy = evictionPolicy;
+		}
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	public boolean contains(Long id) {
+		synchronized (lock) {
+			return entries.containsKey(id);
+		}
+	}
+
+	public int getSize() {
+		synchronized (lock) {
+			return entries.size();
+		}
+	}
+
+	public long getTotalBytes() {
+		synchronized (lock) {
+			return totalBytes;
+		}
+	}
+
+	public long getHitCount() {
+		synchronized (lock) {
+			return hitCount;
+		}
+	}
+
+	public long getMissCount() {
+		synchronized (lock) {
+			return missCount;
+		}
+	}
+
+	public long getEvictionCount() {
+		synchronized (lock) {
+			return evictionCount;
+		}
+	}
+
+	private long currentInvalidationCount() {
+		synchronized (lock) {
+			return invalidationCount;
+		}
+	}
+
+	/**
+	 * wavをファイルに書き出してメモリマップし、
+	 * 上限の範囲内であればキャッシュする。
+	 */
+	private ByteBuffer load(Long id, long invalidationsBefore) throws IOException {
+
+		// TrackBlobStoreに格納されている場合は、ファイルに書き出さずにそのファイルを使用する
+		ByteBuffer external = externalStorage.openWav(id);
+		if (external != null) {
+			return external.asReadOnlyBuffer();
+		}
+
+		InputStream in = audioStore.openWav(id);
+		if (in == null) {
+			return null;
+		}
+
+		File file;
+		synchronized (lock) {
+			file = new File(directory, id + "-" + (spillSequence++) + SPILL_SUFFIX);
+		}
+
+		long length = 0;
+		try {
+			OutputStream out = new FileOutputStream(file);
+			try {
+				byte[] buffer = new byte[TrackAudioStore.CHUNK_SIZE];
+				int read;
+				while ((read = in.read(buffer)) != -1) {
+					out.write(buffer, 0, read);
+					length += read;
+				}
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			file.delete();
+			throw e;
+		} finally {
+			in.close();
+		}
+
+		MappedByteBuffer mapped = map(file, length);
+
+		synchronized (lock) {
+			Entry existing = entries.get(id);
+			if (existing != null) {
+				file.delete();		// 同時に読み込まれた
+				existing.accessCount++;
+				return existing.buffer.asReadOnlyBuffer();
+			}
+			if (invalidationCount != invalidationsBefore || length > maximumBytes) {
+				file.delete();		// マップしたバッファは削除後も有効
+				return mapped.asReadOnlyBuffer();
+			}
+
+			evict(length);
+			Long count = accessCounts.get(id);
+			entries.put(id, new Entry(file, mapped, length, count == null ? 1 : count));
+			totalBytes += length;
+		}
+		return mapped.asReadOnlyBuffer();
+	}
+
+	private static MappedByteBuffer map(File file, long length) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * 合計バイト数にrequiredを加えても上限を超えないよう、
+	 * エントリを追い出す。ロックを保持して呼び出すこと。
+	 */
+	private void evict(long required) {
+		while (!entries.isEmpty() && totalBytes + required > maximumBytes) {
+			Long victim = null;
+			if (evictionPolicy == HotTrackEvictionPolicy.LRU) {
+				victim = entries.keySet().iterator().next();
+			} else {
+				long minimum = Long.MAX_VALUE;
+				for (Map.Entry<Long, Entry> candidate : entries.entrySet()) {
+					if (candidate.getValue().accessCount < minimum) {
+						minimum = candidate.getValue().accessCount;
+						victim = candidate.getKey();
+					}
+				}
+			}
+			discard(entries.remove(victim));
+			evictionCount++;
+		}
+	}
+
+	private void discard(Entry entry) {
+		totalBytes -= entry.length;
+		if (!entry.file.delete()) {
+			entry.file.deleteOnExit();
+		}
+	}
+
+	private static List<Map.Entry<Long, Long>> sortByCount(Map<Long, Long> counts) {
+		List<Map.Entry<Long, Long>> sorted = new ArrayList<Map.Entry<Long, Long>>();
+		for (Map.Entry<Long, Long> entry : counts.entrySet()) {
+			sorted.add(new AbstractMap.SimpleImmutableEntry<Long, Long>(entry));
+		}
+		Collections.sort(sorted, new Comparator<Map.Entry<Long, Long>>() {
+
+			public int compare(Map.Entry<Long, Long> o1, Map.Entry<Long, Long> o2) {
+				return o2.getValue().compareTo(o1.getValue());
+			}
+		});
+		return sorted;
+	}
+
+	/**
+	 * キャッシュしたトラックのファイル
+	 */
+	private static class Entry {
+
+		final File file;
+		final MappedByteBuffer buffer;
+		final long length;
+		long accessCount;
+
+		Entry(File file, MappedByteBuffer buffer, long length, long accessCount) {
+			this.file = file;
+			this.buffer = buffer;
+			this.length = length;
+			this.accessCount = accessCount;
+		}
+	}
+}
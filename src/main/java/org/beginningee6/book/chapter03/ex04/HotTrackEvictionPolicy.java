@@ -0,0 +1,18 @@
+package org.beginningee6.book.chapter03.ex04;
+
+/**
+ * HotTrackCacheの追い出し方式。
+ */
+public enum HotTrackEvictionPolicy {
+
+	/**
+	 * 最も長い間参照されていないトラックから追い出す
+	 */
+	LRU,
+
+	/**
+	 * 参照回数が最も少ないトラックから追い出す。
+	 * 参照回数が同じ場合は、最も長い間参照されていないトラックから追い出す
+	 */
+	LFU
+}
@@ -0,0 +1,31 @@
+package org.beginningee6.book.chapter03.ex04;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.naming.NamingException;
+import javax.persistence.PostLoad;
+
+import org.beginningee6.book.chapter03.util.TransactionCompletion;
+
+/**
+ * Track04エンティティの読み込みをLobFetchMonitorに
+ * 通知するエンティティリスナー。
+ *
+ * LobFetchMonitorがデプロイされていない場合は何もしない。
+ */
+public class LobFetchListener {
+
+	private static final Logger logger = Logger.getLogger(LobFetchListener.class.getName());
+
+	@PostLoad
+	public void loaded(Track04 track) {
+		try {
+			LobFetchMonitor monitor =
+					TransactionCompletion.lookup("java:module/LobFetchMonitor", LobFetchMonitor.class);
+			monitor.recordLoad(track);
+		} catch (NamingException e) {
+			logger.log(Level.FINE, "LobFetchMonitor is not available", e);
+		}
+	}
+}
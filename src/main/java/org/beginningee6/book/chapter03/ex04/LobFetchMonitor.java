@@ -0,0 +1,336 @@
+package org.beginningee6.book.chapter03.ex04;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.persistence.Persistence;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+/**
+ * Track04のwav（ラージオブジェクト）の読み込みを計測するモニター。
+ *
+ * wavには遅延フェッチ（FetchType.LAZY）を指定しているが、
+ * JPAプロバイダはこの指定をヒントとして扱ってよく、
+ * バイトコードの拡張を行わない場合は無視されることが多い。
+ * その場合、titleだけを参照する検索でもwav全体が読み込まれる。
+ *
+ * LobFetchListenerはTrack04エンティティの読み込み時（@PostLoad）に
+ * recordLoad()を呼び出す。このとき、PersistenceUtil.isLoaded()で
+ * wavがすでに読み込まれていれば、遅延フェッチが行われなかった
+ * ものとして件数とバイト数を記録し、スコープごとに一度だけ
+ * 警告をログに出力する。TrackAudioStoreでwavを読み込んだ
+ * バイト数はrecordRead()で記録する。
+ *
+ * 読み込みの統計は以下の単位で集計する。
+ *
+ * ・スコープ：beginScope()からendScope()までの間に同じスレッドで
+ *   行われた読み込み。検索の前後で呼び出すことで、名前付きクエリ
+ *   ごとの統計になる。スコープを指定していない読み込みは
+ *   UNSCOPEDとして集計する。
+ * ・トランザクション：現在のトランザクションでの読み込み
+ *   （getCurrentTransactionStatistics()）。トランザクションの
+ *   完了時に、トランザクションごとの最大バイト数を更新する。
+ *
+ * 統計は同期ブロックで保護する（ConcurrencyManagementType.BEAN）。
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+public class LobFetchMonitor {
+
+	private static final Logger logger = Logger.getLogger(LobFetchMonitor.class.getName());
+
+	/**
+	 * スコープを指定していない読み込みを集計するスコープの名前
+	 */
+	public static final String UNSCOPED = "(unscoped)";
+
+	private static final String TRANSACTION_KEY = LobFetchMonitor.class.getName();
+
+	// 現在のスレッドのスコープ（入れ子の場合は最も内側のスコープ）
+	private static final ThreadLocal<Counter> currentScope = new ThreadLocal<Counter>();
+
+	@Resource
+	private TransactionSynchronizationRegistry registry;
+
+	private final Object lock = new Object();
+
+	// スコープの名前ごとの統計
+	private final Map<String, Counter> scopes = new LinkedHashMap<String, Counter>();
+	private final Counter total = new Counter("(total)", null);
+
+	// 遅延フェッチが行われなかったことを警告したスコープ
+	private final Set<String> warnedScopes = new HashSet<String>();
+
+	private long transactionCount;
+	private long maximumTransactionBytes;
+
+	/**
+	 * Track04エンティティが読み込まれたことを記録する。
+	 * LobFetchListenerから呼び出される。
+	 */
+	public void recordLoad(Track04 track) {
+
+		boolean eager = Persistence.getPersistenceUtil().isLoaded(track, "wav");
+		long bytes = 0;
+		if (eager) {
+			Long stored = track.getStoredWavLength();
+			bytes = stored == null ? 0 : stored;
+		}
+		String scope = record(1, eager ? 1 : 0, bytes);
+
+		if (eager && bytes > 0) {
+			boolean first;
+			synchronized (lock) {
+				first = warnedScopes.add(scope);
+			}
+			if (first) {
+				logger.warning("Track04.wav (" + bytes + " bytes) of Track04 " + track.getId()
+						+ " was fetched eagerly in scope " + scope
+						+ "; lazy fetching of basic attributes requires bytecode enhancement");
+			}
+		}
+	}
+
+	/**
+	 * TrackAudioStoreなどでwavのデータを読み込んだことを記録する。
+	 * どのトラックを読み込んだかはFINEレベルでログに出力する。
+	 *
+	 * @param id 読み込んだTrack04エンティティのID
+	 * @param bytes 読み込んだバイト数
+	 */
+	public void recordRead(Long id, long bytes) {
+		if (bytes <= 0) {
+			return;
+		}
+		String scope = record(0, 0, bytes);
+		if (logger.isLoggable(Level.FINE)) {
+			logger.fine("Read " + bytes + " bytes of Track04.wav of Track04 " + id + " in scope " + scope);
+		}
+	}
+
+	/**
+	 * 現在のスレッドで、名前を指定したスコープを開始する。
+	 * スコープは入れ子にでき、内側のスコープでの読み込みは
+	 * 外側のスコープでも集計される。
+	 *
+	 * スレッドはプールされ再利用されるため、endScope()は
+	 * 必ずfinallyブロックで呼び出すこと。
+	 */
+	public void beginScope(String name) {
+		if (name == null) {
+			throw new IllegalArgumentException("name must not be null");
+		}
+		currentScope.set(new Counter(name, currentScope.get()));
+	}
+
+	/**
+	 * 現在のスレッドの最も内側のスコープを終了し、
+	 * そのスコープでの読み込みの統計を返す。
+	 *
+	 * @throws IllegalStateException スコープが開始されていない場合
+	 */
+	public LobFetchStatistics endScope() {
+		Counter scope = currentScope.get();
+		if (scope == null) {
+			throw new IllegalStateException("No scope has been begun");
+		}
+		if (scope.parent == null) {
+			currentScope.remove();
+		} else {
+			currentScope.set(scope.parent);
+		}
+		return scope.toStatistics();
+	}
+
+	/**
+	 * スコープの名前ごとに累積した統計を返す。
+	 *
+	 * @return 統計。そのスコープで読み込みが無い場合は、件数が0の統計
+	 */
+	public LobFetchStatistics getStatistics(String scope) {
+		synchronized (lock) {
+			Counter counter = scopes.get(scope);
+			return counter == null ? new LobFetchStatistics(scope, 0, 0, 0) : counter.toStatistics();
+		}
+	}
+
+	/**
+	 * すべての読み込みの統計を返す。
+	 */
+	public LobFetchStatistics getTotalStatistics() {
+		synchronized (lock) {
+			return total.toStatistics();
+		}
+	}
+
+	/**
+	 * 現在のトランザクションでの読み込みの統計を返す。
+	 * トランザクションが無い場合はnull
+	 */
+	public LobFetchStatistics getCurrentTransactionStatistics() {
+		if (registry.getTransactionStatus() != Status.STATUS_ACTIVE) {
+			return null;
+		}
+		Counter counter = transactionCounter(false);
+		if (counter == null) {
+			return new LobFetchStatistics("(transaction)", 0, 0, 0);
+		}
+		synchronized (counter) {
+			return counter.toStatistics();
+		}
+	}
+
+	/**
+	 * 完了したトランザクションのうち、wavを読み込んだ
+	 * トランザクションの件数
+	 */
+	public long getTransactionCount() {
+		synchronized (lock) {
+			return transactionCount;
+		}
+	}
+
+	/**
+	 * 完了したトランザクションで読み込んだwavのバイト数の最大値
+	 */
+	public long getMaximumTransactionBytes() {
+		synchronized (lock) {
+			return maximumTransactionBytes;
+		}
+	}
+
+	/**
+	 * 累積した統計をクリアする。
+	 */
+	public void reset() {
+		synchronized (lock) {
+			scopes.clear();
+			total.clear();
+			warnedScopes.clear();
+			transactionCount = 0;
+			maximumTransactionBytes = 0;
+		}
+	}
+
+	/**
+	 * 現在のスレッドのスコープ（入れ子のすべて）、スコープの名前ごとの
+	 * 統計、現在のトランザクションに記録する。
+	 *
+	 * @return 最も内側のスコープの名前
+	 */
+	private String record(long loads, long eagerLoads, long bytes) {
+
+		Counter scope = currentScope.get();
+		for (Counter counter = scope; counter != null; counter = counter.parent) {
+			counter.add(loads, eagerLoads, bytes);		// 現在のスレッドだけが参照する
+		}
+
+		Counter transaction = transactionCounter(true);
+		if (transaction != null) {
+			synchronized (transaction) {
+				transaction.add(loads, eagerLoads, bytes);
+			}
+		}
+
+		String name = scope == null ? UNSCOPED : scope.name;
+		synchronized (lock) {
+			Counter counter = scopes.get(name);
+			if (counter == null) {
+				counter = new Counter(name, null);
+				scopes.put(name, counter);
+			}
+			counter.add(loads, eagerLoads, bytes);
+			total.add(loads, eagerLoads, bytes);
+		}
+		return name;
+	}
+
+	/**
+	 * 現在のトランザクションの統計を返す。トランザクションが無い場合はnull
+	 */
+	private Counter transactionCounter(boolean create) {
+
+		if (registry.getTransactionStatus() != Status.STATUS_ACTIVE) {
+			return null;
+		}
+
+		Counter counter = (Counter) registry.getResource(TRANSACTION_KEY);
+		if (counter == null && create) {
+			final Counter created = new Counter("(transaction)", null);
+			registry.putResource(TRANSACTION_KEY, created);
+			registry.registerInterposedSynchronization(new Synchronization() {
+
+				public void beforeCompletion() {
+				}
+
+				public void afterCompletion(int status) {
+					completed(created);
+				}
+			});
+			counter = created;
+		}
+		return counter;
+	}
+
+	private void completed(Counter transaction) {
+
+		LobFetchStatistics statistics;
+		synchronized (transaction) {
+			statistics = transaction.toStatistics();
+		}
+		synchronized (lock) {
+			transactionCount++;
+			maximumTransactionBytes = Math.max(maximumTransactionBytes, statistics.getBytes());
+		}
+		if (logger.isLoggable(Level.FINE)) {
+			logger.fine("Transaction read " + statistics.getBytes() + " bytes of Track04.wav ("
+					+ statistics.getLoads() + " loads, " + statistics.getEagerLoads() + " eager)");
+		}
+	}
+
+	/**
+	 * 読み込みの件数とバイト数
+	 */
+	private static class Counter {
+
+		final String name;
+		final Counter parent;
+		long loads;
+		long eagerLoads;
+		long bytes;
+
+		Counter(String name, Counter parent) {
+			this.name = name;
+			this.parent = parent;
+		}
+
+		void add(long loads, long eagerLoads, long bytes) {
+			this.loads += loads;
+			this.eagerLoads += eagerLoads;
+			this.bytes += bytes;
+		}
+
+		void clear() {
+			loads = 0;
+			eagerLoads = 0;
+			bytes = 0;
+		}
+
+		LobFetchStatistics toStatistics() {
+			return new LobFetchStatistics(name, loads, eagerLoads, bytes);
+		}
+	}
+}
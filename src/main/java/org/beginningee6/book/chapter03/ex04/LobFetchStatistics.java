@@ -0,0 +1,60 @@
+package org.beginningee6.book.chapter03.ex04;
+
+import java.io.Serializable;
+
+/**
+ * LobFetchMonitorが集計した、Track04のwav（ラージオブジェクト）の
+ * 読み込みの統計。
+ */
+public class LobFetchStatistics implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String scope;
+	private final long loads;
+	private final long eagerLoads;
+	private final long bytes;
+
+	public LobFetchStatistics(String scope, long loads, long eagerLoads, long bytes) {
+		this.scope = scope;
+		this.loads = loads;
+		this.eagerLoads = eagerLoads;
+		this.bytes = bytes;
+	}
+
+	/**
+	 * 集計の単位（スコープの名前）
+	 */
+	public String getScope() {
+		return scope;
+	}
+
+	/**
+	 * 読み込まれたTrack04エンティティの件数
+	 */
+	public long getLoads() {
+		return loads;
+	}
+
+	/**
+	 * エンティティの読み込み時に、wavも読み込まれていた
+	 * （遅延フェッチが行われなかった）件数
+	 */
+	public long getEagerLoads() {
+		return eagerLoads;
+	}
+
+	/**
+	 * 読み込まれたwavのバイト数（データベースに格納されている、
+	 * 圧縮後のバイト数）
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	@Override
+	public String toString() {
+		return "LobFetchStatistics [scope=" + scope + ", loads=" + loads
+				+ ", eagerLoads=" + eagerLoads + ", bytes=" + bytes + "]";
+	}
+}
@@ -1,17 +1,31 @@
 package org.beginningee6.book.chapter03.ex04;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
-import java.util.Arrays;
 
+import javax.naming.NamingException;
 import javax.persistence.Basic;
+import javax.persistence.Column;
 import javax.persistence.Entity;
+import javax.persistence.EntityListeners;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
 import javax.persistence.FetchType;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.Lob;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+import javax.persistence.PersistenceException;
+import javax.persistence.PostLoad;
+import javax.persistence.PostPersist;
+import javax.persistence.PostUpdate;
 import javax.persistence.Table;
 
+import org.beginningee6.book.chapter03.util.TransactionCompletion;
+
 /**
  * ＠Basicアノテーションによるフェッチタイプの指定。
  * 
@@ -35,9 +49,84 @@ import javax.persistence.Table;
  * ラージオブジェクトを利用可能なデータ型でフィールド
  * が定義される。
  * 
+ * （注）遅延フェッチであっても、getWav()を実行すると
+ * wavのデータ全体がbyte[]としてヒープに読み込まれる。
+ * wavのデータをストリームとして読み書きする場合は
+ * TrackAudioStoreを使用する。
+ * 
+ * wavの一部だけを読み込む場合（再生中のシークなど）は、
+ * TrackSegmentCacheを使用する。TrackCacheInvalidationにより、
+ * エンティティの更新・削除時にはキャッシュが無効化される。
+ * 
+ * よく再生されるトラックのwav全体は、HotTrackCacheにより
+ * ローカルのファイルからメモリマップして読み込むことができる。
+ * TrackCacheInvalidationにより、エンティティの更新・削除時には
+ * キャッシュが無効化される。
+ * 
+ * 同じwavのデータを持つトラックが多い場合は、wavを
+ * TrackExternalStorageによりファイルシステムの
+ * TrackBlobStoreに格納できる。この場合、wavはnullとなり、
+ * wavHash（データのSHA-256）とwavLengthだけを保持する。
+ * 同じデータは1つのファイルとしてのみ格納される。
+ * getWav()、TrackAudioStore、TrackSegmentCacheはいずれも
+ * TrackBlobStoreから読み込むため、呼び出し側が格納先を
+ * 区別する必要は無い。
+ * 
+ * TrackAudioStore.writeWav(Long, byte[], WavCodec)で
+ * WavCodec.DEFLATEを指定すると、wavは圧縮して格納される。圧縮方式はwavCodec、元のバイト数は
+ * wavOriginalLengthに格納され、getWav()を最初に実行した時に
+ * 元のデータに伸長される。TrackAudioStoreで読み込む場合も
+ * 伸長したデータが返される。
+ * 
+ * 一覧表示用の波形のプレビュー（WavePreview）は、wavとは別の
+ * wavePreview列に格納される。wavが書き込まれると、コミット後に
+ * WavePreviewGeneratorが非同期に作成する。wavePreview列と、
+ * wavの更新回数のwavRevision列は名前付きクエリでのみ更新し、
+ * エンティティのマージでは書き込まれない。プレビューは
+ * 作成元のwavRevisionが変わっていない場合にのみ格納される。
+ * setWav()の実行はwavVersion列に記録するため、切り離された
+ * エンティティでsetWav()を実行してからマージした場合も、
+ * WavePreviewListenerはwavの変更を検出できる。名前付きクエリ
+ * findTrackListingsは、title、duration、wavePreviewだけを
+ * TrackListingとして検索するため、wavは読み込まれない。
+ * 
+ * 大きなwavをアップロードする場合は、TrackUploadServiceにより
+ * メタデータを先にコミットし、wavは非同期に書き込むことができる。
+ * 
+ * 遅延フェッチの指定が実際に守られているかどうかは、
+ * LobFetchListenerとLobFetchMonitorで確認できる。
+ * バイトコードの拡張を行わない場合、JPAプロバイダは
+ * この指定を無視してwavも読み込むことがある。
+ * 
  */
 @Entity
 @Table(name = "track_ex04")
+@EntityListeners({TrackCacheInvalidation.class, WavePreviewListener.class, LobFetchListener.class})
+@NamedQueries({
+	@NamedQuery(name = "findTrackIdsToExternalize",
+			query = "SELECT t.id FROM Track04 t WHERE t.wavHash IS NULL AND t.wav IS NOT NULL ORDER BY t.id"),
+	@NamedQuery(name = "findWavHash",
+			query = "SELECT t.wavHash FROM Track04 t WHERE t.id = :id"),
+	@NamedQuery(name = "findReferencedWavHashes",
+			query = "SELECT DISTINCT t.wavHash FROM Track04 t WHERE t.wavHash IS NOT NULL"),
+	@NamedQuery(name = "countWavHashReferences",
+			query = "SELECT COUNT(t) FROM Track04 t WHERE t.wavHash = :wavHash"),
+	@NamedQuery(name = "findTrackListings",
+			query = "SELECT NEW org.beginningee6.book.chapter03.ex04.TrackListing(t.id, t.title, t.duration, t.wavePreview)"
+				+ " FROM Track04 t ORDER BY t.title, t.id"),
+	@NamedQuery(name = "findWavRevision",
+			query = "SELECT t.wavRevision FROM Track04 t WHERE t.id = :id"),
+	@NamedQuery(name = "updateWavePreview",
+			query = "UPDATE Track04 t SET t.wavePreview = :wavePreview"
+				+ " WHERE t.id = :id AND COALESCE(t.wavRevision, 0) = :wavRevision"),
+	@NamedQuery(name = "clearWavePreview",
+			query = "UPDATE Track04 t SET t.wavePreview = NULL, t.wavRevision = COALESCE(t.wavRevision, 0) + 1"
+				+ " WHERE t.id = :id"),
+	@NamedQuery(name = "externalizeTrackWav",
+			query = "UPDATE Track04 t SET t.wav = NULL, t.wavCodec = NULL, t.wavOriginalLength = NULL,"
+				+ " t.wavHash = :wavHash, t.wavLength = :wavLength"
+				+ " WHERE t.id = :id")
+})
 public class Track04 implements Serializable {
 	
 	private static final long serialVersionUID = 1L;
@@ -60,6 +149,28 @@ public class Track04 implements Serializable {
 
     private String description;
     
+    @Column(length = 64)
+    private String wavHash;		// TrackBlobStoreに格納した場合のSHA-256（16進数）
+    private Long wavLength;		// TrackBlobStoreに格納した場合のバイト数
+    
+    @Enumerated(EnumType.STRING)
+    @Column(length = 16)
+    private WavCodec wavCodec;		// 圧縮して格納した場合の圧縮方式（圧縮しない場合はnull）
+    private Long wavOriginalLength;	// 圧縮して格納した場合の元のバイト数
+    
+    @Column(length = WavePreview.SIZE, insertable = false, updatable = false)
+    private byte[] wavePreview;		// 波形のプレビュー（作成前はnull）
+    
+    @Column(insertable = false, updatable = false)
+    private Long wavRevision;		// wavの更新回数（プレビューの作成元の確認に使用する。未更新はnull）
+    
+    private Long wavVersion;		// setWav()の実行回数（マージでもwavの変更がわかるよう永続化する。未実行はnull）
+    
+    private transient Long loadedWavVersion;	// 読み込み・書き込み時点のwavVersion（WavePreviewListenerが参照する）
+    
+    private transient byte[] decodedWav;	// 伸長した、またはTrackBlobStoreから読み込んだwavのデータ
+    										// （永続化・シリアライズしない）
+    
     public Track04() {}
     
     public Track04(String title, Float duration, String description) {
@@ -84,12 +195,130 @@ public class Track04 implements Serializable {
 		this.duration = duration;
 	}
 
+	/**
+	 * wavのデータを返す。圧縮して格納されている場合は、
+	 * 最初に実行した時に伸長する。TrackBlobStoreに
+	 * 格納されている場合は、最初に実行した時に
+	 * TrackAudioStoreから読み込む。
+	 */
 	public byte[] getWav() {
-		return wav;
+		if (wav == null) {
+			if (wavHash != null && decodedWav == null) {
+				decodedWav = readExternalWav();
+			}
+			return decodedWav;
+		}
+		if (wavCodec == null) {
+			return wav;
+		}
+		if (decodedWav == null) {
+			decodedWav = wavCodec.decode(wav);
+		}
+		return decodedWav;
+	}
+
+	/**
+	 * TrackBlobStoreに格納されているwavを、TrackAudioStoreから読み込む。
+	 * エンティティにはインジェクションが行われないため、JNDIで取得する。
+	 *
+	 * @return wavのデータ。読み込む前に行が削除された場合はnull
+	 */
+	private byte[] readExternalWav() {
+		try {
+			TrackAudioStore store =
+					TransactionCompletion.lookup("java:module/TrackAudioStore", TrackAudioStore.class);
+			ByteArrayOutputStream out = new ByteArrayOutputStream(
+					wavLength == null ? TrackAudioStore.CHUNK_SIZE : (int) wavLength.longValue());
+			return store.copyWav(id, out) < 0 ? null : out.toByteArray();
+		} catch (NamingException e) {
+			throw new IllegalStateException("TrackAudioStore is not available to read wav of Track04: " + id, e);
+		} catch (IOException e) {
+			throw new PersistenceException("Failed to read wav of Track04: " + id, e);
+		}
 	}
 
+	/**
+	 * wavのデータを圧縮せずに設定する。圧縮して格納されていた
+	 * 場合や、TrackBlobStoreに格納されていた場合は、圧縮せずに
+	 * データベースに格納する方式に戻る。圧縮して格納する場合は
+	 * TrackAudioStore.writeWav(Long, byte[], WavCodec)を使用する。
+	 */
 	public void setWav(byte[] wav) {
 		this.wav = wav;
+		this.wavCodec = null;
+		this.wavOriginalLength = null;
+		this.decodedWav = null;
+		this.wavHash = null;
+		this.wavLength = null;
+		this.wavePreview = null;		// コミット後にWavePreviewGeneratorが作成し直す
+		this.wavVersion = wavVersion == null ? 1L : wavVersion + 1;
+	}
+
+	/**
+	 * データベースから読み込んだ時点、または前回書き込んだ時点から
+	 * wavVersionが変わっているかどうか（setWav()を実行したエンティティを
+	 * マージした場合を含む）。WavePreviewListenerから呼び出される。
+	 */
+	boolean isWavChanged() {
+		return wavVersion == null ? loadedWavVersion != null : !wavVersion.equals(loadedWavVersion);
+	}
+
+	/**
+	 * 読み込み・書き込みの後に、その時点のwavVersionを記録する。
+	 * エンティティリスナーの後に呼び出されるため、WavePreviewListenerは
+	 * 書き込み前の値と比較できる。
+	 */
+	@PostLoad
+	@PostPersist
+	@PostUpdate
+	void recordWavVersion() {
+		loadedWavVersion = wavVersion;
+	}
+
+	/**
+	 * wavの圧縮方式
+	 */
+	public WavCodec getWavCodec() {
+		return wavCodec == null ? WavCodec.NONE : wavCodec;
+	}
+
+	/**
+	 * 圧縮して格納した場合の元のバイト数。
+	 * 圧縮していない場合はnull
+	 */
+	public Long getWavOriginalLength() {
+		return wavOriginalLength;
+	}
+
+	/**
+	 * wav列に格納されているバイト数（圧縮している場合は圧縮後の
+	 * バイト数）。wavがnullの場合はnull
+	 */
+	public Long getStoredWavLength() {
+		return wav == null ? null : Long.valueOf(wav.length);
+	}
+
+	/**
+	 * 波形のプレビュー（WavePreview）。
+	 * まだ作成されていない場合はnull
+	 */
+	public byte[] getWavePreview() {
+		return wavePreview;
+	}
+
+	public String getWavHash() {
+		return wavHash;
+	}
+
+	public Long getWavLength() {
+		return wavLength;
+	}
+
+	/**
+	 * wavがTrackBlobStoreに格納されているかどうか
+	 */
+	public boolean isStoredExternally() {
+		return wavHash != null;
 	}
 
 	public String getDescription() {
@@ -106,8 +335,8 @@ public class Track04 implements Serializable {
 
 	@Override
 	public String toString() {
+		// wavを参照すると遅延フェッチが行われるため出力しない
 		return "Track04 [id=" + id + ", title=" + title + ", duration="
-				+ duration + ", wav=" + Arrays.toString(wav) + ", description="
-				+ description + "]";
+				+ duration + ", description=" + description + "]";
 	}
 }
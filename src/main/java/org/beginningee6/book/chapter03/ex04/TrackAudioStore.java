@@ -0,0 +1,588 @@
+package org.beginningee6.book.chapter03.ex04;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.sql.Blob;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Resource;
+import javax.ejb.EJB;
+import javax.ejb.Stateless;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.persistence.EntityNotFoundException;
+import javax.persistence.PersistenceException;
+import javax.sql.DataSource;
+
+/**
+ * Track04エンティティのwavフィールドを、byte[]として
+ * ヒープに読み込まずにストリームとして読み書きするストア。
+ *
+ * getWav()ではwavのデータ全体がbyte[]としてヒープに
+ * 読み込まれるため、同時に再生するトラックの数だけ
+ * 数メガバイトのヒープが必要になる。このクラスでは
+ * JDBCでtrack_ex04のwav列をBlobとして取得し、
+ * CHUNK_SIZEバイトずつ読み書きするため、トラックごとの
+ * ヒープ使用量はファイルのサイズではなくCHUNK_SIZEで決まる。
+ *
+ * （注）JPA 2.0にはラージオブジェクトをストリームとして扱う
+ * APIが無いため、JDBCを直接使用している。
+ *
+ * openWav()が返すストリームは、クローズされるまで
+ * データベース接続を保持する。BlobはResultSetが
+ * クローズされるまでの間だけ有効であるため、
+ * メソッドの終了時にトランザクションが完了しないよう
+ * トランザクションの外（NOT_SUPPORTED）で検索する。
+ * 呼び出し側は必ずストリームをクローズすること。
+ *
+ * readWav()は、wavのデータのうち指定した範囲だけを
+ * データベースから読み込む。
+ *
+ * TrackExternalStorageによりwavがTrackBlobStoreに格納されている
+ * 場合（wav列がnullでwavHashがある場合）、openWav()、copyWav()、
+ * readWav()はTrackBlobStoreのファイルをメモリマップして読み込む。
+ * 呼び出し側がwavの格納先を区別する必要は無い。
+ *
+ * 読み込んだバイト数はLobFetchMonitorに記録する。
+ *
+ * wavが圧縮して格納されている場合（Track04.getWavCodec()が
+ * WavCodec.NONE以外の場合）、openWav()とreadWav()は
+ * 伸長したデータを返す。圧縮したwavのreadWav()では、
+ * 指定した範囲を含むチャンクまでの圧縮データを読み込み、
+ * 範囲より前のチャンクは伸長せずに読み飛ばす。
+ *
+ * writeWav(Long, InputStream, long)はwavを圧縮せずに格納する。
+ * writeWav(Long, byte[], WavCodec)は、指定した圧縮方式で圧縮して
+ * 格納する。WavCodec.DEFLATEの場合、チャンクはWavChunkDeflaterの
+ * 非同期メソッドで並列に圧縮するため、エンティティのsetWav()や
+ * 呼び出し側のスレッドでは圧縮しない。
+ * writeWav()でwavを更新した場合、すでに永続化コンテキストに
+ * 読み込まれているTrack04エンティティには反映されない。
+ * TrackSegmentCacheとHotTrackCacheのエントリは
+ * トランザクションの完了後に削除され、波形のプレビューは
+ * コミット後に作成し直される。
+ */
+@Stateless
+public class TrackAudioStore {
+
+	private static final Logger logger = Logger.getLogger(TrackAudioStore.class.getName());
+
+	/**
+	 * 1回に読み書きするバイト数
+	 */
+	public static final int CHUNK_SIZE = 64 * 1024;
+
+	// jbossas-ds.xmlのデータソース（java:/が補われてバインドされる）
+	@Resource(lookup = "java:/jdbc/BeginningJavaEE6Chapter03")
+	private DataSource dataSource;
+
+	@EJB
+	private LobFetchMonitor monitor;
+
+	// TrackExternalStorageはこのクラスを参照するため、TrackBlobStoreを直接参照する
+	@EJB
+	private TrackBlobStore blobStore;
+
+	@EJB
+	private WavChunkDeflater deflater;
+
+	/**
+	 * wavのデータを読み込むストリームを返す。
+	 *
+	 * @param id Track04エンティティのID
+	 * @return wavのデータのストリーム。エンティティが存在しない場合、
+	 *         またはwavがnullでTrackBlobStoreにも格納されていない場合はnull
+	 */
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public InputStream openWav(Long id) {
+
+		Connection connection = null;
+		PreparedStatement statement = null;
+		ResultSet resultSet = null;
+		try {
+			connection = dataSource.getConnection();
+			statement = connection.prepareStatement("SELECT wav, wavCodec, wavHash FROM track_ex04 WHERE id = ?");
+			statement.setLong(1, id);
+			resultSet = statement.executeQuery();
+
+			if (!resultSet.next()) {
+				close(resultSet, statement, connection);
+				return null;
+			}
+			Blob wav = resultSet.getBlob(1);
+			if (wav == null) {
+				String hash = resultSet.getString(3);
+				close(resultSet, statement, connection);
+				return hash == null ? null : new ExternalWavInputStream(mapExternal(id, hash), monitor, id);
+			}
+			WavCodec codec = WavCodec.of(resultSet.getString(2));
+
+			// 以降の接続のクローズはストリームのclose()で行う
+			InputStream in = new WavInputStream(wav.getBinaryStream(), resultSet, statement, connection, monitor, id);
+			try {
+				return codec.decode(in);
+			} catch (IOException e) {
+				in.close();
+				throw new PersistenceException("Failed to decode wav of Track04: " + id, e);
+			}
+
+		} catch (SQLException e) {
+			close(resultSet, statement, connection);
+			throw new PersistenceException("Failed to open wav of Track04: " + id, e);
+		} catch (IOException e) {
+			close(resultSet, statement, connection);
+			throw new PersistenceException("Failed to open wav of Track04: " + id, e);
+		}
+	}
+
+	/**
+	 * wavのデータを読み込むチャネルを返す。
+	 *
+	 * @param id Track04エンティティのID
+	 * @return wavのデータのチャネル。エンティティが存在しない場合、
+	 *         またはwavがnullでTrackBlobStoreにも格納されていない場合はnull
+	 */
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public ReadableByteChannel openWavChannel(Long id) {
+		InputStream in = openWav(id);
+		return in == null ? null : Channels.newChannel(in);
+	}
+
+	/**
+	 * wavのデータをCHUNK_SIZEバイトずつ出力先にコピーする。
+	 *
+	 * @param id Track04エンティティのID
+	 * @param out 出力先。このメソッドではクローズしない
+	 * @return コピーしたバイト数。エンティティが存在しない場合、
+	 *         またはwavがnullでTrackBlobStoreにも格納されていない場合は-1
+	 */
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public long copyWav(Long id, OutputStream out) throws IOException {
+
+		InputStream in = openWav(id);
+		if (in == null) {
+			return -1;
+		}
+
+		try {
+			byte[] buffer = new byte[CHUNK_SIZE];
+			long copied = 0;
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+				copied += read;
+			}
+			return copied;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * wavのデータのうち、指定した範囲だけを読み込む。
+	 *
+	 * Blob.getBytes()により、指定した範囲のデータだけを
+	 * データベースから取得する。TrackBlobStoreに格納されている
+	 * 場合は、メモリマップしたファイルから指定した範囲を取得する。
+	 *
+	 * @param id Track04エンティティのID
+	 * @param offset 読み込みを開始する位置（0から始まる）
+	 * @param length 読み込むバイト数
+	 * @return 読み込んだデータ。wavの終端を超える部分は含まれない。
+	 *         エンティティが存在しない場合、またはwavがnullで
+	 *         TrackBlobStoreにも格納されていない場合はnull
+	 */
+	public byte[] readWav(Long id, long offset, int length) {
+
+		if (offset < 0) {
+			throw new IllegalArgumentException("offset must not be negative: " + offset);
+		}
+		if (length < 0) {
+			throw new IllegalArgumentException("length must not be negative: " + length);
+		}
+
+		Connection connection = null;
+		PreparedStatement statement = null;
+		ResultSet resultSet = null;
+		try {
+			connection = dataSource.getConnection();
+			statement = connection.prepareStatement("SELECT wav, wavCodec, wavHash FROM track_ex04 WHERE id = ?");
+			statement.setLong(1, id);
+			resultSet = statement.executeQuery();
+
+			if (!resultSet.next()) {
+				return null;
+			}
+			Blob wav = resultSet.getBlob(1);
+			if (wav == null) {
+				String hash = resultSet.getString(3);
+				return hash == null ? null : readExternal(id, hash, offset, length);
+			}
+			WavCodec codec = WavCodec.of(resultSet.getString(2));
+			if (codec != WavCodec.NONE) {
+				InputStream in = new BufferedInputStream(wav.getBinaryStream(), CHUNK_SIZE);
+				byte[] decoded = readDecoded(codec.decode(in), offset, length);
+				monitor.recordRead(id, decoded.length);
+				return decoded;
+			}
+
+			long available = Math.max(0, wav.length() - offset);
+			int size = (int) Math.min(length, available);
+			if (size == 0) {
+				return new byte[0];
+			}
+			byte[] bytes = wav.getBytes(offset + 1, size);		// Blobの位置は1から始まる
+			monitor.recordRead(id, bytes.length);
+			return bytes;
+
+		} catch (SQLException e) {
+			throw new PersistenceException("Failed to read wav of Track04: " + id, e);
+		} catch (IOException e) {
+			throw new PersistenceException("Failed to read wav of Track04: " + id, e);
+		} finally {
+			close(resultSet, statement, connection);
+		}
+	}
+
+	/**
+	 * TrackBlobStoreに格納されているwavのうち、指定した範囲を読み込む。
+	 */
+	private byte[] readExternal(Long id, String hash, long offset, int length) throws IOException {
+
+		ByteBuffer buffer = mapExternal(id, hash);
+		long available = Math.max(0, buffer.capacity() - offset);
+		int size = (int) Math.min(length, available);
+		if (size == 0) {
+			return new byte[0];
+		}
+		byte[] bytes = new byte[size];
+		buffer.position((int) offset);
+		buffer.get(bytes);
+		monitor.recordRead(id, bytes.length);
+		return bytes;
+	}
+
+	/**
+	 * TrackBlobStoreに格納されているwavのファイルをメモリマップする。
+	 *
+	 * @throws FileNotFoundException 参照しているファイルが存在しない場合
+	 */
+	private MappedByteBuffer mapExternal(Long id, String hash) throws IOException {
+		MappedByteBuffer buffer = blobStore.map(hash);
+		if (buffer == null) {
+			throw new FileNotFoundException("Blob of Track04 " + id + " is missing: " + hash);
+		}
+		return buffer;
+	}
+
+	/**
+	 * 伸長しながら読み込むストリームから、指定した範囲を読み込む。
+	 */
+	private static byte[] readDecoded(InputStream in, long offset, int length) throws IOException {
+		try {
+			long skipped = 0;
+			while (skipped < offset) {
+				long count = in.skip(offset - skipped);
+				if (count <= 0) {
+					return new byte[0];		// wavの終端を超えている
+				}
+				skipped += count;
+			}
+
+			byte[] buffer = new byte[length];
+			int size = 0;
+			while (size < length) {
+				int read = in.read(buffer, size, length - size);
+				if (read == -1) {
+					break;
+				}
+				size += read;
+			}
+			if (size == length) {
+				return buffer;
+			}
+			byte[] result = new byte[size];
+			System.arraycopy(buffer, 0, result, 0, size);
+			return result;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * ストリームから読み込んだデータでwavを更新する。
+	 * データは圧縮せずに格納し、TrackBlobStoreに格納されていた
+	 * 場合は、データベースに格納する方式に戻る。
+	 *
+	 * @param id Track04エンティティのID
+	 * @param in wavのデータ。このメソッドではクローズしない
+	 * @param length データのバイト数
+	 * @throws EntityNotFoundException エンティティが存在しない場合
+	 */
+	public void writeWav(Long id, InputStream in, long length) {
+
+		if (length < 0) {
+			throw new IllegalArgumentException("length must not be negative: " + length);
+		}
+		update(id, new BufferedInputStream(in, CHUNK_SIZE), length, WavCodec.NONE, null);
+	}
+
+	/**
+	 * wavのデータを、指定した圧縮方式で圧縮して格納する。
+	 * TrackBlobStoreに格納されていた場合は、データベースに
+	 * 格納する方式に戻る。
+	 *
+	 * @param id Track04エンティティのID
+	 * @param wav wavのデータ。圧縮が完了するまで変更しないこと
+	 * @param codec 圧縮方式。nullは圧縮しないことを表す
+	 * @throws EntityNotFoundException エンティティが存在しない場合
+	 */
+	public void writeWav(Long id, byte[] wav, WavCodec codec) {
+
+		if (wav == null) {
+			throw new IllegalArgumentException("wav must not be null");
+		}
+		WavCodec storedCodec = codec == null ? WavCodec.NONE : codec;
+		byte[] encoded = encode(wav, storedCodec);
+		update(id, new ByteArrayInputStream(encoded), encoded.length, storedCodec,
+				storedCodec == WavCodec.NONE ? null : Long.valueOf(wav.length));
+	}
+
+	/**
+	 * wavを圧縮する。WavCodec.DEFLATEの場合は、チャンクごとに
+	 * WavChunkDeflaterで並列に圧縮してから連結する。
+	 */
+	private byte[] encode(byte[] wav, WavCodec codec) {
+
+		if (codec != WavCodec.DEFLATE) {
+			return codec.encode(wav);
+		}
+
+		int chunks = ChunkedDeflateCodec.chunkCount(wav.length);
+		List<Future<byte[]>> results = new ArrayList<Future<byte[]>>(chunks);
+		boolean completed = false;
+		try {
+			for (int i = 0; i < chunks; i++) {
+				results.add(deflater.deflate(wav, i * ChunkedDeflateCodec.CHUNK_SIZE,
+						ChunkedDeflateCodec.chunkLength(wav.length, i)));
+			}
+			List<byte[]> compressed = new ArrayList<byte[]>(chunks);
+			for (Future<byte[]> result : results) {
+				compressed.add(result.get());
+			}
+			completed = true;
+			return ChunkedDeflateCodec.assemble(wav.length, compressed);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new PersistenceException("Interrupted while compressing wav", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new PersistenceException("Failed to compress wav", e.getCause());
+		} finally {
+			if (!completed) {
+				for (Future<byte[]> result : results) {
+					result.cancel(true);
+				}
+			}
+		}
+	}
+
+	/**
+	 * wav列と圧縮方式を更新し、キャッシュの削除とプレビューの
+	 * 作成を登録する。
+	 */
+	private void update(Long id, InputStream in, long length, WavCodec codec, Long originalLength) {
+
+		Connection connection = null;
+		PreparedStatement statement = null;
+		try {
+			connection = dataSource.getConnection();
+			statement = connection.prepareStatement("UPDATE track_ex04 SET wav = ?,"
+					+ " wavCodec = ?, wavOriginalLength = ?, wavHash = NULL, wavLength = NULL,"
+					+ " wavePreview = NULL, wavRevision = COALESCE(wavRevision, 0) + 1 WHERE id = ?");
+			statement.setBinaryStream(1, in, length);
+			if (codec == WavCodec.NONE) {
+				statement.setNull(2, Types.VARCHAR);
+				statement.setNull(3, Types.BIGINT);
+			} else {
+				statement.setString(2, codec.name());
+				statement.setLong(3, originalLength);
+			}
+			statement.setLong(4, id);
+
+			if (statement.executeUpdate() == 0) {
+				throw new EntityNotFoundException("Track04 not found: " + id);
+			}
+			TrackCacheInvalidation.afterCompletion(id);
+			WavePreviewGenerator.generateAfterCommit(id);
+		} catch (SQLException e) {
+			throw new PersistenceException("Failed to write wav of Track04: " + id, e);
+		} finally {
+			close(null, statement, connection);
+		}
+	}
+
+	private static void close(ResultSet resultSet, PreparedStatement statement, Connection connection) {
+		try {
+			if (resultSet != null) {
+				resultSet.close();
+			}
+			if (statement != null) {
+				statement.close();
+			}
+		} catch (SQLException e) {
+			logger.log(Level.WARNING, "Failed to close statement", e);
+		} finally {
+			try {
+				if (connection != null) {
+					connection.close();
+				}
+			} catch (SQLException e) {
+				logger.log(Level.WARNING, "Failed to close connection", e);
+			}
+		}
+	}
+
+	/**
+	 * Blobのストリームを読み込み、クローズ時に
+	 * データベース接続をクローズするストリーム。
+	 * 読み込んだバイト数はクローズ時にLobFetchMonitorに記録する。
+	 */
+	private static class WavInputStream extends FilterInputStream {
+
+		private final ResultSet resultSet;
+		private final PreparedStatement statement;
+		private final Connection connection;
+		private final LobFetchMonitor monitor;
+		private final Long id;
+		private long bytesRead;
+		private boolean closed;
+
+		WavInputStream(InputStream in, ResultSet resultSet, PreparedStatement statement, Connection connection,
+				LobFetchMonitor monitor, Long id) {
+			super(new BufferedInputStream(in, CHUNK_SIZE));
+			this.resultSet = resultSet;
+			this.statement = statement;
+			this.connection = connection;
+			this.monitor = monitor;
+			this.id = id;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1) {
+				bytesRead++;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = super.read(b, off, len);
+			if (read > 0) {
+				bytesRead += read;
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			bytesRead += skipped;
+			return skipped;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			try {
+				super.close();
+			} finally {
+				TrackAudioStore.close(resultSet, statement, connection);
+				monitor.recordRead(id, bytesRead);
+			}
+		}
+	}
+
+	/**
+	 * TrackBlobStoreのファイルをメモリマップしたバッファを読み込むストリーム。
+	 * 読み込んだバイト数はクローズ時にLobFetchMonitorに記録する。
+	 */
+	private static class ExternalWavInputStream extends InputStream {
+
+		private final ByteBuffer buffer;
+		private final LobFetchMonitor monitor;
+		private final Long id;
+		private boolean closed;
+
+		ExternalWavInputStream(ByteBuffer buffer, LobFetchMonitor monitor, Long id) {
+			this.buffer = buffer;
+			this.monitor = monitor;
+			this.id = id;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			int size = Math.min(len, buffer.remaining());
+			buffer.get(b, off, size);
+			return size;
+		}
+
+		@Override
+		public long skip(long n) {
+			int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+			buffer.position(buffer.position() + skipped);
+			return skipped;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+
+		@Override
+		public void close() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			monitor.recordRead(id, buffer.position());
+		}
+	}
+}
@@ -0,0 +1,45 @@
+package org.beginningee6.book.chapter03.ex04;
+
+import java.io.Serializable;
+
+/**
+ * TrackBlobStoreに格納したデータのハッシュ値とバイト数。
+ */
+public final class TrackBlob implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String hash;
+	private final long length;
+	private final boolean created;
+
+	TrackBlob(String hash, long length, boolean created) {
+		this.hash = hash;
+		this.length = length;
+		this.created = created;
+	}
+
+	/**
+	 * データのSHA-256（16進数）
+	 */
+	public String getHash() {
+		return hash;
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * 新しいファイルとして格納されたかどうか。
+	 * 同じデータがすでに格納されていた場合はfalse
+	 */
+	public boolean isCreated() {
+		return created;
+	}
+
+	@Override
+	public String toString() {
+		return "TrackBlob [hash=" + hash + ", length=" + length + ", created=" + created + "]";
+	}
+}
@@ -0,0 +1,240 @@
+package org.beginningee6.book.chapter03.ex04;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+
+/**
+ * wavのデータを、その内容のハッシュ値（SHA-256）を
+ * 名前としたファイルに格納するストア（コンテンツアドレス方式）。
+ *
+ * 同じ内容のデータは同じ名前のファイルになるため、
+ * 何件のトラックから参照されても1つのファイルとしてのみ
+ * 格納される。
+ *
+ * ファイルはDIRECTORY_PROPERTYシステムプロパティで
+ * 指定したディレクトリ（デフォルトは一時ディレクトリの下の
+ * track_ex04_blobs）に、ハッシュ値の先頭2文字のサブディレクトリを
+ * 作成して格納する。書き込みは一時ファイルに行い、完了後に
+ * 名前を変更するため、書き込み途中のファイルが読み込まれる
+ * ことはない。
+ *
+ * map()はファイルを読み込み専用でメモリマップする。
+ * データはヒープではなくページキャッシュを介して読み込まれる。
+ *
+ * どのトラックからも参照されなくなったファイルの削除は
+ * TrackExternalStorage.collectGarbage()で行う。
+ *
+ * ファイル名の変更はアトミックに行われ、同じ名前のファイルの
+ * 内容は常に同じであるため、コンテナによる排他制御は
+ * 使用しない（ConcurrencyManagementType.BEAN）。
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class TrackBlobStore {
+
+	private static final Logger logger = Logger.getLogger(TrackBlobStore.class.getName());
+
+	/**
+	 * 格納先のディレクトリを指定するシステムプロパティ
+	 */
+	public static final String DIRECTORY_PROPERTY = "beginningee6.chapter03.track.blobstore";
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private File directory;
+
+	@PostConstruct
+	public void initialize() {
+		String path = System.getProperty(DIRECTORY_PROPERTY);
+		directory = path != null
+				? new File(path)
+				: new File(System.getProperty("java.io.tmpdir"), "track_ex04_blobs");
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IllegalStateException("Cannot create blob store directory: " + directory);
+		}
+		logger.info("Track blob store: " + directory.getAbsolutePath());
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * ストリームから読み込んだデータを格納する。
+	 *
+	 * 同じ内容のファイルがすでに存在する場合は、新しいファイルを
+	 * 作成せず、ガベージコレクションの対象とならないよう
+	 * 既存のファイルの更新日時を更新する。
+	 *
+	 * @param in 格納するデータ。このメソッドではクローズしない
+	 * @return 格納したデータのハッシュ値とバイト数
+	 */
+	public TrackBlob put(InputStream in) throws IOException {
+
+		MessageDigest digest = sha256();
+		File temporary = File.createTempFile("upload", ".tmp", directory);
+		long length = 0;
+		try {
+			OutputStream out = new FileOutputStream(temporary);
+			try {
+				byte[] buffer = new byte[TrackAudioStore.CHUNK_SIZE];
+				int read;
+				while ((read = in.read(buffer)) != -1) {
+					digest.update(buffer, 0, read);
+					out.write(buffer, 0, read);
+					length += read;
+				}
+			} finally {
+				out.close();
+			}
+
+			String hash = toHex(digest.digest());
+			File file = fileOf(hash);
+			if (file.exists()) {
+				file.setLastModified(System.currentTimeMillis());
+				return new TrackBlob(hash, length, false);
+			}
+
+			File parent = file.getParentFile();
+			if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+				throw new IOException("Cannot create directory: " + parent);
+			}
+			if (!temporary.renameTo(file)) {
+				if (file.exists()) {
+					return new TrackBlob(hash, length, false);	// 同時に同じデータが格納された
+				}
+				throw new IOException("Cannot rename " + temporary + " to " + file);
+			}
+			return new TrackBlob(hash, length, true);
+
+		} finally {
+			if (temporary.exists()) {
+				temporary.delete();
+			}
+		}
+	}
+
+	/**
+	 * データのファイルを読み込み専用でメモリマップする。
+	 *
+	 * @param hash データのハッシュ値
+	 * @return データの内容。ファイルが存在しない場合はnull
+	 */
+	public MappedByteBuffer map(String hash) throws IOException {
+
+		File file = fileOf(hash);
+		if (!file.isFile()) {
+			return null;
+		}
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			// マップしたバッファはチャネルをクローズした後も有効
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			raf.close();
+		}
+	}
+
+	public boolean exists(String hash) {
+		return fileOf(hash).isFile();
+	}
+
+	/**
+	 * データのファイルの最終更新日時
+	 *
+	 * @return ファイルが存在しない場合は0
+	 */
+	public long lastModified(String hash) {
+		return fileOf(hash).lastModified();
+	}
+
+	/**
+	 * データのファイルを削除する。
+	 *
+	 * @return 削除した場合はtrue
+	 */
+	public boolean delete(String hash) {
+		return fileOf(hash).delete();
+	}
+
+	/**
+	 * 格納されているすべてのデータのハッシュ値を返す。
+	 */
+	public List<String> listHashes() {
+		List<String> hashes = new ArrayList<String>();
+		File[] parents = directory.listFiles();
+		if (parents == null) {
+			return hashes;
+		}
+		for (File parent : parents) {
+			if (!parent.isDirectory()) {
+				continue;
+			}
+			String[] names = parent.list();
+			if (names == null) {
+				continue;
+			}
+			for (String name : names) {
+				if (isHash(name)) {
+					hashes.add(name);
+				}
+			}
+		}
+		return hashes;
+	}
+
+	private File fileOf(String hash) {
+		if (!isHash(hash)) {
+			throw new IllegalArgumentException("Invalid hash: " + hash);
+		}
+		return new File(new File(directory, hash.substring(0, 2)), hash);
+	}
+
+	private static boolean isHash(String value) {
+		if (value == null || value.length() != 64) {
+			return false;
+		}
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		char[] chars = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			chars[i * 2] = HEX[(bytes[i] >> 4) & 0x0F];
+			chars[i * 2 + 1] = HEX[bytes[i] & 0x0F];
+		}
+		return new String(chars);
+	}
+}
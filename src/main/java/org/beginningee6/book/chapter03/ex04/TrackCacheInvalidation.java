@@ -0,0 +1,72 @@
+package org.beginningee6.book.chapter03.ex04;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.naming.NamingException;
+import javax.persistence.PostRemove;
+import javax.persistence.PostUpdate;
+
+import org.beginningee6.book.chapter03.util.TransactionCompletion;
+
+/**
+ * トランザクションの完了後にwavのキャッシュ
+ * （TrackSegmentCache、HotTrackCache）を無効化する
+ * エンティティリスナー。
+ *
+ * Track04エンティティの更新・削除ではinvalidate()が
+ * 呼び出される。JPQLの一括更新やJDBCでwavを更新した場合は
+ * エンティティのライフサイクルイベントが発生しないため、
+ * 更新を行ったクラスからafterCompletion()を呼び出す。
+ *
+ * 変更がコミットされる前に他のトランザクションが
+ * wavを読み込んでキャッシュしても削除されるよう、
+ * キャッシュの無効化はトランザクションの完了後に行う。
+ * ロールバックされた場合も無効化して問題ない。
+ */
+public class TrackCacheInvalidation {
+
+	private static final Logger logger = Logger.getLogger(TrackCacheInvalidation.class.getName());
+
+	@PostUpdate
+	@PostRemove
+	public void invalidate(Track04 track) {
+		afterCompletion(track.getId());
+	}
+
+	/**
+	 * 現在のトランザクションの完了後に、指定したトラックの
+	 * キャッシュを無効化する。デプロイされていないキャッシュは
+	 * 無視する。
+	 */
+	static void afterCompletion(final Long id) {
+
+		try {
+			final TrackSegmentCache cache =
+					TransactionCompletion.lookup("java:module/TrackSegmentCache", TrackSegmentCache.class);
+
+			TransactionCompletion.afterCompletion(new Runnable() {
+
+				public void run() {
+					cache.invalidate(id);
+				}
+			});
+		} catch (NamingException e) {
+			logger.log(Level.FINE, "TrackSegmentCache is not available", e);
+		}
+
+		try {
+			final HotTrackCache cache =
+					TransactionCompletion.lookup("java:module/HotTrackCache", HotTrackCache.class);
+
+			TransactionCompletion.afterCompletion(new Runnable() {
+
+				public void run() {
+					cache.invalidate(id);
+				}
+			});
+		} catch (NamingException e) {
+			logger.log(Level.FINE, "HotTrackCache is not available", e);
+		}
+	}
+}
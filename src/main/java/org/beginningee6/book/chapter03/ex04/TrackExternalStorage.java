@@ -0,0 +1,237 @@
+package org.beginningee6.book.chapter03.ex04;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import javax.annotation.Resource;
+import javax.ejb.EJB;
+import javax.ejb.SessionContext;
+import javax.ejb.Stateless;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityNotFoundException;
+import javax.persistence.PersistenceContext;
+
+/**
+ * Track04エンティティのwavを、データベースではなく
+ * TrackBlobStoreに格納するためのサービス。
+ *
+ * TrackBlobStoreに格納したトラックのtrack_ex04の行には、
+ * wavの代わりにデータのハッシュ値（wavHash）とバイト数
+ * （wavLength）だけが格納される。再リリースやコンピレーションの
+ * ように同じデータを持つトラックが多い場合でも、データは
+ * 1つのファイルとしてのみ格納される。
+ *
+ * ファイルの参照数はtrack_ex04のwavHashから数える。
+ * collectGarbage()は、どのトラックからも参照されていない
+ * ファイルのうち、猶予期間より前に更新されたものを削除する。
+ * コミット前のトランザクションが格納したファイルを
+ * 削除しないよう、猶予期間はトランザクションタイムアウト
+ * より長くすること。
+ *
+ * migrate()は、データベースに格納されている既存のwavを
+ * 1件ずつ別のトランザクションでTrackBlobStoreに移行する。
+ *
+ * （注）wavHashの更新はJPQLの一括更新で行うため、
+ * すでに永続化コンテキストに読み込まれているTrack04
+ * エンティティには反映されない。
+ */
+@Stateless
+public class TrackExternalStorage {
+
+	private static final Logger logger = Logger.getLogger(TrackExternalStorage.class.getName());
+
+	/**
+	 * ガベージコレクションの猶予期間のデフォルト値（1時間）
+	 */
+	public static final long DEFAULT_GRACE_MILLIS = 60 * 60 * 1000L;
+
+	@PersistenceContext
+	private EntityManager em;
+
+	@EJB
+	private TrackBlobStore blobStore;
+
+	@EJB
+	private TrackAudioStore audioStore;
+
+	@Resource
+	private SessionContext context;
+
+	/**
+	 * ストリームから読み込んだデータをTrackBlobStoreに格納し、
+	 * トラックのwavとする。
+	 *
+	 * @param id Track04エンティティのID
+	 * @param in wavのデータ。このメソッドではクローズしない
+	 * @return 格納したデータのハッシュ値とバイト数
+	 * @throws EntityNotFoundException エンティティが存在しない場合
+	 */
+	public TrackBlob store(Long id, InputStream in) throws IOException {
+
+		TrackBlob blob = blobStore.put(in);
+		reference(id, blob);
+
+		// 新しいwavのため、波形のプレビューを作成し直す
+		em.createNamedQuery("clearWavePreview").setParameter("id", id).executeUpdate();
+		WavePreviewGenerator.generateAfterCommit(id);
+		return blob;
+	}
+
+	/**
+	 * TrackBlobStoreに格納されているwavのデータを
+	 * メモリマップして返す。
+	 *
+	 * @param id Track04エンティティのID
+	 * @return wavのデータ。エンティティが存在しない場合、
+	 *         またはwavがTrackBlobStoreに格納されていない場合はnull
+	 * @throws FileNotFoundException 参照しているファイルが存在しない場合
+	 */
+	public MappedByteBuffer openWav(Long id) throws IOException {
+
+		List<String> hashes = em.createNamedQuery("findWavHash", String.class)
+				.setParameter("id", id)
+				.getResultList();
+		if (hashes.isEmpty() || hashes.get(0) == null) {
+			return null;
+		}
+
+		MappedByteBuffer buffer = blobStore.map(hashes.get(0));
+		if (buffer == null) {
+			throw new FileNotFoundException("Blob of Track04 " + id + " is missing: " + hashes.get(0));
+		}
+		return buffer;
+	}
+
+	/**
+	 * データのファイルを参照しているトラックの件数を返す。
+	 */
+	public long getReferenceCount(String hash) {
+		return em.createNamedQuery("countWavHashReferences", Long.class)
+				.setParameter("wavHash", hash)
+				.getSingleResult();
+	}
+
+	/**
+	 * データベースに格納されているwavを、1件ずつ別の
+	 * トランザクションでTrackBlobStoreに移行する。
+	 *
+	 * @return 移行したトラックの件数
+	 */
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public int migrate() throws IOException {
+
+		List<Long> ids = em.createNamedQuery("findTrackIdsToExternalize", Long.class).getResultList();
+
+		TrackExternalStorage self = context.getBusinessObject(TrackExternalStorage.class);
+		int migrated = 0;
+		int created = 0;
+		long bytes = 0;
+		for (Long id : ids) {
+			TrackBlob blob = self.externalize(id);
+			if (blob != null) {
+				migrated++;
+				bytes += blob.getLength();
+				if (blob.isCreated()) {
+					created++;
+				}
+			}
+		}
+
+		logger.info("Migrated " + migrated + " tracks (" + bytes + " bytes) into "
+				+ created + " new blobs");
+		return migrated;
+	}
+
+	/**
+	 * 1件のトラックのwavをTrackBlobStoreに移行する。
+	 * migrate()から新しいトランザクションで呼び出される。
+	 *
+	 * @return 格納したデータのハッシュ値とバイト数。
+	 *         エンティティが存在しない場合、またはwavがnullの場合はnull
+	 */
+	@TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+	public TrackBlob externalize(Long id) throws IOException {
+
+		InputStream in = audioStore.openWav(id);
+		if (in == null) {
+			return null;
+		}
+
+		// 読み込みの接続が行のロックを解放してから更新する
+		TrackBlob blob;
+		try {
+			blob = blobStore.put(in);
+		} finally {
+			in.close();
+		}
+		reference(id, blob);
+		return blob;
+	}
+
+	/**
+	 * デフォルトの猶予期間で、参照されていないファイルを削除する。
+	 *
+	 * @return 削除したファイルの件数
+	 */
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public int collectGarbage() {
+		return collectGarbage(DEFAULT_GRACE_MILLIS);
+	}
+
+	/**
+	 * どのトラックからも参照されていないファイルのうち、
+	 * 猶予期間より前に更新されたものを削除する。
+	 *
+	 * @param graceMillis 猶予期間（ミリ秒）
+	 * @return 削除したファイルの件数
+	 */
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public int collectGarbage(long graceMillis) {
+
+		if (graceMillis < 0) {
+			throw new IllegalArgumentException("graceMillis must not be negative: " + graceMillis);
+		}
+
+		// 参照の一覧より前にファイルの一覧を取得する（取得後に格納されたファイルは対象外）
+		List<String> stored = blobStore.listHashes();
+		long threshold = System.currentTimeMillis() - graceMillis;
+
+		Set<String> referenced = new HashSet<String>(
+				em.createNamedQuery("findReferencedWavHashes", String.class).getResultList());
+
+		int deleted = 0;
+		for (String hash : stored) {
+			if (!referenced.contains(hash) && blobStore.lastModified(hash) <= threshold
+					&& blobStore.delete(hash)) {
+				deleted++;
+			}
+		}
+
+		logger.info("Deleted " + deleted + " orphaned blobs of " + stored.size());
+		return deleted;
+	}
+
+	/**
+	 * トラックのwavを、TrackBlobStoreに格納したデータへの参照とする。
+	 */
+	private void reference(Long id, TrackBlob blob) {
+
+		int updated = em.createNamedQuery("externalizeTrackWav")
+				.setParameter("wavHash", blob.getHash())
+				.setParameter("wavLength", blob.getLength())
+				.setParameter("id", id)
+				.executeUpdate();
+		if (updated == 0) {
+			throw new EntityNotFoundException("Track04 not found: " + id);
+		}
+		TrackCacheInvalidation.afterCompletion(id);
+	}
+}
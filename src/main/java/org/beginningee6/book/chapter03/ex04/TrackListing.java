@@ -0,0 +1,53 @@
+package org.beginningee6.book.chapter03.ex04;
+
+import java.io.Serializable;
+
+/**
+ * トラックの一覧表示に使用する項目。
+ *
+ * 名前付きクエリfindTrackListingsのコンストラクタ式で
+ * 作成されるため、一覧の検索ではwav（ラージオブジェクト）は
+ * 読み込まれない。
+ */
+public class TrackListing implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final Long id;
+	private final String title;
+	private final Float duration;
+	private final byte[] wavePreview;
+
+	public TrackListing(Long id, String title, Float duration, byte[] wavePreview) {
+		this.id = id;
+		this.title = title;
+		this.duration = duration;
+		this.wavePreview = wavePreview;
+	}
+
+	public Long getId() {
+		return id;
+	}
+
+	public String getTitle() {
+		return title;
+	}
+
+	public Float getDuration() {
+		return duration;
+	}
+
+	/**
+	 * 波形のプレビュー（WavePreview）。
+	 * まだ作成されていない場合はnull
+	 */
+	public byte[] getWavePreview() {
+		return wavePreview;
+	}
+
+	@Override
+	public String toString() {
+		return "TrackListing [id=" + id + ", title=" + title + ", duration="
+				+ duration + ", wavePreview=" + (wavePreview == null ? null : wavePreview.length + " peaks") + "]";
+	}
+}
@@ -0,0 +1,291 @@
+package org.beginningee6.book.chapter03.ex04;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.EJB;
+import javax.ejb.Singleton;
+
+/**
+ * Track04エンティティのwavのデータを、SEGMENT_SIZEバイトの
+ * セグメント単位でキャッシュするシングルトン。
+ *
+ * 再生中のシークでは、近い位置の範囲が続けて読み込まれる
+ * ことが多い。read()は指定した範囲を含むセグメントを
+ * キャッシュから取得し、キャッシュに無いセグメントだけを
+ * TrackAudioStore.readWav()で読み込む。
+ *
+ * セグメントはトラックごとに最大maximumSegmentsPerTrack個まで
+ * 保持し、キャッシュするトラックの数はmaximumTracksを上限とする。
+ * いずれも上限を超えた場合は、最も長い間参照されていないものから
+ * 削除する（LRU）。
+ *
+ * wavが更新・削除された場合は、TrackCacheInvalidationにより
+ * エンティティリスナーとTrackAudioStore、TrackExternalStorageが
+ * トランザクションの完了後にinvalidate()を呼び出して
+ * 該当するトラックのセグメントを削除する。
+ *
+ * キャッシュの状態は同期ブロックで保護し、データベースの
+ * 読み込みはロックの外で行う（ConcurrencyManagementType.BEAN）。
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class TrackSegmentCache {
+
+	/**
+	 * セグメントのバイト数
+	 */
+	public static final int SEGMENT_SIZE = TrackAudioStore.CHUNK_SIZE;
+
+	/**
+	 * キャッシュするトラック数の上限のデフォルト値
+	 */
+	public static final int DEFAULT_MAXIMUM_TRACKS = 64;
+
+	/**
+	 * トラックごとにキャッシュするセグメント数の上限のデフォルト値
+	 */
+	public static final int DEFAULT_MAXIMUM_SEGMENTS_PER_TRACK = 8;
+
+	@EJB
+	private TrackAudioStore store;
+
+	private final Object lock = new Object();
+
+	private int maximumTracks = DEFAULT_MAXIMUM_TRACKS;
+	private int maximumSegmentsPerTrack = DEFAULT_MAXIMUM_SEGMENTS_PER_TRACK;
+
+	// アクセス順に並ぶLinkedHashMapによりLRUを実現する
+	private final LinkedHashMap<Long, Segments> tracks = new LinkedHashMap<Long, Segments>(16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, Segments> eldest) {
+			if (size() > maximumTracks) {
+				evictionCount += eldest.getValue().size();
+				return true;
+			}
+			return false;
+		}
+	};
+
+	// 無効化のたびに増加する。読み込みの前後で変化していれば
+	// 読み込んだセグメントをキャッシュしない
+	private long invalidationCount;
+
+	private long hitCount;
+	private long missCount;
+	private long evictionCount;
+
+	/**
+	 * wavのデータのうち、指定した範囲を読み込む。
+	 *
+	 * @param id Track04エンティティのID
+	 * @param offset 読み込みを開始する位置（0から始まる）
+	 * @param length 読み込むバイト数
+	 * @return 読み込んだデータ。wavの終端を超える部分は含まれない。
+	 *         エンティティが存在しない場合、またはwavがnullの場合はnull
+	 */
+	public byte[] read(Long id, long offset, int length) {
+
+		if (offset < 0) {
+			throw new IllegalArgumentException("offset must not be negative: " + offset);
+		}
+		if (length < 0) {
+			throw new IllegalArgumentException("length must not be negative: " + length);
+		}
+
+		byte[] result = new byte[length];
+		int copied = 0;
+		while (copied < length) {
+			long position = offset + copied;
+			long index = position / SEGMENT_SIZE;
+
+			byte[] segment = getSegment(id, index);
+			if (segment == null) {
+				return null;		// wavが存在しない
+			}
+
+			int start = (int) (position - index * SEGMENT_SIZE);
+			int size = Math.min(length - copied, segment.length - start);
+			if (size <= 0) {
+				break;				// wavの終端に達した
+			}
+			System.arraycopy(segment, start, result, copied, size);
+			copied += size;
+
+			if (segment.length < SEGMENT_SIZE) {
+				break;				// 最後のセグメント
+			}
+		}
+
+		if (copied == length) {
+			return result;
+		}
+		byte[] truncated = new byte[copied];
+		System.arraycopy(result, 0, truncated, 0, copied);
+		return truncated;
+	}
+
+	/**
+	 * 指定したトラックのセグメントを削除する。
+	 */
+	public void invalidate(Long id) {
+		synchronized (lock) {
+			invalidationCount++;
+			tracks.remove(id);
+		}
+	}
+
+	/**
+	 * キャッシュのすべてのセグメントを削除する。
+	 */
+	public void clear() {
+		synchronized (lock) {
+			invalidationCount++;
+			tracks.clear();
+		}
+	}
+
+	/**
+	 * 統計情報をリセットする。
+	 */
+	public void resetStatistics() {
+		synchronized (lock) {
+			hitCount = 0;
+			missCount = 0;
+			evictionCount = 0;
+		}
+	}
+
+	public int getMaximumTracks() {
+		synchronized (lock) {
+			return maximumTracks;
+		}
+	}
+
+	/**
+	 * キャッシュするトラック数の上限を設定する。
+	 * 上限を超えているトラックは古いものから削除される。
+	 */
+	public void setMaximumTracks(int maximumTracks) {
+		if (maximumTracks < 1) {
+			throw new IllegalArgumentException("maximumTracks must be positive: " + maximumTracks);
+		}
+		synchronized (lock) {
+			this.maximumTracks = maximumTracks;
+			while (tracks.size() > maximumTracks) {
+				Long eldest = tracks.keySet().iterator().next();
+				evictionCount += tracks.remove(eldest).size();
+			}
+		}
+	}
+
+	public int getMaximumSegmentsPerTrack() {
+		synchronized (lock) {
+			return maximumSegmentsPerTrack;
+		}
+	}
+
+	/**
+	 * トラックごとにキャッシュするセグメント数の上限を設定する。
+	 * 上限を超えているセグメントは、次にそのトラックの
+	 * セグメントを追加する際に古いものから削除される。
+	 */
+	public void setMaximumSegmentsPerTrack(int maximumSegmentsPerTrack) {
+		if (maximumSegmentsPerTrack < 1) {
+			throw new IllegalArgumentException(
+					"maximumSegmentsPerTrack must be positive: " + maximumSegmentsPerTrack);
+		}
+		synchronized (lock) {
+			this.maximumSegmentsPerTrack = maximumSegmentsPerTrack;
+		}
+	}
+
+	/**
+	 * キャッシュしているセグメントの合計数
+	 */
+	public int getSegmentCount() {
+		synchronized (lock) {
+			int count = 0;
+			for (Segments segments : tracks.values()) {
+				count += segments.size();
+			}
+			return count;
+		}
+	}
+
+	public long getHitCount() {
+		synchronized (lock) {
+			return hitCount;
+		}
+	}
+
+	public long getMissCount() {
+		synchronized (lock) {
+			return missCount;
+		}
+	}
+
+	public long getEvictionCount() {
+		synchronized (lock) {
+			return evictionCount;
+		}
+	}
+
+	private byte[] getSegment(Long id, long index) {
+
+		long invalidationsBefore;
+		synchronized (lock) {
+			Segments segments = tracks.get(id);
+			byte[] cached = segments == null ? null : segments.get(index);
+			if (cached != null) {
+				hitCount++;
+				return cached;
+			}
+			missCount++;
+			invalidationsBefore = invalidationCount;
+		}
+
+		byte[] segment = store.readWav(id, index * SEGMENT_SIZE, SEGMENT_SIZE);
+		if (segment == null) {
+			return null;
+		}
+
+		synchronized (lock) {
+			if (invalidationCount == invalidationsBefore) {
+				Segments segments = tracks.get(id);
+				if (segments == null) {
+					segments = new Segments();
+					tracks.put(id, segments);
+				}
+				segments.put(index, segment);
+			}
+		}
+		return segment;
+	}
+
+	/**
+	 * 1つのトラックのセグメント（セグメントの番号→データ）
+	 */
+	private class Segments extends LinkedHashMap<Long, byte[]> {
+
+		private static final long serialVersionUID = 1L;
+
+		Segments() {
+			super(16, 0.75f, true);
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+			if (size() > maximumSegmentsPerTrack) {
+				evictionCount++;
+				return true;
+			}
+			return false;
+		}
+	}
+}
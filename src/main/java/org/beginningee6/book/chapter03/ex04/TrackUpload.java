@@ -0,0 +1,88 @@
+package org.beginningee6.book.chapter03.ex04;
+
+import java.io.Serializable;
+
+/**
+ * TrackUploadServiceでのwavのアップロードの状態と進捗
+ * （取得した時点のスナップショット）。
+ */
+public class TrackUpload implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final Long trackId;
+	private final TrackUploadState state;
+	private final long length;
+	private final long bytesWritten;
+	private final int attempts;
+	private final String failure;
+
+	public TrackUpload(Long trackId, TrackUploadState state, long length,
+			long bytesWritten, int attempts, String failure) {
+		this.trackId = trackId;
+		this.state = state;
+		this.length = length;
+		this.bytesWritten = bytesWritten;
+		this.attempts = attempts;
+		this.failure = failure;
+	}
+
+	/**
+	 * アップロード先のTrack04エンティティのID
+	 */
+	public Long getTrackId() {
+		return trackId;
+	}
+
+	public TrackUploadState getState() {
+		return state;
+	}
+
+	/**
+	 * wavのバイト数
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * 現在の試行で書き込んだバイト数
+	 */
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	/**
+	 * 書き込みを試行した回数
+	 */
+	public int getAttempts() {
+		return attempts;
+	}
+
+	/**
+	 * 最後に失敗した試行の原因。失敗していない場合はnull
+	 */
+	public String getFailure() {
+		return failure;
+	}
+
+	/**
+	 * 進捗（0.0～1.0）
+	 */
+	public double getProgress() {
+		if (state == TrackUploadState.COMPLETED) {
+			return 1.0;
+		}
+		if (length == 0) {
+			return 0.0;
+		}
+		return (double) bytesWritten / length;
+	}
+
+	@Override
+	public String toString() {
+		return "TrackUpload [trackId=" + trackId + ", state=" + state + ", length=" + length
+				+ ", bytesWritten=" + bytesWritten + ", attempts=" + attempts
+				+ ", failure=" + failure + "]";
+	}
+}
@@ -0,0 +1,20 @@
+package org.beginningee6.book.chapter03.ex04;
+
+import javax.ejb.ApplicationException;
+
+/**
+ * 書き込み待ちのアップロードが上限に達しており、
+ * TrackUploadServiceが新しいアップロードを受け付けなかった
+ * ことを表す例外。
+ *
+ * 呼び出し側は時間をおいて再度アップロードすること。
+ */
+@ApplicationException
+public class TrackUploadRejectedException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	public TrackUploadRejectedException(String message) {
+		super(message);
+	}
+}
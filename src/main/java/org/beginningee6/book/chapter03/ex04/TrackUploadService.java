@@ -0,0 +1,414 @@
+package org.beginningee6.book.chapter03.ex04;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.EJB;
+import javax.ejb.Singleton;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+
+/**
+ * Track04のwavを2段階でアップロードするサービス。
+ *
+ * wavを設定したTrack04エンティティを永続化すると、数メガバイトの
+ * データを書き込む間、トランザクションとデータベース接続を
+ * 保持し続けるため、アップロードが集中すると接続プールが枯渇する。
+ * このサービスでは以下の2段階でアップロードする。
+ *
+ * 1. アップロードされたデータを一時ファイルに書き出した後、
+ *    メタデータ（title、duration、description）だけを
+ *    新しいトランザクションでコミットし、すぐにIDを返す。
+ *    書き込みを開始できなかった場合は、コミットした
+ *    メタデータを削除する。
+ * 2. TrackUploadWorkerが非同期に、一時ファイルのデータを
+ *    TrackAudioStore.writeWav()でwavに書き込む。失敗した場合は
+ *    待ち時間を倍にしながらMAXIMUM_ATTEMPTS回まで再試行する。
+ *
+ * 書き込み待ち（書き込み中を含む）のアップロードの数は
+ * maximumPendingUploadsを上限とする。上限に達している場合、
+ * upload()はacquireTimeoutMillisの間待ち、それでも空きが無ければ
+ * TrackUploadRejectedExceptionをスローする（バックプレッシャー）。
+ * 同時に書き込むアップロードの数は、これとコンテナの非同期
+ * メソッドのスレッドプールの大きさで制限される。
+ *
+ * アップロードの状態と進捗はgetUpload()で取得できる。
+ * 終了したアップロードは、新しいものからMAXIMUM_FINISHED_UPLOADS件
+ * までを保持する。
+ *
+ * （注）状態はメモリ上でのみ管理するため、書き込みの途中で
+ * サーバーが停止した場合、そのトラックのwavはnullのままとなる。
+ *
+ * 状態は同期ブロックで保護し、一時ファイルへの書き出しは
+ * ロックの外で行う（ConcurrencyManagementType.BEAN）。
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+public class TrackUploadService {
+
+	private static final Logger logger = Logger.getLogger(TrackUploadService.class.getName());
+
+	/**
+	 * 書き込み待ちのアップロードの数の上限のデフォルト値
+	 */
+	public static final int DEFAULT_MAXIMUM_PENDING_UPLOADS = 16;
+
+	/**
+	 * 空きを待つ時間のデフォルト値（ミリ秒）
+	 */
+	public static final long DEFAULT_ACQUIRE_TIMEOUT_MILLIS = 5 * 1000L;
+
+	/**
+	 * 書き込みを試行する回数の上限
+	 */
+	public static final int MAXIMUM_ATTEMPTS = 3;
+
+	/**
+	 * 最初の再試行までの待ち時間のデフォルト値（ミリ秒）
+	 */
+	public static final long DEFAULT_RETRY_DELAY_MILLIS = 1000L;
+
+	/**
+	 * 保持する終了したアップロードの件数の上限
+	 */
+	public static final int MAXIMUM_FINISHED_UPLOADS = 1000;
+
+	@EJB
+	private TrackUploadWorker worker;
+
+	private final Object lock = new Object();
+
+	private int maximumPendingUploads = DEFAULT_MAXIMUM_PENDING_UPLOADS;
+	private long acquireTimeoutMillis = DEFAULT_ACQUIRE_TIMEOUT_MILLIS;
+	private long retryDelayMillis = DEFAULT_RETRY_DELAY_MILLIS;
+
+	// 書き込み待ち（書き込み中を含む）のアップロードの数
+	private int pendingUploads;
+
+	// トラックのIDごとのアップロード（登録順）
+	private final Map<Long, TrackUpload> uploads = new LinkedHashMap<Long, TrackUpload>();
+
+	private long completedCount;
+	private long failedCount;
+	private long rejectedCount;
+
+	/**
+	 * トラックのメタデータをコミットし、wavの書き込みを
+	 * 非同期に開始する。
+	 *
+	 * @param in wavのデータ。このメソッドではクローズしない
+	 * @return 作成したTrack04エンティティのID
+	 * @throws TrackUploadRejectedException 書き込み待ちのアップロードが上限に達している場合
+	 */
+	public Long upload(String title, Float duration, String description, InputStream in) throws IOException {
+
+		acquire();
+
+		File spool = null;
+		Long id = null;
+		boolean queued = false;
+		try {
+			// データベース接続を保持せずに、データを一時ファイルに書き出す
+			spool = File.createTempFile("track_ex04_upload", ".wav");
+			long length = spool(in, spool);
+
+			id = worker.createTrack(title, duration, description);
+
+			synchronized (lock) {
+				uploads.put(id, new TrackUpload(id, TrackUploadState.QUEUED, length, 0, 0, null));
+			}
+			worker.transfer(id, spool, length);
+			queued = true;
+			return id;
+
+		} finally {
+			if (!queued) {
+				if (id != null) {
+					synchronized (lock) {
+						uploads.remove(id);
+					}
+					removeTrack(id);
+				}
+				if (spool != null && !spool.delete()) {
+					logger.warning("Failed to delete spool file: " + spool);
+				}
+				release();
+			}
+		}
+	}
+
+	/**
+	 * アップロードの状態と進捗を返す。
+	 *
+	 * @return アップロード。存在しない場合（保持する件数を
+	 *         超えて古くなった場合を含む）はnull
+	 */
+	public TrackUpload getUpload(Long trackId) {
+		synchronized (lock) {
+			return uploads.get(trackId);
+		}
+	}
+
+	/**
+	 * 終了していないアップロードを返す。
+	 */
+	public List<TrackUpload> getPendingUploads() {
+		synchronized (lock) {
+			List<TrackUpload> pending = new ArrayList<TrackUpload>();
+			for (TrackUpload upload : uploads.values()) {
+				if (!upload.getState().isFinished()) {
+					pending.add(upload);
+				}
+			}
+			return pending;
+		}
+	}
+
+	/**
+	 * TrackUploadWorkerが、書き込みの試行を開始したことを記録する。
+	 */
+	public void started(Long trackId, int attempt) {
+		synchronized (lock) {
+			TrackUpload upload = uploads.get(trackId);
+			if (upload != null) {
+				uploads.put(trackId, new TrackUpload(trackId, TrackUploadState.UPLOADING,
+						upload.getLength(), 0, attempt, upload.getFailure()));
+			}
+		}
+	}
+
+	/**
+	 * TrackUploadWorkerが、現在の試行で書き込んだバイト数を記録する。
+	 */
+	public void progress(Long trackId, long bytesWritten) {
+		synchronized (lock) {
+			TrackUpload upload = uploads.get(trackId);
+			if (upload != null && upload.getState() == TrackUploadState.UPLOADING) {
+				uploads.put(trackId, new TrackUpload(trackId, TrackUploadState.UPLOADING,
+						upload.getLength(), bytesWritten, upload.getAttempts(), upload.getFailure()));
+			}
+		}
+	}
+
+	/**
+	 * TrackUploadWorkerが、書き込みの試行が失敗したことを記録する。
+	 */
+	public void attemptFailed(Long trackId, Throwable cause) {
+		synchronized (lock) {
+			TrackUpload upload = uploads.get(trackId);
+			if (upload != null) {
+				uploads.put(trackId, new TrackUpload(trackId, TrackUploadState.UPLOADING,
+						upload.getLength(), 0, upload.getAttempts(), String.valueOf(cause)));
+			}
+		}
+	}
+
+	/**
+	 * TrackUploadWorkerが、アップロードが終了したことを記録する。
+	 * 書き込み待ちのアップロードの数を減らす。
+	 */
+	public void finished(Long trackId, boolean succeeded) {
+		synchronized (lock) {
+			TrackUpload upload = uploads.remove(trackId);
+			if (upload != null) {
+				// 終了したものを末尾に移す
+				uploads.put(trackId, new TrackUpload(trackId,
+						succeeded ? TrackUploadState.COMPLETED : TrackUploadState.FAILED,
+						upload.getLength(), succeeded ? upload.getLength() : upload.getBytesWritten(),
+						upload.getAttempts(), succeeded ? null : upload.getFailure()));
+			}
+			if (succeeded) {
+				completedCount++;
+			} else {
+				failedCount++;
+			}
+			trimFinished();
+		}
+		release();
+	}
+
+	public int getMaximumPendingUploads() {
+		synchronized (lock) {
+			return maximumPendingUploads;
+		}
+	}
+
+	/**
+	 * 書き込み待ちのアップロードの数の上限を設定する。
+	 * 0を指定すると、新しいアップロードを受け付けない。
+	 */
+	public void setMaximumPendingUploads(int maximumPendingUploads) {
+		if (maximumPendingUploads < 0) {
+			throw new IllegalArgumentException("maximumPendingUploads must not be negative: " + maximumPendingUploads);
+		}
+		synchronized (lock) {
+			this.maximumPendingUploads = maximumPendingUploads;
+			lock.notifyAll();
+		}
+	}
+
+	public long getAcquireTimeoutMillis() {
+		synchronized (lock) {
+			return acquireTimeoutMillis;
+		}
+	}
+
+	public void setAcquireTimeoutMillis(long acquireTimeoutMillis) {
+		if (acquireTimeoutMillis < 0) {
+			throw new IllegalArgumentException("acquireTimeoutMillis must not be negative: " + acquireTimeoutMillis);
+		}
+		synchronized (lock) {
+			this.acquireTimeoutMillis = acquireTimeoutMillis;
+		}
+	}
+
+	public long getRetryDelayMillis() {
+		synchronized (lock) {
+			return retryDelayMillis;
+		}
+	}
+
+	/**
+	 * 最初の再試行までの待ち時間を設定する。
+	 * 以降の再試行では、待ち時間を倍にする。
+	 */
+	public void setRetryDelayMillis(long retryDelayMillis) {
+		if (retryDelayMillis < 0) {
+			throw new IllegalArgumentException("retryDelayMillis must not be negative: " + retryDelayMillis);
+		}
+		synchronized (lock) {
+			this.retryDelayMillis = retryDelayMillis;
+		}
+	}
+
+	/**
+	 * 書き込み待ち（書き込み中を含む）のアップロードの数
+	 */
+	public int getPendingUploadCount() {
+		synchronized (lock) {
+			return pendingUploads;
+		}
+	}
+
+	public long getCompletedCount() {
+		synchronized (lock) {
+			return completedCount;
+		}
+	}
+
+	public long getFailedCount() {
+		synchronized (lock) {
+			return failedCount;
+		}
+	}
+
+	public long getRejectedCount() {
+		synchronized (lock) {
+			return rejectedCount;
+		}
+	}
+
+	/**
+	 * 終了したアップロードと統計をクリアする。
+	 */
+	public void resetStatistics() {
+		synchronized (lock) {
+			for (Iterator<TrackUpload> i = uploads.values().iterator(); i.hasNext();) {
+				if (i.next().getState().isFinished()) {
+					i.remove();
+				}
+			}
+			completedCount = 0;
+			failedCount = 0;
+			rejectedCount = 0;
+		}
+	}
+
+	/**
+	 * 書き込み待ちのアップロードの空きを待って確保する。
+	 */
+	private void acquire() {
+		synchronized (lock) {
+			long deadline = System.currentTimeMillis() + acquireTimeoutMillis;
+			while (pendingUploads >= maximumPendingUploads) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					rejectedCount++;
+					throw new TrackUploadRejectedException("Too many pending uploads: " + pendingUploads);
+				}
+				try {
+					lock.wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					rejectedCount++;
+					throw new TrackUploadRejectedException("Interrupted while waiting for a pending upload");
+				}
+			}
+			pendingUploads++;
+		}
+	}
+
+	/**
+	 * 書き込みを開始できなかったトラックのメタデータを削除する。
+	 * 削除に失敗しても、元の例外を優先するためスローしない。
+	 */
+	private void removeTrack(Long id) {
+		try {
+			worker.removeTrack(id);
+		} catch (RuntimeException e) {
+			logger.log(Level.WARNING, "Failed to remove Track04 " + id + " whose upload was not started", e);
+		}
+	}
+
+	private void release() {
+		synchronized (lock) {
+			pendingUploads--;
+			lock.notifyAll();
+		}
+	}
+
+	private void trimFinished() {
+		int finished = 0;
+		for (TrackUpload upload : uploads.values()) {
+			if (upload.getState().isFinished()) {
+				finished++;
+			}
+		}
+		for (Iterator<TrackUpload> i = uploads.values().iterator(); i.hasNext() && finished > MAXIMUM_FINISHED_UPLOADS;) {
+			if (i.next().getState().isFinished()) {
+				i.remove();
+				finished--;
+			}
+		}
+	}
+
+	private static long spool(InputStream in, File spool) throws IOException {
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(spool), TrackAudioStore.CHUNK_SIZE);
+		try {
+			byte[] buffer = new byte[TrackAudioStore.CHUNK_SIZE];
+			long length = 0;
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+				length += read;
+			}
+			return length;
+		} finally {
+			out.close();
+		}
+	}
+}
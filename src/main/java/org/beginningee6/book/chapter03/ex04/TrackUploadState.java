@@ -0,0 +1,35 @@
+package org.beginningee6.book.chapter03.ex04;
+
+/**
+ * TrackUploadServiceでのwavのアップロードの状態。
+ */
+public enum TrackUploadState {
+
+	/**
+	 * メタデータ（title、duration、description）はコミット済みで、
+	 * wavの書き込みを待っている
+	 */
+	QUEUED,
+
+	/**
+	 * wavを書き込んでいる（再試行を待っている場合を含む）
+	 */
+	UPLOADING,
+
+	/**
+	 * wavの書き込みが完了した
+	 */
+	COMPLETED,
+
+	/**
+	 * 再試行しても、wavを書き込めなかった
+	 */
+	FAILED;
+
+	/**
+	 * アップロードが終了しているかどうか
+	 */
+	public boolean isFinished() {
+		return this == COMPLETED || this == FAILED;
+	}
+}
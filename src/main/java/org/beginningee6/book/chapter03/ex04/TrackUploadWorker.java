@@ -0,0 +1,175 @@
+package org.beginningee6.book.chapter03.ex04;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.ejb.Asynchronous;
+import javax.ejb.EJB;
+import javax.ejb.Stateless;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityNotFoundException;
+import javax.persistence.PersistenceContext;
+
+/**
+ * TrackUploadServiceの2段階のアップロードを行うEJB。
+ *
+ * createTrack()はメタデータだけのTrack04エンティティを
+ * 新しいトランザクションで永続化する。書き込みを開始できなかった
+ * 場合は、removeTrack()で削除する。transfer()は非同期に
+ * 一時ファイルのデータをwavに書き込み、進捗と結果を
+ * TrackUploadServiceに通知する。
+ *
+ * 書き込みの試行ごとにTrackAudioStore.writeWav()の
+ * トランザクションが完了するため、失敗した試行の
+ * 書き込みは残らない。トラックが削除されている場合は
+ * 再試行しない。
+ */
+@Stateless
+public class TrackUploadWorker {
+
+	private static final Logger logger = Logger.getLogger(TrackUploadWorker.class.getName());
+
+	@PersistenceContext
+	private EntityManager em;
+
+	@EJB
+	private TrackAudioStore audioStore;
+
+	@EJB
+	private TrackUploadService service;
+
+	/**
+	 * メタデータだけのTrack04エンティティを永続化する。
+	 *
+	 * @return 作成したTrack04エンティティのID
+	 */
+	@TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+	public Long createTrack(String title, Float duration, String description) {
+		Track04 track = new Track04(title, duration, description);
+		em.persist(track);
+		em.flush();
+		return track.getId();
+	}
+
+	/**
+	 * createTrack()で永続化したTrack04エンティティを削除する。
+	 * 削除されている場合は何もしない。
+	 */
+	@TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+	public void removeTrack(Long id) {
+		Track04 track = em.find(Track04.class, id);
+		if (track != null) {
+			em.remove(track);
+		}
+	}
+
+	/**
+	 * 一時ファイルのデータをトラックのwavに書き込む。
+	 * 終了後に一時ファイルを削除する。
+	 */
+	@Asynchronous
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public void transfer(Long id, File spool, long length) {
+
+		boolean succeeded = false;
+		try {
+			long delay = service.getRetryDelayMillis();
+			for (int attempt = 1; attempt <= TrackUploadService.MAXIMUM_ATTEMPTS; attempt++) {
+				service.started(id, attempt);
+				try {
+					write(id, spool, length);
+					succeeded = true;
+					break;
+				} catch (Exception e) {
+					service.attemptFailed(id, e);
+					if (!isRetryable(e) || attempt == TrackUploadService.MAXIMUM_ATTEMPTS) {
+						logger.log(Level.WARNING, "Failed to upload wav of Track04 " + id
+								+ " after " + attempt + " attempts", e);
+						break;
+					}
+					logger.log(Level.INFO, "Retrying upload of Track04 " + id + " in " + delay + "ms", e);
+					Thread.sleep(delay);
+					delay *= 2;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			if (!spool.delete()) {
+				logger.warning("Failed to delete spool file: " + spool);
+			}
+			service.finished(id, succeeded);
+		}
+	}
+
+	private void write(Long id, File spool, long length) throws IOException {
+		InputStream in = new ProgressInputStream(new FileInputStream(spool), id);
+		try {
+			audioStore.writeWav(id, in, length);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * 再試行すべき失敗かどうか。トラックが削除されている場合は
+	 * 再試行しない。
+	 */
+	static boolean isRetryable(Throwable failure) {
+		for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+			if (cause instanceof EntityNotFoundException) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 読み込んだバイト数をTrackUploadServiceに通知するストリーム
+	 */
+	private class ProgressInputStream extends FilterInputStream {
+
+		private final Long id;
+		private long bytesRead;
+		private long reported;
+
+		ProgressInputStream(InputStream in, Long id) {
+			super(new BufferedInputStream(in, TrackAudioStore.CHUNK_SIZE));
+			this.id = id;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1) {
+				advance(1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = super.read(b, off, len);
+			if (read > 0) {
+				advance(read);
+			}
+			return read;
+		}
+
+		private void advance(int bytes) {
+			bytesRead += bytes;
+			if (bytesRead - reported >= TrackAudioStore.CHUNK_SIZE) {
+				service.progress(id, bytesRead);
+				reported = bytesRead;
+			}
+		}
+	}
+}
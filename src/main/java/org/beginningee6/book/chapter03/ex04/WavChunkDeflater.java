@@ -0,0 +1,33 @@
+package org.beginningee6.book.chapter03.ex04;
+
+import java.util.concurrent.Future;
+
+import javax.ejb.AsyncResult;
+import javax.ejb.Asynchronous;
+import javax.ejb.Stateless;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+
+/**
+ * wavの1つのチャンクを非同期に圧縮するEJB。
+ *
+ * TrackAudioStoreは、圧縮して格納するwavのチャンクごとに
+ * deflate()を呼び出し、コンテナの非同期メソッドのスレッドプールで
+ * 並列に圧縮する。データベースにはアクセスしないため、
+ * トランザクションの外（NOT_SUPPORTED）で実行する。
+ *
+ * dataはローカルビューの呼び出しのためコピーされない。
+ * 呼び出し側はFutureが完了するまでdataを変更しないこと。
+ */
+@Stateless
+@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+public class WavChunkDeflater {
+
+	/**
+	 * dataのoffsetからlengthバイトを圧縮する。
+	 */
+	@Asynchronous
+	public Future<byte[]> deflate(byte[] data, int offset, int length) {
+		return new AsyncResult<byte[]>(ChunkedDeflateCodec.deflate(data, offset, length));
+	}
+}
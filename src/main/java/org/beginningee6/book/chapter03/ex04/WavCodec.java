@@ -0,0 +1,82 @@
+package org.beginningee6.book.chapter03.ex04;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Track04のwav列に格納するデータの圧縮方式。
+ *
+ * TrackAudioStore.writeWav(Long, byte[], WavCodec)で指定した場合だけ
+ * 圧縮される。
+ * 圧縮方式と元のバイト数はwavCodec列、wavOriginalLength列に
+ * 格納され、getWav()やTrackAudioStoreでの読み込み時に
+ * 元のデータに伸長される。
+ */
+public enum WavCodec {
+
+	/**
+	 * 圧縮しない
+	 */
+	NONE {
+
+		@Override
+		public byte[] encode(byte[] data) {
+			return data;
+		}
+
+		@Override
+		public byte[] decode(byte[] encoded) {
+			return encoded;
+		}
+
+		@Override
+		public InputStream decode(InputStream encoded) {
+			return encoded;
+		}
+	},
+
+	/**
+	 * 1MBごとのチャンクに分割し、Deflateで可逆圧縮する。
+	 * ストリームとして伸長する場合は1チャンク分のヒープだけを使用する
+	 */
+	DEFLATE {
+
+		@Override
+		public byte[] encode(byte[] data) {
+			return ChunkedDeflateCodec.encode(data);
+		}
+
+		@Override
+		public byte[] decode(byte[] encoded) {
+			return ChunkedDeflateCodec.decode(encoded);
+		}
+
+		@Override
+		public InputStream decode(InputStream encoded) throws IOException {
+			return ChunkedDeflateCodec.decode(encoded);
+		}
+	};
+
+	/**
+	 * データを圧縮する。
+	 */
+	public abstract byte[] encode(byte[] data);
+
+	/**
+	 * 圧縮したデータを伸長する。
+	 */
+	public abstract byte[] decode(byte[] encoded);
+
+	/**
+	 * 圧縮したデータのストリームを、伸長しながら読み込む
+	 * ストリームを返す。
+	 */
+	public abstract InputStream decode(InputStream encoded) throws IOException;
+
+	/**
+	 * wavCodec列の値から圧縮方式を返す。nullは圧縮しないことを表す。
+	 */
+	static WavCodec of(String name) {
+		return name == null ? NONE : valueOf(name);
+	}
+}
@@ -0,0 +1,150 @@
+package org.beginningee6.book.chapter03.ex04;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * wavのデータから、一覧表示の波形のサムネイルに使用する
+ * プレビュー（ピークの配列）を作成するユーティリティ。
+ *
+ * wavのデータは16ビット・リトルエンディアンのPCMとして扱う。
+ * データの先頭にRIFFヘッダがある場合は、dataチャンクまで読み飛ばす。
+ *
+ * プレビューは最大SIZEバイトの配列で、各要素はその区間の
+ * 振幅のピークを0～255（符号なし）に縮小した値である。
+ * データ全体をヒープに読み込まずに、ストリームから
+ * BLOCK_SAMPLESサンプルごとのピークを求めてから縮小する。
+ */
+public final class WavePreview {
+
+	/**
+	 * プレビューの最大バイト数
+	 */
+	public static final int SIZE = 200;
+
+	/**
+	 * 最初にピークを求めるサンプル数の単位
+	 */
+	static final int BLOCK_SAMPLES = 1024;
+
+	private WavePreview() {}
+
+	/**
+	 * ストリームから読み込んだwavのデータのプレビューを作成する。
+	 *
+	 * @param in wavのデータ。このメソッドではクローズしない
+	 * @return プレビュー。サンプルが無い場合は空の配列
+	 */
+	public static byte[] compute(InputStream in) throws IOException {
+
+		BufferedInputStream buffered = new BufferedInputStream(in, TrackAudioStore.CHUNK_SIZE);
+		skipRiffHeader(buffered);
+
+		int[] blocks = new int[64];
+		int blockCount = 0;
+		int peak = 0;
+		int samples = 0;
+
+		int low;
+		while ((low = buffered.read()) != -1) {
+			int high = buffered.read();
+			if (high == -1) {
+				break;
+			}
+			int sample = (short) ((high << 8) | low);
+			peak = Math.max(peak, Math.abs(sample));
+			if (++samples == BLOCK_SAMPLES) {
+				blocks = append(blocks, blockCount++, peak);
+				peak = 0;
+				samples = 0;
+			}
+		}
+		if (samples > 0) {
+			blocks = append(blocks, blockCount++, peak);
+		}
+
+		int size = Math.min(SIZE, blockCount);
+		byte[] preview = new byte[size];
+		for (int i = 0; i < size; i++) {
+			int from = (int) ((long) i * blockCount / size);
+			int to = (int) ((long) (i + 1) * blockCount / size);
+			int max = 0;
+			for (int j = from; j < to; j++) {
+				max = Math.max(max, blocks[j]);
+			}
+			preview[i] = (byte) Math.min(255, max * 255 / 32767);
+		}
+		return preview;
+	}
+
+	private static int[] append(int[] blocks, int count, int peak) {
+		if (count == blocks.length) {
+			int[] grown = new int[blocks.length * 2];
+			System.arraycopy(blocks, 0, grown, 0, count);
+			blocks = grown;
+		}
+		blocks[count] = peak;
+		return blocks;
+	}
+
+	/**
+	 * プレビューの各要素を0～255の値として返す。
+	 */
+	public static int peak(byte[] preview, int index) {
+		return preview[index] & 0xFF;
+	}
+
+	/**
+	 * RIFFヘッダがある場合は、dataチャンクの先頭まで読み飛ばす。
+	 * 無い場合は、ストリームの位置を戻す。
+	 */
+	private static void skipRiffHeader(BufferedInputStream in) throws IOException {
+
+		in.mark(12);
+		byte[] header = new byte[12];
+		if (read(in, header) < 12 || !"RIFF".equals(ascii(header, 0)) || !"WAVE".equals(ascii(header, 8))) {
+			in.reset();
+			return;
+		}
+
+		byte[] chunk = new byte[8];
+		while (read(in, chunk) == 8) {
+			long size = (chunk[4] & 0xFFL) | (chunk[5] & 0xFFL) << 8
+					| (chunk[6] & 0xFFL) << 16 | (chunk[7] & 0xFFL) << 24;
+			if ("data".equals(ascii(chunk, 0))) {
+				return;
+			}
+			// チャンクは2バイト境界に揃えられる
+			long remaining = size + (size & 1);
+			while (remaining > 0) {
+				long skipped = in.skip(remaining);
+				if (skipped <= 0) {
+					throw new EOFException("Truncated RIFF chunk");
+				}
+				remaining -= skipped;
+			}
+		}
+	}
+
+	private static int read(InputStream in, byte[] buffer) throws IOException {
+		int offset = 0;
+		while (offset < buffer.length) {
+			int read = in.read(buffer, offset, buffer.length - offset);
+			if (read == -1) {
+				break;
+			}
+			offset += read;
+		}
+		return offset;
+	}
+
+	private static String ascii(byte[] bytes, int offset) {
+		char[] chars = new char[4];
+		for (int i = 0; i < 4; i++) {
+			chars[i] = (char) (bytes[offset + i] & 0xFF);
+		}
+		return new String(chars);
+	}
+}
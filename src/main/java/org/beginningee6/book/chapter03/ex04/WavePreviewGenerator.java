@@ -0,0 +1,164 @@
+package org.beginningee6.book.chapter03.ex04;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.ejb.AsyncResult;
+import javax.ejb.Asynchronous;
+import javax.ejb.EJB;
+import javax.ejb.Stateless;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.naming.NamingException;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import org.beginningee6.book.chapter03.util.TransactionCompletion;
+
+/**
+ * Track04エンティティのwavから波形のプレビュー（WavePreview）を
+ * 作成し、wavePreview列に格納するサービス。
+ *
+ * wavが書き込まれたトランザクションのコミット後に、
+ * WavePreviewListenerやTrackAudioStoreなどから
+ * generateAfterCommit()で呼び出され、リクエストの
+ * スレッドとは別のスレッドで非同期に実行される。
+ *
+ * wavはTrackAudioStoreからストリームとして読み込むため
+ * （TrackBlobStoreに格納されている場合も含む）、プレビューの作成で
+ * wav全体がヒープに読み込まれることは無い。
+ * wavが無いトラックには空の配列を格納する。
+ *
+ * プレビューは、作成を開始した時点のwavRevision（wavの更新回数）が
+ * 変わっていない場合にのみ格納する。作成中にwavが更新された場合や、
+ * 古いwavから作成したプレビューが後から完了した場合には格納されず、
+ * 新しいwavのプレビューが上書きされることはない。
+ *
+ * （注）プレビューの格納はJPQLの一括更新で行うため、
+ * すでに永続化コンテキストに読み込まれているTrack04
+ * エンティティには反映されない。wavePreview列はエンティティから
+ * 書き込まれないため、そのエンティティをマージしても
+ * プレビューは上書きされない。
+ */
+@Stateless
+public class WavePreviewGenerator {
+
+	private static final Logger logger = Logger.getLogger(WavePreviewGenerator.class.getName());
+
+	@PersistenceContext
+	private EntityManager em;
+
+	@EJB
+	private TrackAudioStore audioStore;
+
+	/**
+	 * トラックのプレビューを作成して格納する。
+	 *
+	 * @param id Track04エンティティのID
+	 * @return 格納したプレビュー。エンティティが存在しない場合、
+	 *         または作成中にwavが更新された場合はnull
+	 */
+	@Asynchronous
+	public Future<byte[]> generate(Long id) throws IOException {
+
+		List<Long> revisions = em.createNamedQuery("findWavRevision", Long.class)
+				.setParameter("id", id)
+				.getResultList();
+		if (revisions.isEmpty()) {
+			return new AsyncResult<byte[]>(null);
+		}
+		long revision = revisions.get(0) == null ? 0 : revisions.get(0);
+
+		byte[] preview;
+		try {
+			preview = compute(id);
+		} catch (IOException e) {
+			// 呼び出し側はFutureを参照しないことが多いため、ここで記録する
+			logger.log(Level.WARNING, "Failed to generate wave preview of Track04 " + id, e);
+			throw e;
+		}
+
+		int updated = em.createNamedQuery("updateWavePreview")
+				.setParameter("wavePreview", preview)
+				.setParameter("id", id)
+				.setParameter("wavRevision", revision)
+				.executeUpdate();
+		if (updated == 0) {
+			// 作成中に削除された、またはwavが更新された（新しいwavのプレビューは別に作成される）
+			return new AsyncResult<byte[]>(null);
+		}
+
+		logger.fine("Generated wave preview of Track04 " + id + " (" + preview.length + " peaks)");
+		return new AsyncResult<byte[]>(preview);
+	}
+
+	private byte[] compute(Long id) throws IOException {
+
+		InputStream in = audioStore.openWav(id);
+		if (in == null) {
+			return new byte[0];
+		}
+
+		try {
+			return WavePreview.compute(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * トラックの古いプレビューを削除し、wavRevisionを進める。
+	 * 作成中のプレビューは格納されなくなる。
+	 */
+	@TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+	public void invalidate(Long id) {
+		em.createNamedQuery("clearWavePreview").setParameter("id", id).executeUpdate();
+	}
+
+	/**
+	 * 現在のトランザクションがコミットされた後に、トラックの
+	 * プレビューを非同期に作成する。WavePreviewGeneratorが
+	 * デプロイされていない場合は何もしない。
+	 */
+	static void generateAfterCommit(Long id) {
+		afterCommit(id, false);
+	}
+
+	/**
+	 * 現在のトランザクションがコミットされた後に、トラックの
+	 * 古いプレビューを削除し、非同期に作成し直す。
+	 * エンティティのsetWav()によりwavが更新された場合に使用する。
+	 */
+	static void regenerateAfterCommit(Long id) {
+		afterCommit(id, true);
+	}
+
+	private static void afterCommit(final Long id, final boolean invalidate) {
+
+		try {
+			final WavePreviewGenerator generator =
+					TransactionCompletion.lookup("java:module/WavePreviewGenerator", WavePreviewGenerator.class);
+
+			TransactionCompletion.afterCommit(new Runnable() {
+
+				public void run() {
+					try {
+						if (invalidate) {
+							generator.invalidate(id);
+						}
+						generator.generate(id);
+					} catch (IOException e) {
+						// 非同期メソッドのため、ここでは発生しない
+						logger.log(Level.WARNING, "Failed to generate wave preview of Track04 " + id, e);
+					}
+				}
+			});
+		} catch (NamingException e) {
+			logger.log(Level.FINE, "WavePreviewGenerator is not available", e);
+		}
+	}
+}
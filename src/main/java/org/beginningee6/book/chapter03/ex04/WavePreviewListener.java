@@ -0,0 +1,33 @@
+package org.beginningee6.book.chapter03.ex04;
+
+import javax.persistence.PostPersist;
+import javax.persistence.PostUpdate;
+
+/**
+ * Track04エンティティのwavが書き込まれた場合に、
+ * WavePreviewGeneratorでプレビューを作成するエンティティリスナー。
+ *
+ * 永続化したエンティティと、setWav()を実行した後に更新された
+ * エンティティだけを対象とする。setWav()の実行は永続化される
+ * wavVersionで判定するため、setWav()を実行した切り離された
+ * エンティティのマージも対象となる。setWav()を実行していない
+ * エンティティのマージでは、プレビューは作成し直さない。
+ * 更新の場合は、コミット後に古いプレビューを削除してから
+ * 非同期に作成する。
+ *
+ * WavePreviewGeneratorがデプロイされていない場合は何もしない。
+ */
+public class WavePreviewListener {
+
+	@PostPersist
+	public void generate(Track04 track) {
+		WavePreviewGenerator.generateAfterCommit(track.getId());
+	}
+
+	@PostUpdate
+	public void regenerate(Track04 track) {
+		if (track.isWavChanged()) {
+			WavePreviewGenerator.regenerateAfterCommit(track.getId());
+		}
+	}
+}
@@ -7,7 +7,11 @@ import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.PostLoad;
+import javax.persistence.PostPersist;
+import javax.persistence.PostUpdate;
 import javax.persistence.Table;
+import javax.persistence.Transient;
 
 /**
  * ＠Columnアノテーションによるデータベーステーブル側での
@@ -19,6 +23,17 @@ import javax.persistence.Table;
  * ・updatable属性で更新可能かどうかを設定する。（falseで読み出しのみ）
  * ・length属性でカラムのサイズを設定する。
  * 
+ * これらの制約への違反はフラッシュ時まで検出されないため、
+ * Book05Repositoryでは、ColumnConstraintValidatorにより
+ * 永続化・マージの前に検査する。
+ * 
+ * setterメソッドで変更したフィールドは、dirtyAttributesの
+ * ビットとして記録される。Book05Updaterは、変更された
+ * カラムだけを更新するUPDATE文を発行する。
+ * dirtyAttributesは永続化しないが、デタッチされたエンティティが
+ * シリアライズされても失われないようtransientにはしない。
+ * 読み込み・永続化・フラッシュによる更新の後にはクリアする。
+ * 
  */
 @Entity
 @Table(name = "book_ex05")			// データベース上のテーブル名は book_ex05
@@ -26,6 +41,13 @@ public class Book05 implements Serializable {
 	
 	private static final long serialVersionUID = 1L;
 	
+	// 変更を記録するフィールドのビット（titleは更新できないため記録しない）
+	static final int PRICE = 1 << 0;
+	static final int DESCRIPTION = 1 << 1;
+	static final int ISBN = 1 << 2;
+	static final int NB_OF_PAGE = 1 << 3;
+	static final int ILLUSTRATIONS = 1 << 4;
+	
     @Id
     @GeneratedValue(strategy = GenerationType.AUTO)
     private Long id;
@@ -45,6 +67,9 @@ public class Book05 implements Serializable {
     private Integer nbOfPage;		// データベース上のカラム名は nb_of_page
     								// Null値は不許可
     private Boolean illustrations;
+    
+    @Transient
+    private int dirtyAttributes;	// setterメソッドで変更されたフィールドのビット（シリアライズする）
 	
     public Book05() {}
 
@@ -72,6 +97,7 @@ public class Book05 implements Serializable {
 
 	public void setPrice(Float price) {
 		this.price = price;
+		dirtyAttributes |= PRICE;
 	}
 
 	public String getDescription() {
@@ -80,6 +106,7 @@ public class Book05 implements Serializable {
 
 	public void setDescription(String description) {
 		this.description = description;
+		dirtyAttributes |= DESCRIPTION;
 	}
 
 	public String getIsbn() {
@@ -88,6 +115,7 @@ public class Book05 implements Serializable {
 
 	public void setIsbn(String isbn) {
 		this.isbn = isbn;
+		dirtyAttributes |= ISBN;
 	}
 
 	public Integer getNbOfPage() {
@@ -96,6 +124,7 @@ public class Book05 implements Serializable {
 
 	public void setNbOfPage(Integer nbOfPage) {
 		this.nbOfPage = nbOfPage;
+		dirtyAttributes |= NB_OF_PAGE;
 	}
 
 	public Boolean getIllustrations() {
@@ -104,12 +133,31 @@ public class Book05 implements Serializable {
 
 	public void setIllustrations(Boolean illustrations) {
 		this.illustrations = illustrations;
+		dirtyAttributes |= ILLUSTRATIONS;
 	}
 
 	public Long getId() {
 		return id;
 	}
 
+	/**
+	 * setterメソッドで変更されたフィールドのビット
+	 */
+	int getDirtyAttributes() {
+		return dirtyAttributes;
+	}
+
+	/**
+	 * 変更の記録をクリアする。
+	 * 読み込み・永続化・フラッシュによる更新の後にも呼び出される。
+	 */
+	@PostLoad
+	@PostPersist
+	@PostUpdate
+	void clearDirtyAttributes() {
+		dirtyAttributes = 0;
+	}
+
 	@Override
 	public String toString() {
 		return "Book05 [id=" + id + ", title=" + title + ", price=" + price
@@ -0,0 +1,56 @@
+package org.beginningee6.book.chapter03.ex05;
+
+import javax.ejb.Stateless;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import org.beginningee6.book.chapter03.ex05.ColumnConstraintValidator.Operation;
+
+/**
+ * Book05エンティティを、＠Columnアノテーションの制約を
+ * 検査してから永続化・マージするリポジトリ。
+ *
+ * 制約に違反している場合は、データベースにアクセスせずに
+ * すべての違反を含むColumnConstraintViolationExceptionを
+ * スローする。この場合、トランザクションはロールバックに
+ * マークされないため、呼び出し側は値を修正して続行できる。
+ *
+ * （注）管理状態のエンティティを直接変更した場合は、
+ * このリポジトリを経由しないため検査されない。
+ */
+@Stateless
+public class Book05Repository {
+
+	private static final ColumnConstraintValidator<Book05> validator =
+			ColumnConstraintValidator.forClass(Book05.class);
+
+	@PersistenceContext
+	private EntityManager em;
+
+	/**
+	 * エンティティを検査してから永続化する。
+	 *
+	 * @throws ColumnConstraintViolationException 制約に違反している場合
+	 */
+	public void persist(Book05 book) {
+		validator.check(book, Operation.INSERT);
+		em.persist(book);
+	}
+
+	/**
+	 * エンティティを検査してからマージする。
+	 * IDがnullの新しいエンティティはマージにより挿入されるため、
+	 * 挿入時（Operation.INSERT）の制約で検査する。
+	 *
+	 * @return マージされた管理状態のエンティティ
+	 * @throws ColumnConstraintViolationException 制約に違反している場合
+	 */
+	public Book05 merge(Book05 book) {
+		validator.check(book, book.getId() == null ? Operation.INSERT : Operation.UPDATE);
+		return em.merge(book);
+	}
+
+	public Book05 find(Long id) {
+		return em.find(Book05.class, id);
+	}
+}
@@ -0,0 +1,125 @@
+package org.beginningee6.book.chapter03.ex05;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.ejb.Stateless;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.Query;
+
+import org.beginningee6.book.chapter03.ex05.ColumnConstraintValidator.Operation;
+
+/**
+ * Book05エンティティの変更されたカラムだけを更新するEJB。
+ *
+ * em.merge()によるフラッシュでは、1つのフィールドだけを変更した
+ * 場合でも、updatable = falseのbook_titleを除くすべてのカラムを
+ * 含むUPDATE文が発行される。このクラスでは、setterメソッドで
+ * 変更されたフィールド（Book05.getDirtyAttributes()）のカラムだけを
+ * 含むJPQLの一括更新を発行する。book_titleは更新しない。
+ *
+ * UPDATE文は変更されたフィールドの組み合わせ（ビット）ごとに
+ * 一度だけ組み立てて保持する。同じ文字列のJPQLを使用するため、
+ * プロバイダのクエリプランのキャッシュも再利用される。
+ *
+ * （注）一括更新は永続化コンテキストを経由しないため、
+ * デタッチされたエンティティの変更の保存に使用すること。
+ * 同じトランザクションで管理状態のBook05エンティティを
+ * 変更すると、フラッシュ時にこの更新が上書きされる。
+ */
+@Stateless
+public class Book05Updater {
+
+	// ビットの順に並んだフィールド名
+	private static final String[] ATTRIBUTES = {
+		"price", "description", "isbn", "nbOfPage", "illustrations"
+	};
+
+	private static final int ALL_ATTRIBUTES = (1 << ATTRIBUTES.length) - 1;
+
+	private static final ColumnConstraintValidator<Book05> validator =
+			ColumnConstraintValidator.forClass(Book05.class);
+
+	// 変更されたフィールドのビットごとのUPDATE文
+	private static final ConcurrentMap<Integer, String> statements = new ConcurrentHashMap<Integer, String>();
+
+	@PersistenceContext
+	private EntityManager em;
+
+	/**
+	 * エンティティの変更されたカラムだけを更新する。
+	 * 更新後は変更の記録をクリアする。
+	 *
+	 * @return 更新した行数。変更が無い場合は0
+	 * @throws ColumnConstraintViolationException 制約に違反している場合
+	 */
+	public int update(Book05 book) {
+
+		if (book.getId() == null) {
+			throw new IllegalArgumentException("Book05 has not been persisted: " + book);
+		}
+
+		int dirty = book.getDirtyAttributes() & ALL_ATTRIBUTES;
+		if (dirty == 0) {
+			return 0;
+		}
+		validator.check(book, Operation.UPDATE);
+
+		Query query = em.createQuery(statement(dirty)).setParameter("id", book.getId());
+		if ((dirty & Book05.PRICE) != 0) {
+			query.setParameter("price", book.getPrice());
+		}
+		if ((dirty & Book05.DESCRIPTION) != 0) {
+			query.setParameter("description", book.getDescription());
+		}
+		if ((dirty & Book05.ISBN) != 0) {
+			query.setParameter("isbn", book.getIsbn());
+		}
+		if ((dirty & Book05.NB_OF_PAGE) != 0) {
+			query.setParameter("nbOfPage", book.getNbOfPage());
+		}
+		if ((dirty & Book05.ILLUSTRATIONS) != 0) {
+			query.setParameter("illustrations", book.getIllustrations());
+		}
+
+		int updated = query.executeUpdate();
+		book.clearDirtyAttributes();
+		return updated;
+	}
+
+	/**
+	 * 変更されたフィールドのビットに対応するUPDATE文を返す。
+	 */
+	static String statement(int dirty) {
+		String statement = statements.get(dirty);
+		if (statement == null) {
+			StringBuilder jpql = new StringBuilder("UPDATE Book05 b SET ");
+			boolean first = true;
+			for (int i = 0; i < ATTRIBUTES.length; i++) {
+				if ((dirty & (1 << i)) != 0) {
+					if (!first) {
+						jpql.append(", ");
+					}
+					jpql.append("b.").append(ATTRIBUTES[i]).append(" = :").append(ATTRIBUTES[i]);
+					first = false;
+				}
+			}
+			jpql.append(" WHERE b.id = :id");
+
+			statement = jpql.toString();
+			String existing = statements.putIfAbsent(dirty, statement);
+			if (existing != null) {
+				statement = existing;
+			}
+		}
+		return statement;
+	}
+
+	/**
+	 * 保持しているUPDATE文の数（テスト用）
+	 */
+	static int getStatementCount() {
+		return statements.size();
+	}
+}
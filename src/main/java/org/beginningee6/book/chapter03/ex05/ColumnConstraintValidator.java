@@ -0,0 +1,242 @@
+package org.beginningee6.book.chapter03.ex05;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.persistence.Column;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Transient;
+import javax.persistence.Version;
+
+/**
+ * エンティティのフィールドの＠Columnアノテーションに指定された
+ * 制約（nullable、length）を、永続化の前に検査するバリデーター。
+ *
+ * これらの制約はデータベースのテーブル定義にだけ反映されるため、
+ * 違反はINSERTやUPDATEの実行時（フラッシュ時）まで検出されず、
+ * データベースへの往復とトランザクションのロールバックが発生する。
+ * このクラスでは、エンティティクラスごとに一度だけアノテーションを
+ * 読み込んで検査の手順（Checkの配列）に変換し、以降はその手順を
+ * 実行するだけで検査する。アノテーションの読み込みやフィールドの
+ * 検索は、検査のたびには行わない。
+ *
+ * （注）Java 6では実行時にコードを生成するにはバイトコードを扱う
+ * ライブラリが必要になるため、各Checkは事前に取得してアクセス可能に
+ * したFieldから値を読み込む。
+ *
+ * 検査する制約は以下のとおり。
+ *
+ * ・nullable = false：値がnullでないこと。ただし、＠GeneratedValueを
+ *   指定したIDと＠Versionのフィールドは、プロバイダが値を設定するため除く。
+ * ・length：String型のフィールドの文字列長がlength以下であること。
+ *   ＠Columnアノテーションが無い場合はデフォルトの255とする。
+ *
+ * 更新時（Operation.UPDATE）は、updatable = falseのカラムは
+ * プロバイダが更新しないため検査しない。同様に、挿入時
+ * （Operation.INSERT）はinsertable = falseのカラムを検査しない。
+ *
+ * インスタンスは不変であり、複数のスレッドから使用できる。
+ */
+public final class ColumnConstraintValidator<T> {
+
+	/**
+	 * 検査する操作
+	 */
+	public enum Operation {
+		INSERT,
+		UPDATE
+	}
+
+	/**
+	 * ＠Columnアノテーションのlengthのデフォルト値
+	 */
+	static final int DEFAULT_LENGTH = 255;
+
+	private static final ConcurrentMap<Class<?>, ColumnConstraintValidator<?>> validators =
+			new ConcurrentHashMap<Class<?>, ColumnConstraintValidator<?>>();
+
+	private final Class<T> entityClass;
+	private final Check[] insertChecks;
+	private final Check[] updateChecks;
+
+	private ColumnConstraintValidator(Class<T> entityClass) {
+		this.entityClass = entityClass;
+
+		List<Check> inserts = new ArrayList<Check>();
+		List<Check> updates = new ArrayList<Check>();
+		for (Class<?> type = entityClass; type != null && type != Object.class; type = type.getSuperclass()) {
+			for (Field field : type.getDeclaredFields()) {
+				compile(field, inserts, updates);
+			}
+		}
+		this.insertChecks = inserts.toArray(new Check[inserts.size()]);
+		this.updateChecks = updates.toArray(new Check[updates.size()]);
+	}
+
+	/**
+	 * エンティティクラスのバリデーターを返す。
+	 * バリデーターはエンティティクラスごとに一度だけ作成される。
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> ColumnConstraintValidator<T> forClass(Class<T> entityClass) {
+		ColumnConstraintValidator<?> validator = validators.get(entityClass);
+		if (validator == null) {
+			validator = new ColumnConstraintValidator<T>(entityClass);
+			ColumnConstraintValidator<?> existing = validators.putIfAbsent(entityClass, validator);
+			if (existing != null) {
+				validator = existing;
+			}
+		}
+		return (ColumnConstraintValidator<T>) validator;
+	}
+
+	/**
+	 * エンティティを検査し、すべての違反を返す。
+	 *
+	 * @return 違反。違反が無い場合は空のリスト
+	 */
+	public List<ColumnConstraintViolation> validate(T entity, Operation operation) {
+
+		Check[] checks = operation == Operation.INSERT ? insertChecks : updateChecks;
+		List<ColumnConstraintViolation> violations = null;
+		for (Check check : checks) {
+			ColumnConstraintViolation violation = check.check(entity);
+			if (violation != null) {
+				if (violations == null) {
+					violations = new ArrayList<ColumnConstraintViolation>();
+				}
+				violations.add(violation);
+			}
+		}
+		return violations == null ? Collections.<ColumnConstraintViolation>emptyList() : violations;
+	}
+
+	/**
+	 * エンティティを検査し、違反があればすべての違反を含む
+	 * ColumnConstraintViolationExceptionをスローする。
+	 */
+	public void check(T entity, Operation operation) {
+		List<ColumnConstraintViolation> violations = validate(entity, operation);
+		if (!violations.isEmpty()) {
+			throw new ColumnConstraintViolationException(entityClass, violations);
+		}
+	}
+
+	/**
+	 * 検査の手順の数（テスト用）
+	 */
+	int getCheckCount(Operation operation) {
+		return operation == Operation.INSERT ? insertChecks.length : updateChecks.length;
+	}
+
+	/**
+	 * フィールドのアノテーションを検査の手順に変換する。
+	 */
+	private static void compile(Field field, List<Check> inserts, List<Check> updates) {
+
+		int modifiers = field.getModifiers();
+		if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)
+				|| field.isAnnotationPresent(Transient.class)) {
+			return;
+		}
+
+		Column column = field.getAnnotation(Column.class);
+		String columnName = column != null && column.name().length() > 0 ? column.name() : field.getName();
+		boolean insertable = column == null || column.insertable();
+		boolean updatable = column == null || column.updatable();
+
+		field.setAccessible(true);
+
+		boolean generated = field.isAnnotationPresent(GeneratedValue.class)
+				|| field.isAnnotationPresent(Version.class);
+		if (column != null && !column.nullable() && !generated) {
+			Check check = new NotNullCheck(field, columnName);
+			if (insertable) {
+				inserts.add(check);
+			}
+			if (updatable) {
+				updates.add(check);
+			}
+		}
+
+		if (field.getType() == String.class) {
+			int length = column == null ? DEFAULT_LENGTH : column.length();
+			Check check = new LengthCheck(field, columnName, length);
+			if (insertable) {
+				inserts.add(check);
+			}
+			if (updatable) {
+				updates.add(check);
+			}
+		}
+	}
+
+	/**
+	 * 1つのカラムの1つの制約の検査
+	 */
+	private abstract static class Check {
+
+		final Field field;
+		final String column;
+
+		Check(Field field, String column) {
+			this.field = field;
+			this.column = column;
+		}
+
+		/**
+		 * @return 違反。違反が無い場合はnull
+		 */
+		abstract ColumnConstraintViolation check(Object entity);
+
+		Object value(Object entity) {
+			try {
+				return field.get(entity);
+			} catch (IllegalAccessException e) {
+				// コンパイル時にアクセス可能にしているため発生しない
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+	private static class NotNullCheck extends Check {
+
+		NotNullCheck(Field field, String column) {
+			super(field, column);
+		}
+
+		@Override
+		ColumnConstraintViolation check(Object entity) {
+			if (value(entity) != null) {
+				return null;
+			}
+			return new ColumnConstraintViolation(field.getName(), column,
+					ColumnConstraintViolation.Kind.NOT_NULL, 0, 0);
+		}
+	}
+
+	private static class LengthCheck extends Check {
+
+		private final int length;
+
+		LengthCheck(Field field, String column, int length) {
+			super(field, column);
+			this.length = length;
+		}
+
+		@Override
+		ColumnConstraintViolation check(Object entity) {
+			String value = (String) value(entity);
+			if (value == null || value.length() <= length) {
+				return null;
+			}
+			return new ColumnConstraintViolation(field.getName(), column,
+					ColumnConstraintViolation.Kind.LENGTH, length, value.length());
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package org.beginningee6.book.chapter03.ex05;
+
+import java.io.Serializable;
+
+/**
+ * ColumnConstraintValidatorが検出した、＠Columnアノテーションの
+ * 制約への違反。
+ */
+public class ColumnConstraintViolation implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * 違反した制約の種類
+	 */
+	public enum Kind {
+
+		/**
+		 * nullable = falseのカラムにnullが設定されている
+		 */
+		NOT_NULL,
+
+		/**
+		 * 文字列の長さがlengthを超えている
+		 */
+		LENGTH
+	}
+
+	private final String field;
+	private final String column;
+	private final Kind kind;
+	private final int limit;
+	private final int actual;
+
+	public ColumnConstraintViolation(String field, String column, Kind kind, int limit, int actual) {
+		this.field = field;
+		this.column = column;
+		this.kind = kind;
+		this.limit = limit;
+		this.actual = actual;
+	}
+
+	/**
+	 * エンティティのフィールド名
+	 */
+	public String getField() {
+		return field;
+	}
+
+	/**
+	 * データベース上のカラム名
+	 */
+	public String getColumn() {
+		return column;
+	}
+
+	public Kind getKind() {
+		return kind;
+	}
+
+	/**
+	 * LENGTHの場合は最大文字列長。NOT_NULLの場合は0
+	 */
+	public int getLimit() {
+		return limit;
+	}
+
+	/**
+	 * LENGTHの場合は実際の文字列長。NOT_NULLの場合は0
+	 */
+	public int getActual() {
+		return actual;
+	}
+
+	@Override
+	public String toString() {
+		if (kind == Kind.NOT_NULL) {
+			return field + " (" + column + ") must not be null";
+		}
+		return field + " (" + column + ") must be at most " + limit + " characters but was " + actual;
+	}
+}
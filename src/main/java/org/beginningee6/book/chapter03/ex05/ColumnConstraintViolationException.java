@@ -0,0 +1,32 @@
+package org.beginningee6.book.chapter03.ex05;
+
+import java.util.Collections;
+import java.util.List;
+
+import javax.ejb.ApplicationException;
+import javax.persistence.PersistenceException;
+
+/**
+ * エンティティが＠Columnアノテーションの制約に違反している
+ * ことを、永続化の前に検出したことを表す例外。
+ *
+ * 検出したすべての違反をgetViolations()で返す。
+ * データベースにアクセスする前にスローされるため、
+ * トランザクションはロールバックにマークされない。
+ */
+@ApplicationException
+public class ColumnConstraintViolationException extends PersistenceException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final List<ColumnConstraintViolation> violations;
+
+	public ColumnConstraintViolationException(Class<?> entityClass, List<ColumnConstraintViolation> violations) {
+		super(entityClass.getSimpleName() + " violates column constraints: " + violations);
+		this.violations = Collections.unmodifiableList(violations);
+	}
+
+	public List<ColumnConstraintViolation> getViolations() {
+		return violations;
+	}
+}
@@ -0,0 +1,333 @@
+package org.beginningee6.book.chapter03.ex06;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.EJB;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.Timeout;
+import javax.ejb.Timer;
+import javax.ejb.TimerConfig;
+import javax.ejb.TimerService;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+
+/**
+ * Customer06の生年月日（dateOfBirth）の日ごとの人数を
+ * メモリ上に保持し、年齢の分布をデータベースにアクセスせずに
+ * 返すシングルトン。
+ *
+ * 年齢の分布を求めるたびにすべてのCustomer06を読み込むと、
+ * 顧客の数に比例した時間がかかる。このクラスでは、生年月日の
+ * エポック日（EpochDays）ごとの人数をFenwick木（Binary Indexed Tree）
+ * で保持する。ある日以前に生まれた人数はO(log N)（Nは日数で、
+ * 顧客の数には依存しない）で求められるため、年齢の区分ごとの
+ * 人数は区分の数に比例した時間で求められる。
+ *
+ * 年齢の境界となる生年月日は問い合わせのたびに今日の日付から
+ * 計算するため、日付が変わると自動的に境界が移動する。
+ * 人数の集計を作り直す必要は無い。
+ *
+ * 人数はBirthDateHistogramListenerにより、Customer06の
+ * 永続化・更新・削除がコミットされた後に更新される。更新前の
+ * 生年月日がわかるよう、顧客のIDごとの生年月日も保持する。
+ * 顧客の数だけエントリを保持するため、Long、Integerのオブジェクトを
+ * 作成しないLongIntMapで保持する。
+ *
+ * 起動時には、タイマーからcustomer_ex06テーブルをIDの範囲で
+ * 分割し、BirthDateHistogramLoaderで並列に読み込んで集計を
+ * 作り直す。作り直している間の更新は、作り直した後に反映する。
+ * 作り直しは同時に1つだけ実行する。
+ *
+ * （注）JPQLの一括更新・削除ではエンティティリスナーが
+ * 呼び出されないため、その後はrebuild()で作り直すこと。
+ * PartitionedCustomer06Repositoryが月ごとのバケットのテーブルに
+ * JDBCで格納した顧客は、customer_ex06テーブルに含まれず
+ * エンティティリスナーも呼び出されないため、集計されない。
+ * MINIMUM_DAYより前、またはMAXIMUM_DAY以降の生年月日は、
+ * それぞれ最初と最後の日として数える。
+ *
+ * 状態は同期ブロックで保護し、データベースからの読み込みは
+ * ロックの外で行う（ConcurrencyManagementType.BEAN）。
+ */
+@Singleton
+@Startup
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+public class BirthDateHistogram {
+
+	private static final Logger logger = Logger.getLogger(BirthDateHistogram.class.getName());
+
+	/**
+	 * 集計する最初の日（1900年1月1日）
+	 */
+	public static final int MINIMUM_DAY = EpochDays.of(1900, 1, 1);
+
+	/**
+	 * 集計する日の終わり（2100年1月1日、この日を含まない）
+	 */
+	public static final int MAXIMUM_DAY = EpochDays.of(2100, 1, 1);
+
+	private static final int DAYS = MAXIMUM_DAY - MINIMUM_DAY;
+
+	@EJB
+	private BirthDateHistogramLoader loader;
+
+	@Resource
+	private TimerService timerService;
+
+	private final Object lock = new Object();
+
+	// 作り直しを1つずつ実行するためのロック
+	private final Object rebuildLock = new Object();
+
+	// 日ごとの人数のFenwick木（インデックスは1から）
+	private long[] tree = new long[DAYS + 1];
+
+	// 顧客のIDごとの生年月日のエポック日（生年月日がnullの顧客は含まない）
+	private LongIntMap days = new LongIntMap();
+
+	// 作り直している間の更新（作り直していない場合はnull）
+	private List<Update> pending;
+
+	@PostConstruct
+	public void initialize() {
+		timerService.createSingleActionTimer(0, new TimerConfig("rebuild", false));
+	}
+
+	/**
+	 * 起動時にタイマーから呼び出され、集計を作り直す。
+	 */
+	@Timeout
+	public void initialRebuild(Timer timer) {
+		try {
+			rebuild();
+		} catch (RuntimeException e) {
+			logger.log(Level.WARNING, "Failed to rebuild Customer06 birth date histogram", e);
+		}
+	}
+
+	/**
+	 * customer_ex06テーブルから集計を作り直す。
+	 * 作り直している場合は、それが終わるまで待ってから作り直す。
+	 */
+	public void rebuild() {
+		synchronized (rebuildLock) {
+			doRebuild();
+		}
+	}
+
+	private void doRebuild() {
+
+		synchronized (lock) {
+			pending = new ArrayList<Update>();
+		}
+
+		LongIntMap loaded = new LongIntMap();
+		try {
+			long[] range = loader.getIdRange();
+			if (range != null) {
+				int slices = Runtime.getRuntime().availableProcessors();
+				long size = (range[1] - range[0]) / slices + 1;
+				List<Future<LongIntMap>> results = new ArrayList<Future<LongIntMap>>(slices);
+				for (long first = range[0]; first <= range[1]; first += size) {
+					results.add(loader.load(first, Math.min(first + size - 1, range[1])));
+				}
+				for (Future<LongIntMap> result : results) {
+					loaded.putAll(result.get());
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			abortRebuild();
+			throw new IllegalStateException("Interrupted while rebuilding Customer06 birth date histogram", e);
+		} catch (ExecutionException e) {
+			abortRebuild();
+			throw new IllegalStateException("Failed to rebuild Customer06 birth date histogram", e.getCause());
+		} catch (RuntimeException e) {
+			abortRebuild();
+			throw e;
+		}
+
+		// 日ごとの人数からFenwick木をO(N)で作成する
+		long[] rebuilt = new long[DAYS + 1];
+		for (int day : loaded.values()) {
+			rebuilt[index(day)]++;
+		}
+		for (int i = 1; i <= DAYS; i++) {
+			int parent = i + (i & -i);
+			if (parent <= DAYS) {
+				rebuilt[parent] += rebuilt[i];
+			}
+		}
+
+		synchronized (lock) {
+			tree = rebuilt;
+			days = loaded;
+			for (Update update : pending) {
+				apply(update.id, update.day);
+			}
+			pending = null;
+		}
+		logger.info("Rebuilt Customer06 birth date histogram: " + loaded.size() + " customers");
+	}
+
+	private void abortRebuild() {
+		synchronized (lock) {
+			pending = null;
+		}
+	}
+
+	/**
+	 * 顧客の生年月日を設定する。
+	 *
+	 * @param dateOfBirth 生年月日。nullの場合は集計から除く
+	 */
+	public void put(Long id, Date dateOfBirth) {
+		Integer day = dateOfBirth == null ? null : EpochDays.of(dateOfBirth);
+		synchronized (lock) {
+			apply(id, day);
+			if (pending != null) {
+				pending.add(new Update(id, day));
+			}
+		}
+	}
+
+	/**
+	 * 顧客を集計から除く。
+	 */
+	public void remove(Long id) {
+		synchronized (lock) {
+			apply(id, null);
+			if (pending != null) {
+				pending.add(new Update(id, null));
+			}
+		}
+	}
+
+	/**
+	 * 生年月日がnullでない顧客の数
+	 */
+	public int getCount() {
+		synchronized (lock) {
+			return days.size();
+		}
+	}
+
+	/**
+	 * 今日の時点での年齢の分布を返す。
+	 *
+	 * @param boundaries 年齢の区分の境界（昇順）
+	 * @return [boundaries[i], boundaries[i + 1])歳の人数。最後の要素は
+	 *         boundaries[boundaries.length - 1]歳以上の人数
+	 */
+	public long[] getAgeDistribution(int... boundaries) {
+		return getAgeDistributionOn(EpochDays.of(new Date()), boundaries);
+	}
+
+	/**
+	 * 指定した日（エポック日）の時点での年齢の分布を返す。
+	 *
+	 * @param boundaries 年齢の区分の境界（昇順）
+	 * @return [boundaries[i], boundaries[i + 1])歳の人数。最後の要素は
+	 *         boundaries[boundaries.length - 1]歳以上の人数
+	 */
+	public long[] getAgeDistributionOn(int today, int... boundaries) {
+
+		// boundaries[i]歳以上 ⇔ 生年月日がbirthDays[i]以前
+		int[] birthDays = new int[boundaries.length];
+		for (int i = 0; i < boundaries.length; i++) {
+			if (boundaries[i] < 0 || (i > 0 && boundaries[i] <= boundaries[i - 1])) {
+				throw new IllegalArgumentException("Age boundaries must be ascending and not negative");
+			}
+			birthDays[i] = yearsBefore(today, boundaries[i]);
+		}
+
+		long[] distribution = new long[boundaries.length];
+		synchronized (lock) {
+			for (int i = 0; i < boundaries.length; i++) {
+				long older = prefix(birthDays[i]);
+				long notYounger = i + 1 < boundaries.length ? prefix(birthDays[i + 1]) : 0;
+				distribution[i] = older - notYounger;
+			}
+		}
+		return distribution;
+	}
+
+	/**
+	 * 顧客の生年月日を変更する。ロックを保持して呼び出すこと。
+	 */
+	private void apply(Long id, Integer day) {
+		if (days.containsKey(id)) {
+			add(index(days.get(id)), -1);
+		}
+		if (day != null) {
+			days.put(id, day);
+			add(index(day), 1);
+		} else {
+			days.remove(id);
+		}
+	}
+
+	private void add(int index, long delta) {
+		for (int i = index; i <= DAYS; i += i & -i) {
+			tree[i] += delta;
+		}
+	}
+
+	/**
+	 * 生年月日がday以前の人数。ロックを保持して呼び出すこと。
+	 */
+	private long prefix(int day) {
+		if (day < MINIMUM_DAY) {
+			return 0;
+		}
+		long count = 0;
+		for (int i = index(day); i > 0; i -= i & -i) {
+			count += tree[i];
+		}
+		return count;
+	}
+
+	private static int index(int day) {
+		return Math.max(MINIMUM_DAY, Math.min(day, MAXIMUM_DAY - 1)) - MINIMUM_DAY + 1;
+	}
+
+	/**
+	 * 指定した日のyears年前の日。その日が無い場合（2月29日）は前日。
+	 */
+	static int yearsBefore(int day, int years) {
+		int year = EpochDays.year(day) - years;
+		int month = EpochDays.month(day);
+		int dayOfMonth = EpochDays.dayOfMonth(day);
+		if (month == 2 && dayOfMonth == 29 && !isLeapYear(year)) {
+			dayOfMonth = 28;
+		}
+		return EpochDays.of(year, month, dayOfMonth);
+	}
+
+	private static boolean isLeapYear(int year) {
+		return (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+	}
+
+	private static class Update {
+
+		final Long id;
+		final Integer day;
+
+		Update(Long id, Integer day) {
+			this.id = id;
+			this.day = day;
+		}
+	}
+}
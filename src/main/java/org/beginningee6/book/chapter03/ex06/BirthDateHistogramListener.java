@@ -0,0 +1,69 @@
+package org.beginningee6.book.chapter03.ex06;
+
+import java.util.Date;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.naming.NamingException;
+import javax.persistence.PostPersist;
+import javax.persistence.PostRemove;
+import javax.persistence.PostUpdate;
+
+import org.beginningee6.book.chapter03.util.TransactionCompletion;
+
+/**
+ * Customer06エンティティの永続化・更新・削除を
+ * BirthDateHistogramに通知するエンティティリスナー。
+ *
+ * ロールバックされた変更が集計に残らないよう、
+ * 通知はトランザクションのコミット後に行う。
+ *
+ * BirthDateHistogramがデプロイされていない場合は何もしない。
+ */
+public class BirthDateHistogramListener {
+
+	private static final Logger logger = Logger.getLogger(BirthDateHistogramListener.class.getName());
+
+	@PostPersist
+	@PostUpdate
+	public void put(Customer06 customer) {
+
+		final Long id = customer.getId();
+		final Date dateOfBirth = customer.getDateOfBirth() == null
+				? null : new Date(customer.getDateOfBirth().getTime());
+
+		try {
+			final BirthDateHistogram histogram =
+					TransactionCompletion.lookup("java:module/BirthDateHistogram", BirthDateHistogram.class);
+
+			TransactionCompletion.afterCommit(new Runnable() {
+
+				public void run() {
+					histogram.put(id, dateOfBirth);
+				}
+			});
+		} catch (NamingException e) {
+			logger.log(Level.FINE, "BirthDateHistogram is not available", e);
+		}
+	}
+
+	@PostRemove
+	public void remove(Customer06 customer) {
+
+		final Long id = customer.getId();
+
+		try {
+			final BirthDateHistogram histogram =
+					TransactionCompletion.lookup("java:module/BirthDateHistogram", BirthDateHistogram.class);
+
+			TransactionCompletion.afterCommit(new Runnable() {
+
+				public void run() {
+					histogram.remove(id);
+				}
+			});
+		} catch (NamingException e) {
+			logger.log(Level.FINE, "BirthDateHistogram is not available", e);
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package org.beginningee6.book.chapter03.ex06;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import javax.ejb.AsyncResult;
+import javax.ejb.Asynchronous;
+import javax.ejb.Stateless;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+/**
+ * BirthDateHistogramの集計を作り直すために、customer_ex06テーブルの
+ * IDと生年月日を読み込むEJB。
+ *
+ * load()はIDの範囲ごとに非同期に呼び出され、並列に読み込む。
+ * エンティティではなくIDと生年月日だけを検索する。
+ */
+@Stateless
+public class BirthDateHistogramLoader {
+
+	@PersistenceContext
+	private EntityManager em;
+
+	/**
+	 * Customer06のIDの最小値と最大値を返す。
+	 *
+	 * @return {最小値, 最大値}。顧客が存在しない場合はnull
+	 */
+	public long[] getIdRange() {
+		Object[] range = (Object[]) em.createQuery("SELECT MIN(c.id), MAX(c.id) FROM Customer06 c")
+				.getSingleResult();
+		if (range[0] == null) {
+			return null;
+		}
+		return new long[] { ((Number) range[0]).longValue(), ((Number) range[1]).longValue() };
+	}
+
+	/**
+	 * IDが[first, last]の範囲の顧客の、生年月日のエポック日を返す。
+	 * 生年月日がnullの顧客は含まない。
+	 */
+	@Asynchronous
+	public Future<LongIntMap> load(long first, long last) {
+
+		List<Object[]> rows = em.createQuery("SELECT c.id, c.dateOfBirth FROM Customer06 c"
+				+ " WHERE c.id BETWEEN :first AND :last AND c.dateOfBirth IS NOT NULL", Object[].class)
+			.setParameter("first", first)
+			.setParameter("last", last)
+			.getResultList();
+
+		LongIntMap days = new LongIntMap(rows.size());
+		for (Object[] row : rows) {
+			days.put((Long) row[0], EpochDays.of((Date) row[1]));
+		}
+		return new AsyncResult<LongIntMap>(days);
+	}
+}
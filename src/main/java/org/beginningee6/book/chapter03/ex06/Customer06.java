@@ -4,21 +4,42 @@ import java.io.Serializable;
 import java.util.Date;
 
 import javax.persistence.Entity;
+import javax.persistence.EntityListeners;
 import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
 import javax.persistence.Table;
 import javax.persistence.Temporal;
 import javax.persistence.TemporalType;
 
+import org.beginningee6.book.chapter03.customer.CanonicalEmail;
+import org.beginningee6.book.chapter03.customer.CustomerEmailListener;
+import org.beginningee6.book.chapter03.customer.CustomerPhoneContact;
+import org.beginningee6.book.chapter03.customer.CustomerPhoneListener;
+import org.beginningee6.book.chapter03.customer.PhoneDigits;
+
 /**
  * ＠Temporalアノテーションにより、
  * java.util.Dateやjava.util.Calenderのフィールドを
  * データベース上でDATE、TIME、TIMESTAMP型のうち
  * どのカラム型にマッピングするかを指定する。
+ * 
+ * PartitionedCustomer06Repositoryでは、creationDateの
+ * 月ごとのバケットのテーブルに格納する。
+ * 
+ * 生年月日ごとの人数は、BirthDateHistogramListenerにより
+ * BirthDateHistogramで集計される。
+ * 
+ * メールアドレスは正規化してcanonicalEmailカラムにも格納し、
+ * CustomerEmailIndexで検索する。
+ * 
+ * 電話番号は数字だけにしてphoneDigitsカラムにも格納し、
+ * CustomerPhoneIndexで前方一致の検索をする。
  */
 @Entity
+@EntityListeners({ BirthDateHistogramListener.class, CustomerEmailListener.class,
+	CustomerPhoneListener.class })
 @Table(name = "customer_ex06")
-public class Customer06 implements Serializable {
+public class Customer06 implements Serializable, CustomerPhoneContact {
 
 	private static final long serialVersionUID = 1L;
 
@@ -28,7 +49,9 @@ public class Customer06 implements Serializable {
     private String firstName;
     private String lastName;
     private String email;
+    private String canonicalEmail;	// 正規化したメールアドレス（CanonicalEmail）
     private String phoneNumber;
+    private String phoneDigits;	// 数字だけにした電話番号（PhoneDigits）
     
     @Temporal(TemporalType.DATE)		// カラムの型をDATE型に指定
     private Date dateOfBirth;
@@ -43,7 +66,9 @@ public class Customer06 implements Serializable {
 		this.firstName = firstName;
 		this.lastName = lastName;
 		this.email = email;
+		this.canonicalEmail = CanonicalEmail.of(email);
 		this.phoneNumber = phoneNumber;
+		this.phoneDigits = PhoneDigits.of(phoneNumber);
 		this.dateOfBirth = dateOfBirth;
 		this.creationDate = creationDate;
 	}
@@ -70,6 +95,11 @@ public class Customer06 implements Serializable {
 
 	public void setEmail(String email) {
 		this.email = email;
+		this.canonicalEmail = CanonicalEmail.of(email);
+	}
+
+	public String getCanonicalEmail() {
+		return canonicalEmail;
 	}
 
 	public String getPhoneNumber() {
@@ -78,6 +108,11 @@ public class Customer06 implements Serializable {
 
 	public void setPhoneNumber(String phoneNumber) {
 		this.phoneNumber = phoneNumber;
+		this.phoneDigits = PhoneDigits.of(phoneNumber);
+	}
+
+	public String getPhoneDigits() {
+		return phoneDigits;
 	}
 
 	public Date getDateOfBirth() {
@@ -100,6 +135,15 @@ public class Customer06 implements Serializable {
 		return id;
 	}
 
+	/**
+	 * PartitionedCustomer06Repositoryでバケットのテーブルに
+	 * 格納する場合、およびバケットのテーブルから読み込む場合に
+	 * IDを設定する。
+	 */
+	void setId(Long id) {
+		this.id = id;
+	}
+
 	@Override
 	public String toString() {
 		return "Customer06 [id=" + id + ", firstName=" + firstName
@@ -0,0 +1,175 @@
+package org.beginningee6.book.chapter03.ex06;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Customer06のcreationDateによる1か月分のバケット（パーティション）。
+ *
+ * バケットは年月（yyyyMM形式の整数）で識別し、
+ * customer_ex06_pyyyyMMテーブルに格納される。アーカイブした
+ * バケットはcustomer_ex06_ayyyyMMテーブルに名前が変更される。
+ * 月の境界はデフォルトのタイムゾーンで決める。
+ *
+ * インスタンスは不変であり、年月の順に比較される。
+ */
+public final class CustomerBucket implements Comparable<CustomerBucket>, Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * バケットのテーブル名の接頭辞
+	 */
+	static final String TABLE_PREFIX = "customer_ex06_p";
+
+	/**
+	 * アーカイブしたバケットのテーブル名の接頭辞
+	 */
+	static final String ARCHIVE_PREFIX = "customer_ex06_a";
+
+	private final int month;	// yyyyMM
+
+	private CustomerBucket(int month) {
+		this.month = month;
+	}
+
+	/**
+	 * yyyyMM形式の年月のバケットを返す。
+	 */
+	public static CustomerBucket of(int month) {
+		if (month % 100 < 1 || month % 100 > 12) {
+			throw new IllegalArgumentException("Invalid month: " + month);
+		}
+		return new CustomerBucket(month);
+	}
+
+	/**
+	 * 日時を含むバケットを返す。
+	 */
+	public static CustomerBucket of(Date date) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTime(date);
+		return new CustomerBucket(calendar.get(Calendar.YEAR) * 100 + calendar.get(Calendar.MONTH) + 1);
+	}
+
+	/**
+	 * テーブル名からバケットを返す。
+	 *
+	 * @return バケット。名前がprefixで始まるバケットのテーブル名でない場合はnull
+	 */
+	static CustomerBucket parse(String tableName, String prefix) {
+		if (tableName.length() != prefix.length() + 6 || !tableName.toLowerCase().startsWith(prefix)) {
+			return null;
+		}
+		try {
+			int month = Integer.parseInt(tableName.substring(prefix.length()));
+			return month % 100 < 1 || month % 100 > 12 ? null : new CustomerBucket(month);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * [from, to)の範囲と重なるバケットを年月の順に返す。
+	 */
+	public static List<CustomerBucket> range(Date from, Date to) {
+		List<CustomerBucket> buckets = new ArrayList<CustomerBucket>();
+		if (!from.before(to)) {
+			return buckets;
+		}
+		CustomerBucket last = of(new Date(to.getTime() - 1));
+		for (CustomerBucket bucket = of(from); bucket.compareTo(last) <= 0; bucket = bucket.next()) {
+			buckets.add(bucket);
+		}
+		return buckets;
+	}
+
+	/**
+	 * yyyyMM形式の年月
+	 */
+	public int getMonth() {
+		return month;
+	}
+
+	/**
+	 * バケットの開始日時（この日時を含む）
+	 */
+	public Date getStart() {
+		return calendar().getTime();
+	}
+
+	/**
+	 * バケットの終了日時（この日時を含まない）
+	 */
+	public Date getEnd() {
+		Calendar calendar = calendar();
+		calendar.add(Calendar.MONTH, 1);
+		return calendar.getTime();
+	}
+
+	/**
+	 * 翌月のバケット
+	 */
+	public CustomerBucket next() {
+		return month % 100 == 12 ? new CustomerBucket((month / 100 + 1) * 100 + 1) : new CustomerBucket(month + 1);
+	}
+
+	/**
+	 * monthsか月前のバケット
+	 */
+	public CustomerBucket minusMonths(int months) {
+		int index = (month / 100) * 12 + month % 100 - 1 - months;
+		return new CustomerBucket((index / 12) * 100 + index % 12 + 1);
+	}
+
+	/**
+	 * [from, to)の範囲がこのバケット全体を含むかどうか。
+	 */
+	public boolean isCoveredBy(Date from, Date to) {
+		return !from.after(getStart()) && !to.before(getEnd());
+	}
+
+	/**
+	 * バケットのテーブル名
+	 */
+	public String getTableName() {
+		return TABLE_PREFIX + month;
+	}
+
+	/**
+	 * アーカイブしたバケットのテーブル名
+	 */
+	public String getArchiveTableName() {
+		return ARCHIVE_PREFIX + month;
+	}
+
+	private Calendar calendar() {
+		Calendar calendar = Calendar.getInstance();
+		calendar.clear();
+		calendar.set(month / 100, month % 100 - 1, 1);
+		return calendar;
+	}
+
+	@Override
+	public int compareTo(CustomerBucket other) {
+		return month < other.month ? -1 : (month == other.month ? 0 : 1);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		return obj instanceof CustomerBucket && ((CustomerBucket) obj).month == month;
+	}
+
+	@Override
+	public int hashCode() {
+		return month;
+	}
+
+	@Override
+	public String toString() {
+		return "CustomerBucket [month=" + month + "]";
+	}
+}
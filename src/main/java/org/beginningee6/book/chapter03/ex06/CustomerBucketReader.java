@@ -0,0 +1,105 @@
+package org.beginningee6.book.chapter03.ex06;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Resource;
+import javax.ejb.AsyncResult;
+import javax.ejb.Asynchronous;
+import javax.ejb.Stateless;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.persistence.PersistenceException;
+import javax.sql.DataSource;
+
+/**
+ * 1つのバケットのテーブルから、creationDateが範囲に含まれる
+ * 顧客を非同期に検索するEJB。
+ *
+ * PartitionedCustomer06Repositoryは、範囲と重なるバケットごとに
+ * find()を呼び出し、コンテナの非同期メソッドのスレッドプールで
+ * 並列に検索する。結果はcreationDate、idの順に並べて返す。
+ *
+ * バケット全体が範囲に含まれる場合は、creationDateの条件を
+ * 付けずに検索する。
+ */
+@Stateless
+@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+public class CustomerBucketReader {
+
+	private static final Logger logger = Logger.getLogger(CustomerBucketReader.class.getName());
+
+	// jbossas-ds.xmlのデータソース（java:/が補われてバインドされる）
+	@Resource(lookup = "java:/jdbc/BeginningJavaEE6Chapter03")
+	private DataSource dataSource;
+
+	/**
+	 * バケットのテーブルから、creationDateが[from, to)に含まれる
+	 * 顧客をcreationDate、idの順に返す。
+	 */
+	@Asynchronous
+	public Future<List<Customer06>> find(CustomerBucket bucket, Date from, Date to) {
+
+		boolean covered = bucket.isCoveredBy(from, to);
+		String sql = "SELECT id, firstName, lastName, email, phoneNumber, dateOfBirth, creationDate FROM "
+				+ bucket.getTableName()
+				+ (covered ? "" : " WHERE creationDate >= ? AND creationDate < ?")
+				+ " ORDER BY creationDate, id";
+
+		List<Customer06> customers = new ArrayList<Customer06>();
+		Connection connection = null;
+		PreparedStatement statement = null;
+		ResultSet resultSet = null;
+		try {
+			connection = dataSource.getConnection();
+			statement = connection.prepareStatement(sql);
+			if (!covered) {
+				statement.setTimestamp(1, new Timestamp(from.getTime()));
+				statement.setTimestamp(2, new Timestamp(to.getTime()));
+			}
+			resultSet = statement.executeQuery();
+			while (resultSet.next()) {
+				Customer06 customer = new Customer06(resultSet.getString(2), resultSet.getString(3),
+						resultSet.getString(4), resultSet.getString(5),
+						resultSet.getDate(6), resultSet.getTimestamp(7));
+				customer.setId(resultSet.getLong(1));
+				customers.add(customer);
+			}
+		} catch (SQLException e) {
+			throw new PersistenceException("Failed to find Customer06 in bucket: " + bucket.getTableName(), e);
+		} finally {
+			close(resultSet, statement, connection);
+		}
+		return new AsyncResult<List<Customer06>>(customers);
+	}
+
+	private static void close(ResultSet resultSet, PreparedStatement statement, Connection connection) {
+		try {
+			if (resultSet != null) {
+				resultSet.close();
+			}
+			if (statement != null) {
+				statement.close();
+			}
+		} catch (SQLException e) {
+			logger.log(Level.WARNING, "Failed to close statement", e);
+		} finally {
+			try {
+				if (connection != null) {
+					connection.close();
+				}
+			} catch (SQLException e) {
+				logger.log(Level.WARNING, "Failed to close connection", e);
+			}
+		}
+	}
+}
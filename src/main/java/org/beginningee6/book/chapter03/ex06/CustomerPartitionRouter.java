@@ -0,0 +1,465 @@
+package org.beginningee6.book.chapter03.ex06;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Schedule;
+import javax.ejb.Singleton;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.persistence.PersistenceException;
+import javax.sql.DataSource;
+
+/**
+ * Customer06の月ごとのバケット（パーティション）のテーブルを
+ * 管理するシングルトン。
+ *
+ * 存在するバケットとアーカイブしたバケットを最初の使用時に
+ * データベースのメタデータから読み込み、メモリ上に保持する。
+ * バケットのテーブルは、そのバケットに最初の顧客を追加する
+ * ときに作成する（ensureBucket()）。
+ *
+ * 古いバケットのアーカイブ（archive()）は、行を1行ずつ
+ * 削除するのではなく、テーブル全体の名前を1回のRENAME TABLEで
+ * アーカイブのテーブル名に変更する。rollOff()は毎月1日に、
+ * 現在の月からretentionMonthsか月より前のバケットをアーカイブする。
+ *
+ * バケットのテーブルには顧客のIDを格納するため、
+ * customer_ex06_seqテーブルからID_BLOCK_SIZE個ずつ
+ * IDのブロックを割り当てる（allocateId()）。
+ *
+ * 検索や挿入の途中でバケットのテーブルの名前が変更されたり
+ * 削除されたりしないよう、バケットのテーブルを使用する側は
+ * acquireBuckets()とreleaseBuckets()の間で使用する。archive()と
+ * dropBuckets()は、使用中のバケットが無くなるまで待つ。
+ * 挿入ではトランザクションの完了までデータベースのロックが
+ * 残るため、releaseBuckets()はトランザクションの完了後に
+ * 別のスレッドから呼び出されることがある。
+ *
+ * （注）テーブルの作成と名前の変更はDDLであるため、
+ * 呼び出し側のトランザクションの外（NOT_SUPPORTED）で実行する。
+ * また、バケットの一覧はこのサーバーのメモリ上で管理するため、
+ * 複数のサーバーで同じデータベースを共有する構成には対応しない。
+ *
+ * 状態は同期ブロックで保護する（ConcurrencyManagementType.BEAN）。
+ * バケットのテーブルの使用と、アーカイブ・削除の排他は、
+ * スレッドに依存しない使用中の件数で行う。使用中の件数が
+ * 0になるまでアーカイブ・削除は待ち、アーカイブ・削除の間は
+ * 新しい使用を待たせる。
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+public class CustomerPartitionRouter {
+
+	private static final Logger logger = Logger.getLogger(CustomerPartitionRouter.class.getName());
+
+	/**
+	 * バケットを保持する月数のデフォルト値
+	 */
+	public static final int DEFAULT_RETENTION_MONTHS = 24;
+
+	/**
+	 * 一度に割り当てるIDの数
+	 */
+	static final int ID_BLOCK_SIZE = 50;
+
+	private static final String SEQUENCE_TABLE = "customer_ex06_seq";
+
+	// Derbyの「テーブルがすでに存在する」エラーのSQLSTATE
+	private static final String TABLE_EXISTS = "X0Y32";
+
+	// jbossas-ds.xmlのデータソース（java:/が補われてバインドされる）
+	@Resource(lookup = "java:/jdbc/BeginningJavaEE6Chapter03")
+	private DataSource dataSource;
+
+	private final Object lock = new Object();
+
+	private boolean loaded;
+	private final SortedSet<CustomerBucket> buckets = new TreeSet<CustomerBucket>();
+	private final SortedSet<CustomerBucket> archived = new TreeSet<CustomerBucket>();
+
+	private long nextId;
+	private long lastId;	// 割り当て済みのブロックの最後のID
+
+	private int retentionMonths = DEFAULT_RETENTION_MONTHS;
+
+	// バケットのテーブルの使用とアーカイブ・削除の排他のためのロック
+	private final Object tableLock = new Object();
+
+	// バケットのテーブルを使用中の件数（tableLockで保護する）
+	private int tableUsers;
+
+	// アーカイブ・削除中かどうか（tableLockで保護する）
+	private boolean tablesLocked;
+
+	/**
+	 * バケットのテーブルの使用を開始する。releaseBuckets()を
+	 * 呼び出すまで、archive()とdropBuckets()は待たされる。
+	 * アーカイブ・削除中の場合は、終わるまで待つ。
+	 *
+	 * releaseBuckets()は、トランザクションの完了後など
+	 * 別のスレッドから呼び出してもよい。
+	 */
+	public void acquireBuckets() {
+		synchronized (tableLock) {
+			while (tablesLocked) {
+				waitForTables();
+			}
+			tableUsers++;
+		}
+	}
+
+	/**
+	 * バケットのテーブルの使用を終了する。
+	 */
+	public void releaseBuckets() {
+		synchronized (tableLock) {
+			if (tableUsers <= 0) {
+				throw new IllegalStateException("Customer06 buckets are not acquired");
+			}
+			tableUsers--;
+			tableLock.notifyAll();
+		}
+	}
+
+	/**
+	 * バケットのテーブルが存在しない場合は作成する。
+	 *
+	 * @throws IllegalStateException バケットがアーカイブされている場合
+	 */
+	public void ensureBucket(CustomerBucket bucket) {
+		synchronized (lock) {
+			load();
+			if (buckets.contains(bucket)) {
+				return;
+			}
+			if (archived.contains(bucket)) {
+				throw new IllegalStateException("Customer06 bucket has been archived: " + bucket.getMonth());
+			}
+			execute("CREATE TABLE " + bucket.getTableName() + " ("
+					+ "id BIGINT NOT NULL PRIMARY KEY, "
+					+ "firstName VARCHAR(255), "
+					+ "lastName VARCHAR(255), "
+					+ "email VARCHAR(255), "
+					+ "phoneNumber VARCHAR(255), "
+					+ "dateOfBirth DATE, "
+					+ "creationDate TIMESTAMP NOT NULL)",
+					"CREATE INDEX " + bucket.getTableName() + "_cd ON "
+					+ bucket.getTableName() + " (creationDate, id)");
+			buckets.add(bucket);
+			logger.info("Created Customer06 bucket: " + bucket.getTableName());
+		}
+	}
+
+	/**
+	 * [from, to)の範囲と重なる、存在するバケットを年月の順に返す。
+	 */
+	public List<CustomerBucket> getBuckets(Date from, Date to) {
+		List<CustomerBucket> range = CustomerBucket.range(from, to);
+		if (range.isEmpty()) {
+			return range;
+		}
+		synchronized (lock) {
+			load();
+			return new ArrayList<CustomerBucket>(
+					buckets.subSet(range.get(0), range.get(range.size() - 1).next()));
+		}
+	}
+
+	/**
+	 * 存在するバケットを年月の順に返す。
+	 */
+	public List<CustomerBucket> getBuckets() {
+		synchronized (lock) {
+			load();
+			return new ArrayList<CustomerBucket>(buckets);
+		}
+	}
+
+	/**
+	 * アーカイブしたバケットを年月の順に返す。
+	 */
+	public List<CustomerBucket> getArchivedBuckets() {
+		synchronized (lock) {
+			load();
+			return new ArrayList<CustomerBucket>(archived);
+		}
+	}
+
+	/**
+	 * 顧客のIDを割り当てる。
+	 */
+	public long allocateId() {
+		synchronized (lock) {
+			load();
+			if (nextId > lastId) {
+				Connection connection = null;
+				Statement statement = null;
+				ResultSet resultSet = null;
+				try {
+					connection = dataSource.getConnection();
+					connection.setAutoCommit(false);
+					statement = connection.createStatement();
+					statement.executeUpdate("UPDATE " + SEQUENCE_TABLE
+							+ " SET next_id = next_id + " + ID_BLOCK_SIZE);
+					resultSet = statement.executeQuery("SELECT next_id FROM " + SEQUENCE_TABLE);
+					resultSet.next();
+					lastId = resultSet.getLong(1) - 1;
+					nextId = lastId - ID_BLOCK_SIZE + 1;
+					connection.commit();
+				} catch (SQLException e) {
+					rollback(connection);
+					throw new PersistenceException("Failed to allocate Customer06 ids", e);
+				} finally {
+					close(resultSet, statement, connection);
+				}
+			}
+			return nextId++;
+		}
+	}
+
+	/**
+	 * beforeの月より前のバケットをアーカイブする。
+	 * 各バケットは1回のRENAME TABLEでアーカイブのテーブル名に変更する。
+	 * バケットのテーブルを使用している場合は、終わるまで待つ。
+	 *
+	 * @return アーカイブしたバケットの数
+	 */
+	public int archive(CustomerBucket before) {
+		// 使用中のスレッドがgetBuckets()でlockを待つ場合があるため、
+		// lockより先に使用の終了を待つ
+		lockTables();
+		try {
+			return doArchive(before);
+		} finally {
+			unlockTables();
+		}
+	}
+
+	private int doArchive(CustomerBucket before) {
+		synchronized (lock) {
+			load();
+			List<CustomerBucket> expired = new ArrayList<CustomerBucket>(buckets.headSet(before));
+			for (CustomerBucket bucket : expired) {
+				// アーカイブのテーブル名に合わせてインデックスの名前も変更する
+				execute("RENAME TABLE " + bucket.getTableName() + " TO " + bucket.getArchiveTableName(),
+						"RENAME INDEX " + bucket.getTableName() + "_cd TO " + bucket.getArchiveTableName() + "_cd");
+				buckets.remove(bucket);
+				archived.add(bucket);
+				logger.info("Archived Customer06 bucket: " + bucket.getTableName()
+						+ " -> " + bucket.getArchiveTableName());
+			}
+			return expired.size();
+		}
+	}
+
+	/**
+	 * 現在の月からretentionMonthsか月より前のバケットをアーカイブする。
+	 */
+	@Schedule(dayOfMonth = "1", hour = "2", persistent = false)
+	public void rollOff() {
+		int months;
+		synchronized (lock) {
+			months = retentionMonths;
+		}
+		int count = archive(CustomerBucket.of(new Date()).minusMonths(months));
+		if (count > 0) {
+			logger.info("Rolled off " + count + " Customer06 buckets");
+		}
+	}
+
+	/**
+	 * すべてのバケットのテーブル（アーカイブしたものを含む）を削除する。
+	 * バケットのテーブルを使用している場合は、終わるまで待つ。
+	 */
+	public void dropBuckets() {
+		lockTables();
+		try {
+			doDropBuckets();
+		} finally {
+			unlockTables();
+		}
+	}
+
+	/**
+	 * バケットのテーブルの使用が無くなるまで待ち、新しい使用を待たせる。
+	 */
+	private void lockTables() {
+		synchronized (tableLock) {
+			while (tablesLocked || tableUsers > 0) {
+				waitForTables();
+			}
+			tablesLocked = true;
+		}
+	}
+
+	private void unlockTables() {
+		synchronized (tableLock) {
+			tablesLocked = false;
+			tableLock.notifyAll();
+		}
+	}
+
+	/**
+	 * tableLockの状態が変わるまで待つ。tableLockを保持して呼び出すこと。
+	 */
+	private void waitForTables() {
+		try {
+			tableLock.wait();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new PersistenceException("Interrupted while waiting for Customer06 buckets", e);
+		}
+	}
+
+	private void doDropBuckets() {
+		synchronized (lock) {
+			load();
+			for (CustomerBucket bucket : buckets) {
+				execute("DROP TABLE " + bucket.getTableName());
+			}
+			for (CustomerBucket bucket : archived) {
+				execute("DROP TABLE " + bucket.getArchiveTableName());
+			}
+			buckets.clear();
+			archived.clear();
+		}
+	}
+
+	/**
+	 * バケットを保持する月数
+	 */
+	public int getRetentionMonths() {
+		synchronized (lock) {
+			return retentionMonths;
+		}
+	}
+
+	public void setRetentionMonths(int retentionMonths) {
+		if (retentionMonths < 0) {
+			throw new IllegalArgumentException("retentionMonths must not be negative: " + retentionMonths);
+		}
+		synchronized (lock) {
+			this.retentionMonths = retentionMonths;
+		}
+	}
+
+	/**
+	 * 存在するバケットとIDのテーブルを読み込む。
+	 * ロックを保持して呼び出すこと。
+	 */
+	private void load() {
+		if (loaded) {
+			return;
+		}
+
+		Connection connection = null;
+		ResultSet resultSet = null;
+		try {
+			connection = dataSource.getConnection();
+			DatabaseMetaData metaData = connection.getMetaData();
+			resultSet = metaData.getTables(null, null, "%", new String[] { "TABLE" });
+			boolean sequence = false;
+			while (resultSet.next()) {
+				String table = resultSet.getString("TABLE_NAME");
+				CustomerBucket bucket = CustomerBucket.parse(table, CustomerBucket.TABLE_PREFIX);
+				if (bucket != null) {
+					buckets.add(bucket);
+				}
+				bucket = CustomerBucket.parse(table, CustomerBucket.ARCHIVE_PREFIX);
+				if (bucket != null) {
+					archived.add(bucket);
+				}
+				if (table.equalsIgnoreCase(SEQUENCE_TABLE)) {
+					sequence = true;
+				}
+			}
+			if (!sequence) {
+				execute("CREATE TABLE " + SEQUENCE_TABLE + " (next_id BIGINT NOT NULL)",
+						"INSERT INTO " + SEQUENCE_TABLE + " VALUES (1)");
+			}
+		} catch (SQLException e) {
+			throw new PersistenceException("Failed to load Customer06 buckets", e);
+		} finally {
+			close(resultSet, null, connection);
+		}
+
+		nextId = 1;
+		lastId = 0;
+		loaded = true;
+		logger.info("Loaded Customer06 buckets: " + buckets + ", archived: " + archived);
+	}
+
+	/**
+	 * DDLを1つのトランザクションで実行する。テーブルが
+	 * すでに存在する場合（他の接続が作成した場合）は無視する。
+	 */
+	private void execute(String... sqls) {
+		Connection connection = null;
+		Statement statement = null;
+		try {
+			connection = dataSource.getConnection();
+			connection.setAutoCommit(false);
+			statement = connection.createStatement();
+			for (String sql : sqls) {
+				statement.executeUpdate(sql);
+			}
+			connection.commit();
+		} catch (SQLException e) {
+			rollback(connection);
+			if (TABLE_EXISTS.equals(e.getSQLState())) {
+				logger.log(Level.FINE, "Table already exists: " + sqls[0], e);
+				return;
+			}
+			throw new PersistenceException("Failed to execute: " + sqls[0], e);
+		} finally {
+			close(null, statement, connection);
+		}
+	}
+
+	private static void rollback(Connection connection) {
+		if (connection == null) {
+			return;
+		}
+		try {
+			connection.rollback();
+		} catch (SQLException e) {
+			logger.log(Level.WARNING, "Failed to rollback", e);
+		}
+	}
+
+	private static void close(ResultSet resultSet, Statement statement, Connection connection) {
+		try {
+			if (resultSet != null) {
+				resultSet.close();
+			}
+			if (statement != null) {
+				statement.close();
+			}
+		} catch (SQLException e) {
+			logger.log(Level.WARNING, "Failed to close statement", e);
+		} finally {
+			try {
+				if (connection != null) {
+					connection.close();
+				}
+			} catch (SQLException e) {
+				logger.log(Level.WARNING, "Failed to close connection", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,146 @@
+package org.beginningee6.book.chapter03.ex06;
+
+import java.io.Serializable;
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+/**
+ * Customer06と同じ顧客の情報を、生年月日と作成日時を
+ * java.util.Dateではなくプリミティブ型の数値として
+ * マッピングするエンティティ。
+ *
+ * Customer06では、読み込んだエンティティごとにdateOfBirthと
+ * creationDateの2つの可変なDateオブジェクトが作成され、
+ * 呼び出し側がさらに防御的にコピーする。このエンティティでは、
+ * 以下のカラムにマッピングするため、読み込み時にDateオブジェクトを
+ * 作成せず、値を変更されるおそれも無い。
+ *
+ * ・dateOfBirthDay：生年月日のエポック日（EpochDays）。INTEGER型
+ * ・creationMillis：作成日時の1970年1月1日0時（UTC）からの
+ *   ミリ秒数。BIGINT型
+ *
+ * 年月日はEpochDays.year()、month()、dayOfMonth()で取得する。
+ * getDateOfBirth()とgetCreationDate()は、呼び出しのたびに
+ * 新しいDateオブジェクトを返す。
+ *
+ * （注）プリミティブ型のフィールドはnullを表せないため、
+ * 生年月日と作成日時は必須とする。
+ */
+@Entity
+@Table(name = "customer_ex06_epoch")
+public class EpochCustomer06 implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	@Id
+	@GeneratedValue
+	private Long id;
+	private String firstName;
+	private String lastName;
+	private String email;
+	private String phoneNumber;
+
+	@Column(nullable = false)
+	private int dateOfBirthDay;		// 生年月日のエポック日
+
+	@Column(nullable = false)
+	private long creationMillis;	// 作成日時のエポックミリ秒
+
+	public EpochCustomer06() {}
+
+	public EpochCustomer06(String firstName, String lastName, String email,
+			String phoneNumber, int dateOfBirthDay, long creationMillis) {
+		this.firstName = firstName;
+		this.lastName = lastName;
+		this.email = email;
+		this.phoneNumber = phoneNumber;
+		this.dateOfBirthDay = dateOfBirthDay;
+		this.creationMillis = creationMillis;
+	}
+
+	public EpochCustomer06(String firstName, String lastName, String email,
+			String phoneNumber, Date dateOfBirth, Date creationDate) {
+		this(firstName, lastName, email, phoneNumber,
+				EpochDays.of(dateOfBirth), creationDate.getTime());
+	}
+
+	public String getFirstName() {
+		return firstName;
+	}
+
+	public void setFirstName(String firstName) {
+		this.firstName = firstName;
+	}
+
+	public String getLastName() {
+		return lastName;
+	}
+
+	public void setLastName(String lastName) {
+		this.lastName = lastName;
+	}
+
+	public String getEmail() {
+		return email;
+	}
+
+	public void setEmail(String email) {
+		this.email = email;
+	}
+
+	public String getPhoneNumber() {
+		return phoneNumber;
+	}
+
+	public void setPhoneNumber(String phoneNumber) {
+		this.phoneNumber = phoneNumber;
+	}
+
+	public int getDateOfBirthDay() {
+		return dateOfBirthDay;
+	}
+
+	public void setDateOfBirthDay(int dateOfBirthDay) {
+		this.dateOfBirthDay = dateOfBirthDay;
+	}
+
+	public long getCreationMillis() {
+		return creationMillis;
+	}
+
+	public void setCreationMillis(long creationMillis) {
+		this.creationMillis = creationMillis;
+	}
+
+	/**
+	 * 生年月日の、デフォルトのタイムゾーンでの0時0分の日時。
+	 * 呼び出しのたびに新しいオブジェクトを返す。
+	 */
+	public Date getDateOfBirth() {
+		return EpochDays.toDate(dateOfBirthDay);
+	}
+
+	/**
+	 * 作成日時。呼び出しのたびに新しいオブジェクトを返す。
+	 */
+	public Date getCreationDate() {
+		return new Date(creationMillis);
+	}
+
+	public Long getId() {
+		return id;
+	}
+
+	@Override
+	public String toString() {
+		return "EpochCustomer06 [id=" + id + ", firstName=" + firstName
+				+ ", lastName=" + lastName + ", email=" + email
+				+ ", phoneNumber=" + phoneNumber + ", dateOfBirthDay="
+				+ dateOfBirthDay + ", creationMillis=" + creationMillis + "]";
+	}
+}
@@ -0,0 +1,117 @@
+package org.beginningee6.book.chapter03.ex06;
+
+import java.util.Calendar;
+import java.util.Date;
+
+/**
+ * 日付と、1970年1月1日からの日数（エポック日）との変換。
+ *
+ * エポック日は暦の年月日だけから計算するため、タイムゾーンに
+ * 依存しない。年月日とエポック日の変換は整数の演算だけで行い、
+ * オブジェクトを作成しない。
+ *
+ * java.util.Dateとの変換には、デフォルトのタイムゾーンの
+ * Calendarを使用する。Calendarの作成はコストが高いため、
+ * スレッドごとに1つ作成して再利用する。
+ *
+ * （注）Java 6にはjava.timeパッケージが無いため、
+ * LocalDateの代わりにyear()、month()、dayOfMonth()で
+ * エポック日から年月日を取得する。
+ */
+public final class EpochDays {
+
+	private static final ThreadLocal<Calendar> calendars = new ThreadLocal<Calendar>() {
+		@Override
+		protected Calendar initialValue() {
+			return Calendar.getInstance();
+		}
+	};
+
+	private EpochDays() {}
+
+	/**
+	 * 年月日のエポック日を返す。
+	 *
+	 * @param month 月（1〜12）
+	 */
+	public static int of(int year, int month, int dayOfMonth) {
+		// 3月始まりの年として計算する（うるう日が年の最後になる）
+		int y = month <= 2 ? year - 1 : year;
+		int era = (y >= 0 ? y : y - 399) / 400;
+		int yearOfEra = y - era * 400;
+		int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + dayOfMonth - 1;
+		int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * 146097 + dayOfEra - 719468;
+	}
+
+	/**
+	 * 日時のデフォルトのタイムゾーンでの日付のエポック日を返す。
+	 */
+	public static int of(Date date) {
+		Calendar calendar = calendars.get();
+		calendar.setTime(date);
+		return of(calendar.get(Calendar.YEAR), calendar.get(Calendar.MONTH) + 1,
+				calendar.get(Calendar.DAY_OF_MONTH));
+	}
+
+	/**
+	 * エポック日の、デフォルトのタイムゾーンでの0時0分の日時を返す。
+	 */
+	public static Date toDate(int epochDay) {
+		Calendar calendar = calendars.get();
+		calendar.clear();
+		calendar.set(year(epochDay), month(epochDay) - 1, dayOfMonth(epochDay));
+		return calendar.getTime();
+	}
+
+	/**
+	 * エポック日の年
+	 */
+	public static int year(int epochDay) {
+		int dayOfEra = dayOfEra(epochDay);
+		int yearOfEra = yearOfEra(dayOfEra);
+		int y = yearOfEra + era(epochDay) * 400;
+		return marchMonth(dayOfEra, yearOfEra) < 10 ? y : y + 1;
+	}
+
+	/**
+	 * エポック日の月（1〜12）
+	 */
+	public static int month(int epochDay) {
+		int dayOfEra = dayOfEra(epochDay);
+		int marchMonth = marchMonth(dayOfEra, yearOfEra(dayOfEra));
+		return marchMonth < 10 ? marchMonth + 3 : marchMonth - 9;
+	}
+
+	/**
+	 * エポック日の日
+	 */
+	public static int dayOfMonth(int epochDay) {
+		int dayOfEra = dayOfEra(epochDay);
+		int dayOfYear = dayOfYear(dayOfEra, yearOfEra(dayOfEra));
+		int marchMonth = (5 * dayOfYear + 2) / 153;
+		return dayOfYear - (153 * marchMonth + 2) / 5 + 1;
+	}
+
+	private static int era(int epochDay) {
+		int z = epochDay + 719468;
+		return (z >= 0 ? z : z - 146096) / 146097;
+	}
+
+	private static int dayOfEra(int epochDay) {
+		return epochDay + 719468 - era(epochDay) * 146097;
+	}
+
+	private static int yearOfEra(int dayOfEra) {
+		return (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+	}
+
+	private static int dayOfYear(int dayOfEra, int yearOfEra) {
+		return dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+	}
+
+	// 3月を0とする月
+	private static int marchMonth(int dayOfEra, int yearOfEra) {
+		return (5 * dayOfYear(dayOfEra, yearOfEra) + 2) / 153;
+	}
+}
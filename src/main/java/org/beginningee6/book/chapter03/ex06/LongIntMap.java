@@ -0,0 +1,185 @@
+package org.beginningee6.book.chapter03.ex06;
+
+/**
+ * キーがlong、値がintのハッシュマップ。
+ *
+ * HashMap<Long, Integer>ではエントリごとにエントリ、Long、Integerの
+ * オブジェクトが作成されるため、顧客の数だけエントリを保持すると
+ * 1件あたり数十バイトを使用する。このクラスではキーと値を
+ * プリミティブ型の配列で保持する（開番地法、線形探索）ため、
+ * 1件あたりの使用量は容量に対して13バイトとなる。
+ *
+ * 削除の際は、後続のエントリを詰めることで削除済みの印を残さない。
+ *
+ * このクラスはスレッドセーフではない。
+ */
+public final class LongIntMap {
+
+	private static final int MINIMUM_CAPACITY = 16;
+
+	private long[] keys;
+	private int[] values;
+	private boolean[] used;
+	private int size;
+
+	public LongIntMap() {
+		this(0);
+	}
+
+	/**
+	 * @param expectedSize 登録する見込みの件数
+	 */
+	public LongIntMap(int expectedSize) {
+		allocate(capacityFor(expectedSize));
+	}
+
+	/**
+	 * キーが登録されている場合はtrue
+	 */
+	public boolean containsKey(long key) {
+		return slotOf(key) >= 0;
+	}
+
+	/**
+	 * キーの値を返す。
+	 *
+	 * @throws IllegalArgumentException キーが登録されていない場合
+	 */
+	public int get(long key) {
+		int slot = slotOf(key);
+		if (slot < 0) {
+			throw new IllegalArgumentException("No such key: " + key);
+		}
+		return values[slot];
+	}
+
+	/**
+	 * キーの値を設定する。
+	 */
+	public void put(long key, int value) {
+		int mask = keys.length - 1;
+		int slot = hash(key) & mask;
+		while (used[slot]) {
+			if (keys[slot] == key) {
+				values[slot] = value;
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+		keys[slot] = key;
+		values[slot] = value;
+		used[slot] = true;
+		if (++size > keys.length / 4 * 3) {
+			resize(keys.length * 2);
+		}
+	}
+
+	/**
+	 * すべてのエントリを設定する。
+	 */
+	public void putAll(LongIntMap other) {
+		for (int i = 0; i < other.keys.length; i++) {
+			if (other.used[i]) {
+				put(other.keys[i], other.values[i]);
+			}
+		}
+	}
+
+	/**
+	 * キーの登録を削除する。
+	 *
+	 * @return 登録されていた場合はtrue
+	 */
+	public boolean remove(long key) {
+		int slot = slotOf(key);
+		if (slot < 0) {
+			return false;
+		}
+
+		// 後続のエントリのうち、空いた位置に移動できるものを詰める
+		int mask = keys.length - 1;
+		int free = slot;
+		int next = slot;
+		while (true) {
+			next = (next + 1) & mask;
+			if (!used[next]) {
+				break;
+			}
+			int home = hash(keys[next]) & mask;
+			boolean between = free <= next ? free < home && home <= next : free < home || home <= next;
+			if (!between) {
+				keys[free] = keys[next];
+				values[free] = values[next];
+				free = next;
+			}
+		}
+		used[free] = false;
+		size--;
+		return true;
+	}
+
+	/**
+	 * 登録されている件数
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * すべての値を返す（順序は不定）。
+	 */
+	public int[] values() {
+		int[] copy = new int[size];
+		int count = 0;
+		for (int i = 0; i < keys.length; i++) {
+			if (used[i]) {
+				copy[count++] = values[i];
+			}
+		}
+		return copy;
+	}
+
+	private int slotOf(long key) {
+		int mask = keys.length - 1;
+		int slot = hash(key) & mask;
+		while (used[slot]) {
+			if (keys[slot] == key) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	private void resize(int capacity) {
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		boolean[] oldUsed = used;
+		allocate(capacity);
+		size = 0;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldUsed[i]) {
+				put(oldKeys[i], oldValues[i]);
+			}
+		}
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		values = new int[capacity];
+		used = new boolean[capacity];
+	}
+
+	private static int capacityFor(int expectedSize) {
+		int capacity = MINIMUM_CAPACITY;
+		while (capacity / 4 * 3 < expectedSize) {
+			capacity *= 2;
+		}
+		return capacity;
+	}
+
+	private static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+}
@@ -0,0 +1,208 @@
+package org.beginningee6.book.chapter03.ex06;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Resource;
+import javax.ejb.EJB;
+import javax.ejb.Stateless;
+import javax.naming.NamingException;
+import javax.persistence.PersistenceException;
+import javax.sql.DataSource;
+
+import org.beginningee6.book.chapter03.util.TransactionCompletion;
+
+/**
+ * Customer06をcreationDateの月ごとのバケットのテーブルに
+ * 格納し、期間で検索するリポジトリ。
+ *
+ * customer_ex06テーブルをcreationDateの範囲で検索すると、
+ * 月や四半期の範囲であってもテーブル全体を走査する。
+ * このリポジトリでは、顧客をcreationDateの月の
+ * customer_ex06_pyyyyMMテーブル（CustomerPartitionRouter）に
+ * 格納するため、範囲の検索では範囲と重なるバケットの
+ * テーブルだけを検索する。各バケットはCustomerBucketReaderで
+ * 並列に検索し、結果をバケット（月）の順に連結する。
+ * 各バケットの結果はcreationDate、idの順に並んでいるため、
+ * 連結した結果も同じ順に並ぶ。
+ *
+ * persist()は呼び出し側のトランザクションに参加して
+ * バケットのテーブルに挿入する。バケットのテーブルが
+ * 存在しない場合は、CustomerPartitionRouterが
+ * トランザクションの外で作成する。
+ *
+ * 検索・挿入の間は、CustomerPartitionRouterのacquireBuckets()により
+ * バケットのテーブルがアーカイブ・削除されないようにする。
+ * 挿入した行のデータベースのロックはトランザクションの完了まで
+ * 残るため、挿入ではトランザクションの完了後に使用を終了する。
+ * 検索の途中でいずれかのバケットの検索に失敗した場合は、
+ * 残りのバケットの検索を取り消す。
+ *
+ * （注）バケットのテーブルはJDBCで直接読み書きするため、
+ * EntityManagerでは検索できない。find()が返す
+ * Customer06エンティティは永続化コンテキストで管理されない。
+ */
+@Stateless
+public class PartitionedCustomer06Repository {
+
+	private static final Logger logger = Logger.getLogger(PartitionedCustomer06Repository.class.getName());
+
+	// jbossas-ds.xmlのデータソース（java:/が補われてバインドされる）
+	@Resource(lookup = "java:/jdbc/BeginningJavaEE6Chapter03")
+	private DataSource dataSource;
+
+	@EJB
+	private CustomerPartitionRouter router;
+
+	@EJB
+	private CustomerBucketReader reader;
+
+	/**
+	 * 顧客をcreationDateの月のバケットに格納し、IDを設定する。
+	 *
+	 * @throws IllegalArgumentException creationDateがnullの場合
+	 * @throws IllegalStateException creationDateの月のバケットが
+	 *         アーカイブされている場合
+	 */
+	public void persist(Customer06 customer) {
+
+		if (customer.getCreationDate() == null) {
+			throw new IllegalArgumentException("creationDate must not be null: " + customer);
+		}
+		CustomerBucket bucket = CustomerBucket.of(customer.getCreationDate());
+		router.acquireBuckets();
+		try {
+			insert(bucket, customer);
+		} finally {
+			releaseBucketsAfterCompletion();
+		}
+	}
+
+	/**
+	 * 現在のトランザクションの完了後に、バケットのテーブルの使用を終了する。
+	 * トランザクションが無い場合はすぐに終了する。
+	 */
+	private void releaseBucketsAfterCompletion() {
+		try {
+			TransactionCompletion.afterCompletion(new Runnable() {
+
+				public void run() {
+					router.releaseBuckets();
+				}
+			});
+		} catch (NamingException e) {
+			logger.log(Level.WARNING, "Failed to wait for transaction completion; releasing Customer06 buckets", e);
+			router.releaseBuckets();
+		}
+	}
+
+	private void insert(CustomerBucket bucket, Customer06 customer) {
+
+		router.ensureBucket(bucket);
+		long id = router.allocateId();
+
+		Connection connection = null;
+		PreparedStatement statement = null;
+		try {
+			connection = dataSource.getConnection();
+			statement = connection.prepareStatement("INSERT INTO " + bucket.getTableName()
+					+ " (id, firstName, lastName, email, phoneNumber, dateOfBirth, creationDate)"
+					+ " VALUES (?, ?, ?, ?, ?, ?, ?)");
+			statement.setLong(1, id);
+			statement.setString(2, customer.getFirstName());
+			statement.setString(3, customer.getLastName());
+			statement.setString(4, customer.getEmail());
+			statement.setString(5, customer.getPhoneNumber());
+			if (customer.getDateOfBirth() == null) {
+				statement.setNull(6, Types.DATE);
+			} else {
+				statement.setDate(6, new Date(customer.getDateOfBirth().getTime()));
+			}
+			statement.setTimestamp(7, new Timestamp(customer.getCreationDate().getTime()));
+			statement.executeUpdate();
+		} catch (SQLException e) {
+			throw new PersistenceException("Failed to persist Customer06 to bucket: " + bucket.getTableName(), e);
+		} finally {
+			close(statement, connection);
+		}
+		customer.setId(id);
+	}
+
+	/**
+	 * creationDateが[from, to)に含まれる顧客を
+	 * creationDate、idの順に返す。
+	 */
+	public List<Customer06> findByCreationDate(java.util.Date from, java.util.Date to) {
+
+		router.acquireBuckets();
+		try {
+			List<CustomerBucket> buckets = router.getBuckets(from, to);
+			List<Future<List<Customer06>>> results = new ArrayList<Future<List<Customer06>>>(buckets.size());
+			for (CustomerBucket bucket : buckets) {
+				results.add(reader.find(bucket, from, to));
+			}
+			return collect(results);
+		} finally {
+			router.releaseBuckets();
+		}
+	}
+
+	/**
+	 * 各バケットの検索結果をバケットの順に連結する。
+	 * 失敗した場合は、残りのバケットの検索を取り消す。
+	 */
+	private static List<Customer06> collect(List<Future<List<Customer06>>> results) {
+
+		List<Customer06> customers = new ArrayList<Customer06>();
+		boolean completed = false;
+		try {
+			for (Future<List<Customer06>> result : results) {
+				customers.addAll(result.get());
+			}
+			completed = true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new PersistenceException("Interrupted while finding Customer06", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new PersistenceException("Failed to find Customer06", e.getCause());
+		} finally {
+			if (!completed) {
+				for (Future<List<Customer06>> result : results) {
+					result.cancel(true);
+				}
+			}
+		}
+		return customers;
+	}
+
+	private static void close(PreparedStatement statement, Connection connection) {
+		try {
+			if (statement != null) {
+				statement.close();
+			}
+		} catch (SQLException e) {
+			logger.log(Level.WARNING, "Failed to close statement", e);
+		} finally {
+			try {
+				if (connection != null) {
+					connection.close();
+				}
+			} catch (SQLException e) {
+				logger.log(Level.WARNING, "Failed to close connection", e);
+			}
+		}
+	}
+}
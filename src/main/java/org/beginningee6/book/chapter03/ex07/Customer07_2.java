@@ -3,6 +3,7 @@ package org.beginningee6.book.chapter03.ex07;
 import java.io.Serializable;
 
 import javax.persistence.Entity;
+import javax.persistence.EntityListeners;
 import javax.persistence.FetchType;
 import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
@@ -10,6 +11,10 @@ import javax.persistence.JoinColumn;
 import javax.persistence.OneToOne;
 import javax.persistence.Table;
 
+import org.beginningee6.book.chapter03.customer.CanonicalEmail;
+import org.beginningee6.book.chapter03.customer.CustomerContact;
+import org.beginningee6.book.chapter03.customer.CustomerEmailListener;
+
 /**
  * ＠OneToOneアノテーションにより
  * 他のエンティティへの一方向の１対１
@@ -35,10 +40,14 @@ import javax.persistence.Table;
  * また、同様の理由により、Address07_2を参照
  * しないCustomer07_2エンティティを永続化することはできない。
  * 
+ * メールアドレスは正規化してcanonicalEmailカラムにも格納し、
+ * CustomerEmailIndexで検索する。
+ * 
  */
 @Entity
+@EntityListeners(CustomerEmailListener.class)
 @Table(name = "customer_ex07_2")
-public class Customer07_2 implements Serializable {
+public class Customer07_2 implements Serializable, CustomerContact {
 
 	private static final long serialVersionUID = 1L;
 
@@ -48,6 +57,7 @@ public class Customer07_2 implements Serializable {
     private String firstName;
     private String lastName;
     private String email;
+    private String canonicalEmail;	// 正規化したメールアドレス（CanonicalEmail）
     private String phoneNumber;
     
     @OneToOne(fetch = FetchType.LAZY)		// １対１のリレーションシップ
@@ -64,6 +74,7 @@ public class Customer07_2 implements Serializable {
 		this.firstName = firstName;
 		this.lastName = lastName;
 		this.email = email;
+		this.canonicalEmail = CanonicalEmail.of(email);
 		this.phoneNumber = phoneNumber;
 	}
 
@@ -89,6 +100,11 @@ public class Customer07_2 implements Serializable {
 
 	public void setEmail(String email) {
 		this.email = email;
+		this.canonicalEmail = CanonicalEmail.of(email);
+	}
+
+	public String getCanonicalEmail() {
+		return canonicalEmail;
 	}
 
 	public String getPhoneNumber() {
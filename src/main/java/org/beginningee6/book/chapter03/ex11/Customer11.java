@@ -3,12 +3,19 @@ package org.beginningee6.book.chapter03.ex11;
 import java.io.Serializable;
 
 import javax.persistence.Entity;
+import javax.persistence.EntityListeners;
 import javax.persistence.FetchType;
 import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
 import javax.persistence.OneToOne;
 import javax.persistence.Table;
 
+import org.beginningee6.book.chapter03.customer.CanonicalEmail;
+import org.beginningee6.book.chapter03.customer.CustomerEmailListener;
+import org.beginningee6.book.chapter03.customer.CustomerPhoneContact;
+import org.beginningee6.book.chapter03.customer.CustomerPhoneListener;
+import org.beginningee6.book.chapter03.customer.PhoneDigits;
+
 /**
  * ＠OneToOneアノテーションにより
  * 他のエンティティへの双方向の１対１
@@ -30,10 +37,17 @@ import javax.persistence.Table;
  * の主キーを格納するデータベースカラム：ADDRESS_IDが
  * 生成される。
  * 
+ * メールアドレスは正規化してcanonicalEmailカラムにも格納し、
+ * CustomerEmailIndexで検索する。
+ * 
+ * 電話番号は数字だけにしてphoneDigitsカラムにも格納し、
+ * CustomerPhoneIndexで前方一致の検索をする。
+ * 
  */
 @Entity
+@EntityListeners({ CustomerEmailListener.class, CustomerPhoneListener.class })
 @Table(name = "customer_ex11")
-public class Customer11 implements Serializable {
+public class Customer11 implements Serializable, CustomerPhoneContact {
 
 	private static final long serialVersionUID = 1L;
 
@@ -43,7 +57,9 @@ public class Customer11 implements Serializable {
     private String firstName;
     private String lastName;
     private String email;
+    private String canonicalEmail;	// 正規化したメールアドレス（CanonicalEmail）
     private String phoneNumber;
+    private String phoneDigits;	// 数字だけにした電話番号（PhoneDigits）
     
     @OneToOne(fetch = FetchType.LAZY)		// １対１のリレーションシップ
     private Address11 address;			
@@ -55,7 +71,9 @@ public class Customer11 implements Serializable {
 		this.firstName = firstName;
 		this.lastName = lastName;
 		this.email = email;
+		this.canonicalEmail = CanonicalEmail.of(email);
 		this.phoneNumber = phoneNumber;
+		this.phoneDigits = PhoneDigits.of(phoneNumber);
 	}
 
 	public String getFirstName() {
@@ -80,6 +98,11 @@ public class Customer11 implements Serializable {
 
 	public void setEmail(String email) {
 		this.email = email;
+		this.canonicalEmail = CanonicalEmail.of(email);
+	}
+
+	public String getCanonicalEmail() {
+		return canonicalEmail;
 	}
 
 	public String getPhoneNumber() {
@@ -88,6 +111,11 @@ public class Customer11 implements Serializable {
 
 	public void setPhoneNumber(String phoneNumber) {
 		this.phoneNumber = phoneNumber;
+		this.phoneDigits = PhoneDigits.of(phoneNumber);
+	}
+
+	public String getPhoneDigits() {
+		return phoneDigits;
 	}
 
 	public Address11 getAddress() {
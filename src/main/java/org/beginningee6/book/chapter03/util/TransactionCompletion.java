@@ -0,0 +1,77 @@
+package org.beginningee6.book.chapter03.util;
+
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+/**
+ * エンティティリスナーから、キャッシュや集計などへの通知を
+ * トランザクションの完了後に行うためのユーティリティ。
+ *
+ * エンティティリスナーにはインジェクションが行われない
+ * ため、通知先のEJBはlookup()によりJNDIで取得する。
+ *
+ * 各パッケージのエンティティリスナーがこのクラスを共有する。
+ */
+public final class TransactionCompletion {
+
+	private TransactionCompletion() {}
+
+	/**
+	 * 現在のトランザクションの完了後（コミット、ロールバックとも）に
+	 * 処理を実行する。トランザクションが無い場合はすぐに実行する。
+	 */
+	public static void afterCompletion(final Runnable task) throws NamingException {
+
+		TransactionSynchronizationRegistry registry =
+				lookup("java:comp/TransactionSynchronizationRegistry", TransactionSynchronizationRegistry.class);
+
+		if (registry.getTransactionStatus() == Status.STATUS_NO_TRANSACTION) {
+			task.run();
+			return;
+		}
+
+		registry.registerInterposedSynchronization(new Synchronization() {
+
+			public void beforeCompletion() {
+			}
+
+			public void afterCompletion(int status) {
+				task.run();
+			}
+		});
+	}
+
+	/**
+	 * 現在のトランザクションがコミットされた場合にのみ、その後に
+	 * 処理を実行する。トランザクションが無い場合はすぐに実行する。
+	 */
+	public static void afterCommit(final Runnable task) throws NamingException {
+
+		TransactionSynchronizationRegistry registry =
+				lookup("java:comp/TransactionSynchronizationRegistry", TransactionSynchronizationRegistry.class);
+
+		if (registry.getTransactionStatus() == Status.STATUS_NO_TRANSACTION) {
+			task.run();
+			return;
+		}
+
+		registry.registerInterposedSynchronization(new Synchronization() {
+
+			public void beforeCompletion() {
+			}
+
+			public void afterCompletion(int status) {
+				if (status == Status.STATUS_COMMITTED) {
+					task.run();
+				}
+			}
+		});
+	}
+
+	public static <T> T lookup(String name, Class<T> type) throws NamingException {
+		return type.cast(new InitialContext().lookup(name));
+	}
+}
@@ -0,0 +1,300 @@
+package org.beginningee6.book.chapter03.customer;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.util.Date;
+import java.util.logging.Logger;
+
+import javax.ejb.EJB;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.transaction.UserTransaction;
+
+import org.beginningee6.book.chapter03.ex06.Customer06;
+import org.beginningee6.book.chapter03.ex11.Customer11;
+import org.beginningee6.book.chapter03.util.TransactionCompletion;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.shrinkwrap.api.Archive;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.EmptyAsset;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ *
+ * CustomerEmailIndexクラスの動作確認テスト
+ *
+ */
+@RunWith(Arquillian.class)
+public class CustomerEmailIndexTest {
+
+	private static final Logger logger = Logger.getLogger(CustomerEmailIndexTest.class.getName());
+
+	@Deployment
+	public static Archive<?> createDeployment() {
+
+		JavaArchive archive = ShrinkWrap.create(JavaArchive.class)
+			.addPackage(CustomerContact.class.getPackage())
+			.addClass(TransactionCompletion.class)
+			.addPackage(Customer06.class.getPackage())
+			.addPackage(Customer11.class.getPackage())
+			.addAsManifestResource("test-persistence.xml", "persistence.xml")
+			.addAsManifestResource("jbossas-ds.xml")
+			.addAsManifestResource(EmptyAsset.INSTANCE, "beans.xml");
+
+		logger.info(archive.toString(true));
+
+		return archive;
+	}
+
+	@PersistenceContext
+	EntityManager em;
+
+	@Inject
+	UserTransaction userTransaction;
+
+	@EJB
+	CustomerEmailIndex index;
+
+	@Before
+	public void setUp() throws Exception {
+		clearData();
+	}
+
+	private void clearData() throws Exception {
+		userTransaction.begin();
+		em.joinTransaction();
+
+		logger.info("Dumping old records...");
+
+		em.createQuery("DELETE FROM Customer06").executeUpdate();
+		em.createQuery("DELETE FROM Customer11").executeUpdate();
+		userTransaction.commit();
+
+		index.rebuild(Customer06.class);
+		index.rebuild(Customer11.class);
+		index.resetStatistics();
+	}
+
+	private Customer06 persist(String email) throws Exception {
+		Customer06 customer = new Customer06("John", "Smith", email, "1234565", new Date(), new Date());
+		userTransaction.begin();
+		em.joinTransaction();
+		em.persist(customer);
+		userTransaction.commit();
+		em.clear();
+		return customer;
+	}
+
+	/**
+	 * メールアドレスの正規化を確認する。
+	 */
+	@Test
+	public void testCanonicalEmail() throws Exception {
+
+		///// テスト・検証 /////
+
+		assertThat(CanonicalEmail.of(" John.Smith@GMail.com "), is("john.smith@gmail.com"));
+		assertThat(CanonicalEmail.of("jsmith+news@gmail.com"), is("jsmith+news@gmail.com"));
+		assertThat(CanonicalEmail.of("   "), is(nullValue()));
+		assertThat(CanonicalEmail.of(null), is(nullValue()));
+		assertThat(new Customer06("John", "Smith", "JSmith@GMail.com", "1234565", null, null)
+				.getCanonicalEmail(), is("jsmith@gmail.com"));
+	}
+
+	/**
+	 * 登録済みのメールアドレスは大文字・小文字を区別せずに
+	 * 検索され、登録されていないメールアドレスはデータベースに
+	 * アクセスせずに判定されることを確認する。
+	 */
+	@Test
+	public void testFind() throws Exception {
+
+		///// 準備 /////
+
+		Customer06 john = persist("John.Smith@GMail.com");
+
+		///// テスト /////
+
+		Customer06 found = index.find(Customer06.class, " john.smith@gmail.COM");
+		boolean otherEntity = index.exists(Customer11.class, "john.smith@gmail.com");
+		boolean absent = index.exists(Customer06.class, "jane.doe@gmail.com");
+
+		///// 検証 /////
+
+		assertThat(found.getId(), is(john.getId()));
+		assertThat(found.getEmail(), is("John.Smith@GMail.com"));
+		assertThat(otherEntity, is(false));
+		assertThat(absent, is(false));
+		assertThat(index.getTruePositiveCount(), is(1L));
+		// フィルタが作成し直されているため、通常は偽陽性にならない
+		assertThat(index.getNegativeCount() + index.getFalsePositiveCount(), is(2L));
+		assertThat(index.getLookupCount(), is(3L));
+	}
+
+	/**
+	 * 同じトランザクション内で永続化したメールアドレスと、
+	 * 変更後のメールアドレスが検索されることを確認する。
+	 */
+	@Test
+	public void testSameTransactionAndUpdate() throws Exception {
+
+		///// テスト /////
+
+		userTransaction.begin();
+		em.joinTransaction();
+		Customer06 customer = new Customer06("John", "Smith", "jsmith@gmail.com", "1234565", new Date(), new Date());
+		em.persist(customer);
+		boolean inTransaction = index.exists(Customer06.class, "JSMITH@gmail.com");
+		userTransaction.commit();
+		em.clear();
+
+		userTransaction.begin();
+		em.joinTransaction();
+		em.find(Customer06.class, customer.getId()).setEmail("john.smith@example.com");
+		userTransaction.commit();
+		em.clear();
+
+		boolean updated = index.exists(Customer06.class, "John.Smith@example.com");
+		boolean previous = index.exists(Customer06.class, "jsmith@gmail.com");
+
+		///// 検証 /////
+
+		assertThat(inTransaction, is(true));
+		assertThat(updated, is(true));
+		// 変更前のメールアドレスはフィルタに残るが、検索では見つからない
+		assertThat(previous, is(false));
+	}
+
+	/**
+	 * canonicalEmailがnullの既存の行に正規化したメールアドレスが
+	 * 設定され、検索されるようになることを確認する。
+	 */
+	@Test
+	public void testBackfill() throws Exception {
+
+		///// 準備 /////
+
+		Customer06 john = persist("John.Smith@GMail.com");
+		persist("   ");
+
+		// canonicalEmailカラムが追加される前に登録された行とする
+		userTransaction.begin();
+		em.joinTransaction();
+		em.createQuery("UPDATE Customer06 c SET c.canonicalEmail = NULL").executeUpdate();
+		userTransaction.commit();
+		index.rebuild(Customer06.class);
+
+		boolean before = index.exists(Customer06.class, "john.smith@gmail.com");
+
+		///// テスト /////
+
+		int backfilled = index.backfill(Customer06.class);
+		int again = index.backfill(Customer06.class);
+
+		///// 検証 /////
+
+		assertThat(before, is(false));
+		assertThat(backfilled, is(1));
+		assertThat(again, is(0));
+		assertThat(index.find(Customer06.class, "JOHN.SMITH@gmail.com").getId(), is(john.getId()));
+	}
+
+		/**
+	 * 記録した時間のパーセンタイルを確認する。
+	 */
+	@Test
+	public void testLatencyHistogram() throws Exception {
+
+		///// 準備 /////
+
+		LatencyHistogram histogram = new LatencyHistogram();
+
+		///// テスト /////
+
+		for (int i = 1; i <= 100; i++) {
+			histogram.record(i * 1000L);
+		}
+
+		///// 検証 /////
+
+		assertThat(histogram.getTotalCount(), is(100L));
+		assertThat(histogram.getMaximum(), is(100000L));
+		// 相対誤差は12.5%以内
+		assertThat(Math.abs(histogram.percentile(50) - 50000) <= 50000 / 8, is(true));
+		assertThat(Math.abs(histogram.percentile(99) - 99000) <= 99000 / 8, is(true));
+		assertThat(histogram.percentile(100), is(100000L));
+	}
+
+	/**
+	 * 会員登録時の重複チェック（ほとんどが未登録のメールアドレス）について、
+	 * canonicalEmailカラムの検索とCustomerEmailIndexの時間を比較する。
+	 */
+	@Test
+	public void testBenchmark() throws Exception {
+
+		///// 準備 /////
+
+		final int customers = 2000;
+		final int lookups = 2000;
+
+		userTransaction.begin();
+		em.joinTransaction();
+		for (int i = 0; i < customers; i++) {
+			em.persist(new Customer06("John", "Smith", "customer" + i + "@example.com", "1234565",
+					new Date(), new Date()));
+		}
+		userTransaction.commit();
+		em.clear();
+		index.rebuild(Customer06.class);
+		index.resetStatistics();
+
+		///// テスト /////
+
+		int queryFound = 0;
+		long queryStart = System.nanoTime();
+		for (int i = 0; i < lookups; i++) {
+			// 100件に1件は登録済みのメールアドレス
+			String email = i % 100 == 0 ? "customer" + i + "@example.com" : "signup" + i + "@example.com";
+			if (!em.createQuery("SELECT c FROM Customer06 c WHERE c.canonicalEmail = :email", Customer06.class)
+					.setParameter("email", CanonicalEmail.of(email))
+					.setMaxResults(1)
+					.getResultList().isEmpty()) {
+				queryFound++;
+			}
+			em.clear();
+		}
+		long queryNanos = System.nanoTime() - queryStart;
+
+		int indexFound = 0;
+		long indexStart = System.nanoTime();
+		for (int i = 0; i < lookups; i++) {
+			String email = i % 100 == 0 ? "customer" + i + "@example.com" : "signup" + i + "@example.com";
+			if (index.exists(Customer06.class, email)) {
+				indexFound++;
+			}
+		}
+		long indexNanos = System.nanoTime() - indexStart;
+
+		logger.info("duplicate check among " + customers + " customers: canonicalEmail query="
+				+ queryNanos / lookups / 1000 + "us, CustomerEmailIndex="
+				+ indexNanos / lookups / 1000 + "us (p50=" + index.getLatencyPercentile(50)
+				+ "ns, p90=" + index.getLatencyPercentile(90)
+				+ "ns, p99=" + index.getLatencyPercentile(99)
+				+ "ns, max=" + index.getMaximumLatency()
+				+ "ns), database skipped=" + index.getNegativeCount() + "/" + lookups
+				+ ", observed false positive rate=" + index.getObservedFalsePositiveRate());
+
+		///// 検証 /////
+
+		assertThat(indexFound, is(queryFound));
+		assertThat(indexFound, is(lookups / 100));
+		assertThat(index.getLookupCount(), is((long) lookups));
+		assertThat(index.getObservedFalsePositiveRate() < 0.05, is(true));
+	}
+}
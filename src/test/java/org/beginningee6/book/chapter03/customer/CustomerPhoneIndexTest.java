@@ -0,0 +1,350 @@
+package org.beginningee6.book.chapter03.customer;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.ejb.EJB;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.transaction.UserTransaction;
+
+import org.beginningee6.book.chapter03.ex06.Customer06;
+import org.beginningee6.book.chapter03.ex11.Customer11;
+import org.beginningee6.book.chapter03.util.TransactionCompletion;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.shrinkwrap.api.Archive;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.EmptyAsset;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ *
+ * CustomerPhoneIndexクラスの動作確認テスト
+ *
+ */
+@RunWith(Arquillian.class)
+public class CustomerPhoneIndexTest {
+
+	private static final Logger logger = Logger.getLogger(CustomerPhoneIndexTest.class.getName());
+
+	@Deployment
+	public static Archive<?> createDeployment() {
+
+		JavaArchive archive = ShrinkWrap.create(JavaArchive.class)
+			.addPackage(CustomerContact.class.getPackage())
+			.addClass(TransactionCompletion.class)
+			.addPackage(Customer06.class.getPackage())
+			.addPackage(Customer11.class.getPackage())
+			.addAsManifestResource("test-persistence.xml", "persistence.xml")
+			.addAsManifestResource("jbossas-ds.xml")
+			.addAsManifestResource(EmptyAsset.INSTANCE, "beans.xml");
+
+		logger.info(archive.toString(true));
+
+		return archive;
+	}
+
+	@PersistenceContext
+	EntityManager em;
+
+	@Inject
+	UserTransaction userTransaction;
+
+	@EJB
+	CustomerPhoneIndex index;
+
+	@Before
+	public void setUp() throws Exception {
+		clearData();
+	}
+
+	private void clearData() throws Exception {
+		userTransaction.begin();
+		em.joinTransaction();
+
+		logger.info("Dumping old records...");
+
+		em.createQuery("DELETE FROM Customer06").executeUpdate();
+		em.createQuery("DELETE FROM Customer11").executeUpdate();
+		userTransaction.commit();
+
+		index.rebuild(Customer06.class);
+		index.rebuild(Customer11.class);
+		index.resetStatistics();
+	}
+
+	private Customer06 persist(String firstName, String phoneNumber) throws Exception {
+		Customer06 customer = new Customer06(firstName, "Smith", "jsmith@gmail.com", phoneNumber,
+				new Date(), new Date());
+		userTransaction.begin();
+		em.joinTransaction();
+		em.persist(customer);
+		userTransaction.commit();
+		em.clear();
+		return customer;
+	}
+
+	private static String firstNames(List<Customer06> customers) {
+		StringBuilder names = new StringBuilder();
+		for (Customer06 customer : customers) {
+			names.append(names.length() == 0 ? "" : ",").append(customer.getFirstName());
+		}
+		return names.toString();
+	}
+
+	/**
+	 * 電話番号の正規化を確認する。
+	 */
+	@Test
+	public void testPhoneDigits() throws Exception {
+
+		///// テスト・検証 /////
+
+		assertThat(PhoneDigits.of("03-1234-5678"), is("0312345678"));
+		assertThat(PhoneDigits.of("(03) 1234 5678"), is("0312345678"));
+		assertThat(PhoneDigits.of("０３－１２３４－５６７８"), is("0312345678"));
+		assertThat(PhoneDigits.of("+81 3-1234-5678"), is("81312345678"));
+		assertThat(PhoneDigits.of("--"), is(nullValue()));
+		assertThat(PhoneDigits.of(null), is(nullValue()));
+		assertThat(new Customer11("John", "Smith", "jsmith@gmail.com", "03.1234.5678")
+				.getPhoneDigits(), is("0312345678"));
+	}
+
+	/**
+	 * トライの登録・削除と、辺が分割・結合されることを確認する。
+	 */
+	@Test
+	public void testPhoneTrie() throws Exception {
+
+		///// 準備 /////
+
+		PhoneTrie trie = new PhoneTrie();
+
+		///// テスト /////
+
+		trie.put("0312345678", 1L);
+		trie.put("0312349999", 2L);
+		trie.put("0452223333", 3L);
+		trie.put("0312345678", 4L);
+		trie.put("0312345678", 1L);
+
+		///// 検証 /////
+
+		assertThat(trie.size(), is(4));
+		// ルート、「0」、「31234」、「5678」、「9999」、「452223333」
+		assertThat(trie.nodeCount(), is(6));
+		assertThat(trie.findByPrefix("031234", 10), is(Arrays.asList(1L, 4L, 2L)));
+		assertThat(trie.findByPrefix("0", 2), is(Arrays.asList(1L, 4L)));
+		assertThat(trie.findByPrefix("03123", 10).size(), is(3));
+		assertThat(trie.findByPrefix("0313", 10).isEmpty(), is(true));
+		assertThat(trie.findByPrefix("03123456789", 10).isEmpty(), is(true));
+
+		assertThat(trie.remove("0312349999", 2L), is(true));
+		assertThat(trie.remove("0312349999", 2L), is(false));
+		assertThat(trie.remove("03123", 1L), is(false));
+		// 「31234」と「5678」が1つの辺「312345678」にまとめられる
+		assertThat(trie.nodeCount(), is(4));
+		assertThat(trie.findByPrefix("031234", 10), is(Arrays.asList(1L, 4L)));
+		assertThat(trie.size(), is(3));
+	}
+
+	/**
+	 * 書式の違う電話番号が前方一致で検索され、電話番号の順に
+	 * 最大件数まで返されることを確認する。
+	 */
+	@Test
+	public void testFind() throws Exception {
+
+		///// 準備 /////
+
+		persist("Hyphen", "03-1234-5678");
+		persist("Paren", "(03) 1234 9999");
+		persist("Plain", "0312340000");
+		persist("Yokohama", "045-111-2222");
+
+		userTransaction.begin();
+		em.joinTransaction();
+		em.persist(new Customer11("Eleven", "Smith", "jsmith@gmail.com", "03-1234-5678"));
+		userTransaction.commit();
+		em.clear();
+
+		///// テスト /////
+
+		List<Customer06> found = index.find(Customer06.class, "03-1234", 10);
+		List<Customer06> limited = index.find(Customer06.class, "0", 2);
+		List<Customer11> other = index.find(Customer11.class, "(03)12", 10);
+		List<Long> none = index.findIds(Customer06.class, "06", 10);
+		List<Long> noDigits = index.findIds(Customer06.class, "--", 10);
+
+		///// 検証 /////
+
+		assertThat(firstNames(found), is("Plain,Hyphen,Paren"));
+		assertThat(firstNames(limited), is("Plain,Hyphen"));
+		assertThat(other.size(), is(1));
+		assertThat(other.get(0).getFirstName(), is("Eleven"));
+		assertThat(none.isEmpty(), is(true));
+		assertThat(noDigits.isEmpty(), is(true));
+		assertThat(index.getSize(Customer06.class), is(4));
+
+		// 書式が違うためLIKEでは見つからない
+		long like = ((Number) em.createQuery("SELECT COUNT(c) FROM Customer06 c"
+				+ " WHERE c.phoneNumber LIKE :prefix")
+				.setParameter("prefix", "03-1234%").getSingleResult()).longValue();
+		assertThat(like, is(1L));
+	}
+
+	/**
+	 * 永続化・更新・削除がコミット後に反映され、
+	 * ロールバックした永続化は反映されないことを確認する。
+	 */
+	@Test
+	public void testCallbacks() throws Exception {
+
+		///// テスト /////
+
+		Customer06 customer = persist("John", "090-1111-2222");
+		List<Long> persisted = index.findIds(Customer06.class, "0901111", 10);
+
+		userTransaction.begin();
+		em.joinTransaction();
+		em.find(Customer06.class, customer.getId()).setPhoneNumber("080-3333-4444");
+		userTransaction.commit();
+		em.clear();
+		List<Long> previous = index.findIds(Customer06.class, "0901111", 10);
+		List<Long> updated = index.findIds(Customer06.class, "080 3333", 10);
+
+		userTransaction.begin();
+		em.joinTransaction();
+		em.persist(new Customer06("Rollback", "Smith", "jsmith@gmail.com", "080-3333-5555",
+				new Date(), new Date()));
+		userTransaction.rollback();
+		em.clear();
+		List<Long> rolledBack = index.findIds(Customer06.class, "080-3333", 10);
+
+		userTransaction.begin();
+		em.joinTransaction();
+		em.remove(em.find(Customer06.class, customer.getId()));
+		userTransaction.commit();
+		em.clear();
+		List<Long> removed = index.findIds(Customer06.class, "080", 10);
+
+		///// 検証 /////
+
+		assertThat(persisted, is(Arrays.asList(customer.getId())));
+		assertThat(previous.isEmpty(), is(true));
+		assertThat(updated, is(Arrays.asList(customer.getId())));
+		assertThat(rolledBack, is(Arrays.asList(customer.getId())));
+		assertThat(removed.isEmpty(), is(true));
+		assertThat(index.getSize(Customer06.class), is(0));
+	}
+
+	/**
+	 * phoneDigitsがnullの既存の行に数字だけにした電話番号が
+	 * 設定され、検索されるようになることを確認する。
+	 */
+	@Test
+	public void testBackfill() throws Exception {
+
+		///// 準備 /////
+
+		Customer06 john = persist("John", "03-1234-5678");
+		persist("NoDigits", "--");
+
+		// phoneDigitsカラムが追加される前に登録された行とする
+		userTransaction.begin();
+		em.joinTransaction();
+		em.createQuery("UPDATE Customer06 c SET c.phoneDigits = NULL").executeUpdate();
+		userTransaction.commit();
+		index.rebuild(Customer06.class);
+
+		List<Long> before = index.findIds(Customer06.class, "031234", 10);
+
+		///// テスト /////
+
+		int backfilled = index.backfill(Customer06.class);
+		int again = index.backfill(Customer06.class);
+
+		///// 検証 /////
+
+		assertThat(before.isEmpty(), is(true));
+		assertThat(backfilled, is(1));
+		assertThat(again, is(0));
+		assertThat(index.findIds(Customer06.class, "(03) 1234", 10), is(Arrays.asList(john.getId())));
+		assertThat(em.find(Customer06.class, john.getId()).getPhoneDigits(), is("0312345678"));
+
+		// 作成し直しても、設定したphoneDigitsから登録される
+		index.rebuild(Customer06.class);
+		assertThat(index.getSize(Customer06.class), is(1));
+	}
+
+	/**
+	 * 電話番号の前方一致の検索について、phoneNumberカラムに対する
+	 * LIKEの検索とCustomerPhoneIndexの時間を比較する。
+	 */
+	@Test
+	public void testBenchmark() throws Exception {
+
+		///// 準備 /////
+
+		final int customers = 5000;
+		final int lookups = 2000;
+		final String[] formats = { "%s-%s-%s", "(%s) %s %s", "%s%s%s" };
+
+		userTransaction.begin();
+		em.joinTransaction();
+		for (int i = 0; i < customers; i++) {
+			String phoneNumber = String.format(formats[i % formats.length],
+					"0" + (3 + i % 7), String.format("%04d", i % 10000), String.format("%04d", i * 7 % 10000));
+			em.persist(new Customer06("Customer" + i, "Smith", "jsmith@gmail.com", phoneNumber,
+					new Date(), new Date()));
+		}
+		userTransaction.commit();
+		em.clear();
+		index.rebuild(Customer06.class);
+		index.resetStatistics();
+
+		///// テスト /////
+
+		int likeFound = 0;
+		long likeStart = System.nanoTime();
+		for (int i = 0; i < lookups; i++) {
+			String prefix = "0" + (3 + i % 7) + "-" + String.format("%03d", i % 1000);
+			likeFound += em.createQuery("SELECT c.id FROM Customer06 c WHERE c.phoneNumber LIKE :prefix", Long.class)
+				.setParameter("prefix", prefix + "%")
+				.setMaxResults(CustomerPhoneIndex.MAXIMUM_RESULTS)
+				.getResultList().size();
+		}
+		long likeNanos = System.nanoTime() - likeStart;
+
+		int indexFound = 0;
+		long indexStart = System.nanoTime();
+		for (int i = 0; i < lookups; i++) {
+			String prefix = "0" + (3 + i % 7) + "-" + String.format("%03d", i % 1000);
+			indexFound += index.findIds(Customer06.class, prefix, CustomerPhoneIndex.MAXIMUM_RESULTS).size();
+		}
+		long indexNanos = System.nanoTime() - indexStart;
+
+		logger.info("phone prefix search among " + customers + " customers: LIKE="
+				+ likeNanos / lookups / 1000 + "us (" + likeFound + " found), CustomerPhoneIndex="
+				+ indexNanos / lookups / 1000 + "us (" + indexFound + " found, p50="
+				+ index.getLatencyPercentile(50) + "ns, p99=" + index.getLatencyPercentile(99)
+				+ "ns, max=" + index.getMaximumLatency() + "ns)");
+
+		///// 検証 /////
+
+		// LIKEでは書式の違う電話番号が見つからない
+		assertThat(indexFound > likeFound, is(true));
+		assertThat(index.getLookupCount(), is((long) lookups));
+		assertThat(index.getSize(Customer06.class), is(customers));
+	}
+}
@@ -0,0 +1,167 @@
+package org.beginningee6.book.chapter03.ex01;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.util.BitSet;
+import java.util.logging.Logger;
+
+import javax.ejb.EJB;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.transaction.UserTransaction;
+
+import org.beginningee6.book.chapter03.util.TransactionCompletion;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.shrinkwrap.api.Archive;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.EmptyAsset;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ *
+ * BookAnalyticsクラスとBookColumnSnapshotクラスの動作確認テスト
+ *
+ */
+@RunWith(Arquillian.class)
+public class BookAnalyticsTest {
+
+	private static final Logger logger = Logger.getLogger(BookAnalyticsTest.class.getName());
+
+	@Deployment
+	public static Archive<?> createDeployment() {
+
+		JavaArchive archive = ShrinkWrap.create(JavaArchive.class)
+			.addPackage(BookAnalytics.class.getPackage())
+			.addClass(TransactionCompletion.class)
+			.addAsManifestResource("test-persistence.xml", "persistence.xml")
+			.addAsManifestResource("jbossas-ds.xml")
+			.addAsManifestResource(EmptyAsset.INSTANCE, "beans.xml");
+
+		logger.info(archive.toString(true));
+
+		return archive;
+	}
+
+	@PersistenceContext
+	EntityManager em;
+
+	@Inject
+	UserTransaction userTransaction;
+
+	@EJB
+	BookAnalytics analytics;
+
+	private Book01 cheap;
+	private Book01 middle;
+	private Book01 expensive;
+
+	@Before
+	public void setUp() throws Exception {
+		clearData();
+		createData();
+	}
+
+	private void clearData() throws Exception {
+		userTransaction.begin();
+		em.joinTransaction();
+
+		logger.info("Dumping old records...");
+
+		em.createQuery("DELETE FROM Book01").executeUpdate();
+		userTransaction.commit();
+	}
+
+	private void createData() throws Exception {
+		cheap = new Book01("Cheap", 5F, "", "isbn-1", 100, false);
+		middle = new Book01("Middle", 15F, "", "isbn-2", 300, true);
+		expensive = new Book01("Expensive", 40F, "", "isbn-3", 900, true);
+
+		userTransaction.begin();
+		em.joinTransaction();
+		em.persist(cheap);
+		em.persist(middle);
+		em.persist(expensive);
+		em.persist(new Book01("Unknown", null, "", "isbn-4", null, null));
+		userTransaction.commit();
+		em.clear();
+
+		// 一括削除を含むため、全件を読み込み直す
+		analytics.refresh();
+	}
+
+	/**
+	 * 全件のスナップショットに対する集計、ヒストグラム、
+	 * 範囲による絞り込みの結果を確認する。
+	 */
+	@Test
+	public void testAggregateHistogramAndFilter() throws Exception {
+
+		///// テスト /////
+
+		BookColumnSnapshot snapshot = analytics.getSnapshot();
+		ColumnStatistics prices = snapshot.priceStatistics();
+		ColumnStatistics pages = snapshot.pageStatistics();
+		int[] histogram = snapshot.priceHistogram(0F, 40F, 4);
+		BitSet affordable = snapshot.filterByPrice(0F, 20F);
+		affordable.and(snapshot.withIllustrations());
+
+		///// 検証 /////
+
+		assertThat(snapshot.size(), is(4));
+
+		// nullの値は集計されない
+		assertThat(prices.getCount(), is(3));
+		assertThat(prices.getSum(), is(60.0));
+		assertThat(prices.getMin(), is(5.0));
+		assertThat(prices.getMax(), is(40.0));
+		assertThat(pages.getMean(), is(1300.0 / 3));
+
+		// [0,10) [10,20) [20,30) [30,40]
+		assertThat(histogram[0], is(1));
+		assertThat(histogram[1], is(1));
+		assertThat(histogram[2], is(0));
+		assertThat(histogram[3], is(1));
+
+		// 20未満でイラストがある書籍
+		assertThat(snapshot.ids(affordable).length, is(1));
+		assertThat(snapshot.ids(affordable)[0], is(middle.getId()));
+	}
+
+	/**
+	 * 追加・更新・削除を行った後に差分読み込みを行い、
+	 * スナップショットに変更が反映されることを確認する。
+	 */
+	@Test
+	public void testRefreshIncrementally() throws Exception {
+
+		///// 準備 /////
+
+		userTransaction.begin();
+		em.joinTransaction();
+
+		em.persist(new Book01("Added", 20F, "", "isbn-5", 200, false));
+		em.find(Book01.class, cheap.getId()).setPrice(7F);
+		em.remove(em.find(Book01.class, expensive.getId()));
+
+		userTransaction.commit();
+		em.clear();
+
+		///// テスト /////
+
+		BookColumnSnapshot snapshot = analytics.refreshIncrementally();
+
+		///// 検証 /////
+
+		assertThat(snapshot.size(), is(4));
+		assertThat(snapshot.rowOf(expensive.getId()) < 0, is(true));
+		assertThat(snapshot.getPrice(snapshot.rowOf(cheap.getId())), is(7F));
+		assertThat(snapshot.priceStatistics().getSum(), is(42.0));
+		assertThat(analytics.getPendingChangeCount(), is(0));
+	}
+}
@@ -0,0 +1,161 @@
+package org.beginningee6.book.chapter03.ex01;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import javax.ejb.EJB;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.transaction.UserTransaction;
+
+import org.beginningee6.book.chapter03.util.TransactionCompletion;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.shrinkwrap.api.Archive;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.EmptyAsset;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ *
+ * BookBulkLoaderクラスの動作確認テスト
+ *
+ */
+@RunWith(Arquillian.class)
+public class BookBulkLoaderTest {
+
+	private static final Logger logger = Logger.getLogger(BookBulkLoaderTest.class.getName());
+
+	@Deployment
+	public static Archive<?> createDeployment() {
+
+		JavaArchive archive = ShrinkWrap.create(JavaArchive.class)
+			.addPackage(BookBulkLoader.class.getPackage())
+			.addClass(TransactionCompletion.class)
+			.addAsManifestResource("test-persistence.xml", "persistence.xml")
+			.addAsManifestResource("jbossas-ds.xml")
+			.addAsManifestResource(EmptyAsset.INSTANCE, "beans.xml");
+
+		logger.info(archive.toString(true));
+
+		return archive;
+	}
+
+	@PersistenceContext
+	EntityManager em;
+
+	@Inject
+	UserTransaction userTransaction;
+
+	@EJB
+	BookBulkLoader loader;
+
+	@Before
+	public void setUp() throws Exception {
+		clearData();
+	}
+
+	private void clearData() throws Exception {
+		userTransaction.begin();
+		em.joinTransaction();
+
+		logger.info("Dumping old records...");
+
+		em.createQuery("DELETE FROM Book01").executeUpdate();
+		userTransaction.commit();
+	}
+
+	private List<Book01> createBooks(String prefix, int count) {
+		List<Book01> books = new ArrayList<Book01>(count);
+		for (int i = 0; i < count; i++) {
+			books.add(new Book01("Book " + prefix + i, 12.5F, "Bulk loaded book",
+					prefix + "-" + i, 354, false));
+		}
+		return books;
+	}
+
+	private long countBooks() {
+		return em.createQuery("SELECT COUNT(b) FROM Book01 b", Long.class).getSingleResult();
+	}
+
+	/**
+	 * バッチサイズで割り切れない件数のBook01エンティティを
+	 * 一括で永続化し、すべてのエンティティに重複しない
+	 * IDが付番されていることを確認する。
+	 */
+	@Test
+	public void testLoadBooks() throws Exception {
+
+		///// 準備 /////
+
+		List<Book01> books = createBooks("L", 120);
+
+		///// テスト /////
+
+		int loaded = loader.load(books, 50);
+
+		///// 検証 /////
+
+		// 永続化した件数を検証
+		assertThat(loaded, is(120));
+		assertThat(countBooks(), is(120L));
+
+		// すべてのエンティティに重複しないIDが付番されていることを確認
+		Set<Long> ids = new HashSet<Long>();
+		for (Book01 book : books) {
+			assertThat(book.getId(), is(notNullValue()));
+			ids.add(book.getId());
+		}
+		assertThat(ids.size(), is(120));
+	}
+
+	/**
+	 * 1件ずつpersist()してコミットする従来の方法と、
+	 * BookBulkLoaderによる一括の永続化とで、
+	 * 1秒あたりの永続化件数を比較する。
+	 */
+	@Test
+	public void testBulkLoadThroughput() throws Exception {
+
+		///// 準備 /////
+
+		final int count = 2000;
+		List<Book01> singleBooks = createBooks("S", count);
+		List<Book01> bulkBooks = createBooks("B", count);
+
+		///// テスト /////
+
+		// 従来の方法：1件ずつpersist()してコミットする
+		long start = System.nanoTime();
+		for (Book01 book : singleBooks) {
+			userTransaction.begin();
+			em.joinTransaction();
+			em.persist(book);
+			userTransaction.commit();
+		}
+		long singleNanos = System.nanoTime() - start;
+		em.clear();
+
+		// BookBulkLoaderによる一括の永続化
+		start = System.nanoTime();
+		loader.load(bulkBooks);
+		long bulkNanos = System.nanoTime() - start;
+
+		logger.info(String.format("persist one at a time: %.1f rows/sec", count * 1e9 / singleNanos));
+		logger.info(String.format("BookBulkLoader:        %.1f rows/sec", count * 1e9 / bulkNanos));
+
+		///// 検証 /////
+
+		assertThat(countBooks(), is(2L * count));
+	}
+}
@@ -0,0 +1,184 @@
+package org.beginningee6.book.chapter03.ex01;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.util.logging.Logger;
+
+import javax.ejb.EJB;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.transaction.UserTransaction;
+
+import org.beginningee6.book.chapter03.util.TransactionCompletion;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.shrinkwrap.api.Archive;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.EmptyAsset;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ *
+ * ISBNをキーとしたキャッシュを持つBookCatalogクラスの動作確認テスト
+ *
+ */
+@RunWith(Arquillian.class)
+public class BookCatalogTest {
+
+	private static final Logger logger = Logger.getLogger(BookCatalogTest.class.getName());
+
+	@Deployment
+	public static Archive<?> createDeployment() {
+
+		JavaArchive archive = ShrinkWrap.create(JavaArchive.class)
+			.addPackage(BookCatalog.class.getPackage())
+			.addClass(TransactionCompletion.class)
+			.addAsManifestResource("test-persistence.xml", "persistence.xml")
+			.addAsManifestResource("jbossas-ds.xml")
+			.addAsManifestResource(EmptyAsset.INSTANCE, "beans.xml");
+
+		logger.info(archive.toString(true));
+
+		return archive;
+	}
+
+	@PersistenceContext
+	EntityManager em;
+
+	@Inject
+	UserTransaction userTransaction;
+
+	@EJB
+	BookCatalog catalog;
+
+	@Before
+	public void setUp() throws Exception {
+		clearData();
+	}
+
+	private void clearData() throws Exception {
+		userTransaction.begin();
+		em.joinTransaction();
+
+		logger.info("Dumping old records...");
+
+		em.createQuery("DELETE FROM Book01").executeUpdate();
+		userTransaction.commit();
+
+		// 一括削除ではリスナーが呼ばれないため、キャッシュを明示的に空にする
+		catalog.clear();
+		catalog.resetStatistics();
+		catalog.setMaximumSize(BookCatalog.DEFAULT_MAXIMUM_SIZE);
+	}
+
+	private void persist(Book01... books) throws Exception {
+		userTransaction.begin();
+		em.joinTransaction();
+		for (Book01 book : books) {
+			em.persist(book);
+		}
+		userTransaction.commit();
+		em.clear();
+	}
+
+	/**
+	 * 1回目の検索はデータベースから読み込み（ミス）、
+	 * 2回目の検索はキャッシュから返される（ヒット）ことを確認する。
+	 */
+	@Test
+	public void testReadThrough() throws Exception {
+
+		///// 準備 /////
+
+		persist(new Book01("The Hitchhiker's Guide to the Galaxy", 12.5F,
+				"Science fiction comedy book", "1-84023-742-2", 354, false));
+
+		///// テスト /////
+
+		Book01 first = catalog.findByIsbn("1-84023-742-2");
+		Book01 second = catalog.findByIsbn("1-84023-742-2");
+		Book01 missing = catalog.findByIsbn("0-00-000000-0");
+
+		///// 検証 /////
+
+		assertThat(first.getTitle(), is("The Hitchhiker's Guide to the Galaxy"));
+		assertThat(second.getId(), is(first.getId()));
+		// 呼び出しごとに別のインスタンスが返される
+		assertThat(second, is(not(sameInstance(first))));
+		assertThat(missing, is(nullValue()));
+
+		assertThat(catalog.getHitCount(), is(1L));
+		assertThat(catalog.getMissCount(), is(2L));
+		assertThat(catalog.getSize(), is(1));
+	}
+
+	/**
+	 * キャッシュされたエンティティを変更してマージすると、
+	 * コミット後にキャッシュが無効化され、次の検索で
+	 * 変更後の値が返されることを確認する。
+	 */
+	@Test
+	public void testInvalidateOnMerge() throws Exception {
+
+		///// 準備 /////
+
+		persist(new Book01("The Hitchhiker's Guide to the Galaxy", 12.5F,
+				"Science fiction comedy book", "1-84023-742-2", 354, false));
+
+		Book01 book = catalog.findByIsbn("1-84023-742-2");
+
+		///// テスト /////
+
+		book.setPrice(9.99F);
+
+		userTransaction.begin();
+		em.joinTransaction();
+		em.merge(book);
+		userTransaction.commit();
+
+		Book01 reloaded = catalog.findByIsbn("1-84023-742-2");
+
+		///// 検証 /////
+
+		assertThat(reloaded.getPrice(), is(9.99F));
+		// 無効化により2回ともデータベースから読み込まれている
+		assertThat(catalog.getHitCount(), is(0L));
+		assertThat(catalog.getMissCount(), is(2L));
+	}
+
+	/**
+	 * キャッシュの上限を超えた場合に、最も長い間参照されて
+	 * いないエントリが削除されることを確認する。
+	 */
+	@Test
+	public void testLruEviction() throws Exception {
+
+		///// 準備 /////
+
+		persist(new Book01("Book A", 10F, "A", "isbn-a", 100, false),
+				new Book01("Book B", 10F, "B", "isbn-b", 100, false),
+				new Book01("Book C", 10F, "C", "isbn-c", 100, false));
+
+		catalog.setMaximumSize(2);
+
+		///// テスト /////
+
+		catalog.findByIsbn("isbn-a");
+		catalog.findByIsbn("isbn-b");
+		catalog.findByIsbn("isbn-a");		// isbn-aを最近参照されたエントリにする
+		catalog.findByIsbn("isbn-c");		// isbn-bが追い出される
+		catalog.findByIsbn("isbn-a");
+
+		///// 検証 /////
+
+		assertThat(catalog.getSize(), is(2));
+		assertThat(catalog.getEvictionCount(), is(1L));
+		assertThat(catalog.getHitCount(), is(2L));
+		assertThat(catalog.getMissCount(), is(3L));
+	}
+}
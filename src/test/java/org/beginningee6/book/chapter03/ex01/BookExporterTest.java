@@ -0,0 +1,145 @@
+package org.beginningee6.book.chapter03.ex01;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.util.logging.Logger;
+
+import javax.ejb.EJB;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.transaction.UserTransaction;
+
+import org.beginningee6.book.chapter03.util.TransactionCompletion;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.shrinkwrap.api.Archive;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.EmptyAsset;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ *
+ * BookExporterクラスの動作確認テスト
+ *
+ */
+@RunWith(Arquillian.class)
+public class BookExporterTest {
+
+	private static final Logger logger = Logger.getLogger(BookExporterTest.class.getName());
+
+	@Deployment
+	public static Archive<?> createDeployment() {
+
+		JavaArchive archive = ShrinkWrap.create(JavaArchive.class)
+			.addPackage(BookExporter.class.getPackage())
+			.addClass(TransactionCompletion.class)
+			.addAsManifestResource("test-persistence.xml", "persistence.xml")
+			.addAsManifestResource("jbossas-ds.xml")
+			.addAsManifestResource(EmptyAsset.INSTANCE, "beans.xml");
+
+		logger.info(archive.toString(true));
+
+		return archive;
+	}
+
+	@PersistenceContext
+	EntityManager em;
+
+	@Inject
+	UserTransaction userTransaction;
+
+	@EJB
+	BookExporter exporter;
+
+	@Before
+	public void setUp() throws Exception {
+		clearData();
+		createData();
+	}
+
+	private void clearData() throws Exception {
+		userTransaction.begin();
+		em.joinTransaction();
+
+		logger.info("Dumping old records...");
+
+		em.createQuery("DELETE FROM Book01").executeUpdate();
+		userTransaction.commit();
+	}
+
+	private void createData() throws Exception {
+		userTransaction.begin();
+		em.joinTransaction();
+
+		em.persist(new Book01("The Hitchhiker's Guide to the Galaxy", 12.5F,
+				"Science fiction comedy book", "1-84023-742-2", 354, false));
+		em.persist(new Book01("The Restaurant at the End of the Universe", 10F,
+				"Sequel, \"comedy\"", "1-84023-743-0", 250, true));
+		em.persist(new Book01("Life, the Universe and Everything", null,
+				null, "1-84023-744-9", null, null));
+
+		userTransaction.commit();
+		em.clear();
+	}
+
+	/**
+	 * CSV形式で全件を出力し、ヘッダ行と各行の内容を確認する。
+	 * 読み込み件数を出力件数より小さくし、分割して読み込まれる
+	 * ことも確認する。
+	 */
+	@Test
+	public void testExportCsv() throws Exception {
+
+		///// テスト /////
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		BookExportResult result = exporter.export(out, BookExportFormat.CSV, 2);
+
+		///// 検証 /////
+
+		assertThat(result.getRows(), is(3L));
+		assertThat(result.getBytes(), is((long) out.size()));
+
+		String[] lines = new String(out.toByteArray(), "UTF-8").split("\n");
+		assertThat(lines.length, is(4));
+		assertThat(lines[0], is("id,title,price,description,isbn,nbOfPage,illustrations"));
+		assertThat(lines[1].endsWith(",The Hitchhiker's Guide to the Galaxy,12.5,Science fiction comedy book,1-84023-742-2,354,false"), is(true));
+		assertThat(lines[2].endsWith(",The Restaurant at the End of the Universe,10.0,\"Sequel, \"\"comedy\"\"\",1-84023-743-0,250,true"), is(true));
+		assertThat(lines[3].endsWith(",\"Life, the Universe and Everything\",,,1-84023-744-9,,"), is(true));
+	}
+
+	/**
+	 * BINARY形式で全件を出力し、先頭の識別子と行数を確認する。
+	 */
+	@Test
+	public void testExportBinary() throws Exception {
+
+		///// テスト /////
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		BookExportResult result = exporter.export(out, BookExportFormat.BINARY);
+
+		///// 検証 /////
+
+		assertThat(result.getRows(), is(3L));
+		assertThat(result.getBytes(), is((long) out.size()));
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+		assertThat(in.readInt(), is(BookExportFormat.MAGIC));
+
+		// 1行目：nullのフィールドは無い
+		assertThat(in.readByte(), is((byte) 1));
+		in.readLong();
+		assertThat(in.readByte(), is((byte) 0));
+		assertThat(in.readUTF(), is("The Hitchhiker's Guide to the Galaxy"));
+		assertThat(in.readFloat(), is(12.5F));
+	}
+}
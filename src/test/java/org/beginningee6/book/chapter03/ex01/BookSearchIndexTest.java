@@ -0,0 +1,181 @@
+package org.beginningee6.book.chapter03.ex01;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.ejb.EJB;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.transaction.UserTransaction;
+
+import org.beginningee6.book.chapter03.util.TransactionCompletion;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.shrinkwrap.api.Archive;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.EmptyAsset;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ *
+ * BookSearchIndexクラスの動作確認テスト
+ *
+ */
+@RunWith(Arquillian.class)
+public class BookSearchIndexTest {
+
+	private static final Logger logger = Logger.getLogger(BookSearchIndexTest.class.getName());
+
+	@Deployment
+	public static Archive<?> createDeployment() {
+
+		JavaArchive archive = ShrinkWrap.create(JavaArchive.class)
+			.addPackage(BookSearchIndex.class.getPackage())
+			.addClass(TransactionCompletion.class)
+			.addAsManifestResource("test-persistence.xml", "persistence.xml")
+			.addAsManifestResource("jbossas-ds.xml")
+			.addAsManifestResource(EmptyAsset.INSTANCE, "beans.xml");
+
+		logger.info(archive.toString(true));
+
+		return archive;
+	}
+
+	@PersistenceContext
+	EntityManager em;
+
+	@Inject
+	UserTransaction userTransaction;
+
+	@EJB
+	BookSearchIndex index;
+
+	private Book01 galaxy;
+	private Book01 restaurant;
+	private Book01 cooking;
+
+	@Before
+	public void setUp() throws Exception {
+		clearData();
+		createData();
+	}
+
+	private void clearData() throws Exception {
+		userTransaction.begin();
+		em.joinTransaction();
+
+		logger.info("Dumping old records...");
+
+		em.createQuery("DELETE FROM Book01").executeUpdate();
+		userTransaction.commit();
+
+		// 一括削除ではリスナーが呼ばれないため、インデックスを作成し直す
+		index.rebuild();
+	}
+
+	private void createData() throws Exception {
+		galaxy = new Book01("The Hitchhiker's Guide to the Galaxy", 12.5F,
+				"Science fiction comedy book", "isbn-1", 354, false);
+		restaurant = new Book01("The Restaurant at the End of the Universe", 10F,
+				"Science fiction sequel set in a galaxy far away", "isbn-2", 250, false);
+		cooking = new Book01("Cooking for Engineers", 20F,
+				"Recipes and kitchen science", "isbn-3", 180, true);
+
+		userTransaction.begin();
+		em.joinTransaction();
+		em.persist(galaxy);
+		em.persist(restaurant);
+		em.persist(cooking);
+		userTransaction.commit();
+		em.clear();
+	}
+
+	/**
+	 * コミットされたエンティティが検索でき、titleに含まれる単語の方が
+	 * 高いスコアになることを確認する。
+	 */
+	@Test
+	public void testSearchRanked() throws Exception {
+
+		///// テスト /////
+
+		List<Long> galaxyIds = index.search("galaxy", 10);
+		List<Long> scienceIds = index.search("SCIENCE fiction", 2);
+
+		///// 検証 /////
+
+		assertThat(index.getDocumentCount(), is(3));
+
+		// titleに含まれる方が上位になる
+		assertThat(galaxyIds.size(), is(2));
+		assertThat(galaxyIds.get(0), is(galaxy.getId()));
+		assertThat(galaxyIds.get(1), is(restaurant.getId()));
+
+		// 両方の単語を含むエンティティが上位になり、件数はlimitまで
+		assertThat(scienceIds.size(), is(2));
+		assertThat(scienceIds.contains(cooking.getId()), is(false));
+
+		// 検索結果のIDからまとめてエンティティを読み込む
+		List<Book01> books = index.findBooks(galaxyIds);
+		assertThat(books.get(0).getTitle(), is("The Hitchhiker's Guide to the Galaxy"));
+	}
+
+	/**
+	 * 更新と削除がコミット後にインデックスに反映されることを確認する。
+	 */
+	@Test
+	public void testUpdateAndRemove() throws Exception {
+
+		///// テスト /////
+
+		userTransaction.begin();
+		em.joinTransaction();
+		em.find(Book01.class, cooking.getId()).setDescription("Recipes for a galaxy of flavours");
+		em.remove(em.find(Book01.class, galaxy.getId()));
+		userTransaction.commit();
+
+		///// 検証 /////
+
+		List<Long> ids = index.search("galaxy", 10);
+		assertThat(ids.size(), is(2));
+		assertThat(ids.contains(galaxy.getId()), is(false));
+		assertThat(ids.contains(cooking.getId()), is(true));
+		assertThat(index.search("kitchen", 10).isEmpty(), is(true));
+	}
+
+	/**
+	 * 検索1回あたりの所要時間を計測する。
+	 */
+	@Test
+	public void testSearchLatency() throws Exception {
+
+		///// 準備 /////
+
+		for (long id = 1000000; id < 1010000; id++) {
+			index.index(id, "Generated title " + (id % 97), "generated description number " + (id % 13));
+		}
+
+		///// テスト /////
+
+		final int queries = 1000;
+		long start = System.nanoTime();
+		for (int i = 0; i < queries; i++) {
+			index.search("title " + (i % 97) + " number", 10);
+		}
+		long elapsed = System.nanoTime() - start;
+
+		logger.info(String.format("BookSearchIndex: %.1f microseconds/query, %d terms, %d posting bytes",
+				elapsed / 1000.0 / queries, index.getTermCount(), index.getPostingBytes()));
+
+		///// 検証 /////
+
+		assertThat(index.search("title 5", 10).size(), is(10));
+	}
+}
@@ -0,0 +1,365 @@
+package org.beginningee6.book.chapter03.ex02;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.transaction.UserTransaction;
+
+import org.beginningee6.book.chapter03.util.TransactionCompletion;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.shrinkwrap.api.Archive;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.EmptyAsset;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ *
+ * LanguageDictionaryクラスとNewsKey02クラスの動作確認テスト
+ *
+ */
+@RunWith(Arquillian.class)
+public class LanguageDictionaryTest {
+
+	private static final Logger logger = Logger.getLogger(LanguageDictionaryTest.class.getName());
+
+	private static final String[] LANGUAGES = { "EN", "FR", "DE", "JA", "ES", "IT", "PT", "ZH" };
+
+	@Deployment
+	public static Archive<?> createDeployment() {
+
+		JavaArchive archive = ShrinkWrap.create(JavaArchive.class)
+			.addPackage(LanguageDictionary.class.getPackage())
+			.addClass(TransactionCompletion.class)
+			.addAsManifestResource("test-persistence.xml", "persistence.xml")
+			.addAsManifestResource("jbossas-ds.xml")
+			.addAsManifestResource(EmptyAsset.INSTANCE, "beans.xml");
+
+		logger.info(archive.toString(true));
+
+		return archive;
+	}
+
+	@PersistenceContext
+	EntityManager em;
+
+	@Inject
+	UserTransaction userTransaction;
+
+	@Before
+	public void setUp() throws Exception {
+		clearData();
+	}
+
+	private void clearData() throws Exception {
+		userTransaction.begin();
+		em.joinTransaction();
+
+		logger.info("Dumping old records...");
+
+		em.createQuery("DELETE FROM News02").executeUpdate();
+		userTransaction.commit();
+	}
+
+	/**
+	 * 同じ値の言語に対して同じインスタンスとコードが返され、
+	 * コードから言語を復元できることを確認する。
+	 */
+	@Test
+	public void testIntern() throws Exception {
+
+		///// テスト /////
+
+		String first = LanguageDictionary.intern(new String("EN"));
+		String second = LanguageDictionary.intern(new String("EN"));
+		int code = LanguageDictionary.code(new String("EN"));
+
+		///// 検証 /////
+
+		assertThat(first == second, is(true));
+		assertThat(LanguageDictionary.language(code) == first, is(true));
+		assertThat(LanguageDictionary.code(new String("FR")) == code, is(false));
+		assertThat(LanguageDictionary.intern(null), is(nullValue()));
+		assertThat(LanguageDictionary.code(null), is(LanguageDictionary.NO_LANGUAGE));
+
+		// 複合主キーの言語も正規のインスタンスとなる
+		assertThat(new NewsId02("Top Gun", new String("EN")).getLanguage() == first, is(true));
+	}
+
+	/**
+	 * 長すぎる言語にはコードが割り当てられず、辞書が大きくならないこと、
+	 * またその言語の圧縮形式のキーも正しく比較できることを確認する。
+	 */
+	@Test
+	public void testUnassignedLanguage() throws Exception {
+
+		///// 準備 /////
+
+		String longLanguage = "x-not-a-language-tag";
+		int size = LanguageDictionary.size();
+
+		///// テスト /////
+
+		int code = LanguageDictionary.code(longLanguage);
+		String interned = LanguageDictionary.intern(longLanguage);
+		NewsKey02 key = NewsKey02.of("Top Gun", new String(longLanguage));
+
+		///// 検証 /////
+
+		assertThat(longLanguage.length() > LanguageDictionary.MAXIMUM_LANGUAGE_LENGTH, is(true));
+		assertThat(code, is(LanguageDictionary.UNASSIGNED));
+		assertThat(interned == longLanguage, is(true));
+		assertThat(LanguageDictionary.size(), is(size));
+
+		assertThat(key, is(NewsKey02.of("Top Gun", longLanguage)));
+		assertThat(key.hashCode(), is(NewsKey02.of("Top Gun", longLanguage).hashCode()));
+		assertThat(key.equals(NewsKey02.of("Top Gun", "x-another-language-tag")), is(false));
+		assertThat(key.equals(NewsKey02.of("Top Gun", null)), is(false));
+		assertThat(key.getLanguage(), is(longLanguage));
+		assertThat(key.toId(), is(new NewsId02("Top Gun", longLanguage)));
+	}
+
+	/**
+	 * データベースから読み込んだ複合主キーの言語も、
+	 * ＠PostLoadにより正規のインスタンスとなることを確認する。
+	 */
+	@Test
+	public void testInternOnLoad() throws Exception {
+
+		///// 準備 /////
+
+		userTransaction.begin();
+		em.joinTransaction();
+		em.persist(new News02(new NewsId02("Top Gun", "EN"), "Maverick"));
+		em.persist(new News02(new NewsId02("Top Gun 2", "EN"), "Rooster"));
+		userTransaction.commit();
+		em.clear();
+
+		///// テスト /////
+
+		List<News02> loaded = em.createNamedQuery("findFirstNewsPage", News02.class).getResultList();
+		News02 found = em.find(News02.class, new NewsId02("Top Gun", "EN"));
+
+		///// 検証 /////
+
+		String canonical = LanguageDictionary.intern("EN");
+		assertThat(loaded.size(), is(2));
+		assertThat(loaded.get(0).getId().getLanguage() == canonical, is(true));
+		assertThat(loaded.get(1).getId().getLanguage() == canonical, is(true));
+		assertThat(found.getId().getLanguage() == canonical, is(true));
+	}
+
+	/**
+	 * 圧縮形式のキーと複合主キーが相互に変換でき、
+	 * 等価性が複合主キーと一致することを確認する。
+	 */
+	@Test
+	public void testNewsKey() throws Exception {
+
+		///// テスト /////
+
+		NewsKey02 key = NewsKey02.of(new NewsId02("Top Gun", "EN"));
+
+		///// 検証 /////
+
+		assertThat(key, is(NewsKey02.of("Top Gun", new String("EN"))));
+		assertThat(key.hashCode(), is(NewsKey02.of("Top Gun", "EN").hashCode()));
+		assertThat(key.equals(NewsKey02.of("Top Gun", "FR")), is(false));
+		assertThat(key.equals(NewsKey02.of("Top Gun 2", "EN")), is(false));
+		assertThat(key.toId(), is(new NewsId02("Top Gun", "EN")));
+		assertThat(key.getLanguage(), is("EN"));
+	}
+
+	/**
+	 * 複合主キーの値を変更すると、保持しているハッシュ値が
+	 * 再計算されることを確認する。
+	 */
+	@Test
+	public void testCachedHashCode() throws Exception {
+
+		///// 準備 /////
+
+		NewsId02 id = new NewsId02("Top Gun", "EN");
+		int before = id.hashCode();
+
+		///// テスト /////
+
+		id.setLanguage("FR");
+
+		///// 検証 /////
+
+		assertThat(id.hashCode() == before, is(false));
+		assertThat(id.hashCode(), is(new NewsId02("Top Gun", "FR").hashCode()));
+	}
+
+	/**
+	 * 従来の複合主キー、ハッシュ値を保持する複合主キー、
+	 * 圧縮形式のキーについて、マップのヒープ使用量と
+	 * 検索のスループットを比較する。
+	 *
+	 * キーはデータベースから読み込んだNews02の複合主キーから作成する。
+	 * 従来の複合主キーには、＠PostLoadで置き換える前と同様に、
+	 * キーごとに別のStringのインスタンスを持たせる。
+	 */
+	@Test
+	public void testBenchmark() throws Exception {
+
+		///// 準備 /////
+
+		final int count = 20000;
+		final int rounds = 50;
+
+		for (int i = 0; i < count / LANGUAGES.length; i++) {
+			if (i % 500 == 0) {
+				userTransaction.begin();
+				em.joinTransaction();
+			}
+			for (String language : LANGUAGES) {
+				em.persist(new News02(new NewsId02("Breaking news number " + i, language), "content"));
+			}
+			if (i % 500 == 499 || i == count / LANGUAGES.length - 1) {
+				userTransaction.commit();
+				em.clear();
+			}
+		}
+
+		List<NewsId02> loadedIds = new ArrayList<NewsId02>(count);
+		for (News02 news : em.createNamedQuery("findFirstNewsPage", News02.class).getResultList()) {
+			loadedIds.add(news.getId());
+		}
+		em.clear();
+
+		///// テスト /////
+
+		long legacyBytes = usedMemory();
+		Map<LegacyNewsId, Integer> legacyMap = new HashMap<LegacyNewsId, Integer>();
+		List<LegacyNewsId> legacyProbes = new ArrayList<LegacyNewsId>(count);
+		for (NewsId02 id : loadedIds) {
+			legacyMap.put(new LegacyNewsId(id.getTitle(), new String(id.getLanguage())), legacyMap.size());
+			legacyProbes.add(new LegacyNewsId(id.getTitle(), new String(id.getLanguage())));
+		}
+		legacyBytes = usedMemory() - legacyBytes;
+		long legacyNanos = probe(legacyMap, legacyProbes, rounds);
+
+		long idBytes = usedMemory();
+		Map<NewsId02, Integer> idMap = new HashMap<NewsId02, Integer>();
+		for (NewsId02 id : loadedIds) {
+			idMap.put(id, idMap.size());
+		}
+		// 検索には別に読み込んだ複合主キーを使用する
+		List<NewsId02> idProbes = new ArrayList<NewsId02>(count);
+		for (News02 news : em.createNamedQuery("findFirstNewsPage", News02.class).getResultList()) {
+			idProbes.add(news.getId());
+		}
+		em.clear();
+		idBytes = usedMemory() - idBytes;
+		long idNanos = probe(idMap, idProbes, rounds);
+
+		long keyBytes = usedMemory();
+		Map<NewsKey02, Integer> keyMap = new HashMap<NewsKey02, Integer>();
+		List<NewsKey02> keyProbes = new ArrayList<NewsKey02>(count);
+		for (int i = 0; i < loadedIds.size(); i++) {
+			keyMap.put(NewsKey02.of(loadedIds.get(i)), keyMap.size());
+			keyProbes.add(NewsKey02.of(idProbes.get(i)));
+		}
+		keyBytes = usedMemory() - keyBytes;
+		long keyNanos = probe(keyMap, keyProbes, rounds);
+
+		logger.info("legacy NewsId: heap=" + legacyBytes + " bytes, "
+				+ throughput((long) count * rounds, legacyNanos) + " lookups/s");
+		logger.info("loaded NewsId02: heap=" + idBytes + " bytes, "
+				+ throughput((long) count * rounds, idNanos) + " lookups/s");
+		logger.info("packed NewsKey02: heap=" + keyBytes + " bytes, "
+				+ throughput((long) count * rounds, keyNanos) + " lookups/s");
+
+		///// 検証 /////
+
+		assertThat(loadedIds.size(), is(count));
+		assertThat(legacyMap.size(), is(count));
+		assertThat(idMap.size(), is(count));
+		assertThat(keyMap.size(), is(count));
+		// 読み込んだ複合主キーの言語は正規のインスタンス
+		assertThat(idProbes.get(0).getLanguage() == LanguageDictionary.intern(idProbes.get(0).getLanguage()), is(true));
+	}
+
+	private static <K> long probe(Map<K, Integer> map, List<K> probes, int rounds) {
+
+		// ウォームアップ
+		for (K key : probes) {
+			map.get(key);
+		}
+
+		long found = 0;
+		long start = System.nanoTime();
+		for (int round = 0; round < rounds; round++) {
+			for (K key : probes) {
+				if (map.get(key) != null) {
+					found++;
+				}
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+
+		assertThat(found, is((long) probes.size() * rounds));
+		return elapsed;
+	}
+
+	private static long throughput(long operations, long nanos) {
+		return nanos == 0 ? 0 : operations * 1000000000L / nanos;
+	}
+
+	private static long usedMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * 比較のための、ハッシュ値を保持せず言語を共有しない
+	 * 従来の複合主キー
+	 */
+	private static class LegacyNewsId {
+
+		private final String title;
+		private final String language;
+
+		LegacyNewsId(String title, String language) {
+			this.title = title;
+			this.language = language;
+		}
+
+		@Override
+		public int hashCode() {
+			final int prime = 31;
+			int result = 1;
+			result = prime * result
+					+ ((language == null) ? 0 : language.hashCode());
+			result = prime * result + ((title == null) ? 0 : title.hashCode());
+			return result;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof LegacyNewsId))
+				return false;
+			LegacyNewsId other = (LegacyNewsId) obj;
+			return title.equals(other.title) && language.equals(other.language);
+		}
+	}
+}
@@ -0,0 +1,188 @@
+package org.beginningee6.book.chapter03.ex02;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.ejb.EJB;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.transaction.UserTransaction;
+
+import org.beginningee6.book.chapter03.util.TransactionCompletion;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.shrinkwrap.api.Archive;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.EmptyAsset;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ *
+ * News02Repositoryクラスの動作確認テスト
+ *
+ */
+@RunWith(Arquillian.class)
+public class News02RepositoryTest {
+
+	private static final Logger logger = Logger.getLogger(News02RepositoryTest.class.getName());
+
+	@Deployment
+	public static Archive<?> createDeployment() {
+
+		JavaArchive archive = ShrinkWrap.create(JavaArchive.class)
+			.addPackage(News02Repository.class.getPackage())
+			.addClass(TransactionCompletion.class)
+			.addAsManifestResource("test-persistence.xml", "persistence.xml")
+			.addAsManifestResource("jbossas-ds.xml")
+			.addAsManifestResource(EmptyAsset.INSTANCE, "beans.xml");
+
+		logger.info(archive.toString(true));
+
+		return archive;
+	}
+
+	@PersistenceContext
+	EntityManager em;
+
+	@Inject
+	UserTransaction userTransaction;
+
+	@EJB
+	News02Repository repository;
+
+	@Before
+	public void setUp() throws Exception {
+		clearData();
+	}
+
+	private void clearData() throws Exception {
+		userTransaction.begin();
+		em.joinTransaction();
+
+		logger.info("Dumping old records...");
+
+		em.createQuery("DELETE FROM News02").executeUpdate();
+		userTransaction.commit();
+	}
+
+	private void persist(News02... news) throws Exception {
+		userTransaction.begin();
+		em.joinTransaction();
+		for (News02 n : news) {
+			em.persist(n);
+		}
+		userTransaction.commit();
+		em.clear();
+	}
+
+	/**
+	 * 複数の複合主キーでまとめて検索し、見つかったエンティティと
+	 * 見つからなかった複合主キーが正しく返されることを確認する。
+	 */
+	@Test
+	public void testFindAll() throws Exception {
+
+		///// 準備 /////
+
+		persist(new News02(new NewsId02("Richard Wright has died", "EN"), "The keyboard of Pink Floyd has died today"),
+				new News02(new NewsId02("Richard Wright has died", "FR"), "Le clavier de Pink Floyd est mort aujourd'hui"),
+				new News02(new NewsId02("Top Gun", "EN"), "Top Gun is back"));
+
+		///// テスト /////
+
+		NewsLookup02 lookup = repository.findAll(Arrays.asList(
+				new NewsId02("Richard Wright has died", "EN"),
+				new NewsId02("Richard Wright has died", "FR"),
+				new NewsId02("Richard Wright has died", "DE"),
+				new NewsId02("Top Gun", "EN"),
+				new NewsId02("Unknown", "EN")));
+
+		///// 検証 /////
+
+		assertThat(lookup.getFound().size(), is(3));
+		assertThat(lookup.get(new NewsId02("Richard Wright has died", "FR")).getContent(),
+				is("Le clavier de Pink Floyd est mort aujourd'hui"));
+		assertThat(lookup.get(new NewsId02("Top Gun", "EN")).getContent(), is("Top Gun is back"));
+
+		assertThat(lookup.getMissing().size(), is(2));
+		assertThat(lookup.getMissing().contains(new NewsId02("Richard Wright has died", "DE")), is(true));
+		assertThat(lookup.getMissing().contains(new NewsId02("Unknown", "EN")), is(true));
+	}
+
+	/**
+	 * 1回のSELECT文で検索する件数の上限を超える複合主キーを
+	 * 指定しても、すべてのエンティティが検索できることを確認する。
+	 */
+	@Test
+	public void testFindAllInChunks() throws Exception {
+
+		///// 準備 /////
+
+		int count = News02Repository.MAX_KEYS_PER_QUERY * 2 + 10;
+		List<NewsId02> ids = new ArrayList<NewsId02>();
+
+		userTransaction.begin();
+		em.joinTransaction();
+		for (int i = 0; i < count; i++) {
+			NewsId02 id = new NewsId02("News " + (i / 3), "L" + (i % 3));
+			em.persist(new News02(id, "Content " + i));
+			ids.add(id);
+		}
+		userTransaction.commit();
+		em.clear();
+
+		///// テスト /////
+
+		NewsLookup02 lookup = repository.findAll(ids);
+
+		///// 検証 /////
+
+		assertThat(lookup.getFound().size(), is(count));
+		assertThat(lookup.getMissing().isEmpty(), is(true));
+	}
+
+	/**
+	 * キーセット方式のページングにより、複合主キーの順序で
+	 * 重複も抜けもなく全件を取得できることを確認する。
+	 */
+	@Test
+	public void testFindPages() throws Exception {
+
+		///// 準備 /////
+
+		persist(new News02(new NewsId02("B", "EN"), "b-en"),
+				new News02(new NewsId02("A", "FR"), "a-fr"),
+				new News02(new NewsId02("A", "EN"), "a-en"),
+				new News02(new NewsId02("C", "DE"), "c-de"),
+				new News02(new NewsId02("B", "DE"), "b-de"));
+
+		///// テスト /////
+
+		List<String> contents = new ArrayList<String>();
+		List<Integer> pageSizes = new ArrayList<Integer>();
+		NewsId02 after = null;
+		List<News02> page;
+		do {
+			page = repository.findPage(after, 2);
+			pageSizes.add(page.size());
+			for (News02 news : page) {
+				contents.add(news.getContent());
+				after = news.getId();
+			}
+		} while (page.size() == 2);
+
+		///// 検証 /////
+
+		assertThat(contents, is(Arrays.asList("a-en", "a-fr", "b-de", "b-en", "c-de")));
+		assertThat(pageSizes, is(Arrays.asList(2, 2, 1)));
+	}
+}
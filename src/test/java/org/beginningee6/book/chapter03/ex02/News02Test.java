@@ -11,6 +11,7 @@ import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
 import javax.transaction.UserTransaction;
 
+import org.beginningee6.book.chapter03.util.TransactionCompletion;
 import org.jboss.arquillian.container.test.api.Deployment;
 import org.jboss.arquillian.junit.Arquillian;
 import org.jboss.shrinkwrap.api.Archive;
@@ -36,6 +37,7 @@ public class News02Test {
 		
 		JavaArchive archive = ShrinkWrap.create(JavaArchive.class)
 			.addPackage(News02.class.getPackage())
+			.addClass(TransactionCompletion.class)
 			.addAsManifestResource("test-persistence.xml", "persistence.xml")
 			.addAsManifestResource("jbossas-ds.xml")
 			.addAsManifestResource(EmptyAsset.INSTANCE, "beans.xml");
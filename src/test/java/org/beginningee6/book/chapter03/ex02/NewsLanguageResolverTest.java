@@ -0,0 +1,184 @@
+package org.beginningee6.book.chapter03.ex02;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+import javax.ejb.EJB;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.transaction.UserTransaction;
+
+import org.beginningee6.book.chapter03.util.TransactionCompletion;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.shrinkwrap.api.Archive;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.EmptyAsset;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ *
+ * NewsLanguageResolverクラスの動作確認テスト
+ *
+ */
+@RunWith(Arquillian.class)
+public class NewsLanguageResolverTest {
+
+	private static final Logger logger = Logger.getLogger(NewsLanguageResolverTest.class.getName());
+
+	@Deployment
+	public static Archive<?> createDeployment() {
+
+		JavaArchive archive = ShrinkWrap.create(JavaArchive.class)
+			.addPackage(NewsLanguageResolver.class.getPackage())
+			.addClass(TransactionCompletion.class)
+			.addAsManifestResource("test-persistence.xml", "persistence.xml")
+			.addAsManifestResource("jbossas-ds.xml")
+			.addAsManifestResource(EmptyAsset.INSTANCE, "beans.xml");
+
+		logger.info(archive.toString(true));
+
+		return archive;
+	}
+
+	@PersistenceContext
+	EntityManager em;
+
+	@Inject
+	UserTransaction userTransaction;
+
+	@EJB
+	NewsLanguageResolver resolver;
+
+	@Before
+	public void setUp() throws Exception {
+		clearData();
+	}
+
+	private void clearData() throws Exception {
+		userTransaction.begin();
+		em.joinTransaction();
+
+		logger.info("Dumping old records...");
+
+		em.createQuery("DELETE FROM News02").executeUpdate();
+		userTransaction.commit();
+
+		resolver.clear();
+		resolver.resetStatistics();
+	}
+
+	private void persist(News02... news) throws Exception {
+		userTransaction.begin();
+		em.joinTransaction();
+		for (News02 n : news) {
+			em.persist(n);
+		}
+		userTransaction.commit();
+		em.clear();
+	}
+
+	/**
+	 * 希望する言語のリストの中から、翻訳が存在する最初の
+	 * 言語が選択されることを確認する。
+	 */
+	@Test
+	public void testResolve() throws Exception {
+
+		///// 準備 /////
+
+		persist(new News02(new NewsId02("Richard Wright has died", "EN"), "The keyboard of Pink Floyd has died today"),
+				new News02(new NewsId02("Richard Wright has died", "FR"), "Le clavier de Pink Floyd est mort aujourd'hui"));
+
+		///// テスト /////
+
+		NewsId02 french = resolver.resolve("Richard Wright has died", Arrays.asList("JA", "FR", "EN"));
+		NewsId02 english = resolver.resolve("Richard Wright has died", Arrays.asList("EN", "FR"));
+		NewsId02 none = resolver.resolve("Richard Wright has died", Arrays.asList("DE"));
+		NewsId02 unknown = resolver.resolve("Unknown", Arrays.asList("EN"));
+
+		///// 検証 /////
+
+		assertThat(french, is(new NewsId02("Richard Wright has died", "FR")));
+		assertThat(english, is(new NewsId02("Richard Wright has died", "EN")));
+		assertThat(none, is(nullValue()));
+		assertThat(unknown, is(nullValue()));
+
+		// 2つのタイトルについて1回ずつ読み込み、残りはキャッシュから決定される
+		assertThat(resolver.getMissCount(), is(2L));
+		assertThat(resolver.getHitCount(), is(2L));
+	}
+
+	/**
+	 * preload()により読み込んだタイトルは、データベースに
+	 * アクセスせずに決定されることを確認する。
+	 */
+	@Test
+	public void testPreload() throws Exception {
+
+		///// 準備 /////
+
+		persist(new News02(new NewsId02("Richard Wright has died", "EN"), "The keyboard of Pink Floyd has died today"),
+				new News02(new NewsId02("Top Gun", "EN"), "Top Gun is back"),
+				new News02(new NewsId02("Top Gun", "DE"), "Top Gun ist zurück"));
+
+		///// テスト /////
+
+		int loaded = resolver.preload(Arrays.asList("Richard Wright has died", "Top Gun", "Unknown"));
+
+		NewsId02 wright = resolver.resolve("Richard Wright has died", Arrays.asList("DE", "EN"));
+		NewsId02 topGun = resolver.resolve("Top Gun", Arrays.asList("DE", "EN"));
+		NewsId02 unknown = resolver.resolve("Unknown", Arrays.asList("EN"));
+
+		///// 検証 /////
+
+		assertThat(loaded, is(3));
+		assertThat(wright, is(new NewsId02("Richard Wright has died", "EN")));
+		assertThat(topGun, is(new NewsId02("Top Gun", "DE")));
+		assertThat(unknown, is(nullValue()));
+		assertThat(resolver.getAvailableLanguages("Top Gun"), is(Arrays.asList("DE", "EN")));
+		assertThat(resolver.getMissCount(), is(0L));
+		assertThat(resolver.getSize(), is(3));
+	}
+
+	/**
+	 * 翻訳の追加・削除がコミットされると、該当するタイトルの
+	 * キャッシュが無効化されることを確認する。
+	 */
+	@Test
+	public void testInvalidateOnWrite() throws Exception {
+
+		///// 準備 /////
+
+		persist(new News02(new NewsId02("Top Gun", "EN"), "Top Gun is back"));
+		resolver.preload(Arrays.asList("Top Gun", "Richard Wright has died"));
+
+		///// テスト /////
+
+		persist(new News02(new NewsId02("Top Gun", "FR"), "Top Gun est de retour"));
+		NewsId02 added = resolver.resolve("Top Gun", Arrays.asList("FR", "EN"));
+
+		userTransaction.begin();
+		em.joinTransaction();
+		em.remove(em.find(News02.class, new NewsId02("Top Gun", "FR")));
+		userTransaction.commit();
+		em.clear();
+		NewsId02 removed = resolver.resolve("Top Gun", Arrays.asList("FR", "EN"));
+
+		///// 検証 /////
+
+		assertThat(added, is(new NewsId02("Top Gun", "FR")));
+		assertThat(removed, is(new NewsId02("Top Gun", "EN")));
+
+		// 変更の無いタイトルはキャッシュに残る
+		assertThat(resolver.getSize(), is(2));
+		assertThat(resolver.getMissCount(), is(2L));
+	}
+}
@@ -0,0 +1,122 @@
+package org.beginningee6.book.chapter03.ex03;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.ejb.EJB;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.transaction.UserTransaction;
+
+import org.beginningee6.book.chapter03.ex02.LanguageDictionary;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.shrinkwrap.api.Archive;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.EmptyAsset;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ *
+ * News03Repositoryクラスの動作確認テスト
+ *
+ */
+@RunWith(Arquillian.class)
+public class News03RepositoryTest {
+
+	private static final Logger logger = Logger.getLogger(News03RepositoryTest.class.getName());
+
+	@Deployment
+	public static Archive<?> createDeployment() {
+
+		JavaArchive archive = ShrinkWrap.create(JavaArchive.class)
+			.addPackage(News03Repository.class.getPackage())
+			.addClass(LanguageDictionary.class)
+			.addAsManifestResource("test-persistence.xml", "persistence.xml")
+			.addAsManifestResource("jbossas-ds.xml")
+			.addAsManifestResource(EmptyAsset.INSTANCE, "beans.xml");
+
+		logger.info(archive.toString(true));
+
+		return archive;
+	}
+
+	@PersistenceContext
+	EntityManager em;
+
+	@Inject
+	UserTransaction userTransaction;
+
+	@EJB
+	News03Repository repository;
+
+	@Before
+	public void setUp() throws Exception {
+		clearData();
+	}
+
+	private void clearData() throws Exception {
+		userTransaction.begin();
+		em.joinTransaction();
+
+		logger.info("Dumping old records...");
+
+		em.createQuery("DELETE FROM News03").executeUpdate();
+		userTransaction.commit();
+	}
+
+	private void persist(News03... news) throws Exception {
+		userTransaction.begin();
+		em.joinTransaction();
+		for (News03 n : news) {
+			em.persist(n);
+		}
+		userTransaction.commit();
+		em.clear();
+	}
+
+	/**
+	 * キーセット方式のページングにより、複合主キーの順序で
+	 * 重複も抜けもなく全件を取得できることを確認する。
+	 */
+	@Test
+	public void testFindPages() throws Exception {
+
+		///// 準備 /////
+
+		persist(new News03("B", "EN", "b-en"),
+				new News03("A", "FR", "a-fr"),
+				new News03("A", "EN", "a-en"),
+				new News03("C", "DE", "c-de"),
+				new News03("B", "DE", "b-de"));
+
+		///// テスト /////
+
+		List<String> contents = new ArrayList<String>();
+		List<Integer> pageSizes = new ArrayList<Integer>();
+		NewsId03 after = null;
+		List<News03> page;
+		do {
+			page = repository.findPage(after, 2);
+			pageSizes.add(page.size());
+			for (News03 news : page) {
+				contents.add(news.getContent());
+				after = new NewsId03(news.getTitle(), news.getLanguage());
+			}
+		} while (page.size() == 2);
+
+		///// 検証 /////
+
+		assertThat(contents, is(Arrays.asList("a-en", "a-fr", "b-de", "b-en", "c-de")));
+		assertThat(pageSizes, is(Arrays.asList(2, 2, 1)));
+	}
+}
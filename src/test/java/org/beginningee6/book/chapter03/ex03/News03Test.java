@@ -12,6 +12,7 @@ import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
 import javax.transaction.UserTransaction;
 
+import org.beginningee6.book.chapter03.ex02.LanguageDictionary;
 import org.jboss.arquillian.container.test.api.Deployment;
 import org.jboss.arquillian.junit.Arquillian;
 import org.jboss.shrinkwrap.api.Archive;
@@ -37,6 +38,7 @@ public class News03Test {
 		
 		JavaArchive archive = ShrinkWrap.create(JavaArchive.class)
 			.addPackage(News03.class.getPackage())
+			.addClass(LanguageDictionary.class)
 			.addAsManifestResource("test-persistence.xml", "persistence.xml")
 			.addAsManifestResource("jbossas-ds.xml")
 			.addAsManifestResource(EmptyAsset.INSTANCE, "beans.xml");
@@ -109,6 +111,8 @@ public class News03Test {
 		assertThat(persisted.getTitle(), is("Richard Wright has died"));
 		// データのlanguageを検証
 		assertThat(persisted.getLanguage(), is("EN"));
+		// 読み込んだlanguageは＠PostLoadで正規のインスタンスに置き換えられる
+		assertThat(persisted.getLanguage() == LanguageDictionary.intern("EN"), is(true));
 	}
 	
 	/**
@@ -0,0 +1,173 @@
+package org.beginningee6.book.chapter03.ex03;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.util.logging.Logger;
+
+import javax.ejb.EJB;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.transaction.UserTransaction;
+
+import org.beginningee6.book.chapter03.ex02.LanguageDictionary;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.shrinkwrap.api.Archive;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.EmptyAsset;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ *
+ * NewsKeyFilterクラスとNews03Repository.find()の動作確認テスト
+ *
+ */
+@RunWith(Arquillian.class)
+public class NewsKeyFilterTest {
+
+	private static final Logger logger = Logger.getLogger(NewsKeyFilterTest.class.getName());
+
+	@Deployment
+	public static Archive<?> createDeployment() {
+
+		JavaArchive archive = ShrinkWrap.create(JavaArchive.class)
+			.addPackage(NewsKeyFilter.class.getPackage())
+			.addClass(LanguageDictionary.class)
+			.addAsManifestResource("test-persistence.xml", "persistence.xml")
+			.addAsManifestResource("jbossas-ds.xml")
+			.addAsManifestResource(EmptyAsset.INSTANCE, "beans.xml");
+
+		logger.info(archive.toString(true));
+
+		return archive;
+	}
+
+	@PersistenceContext
+	EntityManager em;
+
+	@Inject
+	UserTransaction userTransaction;
+
+	@EJB
+	NewsKeyFilter keyFilter;
+
+	@EJB
+	News03Repository repository;
+
+	@Before
+	public void setUp() throws Exception {
+		clearData();
+	}
+
+	private void clearData() throws Exception {
+		userTransaction.begin();
+		em.joinTransaction();
+
+		logger.info("Dumping old records...");
+
+		em.createQuery("DELETE FROM News03").executeUpdate();
+		userTransaction.commit();
+
+		keyFilter.rebuild();
+		keyFilter.resetStatistics();
+	}
+
+	/**
+	 * 存在する翻訳は検索でき、存在しない翻訳はデータベースに
+	 * アクセスせずにnullが返されることを確認する。
+	 */
+	@Test
+	public void testFindWithFilter() throws Exception {
+
+		///// 準備 /////
+
+		userTransaction.begin();
+		em.joinTransaction();
+		em.persist(new News03("Richard Wright has died", "EN", "The keyboard of Pink Floyd has died today"));
+		userTransaction.commit();
+		em.clear();
+
+		///// テスト /////
+
+		News03 found = repository.find(new NewsId03("Richard Wright has died", "EN"));
+		News03 missing = repository.find(new NewsId03("Richard Wright has died", "JA"));
+
+		///// 検証 /////
+
+		assertThat(found.getContent(), is("The keyboard of Pink Floyd has died today"));
+		assertThat(missing, is(nullValue()));
+		assertThat(keyFilter.getTruePositiveCount(), is(1L));
+		assertThat(keyFilter.getNegativeCount() + keyFilter.getFalsePositiveCount(), is(1L));
+	}
+
+	/**
+	 * 削除されたエンティティが検索されず、再作成により削除件数が
+	 * リセットされることを確認する。
+	 */
+	@Test
+	public void testRemoveAndRebuild() throws Exception {
+
+		///// 準備 /////
+
+		userTransaction.begin();
+		em.joinTransaction();
+		em.persist(new News03("Richard Wright has died", "EN", "The keyboard of Pink Floyd has died today"));
+		userTransaction.commit();
+
+		userTransaction.begin();
+		em.joinTransaction();
+		em.remove(em.find(News03.class, new NewsId03("Richard Wright has died", "EN")));
+		userTransaction.commit();
+		em.clear();
+
+		///// テスト /////
+
+		long removals = keyFilter.getRemovalCount();
+		keyFilter.rebuild();
+
+		///// 検証 /////
+
+		assertThat(removals, is(1L));
+		assertThat(keyFilter.getRemovalCount(), is(0L));
+		assertThat(repository.find(new NewsId03("Richard Wright has died", "EN")), is(nullValue()));
+	}
+
+	/**
+	 * 多数の存在しない複合主キーを検索し、観測した偽陽性率が
+	 * 目標とする偽陽性率の範囲に収まることを確認する。
+	 */
+	@Test
+	public void testFalsePositiveRate() throws Exception {
+
+		///// 準備 /////
+
+		userTransaction.begin();
+		em.joinTransaction();
+		for (int i = 0; i < 500; i++) {
+			em.persist(new News03("News " + i, "EN", "Content " + i));
+		}
+		userTransaction.commit();
+		em.clear();
+
+		keyFilter.rebuild();
+
+		///// テスト /////
+
+		for (int i = 0; i < 5000; i++) {
+			repository.find(new NewsId03("News " + i, "FR"));
+		}
+
+		logger.info("expected false positive rate: " + keyFilter.getExpectedFalsePositiveRate()
+				+ ", observed: " + keyFilter.getObservedFalsePositiveRate());
+
+		///// 検証 /////
+
+		assertThat(keyFilter.getObservedFalsePositiveRate() < NewsKeyFilter.TARGET_FALSE_POSITIVE_RATE * 3, is(true));
+		assertThat(keyFilter.getExpectedFalsePositiveRate() < NewsKeyFilter.TARGET_FALSE_POSITIVE_RATE, is(true));
+	}
+}
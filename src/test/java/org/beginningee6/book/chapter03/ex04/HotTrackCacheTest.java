@@ -0,0 +1,260 @@
+package org.beginningee6.book.chapter03.ex04;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.nio.ByteBuffer;
+import java.util.logging.Logger;
+
+import javax.ejb.EJB;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.transaction.UserTransaction;
+
+import org.beginningee6.book.chapter03.ex04.TrackAudioStoreTest.PatternInputStream;
+import org.beginningee6.book.chapter03.util.TransactionCompletion;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.shrinkwrap.api.Archive;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.EmptyAsset;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ *
+ * HotTrackCacheクラスの動作確認テスト
+ *
+ */
+@RunWith(Arquillian.class)
+public class HotTrackCacheTest {
+
+	private static final Logger logger = Logger.getLogger(HotTrackCacheTest.class.getName());
+
+	private static final int WAV_SIZE = 100 * 1024;
+
+	@Deployment
+	public static Archive<?> createDeployment() {
+
+		JavaArchive archive = ShrinkWrap.create(JavaArchive.class)
+			.addPackage(HotTrackCache.class.getPackage())
+			.addClass(TransactionCompletion.class)
+			.addAsManifestResource("test-persistence.xml", "persistence.xml")
+			.addAsManifestResource("jbossas-ds.xml")
+			.addAsManifestResource(EmptyAsset.INSTANCE, "beans.xml");
+
+		logger.info(archive.toString(true));
+
+		return archive;
+	}
+
+	@PersistenceContext
+	EntityManager em;
+
+	@Inject
+	UserTransaction userTransaction;
+
+	@EJB
+	HotTrackCache cache;
+
+	@Before
+	public void setUp() throws Exception {
+		clearData();
+	}
+
+	private void clearData() throws Exception {
+		userTransaction.begin();
+		em.joinTransaction();
+
+		logger.info("Dumping old records...");
+
+		em.createQuery("DELETE FROM Track04").executeUpdate();
+		userTransaction.commit();
+
+		cache.setMaximumBytes(HotTrackCache.DEFAULT_MAXIMUM_BYTES);
+		cache.setEvictionPolicy(HotTrackEvictionPolicy.LFU);
+		cache.clear();
+		cache.resetStatistics();
+		cache.resetAccessStatistics();
+	}
+
+	private Track04 persist(byte[] wav) throws Exception {
+		Track04 track = new Track04("ELVIS - That's the way it is", 72.84f, "Elvis' concert filmed at the Hilton hotel, Las Vega, NV.");
+		track.setWav(wav);
+
+		userTransaction.begin();
+		em.joinTransaction();
+		em.persist(track);
+		userTransaction.commit();
+		em.clear();
+
+		return track;
+	}
+
+	private static byte[] toByteArray(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * 一度読み込んだwavがファイルにキャッシュされ、
+	 * 以降はデータベースにアクセスせずに返されることを確認する。
+	 */
+	@Test
+	public void testGet() throws Exception {
+
+		///// 準備 /////
+
+		byte[] wav = PatternInputStream.toByteArray(WAV_SIZE);
+		Track04 track = persist(wav);
+		Track04 empty = persist(null);
+
+		///// テスト /////
+
+		byte[] first = toByteArray(cache.get(track.getId()));
+		byte[] second = toByteArray(cache.get(track.getId()));
+		ByteBuffer missing = cache.get(empty.getId());
+
+		///// 検証 /////
+
+		assertThat(first, is(wav));
+		assertThat(second, is(wav));
+		assertThat(missing, is(nullValue()));
+		assertThat(cache.contains(track.getId()), is(true));
+		assertThat(cache.getTotalBytes(), is((long) WAV_SIZE));
+		assertThat(cache.getHitCount(), is(1L));
+		assertThat(cache.getMissCount(), is(2L));
+	}
+
+	/**
+	 * LFUでは、参照回数が最も少ないトラックが追い出される
+	 * ことを確認する。
+	 */
+	@Test
+	public void testLfuEviction() throws Exception {
+
+		///// 準備 /////
+
+		Track04 frequent = persist(PatternInputStream.toByteArray(WAV_SIZE));
+		Track04 rare = persist(PatternInputStream.toByteArray(WAV_SIZE));
+		Track04 next = persist(PatternInputStream.toByteArray(WAV_SIZE));
+		cache.setMaximumBytes(WAV_SIZE * 2 + WAV_SIZE / 2);
+
+		///// テスト /////
+
+		cache.get(rare.getId());
+		for (int i = 0; i < 3; i++) {
+			cache.get(frequent.getId());
+		}
+		cache.get(next.getId());
+
+		///// 検証 /////
+
+		assertThat(cache.contains(frequent.getId()), is(true));
+		assertThat(cache.contains(rare.getId()), is(false));
+		assertThat(cache.contains(next.getId()), is(true));
+		assertThat(cache.getEvictionCount(), is(1L));
+		assertThat(cache.getTotalBytes(), is((long) WAV_SIZE * 2));
+	}
+
+	/**
+	 * LRUでは、最も長い間参照されていないトラックが
+	 * 追い出されることを確認する。
+	 */
+	@Test
+	public void testLruEviction() throws Exception {
+
+		///// 準備 /////
+
+		Track04 frequent = persist(PatternInputStream.toByteArray(WAV_SIZE));
+		Track04 recent = persist(PatternInputStream.toByteArray(WAV_SIZE));
+		Track04 next = persist(PatternInputStream.toByteArray(WAV_SIZE));
+		cache.setMaximumBytes(WAV_SIZE * 2 + WAV_SIZE / 2);
+		cache.setEvictionPolicy(HotTrackEvictionPolicy.LRU);
+
+		///// テスト /////
+
+		for (int i = 0; i < 3; i++) {
+			cache.get(frequent.getId());
+		}
+		cache.get(recent.getId());
+		cache.get(next.getId());
+
+		///// 検証 /////
+
+		assertThat(cache.contains(frequent.getId()), is(false));
+		assertThat(cache.contains(recent.getId()), is(true));
+		assertThat(cache.contains(next.getId()), is(true));
+	}
+
+	/**
+	 * setWav()で更新したエンティティをマージすると、
+	 * キャッシュが無効化されることを確認する。
+	 */
+	@Test
+	public void testInvalidateOnMerge() throws Exception {
+
+		///// 準備 /////
+
+		Track04 track = persist("Wav content".getBytes("UTF-8"));
+		cache.get(track.getId());
+
+		///// テスト /////
+
+		track.setWav("Updated content".getBytes("UTF-8"));
+		userTransaction.begin();
+		em.joinTransaction();
+		em.merge(track);
+		userTransaction.commit();
+		em.clear();
+
+		boolean cachedAfterMerge = cache.contains(track.getId());
+		byte[] updated = toByteArray(cache.get(track.getId()));
+
+		///// 検証 /////
+
+		assertThat(cachedAfterMerge, is(false));
+		assertThat(new String(updated, "UTF-8"), is("Updated content"));
+	}
+
+	/**
+	 * 保存した参照回数の多いトラックから、合計バイト数の
+	 * 上限まで読み込まれることを確認する。
+	 */
+	@Test
+	public void testWarmUp() throws Exception {
+
+		///// 準備 /////
+
+		Track04 hot = persist(PatternInputStream.toByteArray(WAV_SIZE));
+		Track04 warm = persist(PatternInputStream.toByteArray(WAV_SIZE));
+		Track04 cold = persist(PatternInputStream.toByteArray(WAV_SIZE));
+
+		for (int i = 0; i < 5; i++) {
+			cache.get(hot.getId());
+		}
+		for (int i = 0; i < 3; i++) {
+			cache.get(warm.getId());
+		}
+		cache.get(cold.getId());
+		cache.saveStatistics();
+
+		// 再起動を想定して、キャッシュしたファイルを破棄する
+		cache.clear();
+		cache.setMaximumBytes(WAV_SIZE * 2);
+
+		///// テスト /////
+
+		cache.warmUp(null);
+
+		///// 検証 /////
+
+		assertThat(cache.contains(hot.getId()), is(true));
+		assertThat(cache.contains(warm.getId()), is(true));
+		assertThat(cache.contains(cold.getId()), is(false));
+	}
+}
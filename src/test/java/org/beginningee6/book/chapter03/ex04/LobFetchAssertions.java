@@ -0,0 +1,51 @@
+package org.beginningee6.book.chapter03.ex04;
+
+/**
+ * LobFetchMonitorの統計を検証するためのテスト用のユーティリティ。
+ *
+ * 使用例：
+ *
+ *   monitor.beginScope("listing");
+ *   try {
+ *       ... titleだけを参照する検索 ...
+ *   } finally {
+ *       stats = monitor.endScope();
+ *   }
+ *   LobFetchAssertions.assertWavNotFetched(stats);
+ */
+final class LobFetchAssertions {
+
+	private LobFetchAssertions() {}
+
+	/**
+	 * wavのデータが1バイトも読み込まれていないことを検証する。
+	 */
+	static void assertWavNotFetched(LobFetchStatistics statistics) {
+		if (statistics.getBytes() != 0 || statistics.getEagerLoads() != 0) {
+			throw new AssertionError("Track04.wav was fetched in scope " + statistics.getScope()
+					+ ": " + statistics.getBytes() + " bytes, " + statistics.getEagerLoads()
+					+ " eager loads of " + statistics.getLoads() + " entities");
+		}
+	}
+
+	/**
+	 * Track04エンティティの読み込み時に、wavが読み込まれて
+	 * いないこと（遅延フェッチが行われたこと）を検証する。
+	 */
+	static void assertWavFetchedLazily(LobFetchStatistics statistics) {
+		if (statistics.getEagerLoads() != 0) {
+			throw new AssertionError("Track04.wav was fetched eagerly in scope " + statistics.getScope()
+					+ ": " + statistics.getEagerLoads() + " of " + statistics.getLoads() + " entities");
+		}
+	}
+
+	/**
+	 * 読み込まれたwavのバイト数が上限以下であることを検証する。
+	 */
+	static void assertWavBytesAtMost(LobFetchStatistics statistics, long maximum) {
+		if (statistics.getBytes() > maximum) {
+			throw new AssertionError("Track04.wav fetched " + statistics.getBytes() + " bytes in scope "
+					+ statistics.getScope() + " (at most " + maximum + " expected)");
+		}
+	}
+}
@@ -5,11 +5,13 @@ import static org.hamcrest.MatcherAssert.*;
 
 import java.util.logging.Logger;
 
+import javax.ejb.EJB;
 import javax.inject.Inject;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
 import javax.transaction.UserTransaction;
 
+import org.beginningee6.book.chapter03.util.TransactionCompletion;
 import org.jboss.arquillian.container.test.api.Deployment;
 import org.jboss.arquillian.junit.Arquillian;
 import org.jboss.shrinkwrap.api.Archive;
@@ -37,6 +39,7 @@ public class Track04Test {
 		
 		JavaArchive archive = ShrinkWrap.create(JavaArchive.class)
 			.addPackage(Track04.class.getPackage())
+			.addClass(TransactionCompletion.class)
 			.addAsManifestResource("test-persistence.xml", "persistence.xml")
 			.addAsManifestResource("jbossas-ds.xml")
 			.addAsManifestResource(EmptyAsset.INSTANCE, "beans.xml");
@@ -46,12 +49,28 @@ public class Track04Test {
 		return archive;
 	}
 	
+	/**
+	 * titleだけを参照するためにem.find()でTrack04を1件読み込んだ場合に、
+	 * wavも読み込まれる（遅延フェッチが行われない）件数の期待値。
+	 * 
+	 * JBoss AS 7.1.1のHibernate 4.0は、バイトコードの拡張を行わない場合
+	 * ＠Basic(fetch = FetchType.LAZY)の指定を無視するため1とする。
+	 * バイトコードの拡張を有効にした場合は0に変更すること。
+	 */
+	private static final long EXPECTED_EAGER_WAV_LOADS = 1;
+	
 	@PersistenceContext
 	EntityManager em;
 	
 	@Inject
 	UserTransaction userTransaction;
 	
+	@EJB
+	LobFetchMonitor monitor;
+	
+	@EJB
+	TrackAudioStore audioStore;
+	
 	@Before
 	public void setUp() throws Exception {
 		clearData();
@@ -66,6 +85,21 @@ public class Track04Test {
 		
 		em.createQuery("DELETE FROM Track04").executeUpdate();
 		userTransaction.commit();
+		
+		monitor.reset();
+	}
+	
+	private Track04 persist(byte[] wav) throws Exception {
+		Track04 track = new Track04("ELVIS - That's the way it is", 72.84f, "Elvis' concert filmed at the Hilton hotel, Las Vega, NV.");
+		track.setWav(wav);
+		
+		userTransaction.begin();
+		em.joinTransaction();
+		em.persist(track);
+		userTransaction.commit();
+		em.clear();
+		
+		return track;
 	}
 
 	/**
@@ -114,4 +148,148 @@ public class Track04Test {
 		assertThat(new String(persisted.getWav(), "UTF-8"), is("Wav content"));
 	}
 	
+	/**
+	 * 
+	 * 名前付きクエリfindTrackListingsでtitleなどを検索しても、
+	 * wavが読み込まれないことを確認する。
+	 * 
+	 */
+	@Test
+	public void testListingDoesNotFetchWav() throws Exception {
+		
+		///// 準備 /////
+		
+		persist(new byte[100 * 1024]);
+		
+		///// テスト /////
+		
+		LobFetchStatistics statistics;
+		monitor.beginScope("findTrackListings");
+		try {
+			em.createNamedQuery("findTrackListings", TrackListing.class).getResultList();
+		} finally {
+			statistics = monitor.endScope();
+		}
+		
+		///// 検証 /////
+		
+		LobFetchAssertions.assertWavNotFetched(statistics);
+		assertThat(statistics.getLoads(), is(0L));
+	}
+	
+	/**
+	 * 
+	 * titleだけを参照するためにエンティティを検索した場合に、
+	 * wavが読み込まれる件数がEXPECTED_EAGER_WAV_LOADSと一致し、
+	 * それを超えるwavのデータが読み込まれないことを確認する。
+	 * 
+	 * JPAプロバイダの遅延フェッチの扱いが変わった場合や、
+	 * titleの参照でwavが余計に読み込まれるようになった場合は失敗する。
+	 * 
+	 */
+	@Test
+	public void testTitleOnlyFindFetchesWavAsExpected() throws Exception {
+		
+		///// 準備 /////
+		
+		Track04 track = persist(new byte[100 * 1024]);
+		
+		///// テスト /////
+		
+		LobFetchStatistics statistics;
+		Track04 found;
+		monitor.beginScope("findTitle");
+		try {
+			found = em.find(Track04.class, track.getId());
+			found.getTitle();
+		} finally {
+			statistics = monitor.endScope();
+		}
+		boolean wavLoaded = em.getEntityManagerFactory().getPersistenceUnitUtil().isLoaded(found, "wav");
+		
+		logger.info("Lazy fetching of Track04.wav is " + (wavLoaded ? "NOT honoured" : "honoured")
+				+ ": " + statistics);
+		
+		///// 検証 /////
+		
+		assertThat(statistics.getLoads(), is(1L));
+		assertThat(statistics.getEagerLoads(), is(EXPECTED_EAGER_WAV_LOADS));
+		assertThat(wavLoaded, is(EXPECTED_EAGER_WAV_LOADS > 0));
+		LobFetchAssertions.assertWavBytesAtMost(statistics, EXPECTED_EAGER_WAV_LOADS * 100 * 1024);
+		if (EXPECTED_EAGER_WAV_LOADS == 0) {
+			LobFetchAssertions.assertWavFetchedLazily(statistics);
+		}
+		assertThat(monitor.getStatistics("findTitle").getLoads(), is(1L));
+	}
+	
+	/**
+	 * 
+	 * TrackAudioStore.readWav()で範囲を指定して読み込んだ場合に、
+	 * その範囲のバイト数だけが読み込まれることを確認する。
+	 * 
+	 */
+	@Test
+	public void testRangeReadFetchesOnlyRange() throws Exception {
+		
+		///// 準備 /////
+		
+		Track04 track = persist(new byte[100 * 1024]);
+		
+		///// テスト /////
+		
+		LobFetchStatistics statistics;
+		byte[] range;
+		monitor.beginScope("readRange");
+		try {
+			range = audioStore.readWav(track.getId(), 1000, 500);
+		} finally {
+			statistics = monitor.endScope();
+		}
+		
+		///// 検証 /////
+		
+		assertThat(range.length, is(500));
+		LobFetchAssertions.assertWavBytesAtMost(statistics, 500);
+		assertThat(statistics.getBytes(), is(500L));
+		assertThat(statistics.getLoads(), is(0L));
+	}
+	
+	/**
+	 * 
+	 * トランザクションごとに、読み込んだwavのバイト数が
+	 * 集計されることを確認する。
+	 * 
+	 */
+	@Test
+	public void testTransactionAccounting() throws Exception {
+		
+		///// 準備 /////
+		
+		Track04 track = persist(new byte[100 * 1024]);
+		
+		///// テスト /////
+		
+		userTransaction.begin();
+		em.joinTransaction();
+		
+		LobFetchStatistics before = monitor.getCurrentTransactionStatistics();
+		byte[] wav = em.find(Track04.class, track.getId()).getWav();
+		boolean wavLoaded = em.getEntityManagerFactory().getPersistenceUnitUtil().isLoaded(
+				em.find(Track04.class, track.getId()), "wav");
+		LobFetchStatistics during = monitor.getCurrentTransactionStatistics();
+		
+		userTransaction.commit();
+		
+		///// 検証 /////
+		
+		assertThat(wav.length, is(100 * 1024));
+		assertThat(wavLoaded, is(true));
+		assertThat(before.getBytes(), is(0L));
+		assertThat(during.getLoads(), is(1L));
+		// 非同期に作成される波形のプレビューの読み込みも集計されるため、下限だけを検証する
+		assertThat(monitor.getTransactionCount() >= 1, is(true));
+		assertThat(monitor.getMaximumTransactionBytes() >= during.getBytes(), is(true));
+		assertThat(monitor.getCurrentTransactionStatistics(), is(nullValue()));
+	}
+	
 }
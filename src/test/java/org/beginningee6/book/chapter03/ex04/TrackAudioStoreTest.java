@@ -0,0 +1,336 @@
+package org.beginningee6.book.chapter03.ex04;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import javax.ejb.EJB;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityNotFoundException;
+import javax.persistence.PersistenceContext;
+import javax.transaction.UserTransaction;
+
+import org.beginningee6.book.chapter03.util.TransactionCompletion;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.shrinkwrap.api.Archive;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.EmptyAsset;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ *
+ * TrackAudioStoreクラスの動作確認テスト
+ *
+ */
+@RunWith(Arquillian.class)
+public class TrackAudioStoreTest {
+
+	private static final Logger logger = Logger.getLogger(TrackAudioStoreTest.class.getName());
+
+	@Deployment
+	public static Archive<?> createDeployment() {
+
+		JavaArchive archive = ShrinkWrap.create(JavaArchive.class)
+			.addPackage(TrackAudioStore.class.getPackage())
+			.addClass(TransactionCompletion.class)
+			.addAsManifestResource("test-persistence.xml", "persistence.xml")
+			.addAsManifestResource("jbossas-ds.xml")
+			.addAsManifestResource(EmptyAsset.INSTANCE, "beans.xml");
+
+		logger.info(archive.toString(true));
+
+		return archive;
+	}
+
+	@PersistenceContext
+	EntityManager em;
+
+	@Inject
+	UserTransaction userTransaction;
+
+	@EJB
+	TrackAudioStore store;
+
+	@EJB
+	TrackExternalStorage externalStorage;
+
+	@EJB
+	TrackSegmentCache segmentCache;
+
+	@Before
+	public void setUp() throws Exception {
+		clearData();
+	}
+
+	private void clearData() throws Exception {
+		userTransaction.begin();
+		em.joinTransaction();
+
+		logger.info("Dumping old records...");
+
+		em.createQuery("DELETE FROM Track04").executeUpdate();
+		userTransaction.commit();
+	}
+
+	private Track04 persist(byte[] wav) throws Exception {
+		Track04 track = new Track04("ELVIS - That's the way it is", 72.84f, "Elvis' concert filmed at the Hilton hotel, Las Vega, NV.");
+		track.setWav(wav);
+
+		userTransaction.begin();
+		em.joinTransaction();
+		em.persist(track);
+		userTransaction.commit();
+		em.clear();
+
+		return track;
+	}
+
+	/**
+	 * 永続化したwavのデータを、ストリームとチャネルで
+	 * 読み込めることを確認する。
+	 */
+	@Test
+	public void testOpenWav() throws Exception {
+
+		///// 準備 /////
+
+		byte[] wav = PatternInputStream.toByteArray(TrackAudioStore.CHUNK_SIZE * 3 + 123);
+		Track04 track = persist(wav);
+
+		///// テスト /////
+
+		long streamChecksum;
+		InputStream in = store.openWav(track.getId());
+		try {
+			CRC32 crc = new CRC32();
+			byte[] buffer = new byte[1000];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				crc.update(buffer, 0, read);
+			}
+			streamChecksum = crc.getValue();
+		} finally {
+			in.close();
+		}
+
+		long channelBytes = 0;
+		ReadableByteChannel channel = store.openWavChannel(track.getId());
+		try {
+			ByteBuffer buffer = ByteBuffer.allocate(4096);
+			int read;
+			while ((read = channel.read(buffer)) != -1) {
+				channelBytes += read;
+				buffer.clear();
+			}
+		} finally {
+			channel.close();
+		}
+
+		///// 検証 /////
+
+		assertThat(streamChecksum, is(checksum(wav)));
+		assertThat(channelBytes, is((long) wav.length));
+	}
+
+	/**
+	 * エンティティが存在しない場合、wavがnullの場合に
+	 * ストリームが返されないことを確認する。
+	 */
+	@Test
+	public void testOpenMissingWav() throws Exception {
+
+		///// 準備 /////
+
+		Track04 track = persist(null);
+
+		///// テスト /////
+
+		InputStream missingTrack = store.openWav(track.getId() + 1);
+		InputStream missingWav = store.openWav(track.getId());
+		long copied = store.copyWav(track.getId(), new NullOutputStream());
+
+		///// 検証 /////
+
+		assertThat(missingTrack, is(nullValue()));
+		assertThat(missingWav, is(nullValue()));
+		assertThat(copied, is(-1L));
+	}
+
+	/**
+	 * TrackBlobStoreに格納したwavのデータを、データベースに
+	 * 格納した場合と同じく、ストリーム、コピー、範囲の指定、
+	 * TrackSegmentCache、エンティティから読み込めることを確認する。
+	 */
+	@Test
+	public void testReadExternalizedWav() throws Exception {
+
+		///// 準備 /////
+
+		int length = TrackAudioStore.CHUNK_SIZE * 2 + 123;
+		byte[] wav = PatternInputStream.toByteArray(length);
+		Track04 track = persist(null);
+
+		userTransaction.begin();
+		externalStorage.store(track.getId(), new ByteArrayInputStream(wav));
+		userTransaction.commit();
+
+		///// テスト /////
+
+		ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+		InputStream in = store.openWav(track.getId());
+		try {
+			byte[] buffer = new byte[1000];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				streamed.write(buffer, 0, read);
+			}
+		} finally {
+			in.close();
+		}
+
+		CRC32 crc = new CRC32();
+		long copied = store.copyWav(track.getId(), new CheckedOutputStream(new NullOutputStream(), crc));
+
+		byte[] range = store.readWav(track.getId(), 1000, 500);
+		byte[] tail = store.readWav(track.getId(), length - 10, 500);
+		byte[] beyond = store.readWav(track.getId(), length + 10, 500);
+		byte[] segment = segmentCache.read(track.getId(), TrackAudioStore.CHUNK_SIZE + 7, 100);
+
+		Track04 persisted = em.find(Track04.class, track.getId());
+
+		///// 検証 /////
+
+		assertThat(persisted.isStoredExternally(), is(true));
+		assertThat(streamed.toByteArray(), is(wav));
+		assertThat(copied, is((long) length));
+		assertThat(crc.getValue(), is(checksum(wav)));
+		assertThat(range, is(Arrays.copyOfRange(wav, 1000, 1500)));
+		assertThat(tail, is(Arrays.copyOfRange(wav, length - 10, length)));
+		assertThat(beyond.length, is(0));
+		assertThat(segment, is(Arrays.copyOfRange(wav, TrackAudioStore.CHUNK_SIZE + 7, TrackAudioStore.CHUNK_SIZE + 107)));
+		assertThat(persisted.getWav(), is(wav));
+	}
+
+	/**
+	 * ストリームから書き込んだwavのデータを、コピーにより
+	 * 正しく読み込めることを確認する。
+	 */
+	@Test
+	public void testWriteAndCopyWav() throws Exception {
+
+		///// 準備 /////
+
+		Track04 track = persist("Wav content".getBytes("UTF-8"));
+		int length = 5 * 1024 * 1024;
+
+		///// テスト /////
+
+		userTransaction.begin();
+		store.writeWav(track.getId(), new PatternInputStream(length), length);
+		userTransaction.commit();
+
+		CRC32 crc = new CRC32();
+		long copied = store.copyWav(track.getId(), new CheckedOutputStream(new NullOutputStream(), crc));
+
+		///// 検証 /////
+
+		assertThat(copied, is((long) length));
+		assertThat(crc.getValue(), is(checksum(PatternInputStream.toByteArray(length))));
+
+		// エンティティからも更新したデータが読み込まれる
+		Track04 persisted = em.find(Track04.class, track.getId());
+		assertThat(persisted.getWav().length, is(length));
+	}
+
+	/**
+	 * 存在しないエンティティのwavを書き込もうとすると
+	 * EntityNotFoundExceptionが発生することを確認する。
+	 */
+	@Test
+	public void testWriteMissingWav() throws Exception {
+
+		///// テスト /////
+
+		userTransaction.begin();
+		try {
+			store.writeWav(-1L, new PatternInputStream(10), 10);
+		} catch (EntityNotFoundException e) {
+
+			///// 検証 /////
+
+			logger.info("Expected exception: " + e);
+			return;
+		} finally {
+			userTransaction.rollback();
+		}
+		throw new AssertionError("EntityNotFoundException was not thrown");
+	}
+
+	private static long checksum(byte[] data) {
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		return crc.getValue();
+	}
+
+	/**
+	 * 指定したバイト数の決まったパターンのデータを、
+	 * ヒープに保持せずに生成するストリーム
+	 */
+	static class PatternInputStream extends InputStream {
+
+		private final long length;
+		private long position;
+
+		PatternInputStream(long length) {
+			this.length = length;
+		}
+
+		static byte[] toByteArray(int length) throws IOException {
+			byte[] data = new byte[length];
+			PatternInputStream in = new PatternInputStream(length);
+			int offset = 0;
+			while (offset < length) {
+				offset += in.read(data, offset, length - offset);
+			}
+			return data;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (position >= length) {
+				return -1;
+			}
+			return (int) ((position++ * 31) & 0xFF);
+		}
+	}
+
+	/**
+	 * 出力したデータを破棄するストリーム
+	 */
+	static class NullOutputStream extends OutputStream {
+
+		@Override
+		public void write(int b) throws IOException {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+		}
+	}
+}
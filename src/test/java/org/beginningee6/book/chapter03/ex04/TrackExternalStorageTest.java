@@ -0,0 +1,203 @@
+package org.beginningee6.book.chapter03.ex04;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.io.ByteArrayInputStream;
+import java.nio.MappedByteBuffer;
+import java.util.logging.Logger;
+
+import javax.ejb.EJB;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.transaction.UserTransaction;
+
+import org.beginningee6.book.chapter03.util.TransactionCompletion;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.shrinkwrap.api.Archive;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.EmptyAsset;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ *
+ * TrackExternalStorageクラスとTrackBlobStoreクラスの動作確認テスト
+ *
+ */
+@RunWith(Arquillian.class)
+public class TrackExternalStorageTest {
+
+	private static final Logger logger = Logger.getLogger(TrackExternalStorageTest.class.getName());
+
+	@Deployment
+	public static Archive<?> createDeployment() {
+
+		JavaArchive archive = ShrinkWrap.create(JavaArchive.class)
+			.addPackage(TrackExternalStorage.class.getPackage())
+			.addClass(TransactionCompletion.class)
+			.addAsManifestResource("test-persistence.xml", "persistence.xml")
+			.addAsManifestResource("jbossas-ds.xml")
+			.addAsManifestResource(EmptyAsset.INSTANCE, "beans.xml");
+
+		logger.info(archive.toString(true));
+
+		return archive;
+	}
+
+	@PersistenceContext
+	EntityManager em;
+
+	@Inject
+	UserTransaction userTransaction;
+
+	@EJB
+	TrackExternalStorage storage;
+
+	@EJB
+	TrackBlobStore blobStore;
+
+	@Before
+	public void setUp() throws Exception {
+		clearData();
+	}
+
+	private void clearData() throws Exception {
+		userTransaction.begin();
+		em.joinTransaction();
+
+		logger.info("Dumping old records...");
+
+		em.createQuery("DELETE FROM Track04").executeUpdate();
+		userTransaction.commit();
+
+		// どのトラックからも参照されなくなったファイルを削除する
+		storage.collectGarbage(0);
+	}
+
+	private Track04 persist(String title, byte[] wav) throws Exception {
+		Track04 track = new Track04(title, 72.84f, "Elvis' concert filmed at the Hilton hotel, Las Vega, NV.");
+		track.setWav(wav);
+
+		userTransaction.begin();
+		em.joinTransaction();
+		em.persist(track);
+		userTransaction.commit();
+		em.clear();
+
+		return track;
+	}
+
+	private static String toString(MappedByteBuffer buffer) throws Exception {
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	/**
+	 * 同じデータを格納した複数のトラックが、1つのファイルを
+	 * 参照することを確認する。
+	 */
+	@Test
+	public void testStoreDeduplicates() throws Exception {
+
+		///// 準備 /////
+
+		Track04 original = persist("ELVIS - That's the way it is", null);
+		Track04 compilation = persist("ELVIS - Greatest hits", null);
+		byte[] wav = "Wav content".getBytes("UTF-8");
+
+		///// テスト /////
+
+		userTransaction.begin();
+		TrackBlob first = storage.store(original.getId(), new ByteArrayInputStream(wav));
+		TrackBlob second = storage.store(compilation.getId(), new ByteArrayInputStream(wav));
+		userTransaction.commit();
+
+		///// 検証 /////
+
+		assertThat(first.getHash(), is(second.getHash()));
+		assertThat(first.getLength(), is((long) wav.length));
+		assertThat(first.isCreated(), is(true));
+		assertThat(second.isCreated(), is(false));
+		assertThat(storage.getReferenceCount(first.getHash()), is(2L));
+		assertThat(blobStore.listHashes().size(), is(1));
+
+		Track04 persisted = em.find(Track04.class, original.getId());
+		assertThat(persisted.isStoredExternally(), is(true));
+		assertThat(persisted.getWavLength(), is((long) wav.length));
+		assertThat(new String(persisted.getWav(), "UTF-8"), is("Wav content"));
+		assertThat(toString(storage.openWav(original.getId())), is("Wav content"));
+	}
+
+	/**
+	 * データベースに格納されている既存のwavが、
+	 * TrackBlobStoreに移行されることを確認する。
+	 */
+	@Test
+	public void testMigrate() throws Exception {
+
+		///// 準備 /////
+
+		Track04 first = persist("ELVIS - That's the way it is", "Wav content".getBytes("UTF-8"));
+		Track04 second = persist("ELVIS - Greatest hits", "Wav content".getBytes("UTF-8"));
+		Track04 other = persist("ELVIS - Live", "Live content".getBytes("UTF-8"));
+		Track04 empty = persist("ELVIS - Unreleased", null);
+
+		///// テスト /////
+
+		int migrated = storage.migrate();
+
+		///// 検証 /////
+
+		assertThat(migrated, is(3));
+		assertThat(blobStore.listHashes().size(), is(2));
+		assertThat(toString(storage.openWav(first.getId())), is("Wav content"));
+		assertThat(toString(storage.openWav(second.getId())), is("Wav content"));
+		assertThat(toString(storage.openWav(other.getId())), is("Live content"));
+		assertThat(storage.openWav(empty.getId()), is(nullValue()));
+
+		// 移行済みのトラックは再度移行されない
+		assertThat(storage.migrate(), is(0));
+	}
+
+	/**
+	 * どのトラックからも参照されなくなったファイルだけが
+	 * 削除されることを確認する。
+	 */
+	@Test
+	public void testCollectGarbage() throws Exception {
+
+		///// 準備 /////
+
+		Track04 kept = persist("ELVIS - That's the way it is", null);
+		Track04 removed = persist("ELVIS - Greatest hits", null);
+
+		userTransaction.begin();
+		TrackBlob keptBlob = storage.store(kept.getId(), new ByteArrayInputStream("Kept".getBytes("UTF-8")));
+		TrackBlob removedBlob = storage.store(removed.getId(), new ByteArrayInputStream("Removed".getBytes("UTF-8")));
+		userTransaction.commit();
+
+		userTransaction.begin();
+		em.joinTransaction();
+		em.remove(em.find(Track04.class, removed.getId()));
+		userTransaction.commit();
+		em.clear();
+
+		///// テスト /////
+
+		int withinGrace = storage.collectGarbage();
+		int deleted = storage.collectGarbage(0);
+
+		///// 検証 /////
+
+		assertThat(withinGrace, is(0));
+		assertThat(deleted, is(1));
+		assertThat(blobStore.exists(keptBlob.getHash()), is(true));
+		assertThat(blobStore.exists(removedBlob.getHash()), is(false));
+	}
+}
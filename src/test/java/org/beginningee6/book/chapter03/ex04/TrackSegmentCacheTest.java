@@ -0,0 +1,276 @@
+package org.beginningee6.book.chapter03.ex04;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+import javax.ejb.EJB;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.transaction.UserTransaction;
+
+import org.beginningee6.book.chapter03.ex04.TrackAudioStoreTest.PatternInputStream;
+import org.beginningee6.book.chapter03.util.TransactionCompletion;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.shrinkwrap.api.Archive;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.EmptyAsset;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ *
+ * TrackAudioStore.readWav()とTrackSegmentCacheクラスの動作確認テスト
+ *
+ */
+@RunWith(Arquillian.class)
+public class TrackSegmentCacheTest {
+
+	private static final Logger logger = Logger.getLogger(TrackSegmentCacheTest.class.getName());
+
+	private static final int SEGMENT = TrackSegmentCache.SEGMENT_SIZE;
+
+	@Deployment
+	public static Archive<?> createDeployment() {
+
+		JavaArchive archive = ShrinkWrap.create(JavaArchive.class)
+			.addPackage(TrackSegmentCache.class.getPackage())
+			.addClass(TransactionCompletion.class)
+			.addAsManifestResource("test-persistence.xml", "persistence.xml")
+			.addAsManifestResource("jbossas-ds.xml")
+			.addAsManifestResource(EmptyAsset.INSTANCE, "beans.xml");
+
+		logger.info(archive.toString(true));
+
+		return archive;
+	}
+
+	@PersistenceContext
+	EntityManager em;
+
+	@Inject
+	UserTransaction userTransaction;
+
+	@EJB
+	TrackAudioStore store;
+
+	@EJB
+	TrackSegmentCache cache;
+
+	@Before
+	public void setUp() throws Exception {
+		clearData();
+	}
+
+	private void clearData() throws Exception {
+		userTransaction.begin();
+		em.joinTransaction();
+
+		logger.info("Dumping old records...");
+
+		em.createQuery("DELETE FROM Track04").executeUpdate();
+		userTransaction.commit();
+
+		cache.clear();
+		cache.resetStatistics();
+	}
+
+	private Track04 persist(byte[] wav) throws Exception {
+		Track04 track = new Track04("ELVIS - That's the way it is", 72.84f, "Elvis' concert filmed at the Hilton hotel, Las Vega, NV.");
+		track.setWav(wav);
+
+		userTransaction.begin();
+		em.joinTransaction();
+		em.persist(track);
+		userTransaction.commit();
+		em.clear();
+
+		return track;
+	}
+
+	/**
+	 * 指定した範囲のデータが読み込まれ、wavの終端を超える
+	 * 部分は含まれないことを確認する。
+	 */
+	@Test
+	public void testReadWav() throws Exception {
+
+		///// 準備 /////
+
+		byte[] wav = PatternInputStream.toByteArray(SEGMENT * 2 + 100);
+		Track04 track = persist(wav);
+
+		///// テスト /////
+
+		byte[] range = store.readWav(track.getId(), 1000, 500);
+		byte[] tail = store.readWav(track.getId(), wav.length - 10, 500);
+		byte[] beyond = store.readWav(track.getId(), wav.length + 10, 500);
+		byte[] missing = store.readWav(track.getId() + 1, 0, 500);
+
+		///// 検証 /////
+
+		assertThat(range, is(Arrays.copyOfRange(wav, 1000, 1500)));
+		assertThat(tail, is(Arrays.copyOfRange(wav, wav.length - 10, wav.length)));
+		assertThat(beyond.length, is(0));
+		assertThat(missing, is(nullValue()));
+	}
+
+	/**
+	 * セグメントの境界をまたぐ範囲も正しく読み込まれ、
+	 * 近い位置へのシークではデータベースにアクセスしない
+	 * ことを確認する。
+	 */
+	@Test
+	public void testReadThroughCache() throws Exception {
+
+		///// 準備 /////
+
+		byte[] wav = PatternInputStream.toByteArray(SEGMENT * 3 + 100);
+		Track04 track = persist(wav);
+
+		///// テスト /////
+
+		byte[] across = cache.read(track.getId(), SEGMENT - 50, 100);	// セグメント0と1
+		byte[] seek1 = cache.read(track.getId(), SEGMENT + 2000, 100);	// セグメント1
+		byte[] seek2 = cache.read(track.getId(), 10, 100);				// セグメント0
+		byte[] tail = cache.read(track.getId(), wav.length - 50, 100);	// セグメント3
+		byte[] missing = cache.read(track.getId() + 1, 0, 100);
+
+		///// 検証 /////
+
+		assertThat(across, is(Arrays.copyOfRange(wav, SEGMENT - 50, SEGMENT + 50)));
+		assertThat(seek1, is(Arrays.copyOfRange(wav, SEGMENT + 2000, SEGMENT + 2100)));
+		assertThat(seek2, is(Arrays.copyOfRange(wav, 10, 110)));
+		assertThat(tail, is(Arrays.copyOfRange(wav, wav.length - 50, wav.length)));
+		assertThat(missing, is(nullValue()));
+
+		// セグメント0、1、3と存在しないトラックの読み込みのみがミスとなる
+		assertThat(cache.getMissCount(), is(4L));
+		assertThat(cache.getHitCount(), is(2L));
+		assertThat(cache.getSegmentCount(), is(3));
+	}
+
+	/**
+	 * トラックごとのセグメント数の上限を超えると、古い
+	 * セグメントから削除されることを確認する。
+	 */
+	@Test
+	public void testEviction() throws Exception {
+
+		///// 準備 /////
+
+		Track04 track = persist(PatternInputStream.toByteArray(SEGMENT * 4));
+		cache.setMaximumSegmentsPerTrack(2);
+
+		///// テスト /////
+
+		try {
+			for (int i = 0; i < 4; i++) {
+				cache.read(track.getId(), (long) i * SEGMENT, 10);
+			}
+		} finally {
+			cache.setMaximumSegmentsPerTrack(TrackSegmentCache.DEFAULT_MAXIMUM_SEGMENTS_PER_TRACK);
+		}
+
+		///// 検証 /////
+
+		assertThat(cache.getSegmentCount(), is(2));
+		assertThat(cache.getEvictionCount(), is(2L));
+	}
+
+	/**
+	 * wavを更新すると、キャッシュしたセグメントが
+	 * 削除されることを確認する。
+	 */
+	@Test
+	public void testInvalidateOnWrite() throws Exception {
+
+		///// 準備 /////
+
+		Track04 track = persist("Wav content".getBytes("UTF-8"));
+		cache.read(track.getId(), 0, 3);
+
+		///// テスト /////
+
+		userTransaction.begin();
+		em.joinTransaction();
+		em.find(Track04.class, track.getId()).setWav("Updated content".getBytes("UTF-8"));
+		userTransaction.commit();
+		em.clear();
+		byte[] updatedByEntity = cache.read(track.getId(), 0, 7);
+
+		userTransaction.begin();
+		byte[] written = "Written content".getBytes("UTF-8");
+		store.writeWav(track.getId(), new ByteArrayInputStream(written), written.length);
+		userTransaction.commit();
+		byte[] updatedByStore = cache.read(track.getId(), 0, 7);
+
+		///// 検証 /////
+
+		assertThat(new String(updatedByEntity, "UTF-8"), is("Updated"));
+		assertThat(new String(updatedByStore, "UTF-8"), is("Written"));
+		assertThat(cache.getMissCount(), is(3L));
+	}
+
+	/**
+	 * 先頭の4キロバイトを取得するまでの時間（Time To First Byte）を、
+	 * getWav()、readWav()、TrackSegmentCacheで比較する。
+	 */
+	@Test
+	public void testTimeToFirstByte() throws Exception {
+
+		///// 準備 /////
+
+		final int length = 8 * 1024 * 1024;
+		final int iterations = 20;
+		final int firstBytes = 4096;
+
+		Track04 track = persist(new byte[0]);
+		userTransaction.begin();
+		store.writeWav(track.getId(), new PatternInputStream(length), length);
+		userTransaction.commit();
+
+		///// テスト /////
+
+		long wavNanos = 0;
+		for (int i = 0; i < iterations; i++) {
+			em.clear();
+			long start = System.nanoTime();
+			byte[] wav = em.find(Track04.class, track.getId()).getWav();
+			wavNanos += System.nanoTime() - start;
+			assertThat(wav.length, is(length));
+		}
+
+		long rangeNanos = 0;
+		for (int i = 0; i < iterations; i++) {
+			long start = System.nanoTime();
+			byte[] range = store.readWav(track.getId(), (long) i * SEGMENT, firstBytes);
+			rangeNanos += System.nanoTime() - start;
+			assertThat(range.length, is(firstBytes));
+		}
+
+		long cachedNanos = 0;
+		for (int i = 0; i < iterations; i++) {
+			long start = System.nanoTime();
+			byte[] range = cache.read(track.getId(), i * 100, firstBytes);
+			cachedNanos += System.nanoTime() - start;
+			assertThat(range.length, is(firstBytes));
+		}
+
+		logger.info("time to first byte: getWav()=" + wavNanos / iterations / 1000 + "us"
+				+ ", readWav()=" + rangeNanos / iterations / 1000 + "us"
+				+ ", TrackSegmentCache=" + cachedNanos / iterations / 1000 + "us");
+
+		///// 検証 /////
+
+		assertThat(cache.getMissCount(), is(1L));
+		assertThat(cache.getHitCount(), is((long) iterations - 1));
+	}
+}
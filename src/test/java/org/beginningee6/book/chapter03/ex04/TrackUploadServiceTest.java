@@ -0,0 +1,296 @@
+package org.beginningee6.book.chapter03.ex04;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.util.logging.Logger;
+
+import javax.ejb.EJB;
+import javax.ejb.EJBException;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityNotFoundException;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceException;
+import javax.transaction.UserTransaction;
+
+import org.beginningee6.book.chapter03.ex04.TrackAudioStoreTest.PatternInputStream;
+import org.beginningee6.book.chapter03.util.TransactionCompletion;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.shrinkwrap.api.Archive;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.EmptyAsset;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ *
+ * TrackUploadServiceクラスの動作確認テスト
+ *
+ */
+@RunWith(Arquillian.class)
+public class TrackUploadServiceTest {
+
+	private static final Logger logger = Logger.getLogger(TrackUploadServiceTest.class.getName());
+
+	private static final long TIMEOUT_MILLIS = 30 * 1000L;
+
+	@Deployment
+	public static Archive<?> createDeployment() {
+
+		JavaArchive archive = ShrinkWrap.create(JavaArchive.class)
+			.addPackage(TrackUploadService.class.getPackage())
+			.addClass(TransactionCompletion.class)
+			.addAsManifestResource("test-persistence.xml", "persistence.xml")
+			.addAsManifestResource("jbossas-ds.xml")
+			.addAsManifestResource(EmptyAsset.INSTANCE, "beans.xml");
+
+		logger.info(archive.toString(true));
+
+		return archive;
+	}
+
+	@PersistenceContext
+	EntityManager em;
+
+	@Inject
+	UserTransaction userTransaction;
+
+	@EJB
+	TrackUploadService service;
+
+	@EJB
+	TrackAudioStore store;
+
+	@Before
+	public void setUp() throws Exception {
+		clearData();
+	}
+
+	private void clearData() throws Exception {
+		userTransaction.begin();
+		em.joinTransaction();
+
+		logger.info("Dumping old records...");
+
+		em.createQuery("DELETE FROM Track04").executeUpdate();
+		userTransaction.commit();
+
+		service.setMaximumPendingUploads(TrackUploadService.DEFAULT_MAXIMUM_PENDING_UPLOADS);
+		service.setAcquireTimeoutMillis(TrackUploadService.DEFAULT_ACQUIRE_TIMEOUT_MILLIS);
+		service.setRetryDelayMillis(TrackUploadService.DEFAULT_RETRY_DELAY_MILLIS);
+		service.resetStatistics();
+	}
+
+	/**
+	 * wavの書き込みが失敗するよう、wavがnullであることを
+	 * 要求する制約をtrack_ex04テーブルに追加する。
+	 */
+	private void failWrites() throws Exception {
+		userTransaction.begin();
+		em.joinTransaction();
+		em.createNativeQuery("ALTER TABLE track_ex04 ADD CONSTRAINT track_ex04_fail_writes"
+				+ " CHECK (wav IS NULL)").executeUpdate();
+		userTransaction.commit();
+	}
+
+	/**
+	 * failWrites()で追加した制約を削除する。
+	 */
+	private void allowWrites() throws Exception {
+		userTransaction.begin();
+		em.joinTransaction();
+		em.createNativeQuery("ALTER TABLE track_ex04 DROP CONSTRAINT track_ex04_fail_writes").executeUpdate();
+		userTransaction.commit();
+	}
+
+	/**
+	 * アップロードが終了するまで待ち、その状態を返す。
+	 */
+	private TrackUpload waitForUpload(Long id) throws Exception {
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while (true) {
+			TrackUpload upload = service.getUpload(id);
+			if (upload.getState().isFinished()) {
+				return upload;
+			}
+			if (System.currentTimeMillis() > deadline) {
+				throw new AssertionError("Upload of Track04 " + id + " did not finish: " + upload);
+			}
+			Thread.sleep(100);
+		}
+	}
+
+	/**
+	 * メタデータがすぐにコミットされ、wavが非同期に
+	 * 書き込まれることを確認する。
+	 */
+	@Test
+	public void testUpload() throws Exception {
+
+		///// 準備 /////
+
+		int length = 3 * 1024 * 1024;
+
+		///// テスト /////
+
+		Long id = service.upload("ELVIS - That's the way it is", 72.84f,
+				"Elvis' concert filmed at the Hilton hotel, Las Vega, NV.", new PatternInputStream(length));
+
+		Track04 committed = em.find(Track04.class, id);
+		String title = committed.getTitle();
+		em.clear();
+
+		TrackUpload upload = waitForUpload(id);
+
+		ByteArrayOutputStream wav = new ByteArrayOutputStream();
+		store.copyWav(id, wav);
+
+		///// 検証 /////
+
+		assertThat(title, is("ELVIS - That's the way it is"));
+		assertThat(upload.getState(), is(TrackUploadState.COMPLETED));
+		assertThat(upload.getLength(), is((long) length));
+		assertThat(upload.getBytesWritten(), is((long) length));
+		assertThat(upload.getAttempts(), is(1));
+		assertThat(upload.getProgress(), is(1.0));
+		assertThat(wav.toByteArray(), is(PatternInputStream.toByteArray(length)));
+		assertThat(service.getCompletedCount(), is(1L));
+		assertThat(service.getPendingUploadCount(), is(0));
+	}
+
+	/**
+	 * 書き込み待ちのアップロードが上限に達している場合は、
+	 * メタデータもコミットせずに拒否されることを確認する。
+	 */
+	@Test
+	public void testRejectWhenSaturated() throws Exception {
+
+		///// 準備 /////
+
+		service.setMaximumPendingUploads(0);
+		service.setAcquireTimeoutMillis(100);
+
+		///// テスト /////
+
+		TrackUploadRejectedException rejected = null;
+		try {
+			service.upload("ELVIS - That's the way it is", 72.84f,
+					"Elvis' concert filmed at the Hilton hotel, Las Vega, NV.", new PatternInputStream(1024));
+		} catch (TrackUploadRejectedException e) {
+			rejected = e;
+		}
+
+		long tracks = em.createQuery("SELECT COUNT(t) FROM Track04 t", Long.class).getSingleResult();
+
+		///// 検証 /////
+
+		assertThat(rejected, is(notNullValue()));
+		assertThat(service.getRejectedCount(), is(1L));
+		assertThat(service.getPendingUploadCount(), is(0));
+		assertThat(tracks, is(0L));
+	}
+
+	/**
+	 * wavの書き込みが失敗した場合は再試行し、
+	 * 再試行で書き込めることを確認する。
+	 */
+	@Test
+	public void testRetryFailedWrite() throws Exception {
+
+		///// 準備 /////
+
+		int length = 64 * 1024;
+		service.setRetryDelayMillis(2000);
+		failWrites();
+
+		///// テスト /////
+
+		Long id;
+		TrackUpload failed;
+		try {
+			id = service.upload("ELVIS - That's the way it is", 72.84f,
+					"Elvis' concert filmed at the Hilton hotel, Las Vega, NV.", new PatternInputStream(length));
+
+			// 最初の試行が失敗し、再試行を待つ間に書き込めるようにする
+			long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+			while ((failed = service.getUpload(id)).getFailure() == null) {
+				if (System.currentTimeMillis() > deadline) {
+					throw new AssertionError("First attempt of Track04 " + id + " did not fail: " + failed);
+				}
+				Thread.sleep(50);
+			}
+		} finally {
+			allowWrites();
+		}
+
+		TrackUpload upload = waitForUpload(id);
+
+		ByteArrayOutputStream wav = new ByteArrayOutputStream();
+		store.copyWav(id, wav);
+
+		///// 検証 /////
+
+		assertThat(failed.getAttempts(), is(1));
+		assertThat(upload.getState(), is(TrackUploadState.COMPLETED));
+		assertThat(upload.getAttempts(), is(2));
+		assertThat(upload.getFailure(), is(nullValue()));
+		assertThat(wav.toByteArray(), is(PatternInputStream.toByteArray(length)));
+		assertThat(service.getCompletedCount(), is(1L));
+		assertThat(service.getPendingUploadCount(), is(0));
+	}
+
+	/**
+	 * wavの書き込みがMAXIMUM_ATTEMPTS回失敗した場合は、
+	 * アップロードが失敗として終了することを確認する。
+	 */
+	@Test
+	public void testGiveUpAfterMaximumAttempts() throws Exception {
+
+		///// 準備 /////
+
+		service.setRetryDelayMillis(10);
+		failWrites();
+
+		///// テスト /////
+
+		Long id;
+		TrackUpload upload;
+		try {
+			id = service.upload("ELVIS - That's the way it is", 72.84f,
+					"Elvis' concert filmed at the Hilton hotel, Las Vega, NV.", new PatternInputStream(1024));
+			upload = waitForUpload(id);
+		} finally {
+			allowWrites();
+		}
+
+		Track04 track = em.find(Track04.class, id);
+
+		///// 検証 /////
+
+		assertThat(upload.getState(), is(TrackUploadState.FAILED));
+		assertThat(upload.getAttempts(), is(TrackUploadService.MAXIMUM_ATTEMPTS));
+		assertThat(upload.getFailure(), is(notNullValue()));
+		assertThat(track.getWav(), is(nullValue()));
+		assertThat(service.getFailedCount(), is(1L));
+		assertThat(service.getPendingUploadCount(), is(0));
+	}
+
+	/**
+	 * トラックが削除されている場合は再試行せず、
+	 * それ以外の失敗は再試行することを確認する。
+	 */
+	@Test
+	public void testIsRetryable() throws Exception {
+
+		///// テスト・検証 /////
+
+		assertThat(TrackUploadWorker.isRetryable(new EJBException(new EntityNotFoundException("removed"))), is(false));
+		assertThat(TrackUploadWorker.isRetryable(new EntityNotFoundException("removed")), is(false));
+		assertThat(TrackUploadWorker.isRetryable(new EJBException(new PersistenceException("timeout"))), is(true));
+	}
+}
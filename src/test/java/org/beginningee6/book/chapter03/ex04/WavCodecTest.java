@@ -0,0 +1,347 @@
+package org.beginningee6.book.chapter03.ex04;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import javax.ejb.EJB;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.transaction.UserTransaction;
+
+import org.beginningee6.book.chapter03.util.TransactionCompletion;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.shrinkwrap.api.Archive;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.EmptyAsset;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ *
+ * WavCodecクラスと、Track04のwavの圧縮の動作確認テスト
+ *
+ */
+@RunWith(Arquillian.class)
+public class WavCodecTest {
+
+	private static final Logger logger = Logger.getLogger(WavCodecTest.class.getName());
+
+	private static final int CHUNK = ChunkedDeflateCodec.CHUNK_SIZE;
+
+	@Deployment
+	public static Archive<?> createDeployment() {
+
+		JavaArchive archive = ShrinkWrap.create(JavaArchive.class)
+			.addPackage(WavCodec.class.getPackage())
+			.addClass(TransactionCompletion.class)
+			.addAsManifestResource("test-persistence.xml", "persistence.xml")
+			.addAsManifestResource("jbossas-ds.xml")
+			.addAsManifestResource(EmptyAsset.INSTANCE, "beans.xml");
+
+		logger.info(archive.toString(true));
+
+		return archive;
+	}
+
+	@PersistenceContext
+	EntityManager em;
+
+	@Inject
+	UserTransaction userTransaction;
+
+	@EJB
+	TrackAudioStore store;
+
+	@EJB
+	WavChunkDeflater deflater;
+
+	@Before
+	public void setUp() throws Exception {
+		clearData();
+	}
+
+	private void clearData() throws Exception {
+		userTransaction.begin();
+		em.joinTransaction();
+
+		logger.info("Dumping old records...");
+
+		em.createQuery("DELETE FROM Track04").executeUpdate();
+		userTransaction.commit();
+	}
+
+	private Track04 persist(byte[] wav, WavCodec codec) throws Exception {
+		Track04 track = new Track04("ELVIS - That's the way it is", 72.84f, "Elvis' concert filmed at the Hilton hotel, Las Vega, NV.");
+
+		userTransaction.begin();
+		em.joinTransaction();
+		em.persist(track);
+		em.flush();
+		store.writeWav(track.getId(), wav, codec);
+		userTransaction.commit();
+		em.clear();
+
+		return track;
+	}
+
+	/**
+	 * 16ビット・モノラルのPCMを想定したデータ（正弦波に
+	 * 小さなノイズを加えたもの）を作成する。
+	 */
+	static byte[] pcm(int length) {
+		byte[] data = new byte[length];
+		Random random = new Random(length);
+		for (int i = 0; i + 1 < length; i += 2) {
+			int sample = (int) (Math.sin(i / 2 * 2 * Math.PI * 440 / 44100) * 12000) + random.nextInt(64) - 32;
+			data[i] = (byte) sample;
+			data[i + 1] = (byte) (sample >> 8);
+		}
+		return data;
+	}
+
+	/**
+	 * TrackAudioStoreと同様に、チャンクをWavChunkDeflaterで
+	 * 並列に圧縮して連結する。
+	 */
+	private byte[] encodeInParallel(byte[] data) throws Exception {
+		int chunks = ChunkedDeflateCodec.chunkCount(data.length);
+		List<Future<byte[]>> results = new ArrayList<Future<byte[]>>(chunks);
+		for (int i = 0; i < chunks; i++) {
+			results.add(deflater.deflate(data, i * CHUNK, ChunkedDeflateCodec.chunkLength(data.length, i)));
+		}
+		List<byte[]> compressed = new ArrayList<byte[]>(chunks);
+		for (Future<byte[]> result : results) {
+			compressed.add(result.get());
+		}
+		return ChunkedDeflateCodec.assemble(data.length, compressed);
+	}
+
+	private static byte[] toByteArray(InputStream in) throws Exception {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * 複数のチャンクに分割されるデータと空のデータが、
+	 * 圧縮・伸長で元に戻ることを確認する。
+	 */
+	@Test
+	public void testRoundTrip() throws Exception {
+
+		///// 準備 /////
+
+		byte[] data = pcm(CHUNK * 3 + CHUNK / 2);
+		byte[] empty = new byte[0];
+
+		///// テスト /////
+
+		byte[] encoded = WavCodec.DEFLATE.encode(data);
+		byte[] decoded = WavCodec.DEFLATE.decode(encoded);
+		byte[] streamed = toByteArray(WavCodec.DEFLATE.decode(new ByteArrayInputStream(encoded)));
+		byte[] decodedEmpty = WavCodec.DEFLATE.decode(WavCodec.DEFLATE.encode(empty));
+		byte[] parallel = encodeInParallel(data);
+
+		///// 検証 /////
+
+		assertThat(encoded.length < data.length, is(true));
+		assertThat(decoded, is(data));
+		assertThat(streamed, is(data));
+		assertThat(decodedEmpty, is(empty));
+		// 並列に圧縮しても、1つずつ圧縮した場合と同じデータになる
+		assertThat(parallel, is(encoded));
+		assertThat(WavCodec.NONE.encode(data), is(sameInstance(data)));
+	}
+
+	/**
+	 * TrackAudioStoreで圧縮して格納したwavが、圧縮方式と元の
+	 * バイト数とともに格納され、getWav()で伸長されることを確認する。
+	 */
+	@Test
+	public void testPersistCompressed() throws Exception {
+
+		///// 準備 /////
+
+		byte[] wav = pcm(CHUNK * 2 + 1000);
+		Track04 track = persist(wav, WavCodec.DEFLATE);
+		Track04 plain = persist(wav, WavCodec.NONE);
+
+		///// テスト /////
+
+		Track04 found = em.find(Track04.class, track.getId());
+		Track04 foundPlain = em.find(Track04.class, plain.getId());
+
+		///// 検証 /////
+
+		assertThat(found.getWavCodec(), is(WavCodec.DEFLATE));
+		assertThat(found.getWavOriginalLength(), is((long) wav.length));
+		assertThat(found.getStoredWavLength() < wav.length, is(true));
+		assertThat(found.getWav(), is(wav));
+
+		assertThat(foundPlain.getWavCodec(), is(WavCodec.NONE));
+		assertThat(foundPlain.getWavOriginalLength(), is(nullValue()));
+		assertThat(foundPlain.getStoredWavLength(), is((long) wav.length));
+		assertThat(foundPlain.getWav(), is(wav));
+	}
+
+	/**
+	 * TrackAudioStoreで圧縮したwavを読み込むと、伸長した
+	 * データが返されることを確認する。範囲の読み込みでは、
+	 * チャンクの境界をまたぐ範囲も正しく読み込まれる。
+	 */
+	@Test
+	public void testAudioStoreDecodes() throws Exception {
+
+		///// 準備 /////
+
+		byte[] wav = pcm(CHUNK * 2 + 1000);
+		Track04 track = persist(wav, WavCodec.DEFLATE);
+
+		///// テスト /////
+
+		ByteArrayOutputStream copied = new ByteArrayOutputStream();
+		long length = store.copyWav(track.getId(), copied);
+		byte[] range = store.readWav(track.getId(), CHUNK * 2 - 100, 200);
+		byte[] tail = store.readWav(track.getId(), CHUNK * 2 + 900, 200);
+		byte[] beyond = store.readWav(track.getId(), CHUNK * 3, 200);
+
+		///// 検証 /////
+
+		assertThat(length, is((long) wav.length));
+		assertThat(copied.toByteArray(), is(wav));
+		assertThat(range, is(Arrays.copyOfRange(wav, CHUNK * 2 - 100, CHUNK * 2 + 100)));
+		assertThat(tail, is(Arrays.copyOfRange(wav, CHUNK * 2 + 900, wav.length)));
+		assertThat(beyond.length, is(0));
+	}
+
+	/**
+	 * writeWav()で更新すると、圧縮せずに格納されることを確認する。
+	 */
+	@Test
+	public void testWriteWavStoresUncompressed() throws Exception {
+
+		///// 準備 /////
+
+		Track04 track = persist(pcm(CHUNK), WavCodec.DEFLATE);
+		byte[] written = "Written".getBytes("UTF-8");
+
+		///// テスト /////
+
+		userTransaction.begin();
+		store.writeWav(track.getId(), new ByteArrayInputStream(written), written.length);
+		userTransaction.commit();
+
+		Track04 found = em.find(Track04.class, track.getId());
+
+		///// 検証 /////
+
+		assertThat(found.getWavCodec(), is(WavCodec.NONE));
+		assertThat(found.getWavOriginalLength(), is(nullValue()));
+		assertThat(found.getWav(), is(written));
+	}
+
+	/**
+	 * 圧縮率、圧縮のスループット（1つずつ圧縮する場合と
+	 * WavChunkDeflaterで並列に圧縮する場合）、書き込みの
+	 * スループット、読み込みのレイテンシを圧縮しない場合と比較する。
+	 */
+	@Test
+	public void testBenchmark() throws Exception {
+
+		///// 準備 /////
+
+		final int length = 8 * 1024 * 1024;
+		final int iterations = 5;
+		byte[] wav = pcm(length);
+
+		///// テスト /////
+
+		int encodedLength = WavCodec.DEFLATE.encode(wav).length;
+		encodeInParallel(wav);		// ウォームアップ
+
+		long serialEncodeNanos = 0;
+		for (int i = 0; i < iterations; i++) {
+			long start = System.nanoTime();
+			WavCodec.DEFLATE.encode(wav);
+			serialEncodeNanos += System.nanoTime() - start;
+		}
+
+		long parallelEncodeNanos = 0;
+		for (int i = 0; i < iterations; i++) {
+			long start = System.nanoTime();
+			encodeInParallel(wav);
+			parallelEncodeNanos += System.nanoTime() - start;
+		}
+
+		List<Long> plainIds = new ArrayList<Long>();
+		long plainWriteNanos = 0;
+		for (int i = 0; i < iterations; i++) {
+			long start = System.nanoTime();
+			plainIds.add(persist(wav, WavCodec.NONE).getId());
+			plainWriteNanos += System.nanoTime() - start;
+		}
+
+		List<Long> deflateIds = new ArrayList<Long>();
+		long deflateWriteNanos = 0;
+		for (int i = 0; i < iterations; i++) {
+			long start = System.nanoTime();
+			deflateIds.add(persist(wav, WavCodec.DEFLATE).getId());
+			deflateWriteNanos += System.nanoTime() - start;
+		}
+
+		long plainReadNanos = 0;
+		for (Long id : plainIds) {
+			em.clear();
+			long start = System.nanoTime();
+			byte[] read = em.find(Track04.class, id).getWav();
+			plainReadNanos += System.nanoTime() - start;
+			assertThat(read.length, is(length));
+		}
+
+		long deflateReadNanos = 0;
+		for (Long id : deflateIds) {
+			em.clear();
+			long start = System.nanoTime();
+			byte[] read = em.find(Track04.class, id).getWav();
+			deflateReadNanos += System.nanoTime() - start;
+			assertThat(read.length, is(length));
+		}
+
+		///// 検証 /////
+
+		double megabytes = (double) length * iterations / (1024 * 1024);
+		logger.info("size ratio: " + String.format("%.3f", (double) encodedLength / length)
+				+ " (" + length + " -> " + encodedLength + " bytes)");
+		logger.info("encode throughput: serial=" + String.format("%.1f", megabytes / (serialEncodeNanos / 1e9)) + "MB/s"
+				+ ", parallel=" + String.format("%.1f", megabytes / (parallelEncodeNanos / 1e9)) + "MB/s"
+				+ " (" + ChunkedDeflateCodec.chunkCount(length) + " chunks)");
+		logger.info("write throughput: NONE=" + String.format("%.1f", megabytes / (plainWriteNanos / 1e9)) + "MB/s"
+				+ ", DEFLATE=" + String.format("%.1f", megabytes / (deflateWriteNanos / 1e9)) + "MB/s");
+		logger.info("read latency: NONE=" + plainReadNanos / iterations / 1000 + "us"
+				+ ", DEFLATE=" + deflateReadNanos / iterations / 1000 + "us");
+
+		assertThat(encodedLength < length, is(true));
+	}
+}
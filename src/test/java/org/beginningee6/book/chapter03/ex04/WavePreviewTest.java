@@ -0,0 +1,393 @@
+package org.beginningee6.book.chapter03.ex04;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.ejb.EJB;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.transaction.UserTransaction;
+
+import org.beginningee6.book.chapter03.util.TransactionCompletion;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.shrinkwrap.api.Archive;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.EmptyAsset;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ *
+ * WavePreview、WavePreviewGeneratorクラスと、
+ * 名前付きクエリfindTrackListingsの動作確認テスト
+ *
+ */
+@RunWith(Arquillian.class)
+public class WavePreviewTest {
+
+	private static final Logger logger = Logger.getLogger(WavePreviewTest.class.getName());
+
+	private static final long TIMEOUT_MILLIS = 10 * 1000L;
+
+	@Deployment
+	public static Archive<?> createDeployment() {
+
+		JavaArchive archive = ShrinkWrap.create(JavaArchive.class)
+			.addPackage(WavePreviewGenerator.class.getPackage())
+			.addClass(TransactionCompletion.class)
+			.addAsManifestResource("test-persistence.xml", "persistence.xml")
+			.addAsManifestResource("jbossas-ds.xml")
+			.addAsManifestResource(EmptyAsset.INSTANCE, "beans.xml");
+
+		logger.info(archive.toString(true));
+
+		return archive;
+	}
+
+	@PersistenceContext
+	EntityManager em;
+
+	@Inject
+	UserTransaction userTransaction;
+
+	@EJB
+	WavePreviewGenerator generator;
+
+	@EJB
+	TrackAudioStore store;
+
+	@Before
+	public void setUp() throws Exception {
+		clearData();
+	}
+
+	private void clearData() throws Exception {
+		userTransaction.begin();
+		em.joinTransaction();
+
+		logger.info("Dumping old records...");
+
+		em.createQuery("DELETE FROM Track04").executeUpdate();
+		userTransaction.commit();
+	}
+
+	private Track04 persist(byte[] wav) throws Exception {
+		Track04 track = new Track04("ELVIS - That's the way it is", 72.84f, "Elvis' concert filmed at the Hilton hotel, Las Vega, NV.");
+		track.setWav(wav);
+
+		userTransaction.begin();
+		em.joinTransaction();
+		em.persist(track);
+		userTransaction.commit();
+		em.clear();
+
+		return track;
+	}
+
+	/**
+	 * 16ビットのPCMで、前半は振幅amplitude、後半は無音のデータを作成する。
+	 */
+	private static byte[] halfLoud(int samples, int amplitude) {
+		byte[] data = new byte[samples * 2];
+		for (int i = 0; i < samples / 2; i++) {
+			int sample = (i % 2 == 0) ? amplitude : -amplitude;
+			data[i * 2] = (byte) sample;
+			data[i * 2 + 1] = (byte) (sample >> 8);
+		}
+		return data;
+	}
+
+	/**
+	 * RIFFヘッダ（fmtチャンクとdataチャンク）を付与する。
+	 */
+	private static byte[] riff(byte[] pcm) {
+		byte[] wav = new byte[44 + pcm.length];
+		System.arraycopy("RIFF".getBytes(), 0, wav, 0, 4);
+		writeInt(wav, 4, 36 + pcm.length);
+		System.arraycopy("WAVEfmt ".getBytes(), 0, wav, 8, 8);
+		writeInt(wav, 16, 16);
+		wav[20] = 1;			// PCM
+		wav[22] = 1;			// モノラル
+		writeInt(wav, 24, 44100);
+		writeInt(wav, 28, 44100 * 2);
+		wav[32] = 2;
+		wav[34] = 16;
+		System.arraycopy("data".getBytes(), 0, wav, 36, 4);
+		writeInt(wav, 40, pcm.length);
+		System.arraycopy(pcm, 0, wav, 44, pcm.length);
+		return wav;
+	}
+
+	private static void writeInt(byte[] bytes, int offset, int value) {
+		bytes[offset] = (byte) value;
+		bytes[offset + 1] = (byte) (value >> 8);
+		bytes[offset + 2] = (byte) (value >> 16);
+		bytes[offset + 3] = (byte) (value >> 24);
+	}
+
+	/**
+	 * プレビューが作成されるまで待ち、一覧の項目を返す。
+	 */
+	private TrackListing waitForPreview(Long id) throws Exception {
+		return waitForPreview(id, -1);
+	}
+
+	/**
+	 * 指定したバイト数のプレビューが作成されるまで待ち、一覧の項目を返す。
+	 *
+	 * @param length プレビューのバイト数。負の場合はバイト数によらない
+	 */
+	private TrackListing waitForPreview(Long id, int length) throws Exception {
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while (true) {
+			em.clear();
+			List<TrackListing> listings = em.createNamedQuery("findTrackListings", TrackListing.class).getResultList();
+			for (TrackListing listing : listings) {
+				if (listing.getId().equals(id) && listing.getWavePreview() != null
+						&& (length < 0 || listing.getWavePreview().length == length)) {
+					return listing;
+				}
+			}
+			if (System.currentTimeMillis() > deadline) {
+				throw new AssertionError("Wave preview of Track04 " + id + " was not generated");
+			}
+			Thread.sleep(100);
+		}
+	}
+
+	/**
+	 * RIFFヘッダを読み飛ばし、区間ごとのピークが
+	 * 求められることを確認する。
+	 */
+	@Test
+	public void testCompute() throws Exception {
+
+		///// 準備 /////
+
+		int samples = WavePreview.SIZE * WavePreview.BLOCK_SAMPLES * 2;
+		byte[] wav = riff(halfLoud(samples, 16384));
+
+		///// テスト /////
+
+		byte[] preview = WavePreview.compute(new ByteArrayInputStream(wav));
+		byte[] fewBlocks = WavePreview.compute(new ByteArrayInputStream(halfLoud(WavePreview.BLOCK_SAMPLES * 3, 32767)));
+		byte[] empty = WavePreview.compute(new ByteArrayInputStream(new byte[0]));
+
+		///// 検証 /////
+
+		assertThat(preview.length, is(WavePreview.SIZE));
+		assertThat(WavePreview.peak(preview, 0), is(127));
+		assertThat(WavePreview.peak(preview, WavePreview.SIZE / 2 - 1), is(127));
+		assertThat(WavePreview.peak(preview, WavePreview.SIZE / 2), is(0));
+		assertThat(WavePreview.peak(preview, WavePreview.SIZE - 1), is(0));
+
+		assertThat(fewBlocks.length, is(3));
+		assertThat(WavePreview.peak(fewBlocks, 0), is(255));
+
+		assertThat(empty.length, is(0));
+	}
+
+	/**
+	 * wavを持つトラックを永続化すると、コミット後に
+	 * プレビューが作成され、一覧の検索で取得できることを確認する。
+	 */
+	@Test
+	public void testGeneratedAfterPersist() throws Exception {
+
+		///// 準備 /////
+
+		Track04 track = persist(halfLoud(WavePreview.SIZE * WavePreview.BLOCK_SAMPLES, 16384));
+
+		///// テスト /////
+
+		TrackListing listing = waitForPreview(track.getId());
+
+		///// 検証 /////
+
+		assertThat(listing.getTitle(), is(track.getTitle()));
+		assertThat(listing.getDuration(), is(track.getDuration()));
+		assertThat(listing.getWavePreview().length, is(WavePreview.SIZE));
+		assertThat(WavePreview.peak(listing.getWavePreview(), 0), is(127));
+	}
+
+	/**
+	 * wavが無いトラックには、空のプレビューが格納されることを確認する。
+	 */
+	@Test
+	public void testGenerateWithoutWav() throws Exception {
+
+		///// 準備 /////
+
+		Track04 track = persist(null);
+
+		///// テスト /////
+
+		byte[] preview = generator.generate(track.getId()).get();
+		TrackListing listing = waitForPreview(track.getId());
+
+		///// 検証 /////
+
+		assertThat(preview.length, is(0));
+		assertThat(listing.getWavePreview().length, is(0));
+	}
+
+	/**
+	 * TrackAudioStore.writeWav()でwavを更新すると、
+	 * プレビューが作成し直されることを確認する。
+	 */
+	@Test
+	public void testRegeneratedAfterWriteWav() throws Exception {
+
+		///// 準備 /////
+
+		Track04 track = persist(new byte[0]);
+		assertThat(waitForPreview(track.getId()).getWavePreview().length, is(0));
+
+		byte[] wav = halfLoud(WavePreview.SIZE * WavePreview.BLOCK_SAMPLES, 32767);
+
+		///// テスト /////
+
+		userTransaction.begin();
+		store.writeWav(track.getId(), new ByteArrayInputStream(wav), wav.length);
+		userTransaction.commit();
+
+		TrackListing listing = waitForPreview(track.getId());
+
+		///// 検証 /////
+
+		assertThat(listing.getWavePreview().length, is(WavePreview.SIZE));
+		assertThat(WavePreview.peak(listing.getWavePreview(), 0), is(255));
+	}
+
+	/**
+	 * エンティティのsetWav()でwavを更新すると、古いプレビューが
+	 * 削除されて作成し直されることを確認する。
+	 */
+	@Test
+	public void testRegeneratedAfterSetWav() throws Exception {
+
+		///// 準備 /////
+
+		Track04 track = persist(new byte[0]);
+		assertThat(waitForPreview(track.getId()).getWavePreview().length, is(0));
+
+		///// テスト /////
+
+		userTransaction.begin();
+		em.joinTransaction();
+		em.find(Track04.class, track.getId()).setWav(halfLoud(WavePreview.SIZE * WavePreview.BLOCK_SAMPLES, 32767));
+		userTransaction.commit();
+
+		TrackListing listing = waitForPreview(track.getId());
+
+		///// 検証 /////
+
+		assertThat(listing.getWavePreview().length, is(WavePreview.SIZE));
+		assertThat(WavePreview.peak(listing.getWavePreview(), 0), is(255));
+	}
+
+	/**
+	 * 切り離されたエンティティでsetWav()を実行してからマージした場合も、
+	 * コミット後にプレビューが作成し直されることを確認する。
+	 */
+	@Test
+	public void testRegeneratedAfterMergingSetWav() throws Exception {
+
+		///// 準備 /////
+
+		// persist()の後のtrackは切り離されている
+		Track04 track = persist(new byte[0]);
+		assertThat(waitForPreview(track.getId()).getWavePreview().length, is(0));
+
+		///// テスト /////
+
+		track.setWav(halfLoud(WavePreview.SIZE * WavePreview.BLOCK_SAMPLES, 32767));
+		userTransaction.begin();
+		em.joinTransaction();
+		em.merge(track);
+		userTransaction.commit();
+		em.clear();
+
+		TrackListing listing = waitForPreview(track.getId(), WavePreview.SIZE);
+
+		///// 検証 /////
+
+		assertThat(WavePreview.peak(listing.getWavePreview(), 0), is(255));
+	}
+
+	/**
+	 * プレビューが作成される前に読み込んだエンティティをマージしても、
+	 * 作成されたプレビューが上書きされないことを確認する。
+	 */
+	@Test
+	public void testStaleMergeKeepsPreview() throws Exception {
+
+		///// 準備 /////
+
+		// persist()の後のtrackは、プレビューが作成される前の状態のまま切り離されている
+		Track04 track = persist(halfLoud(WavePreview.SIZE * WavePreview.BLOCK_SAMPLES, 16384));
+		waitForPreview(track.getId());
+
+		///// テスト /////
+
+		track.setTitle("ELVIS - That's the way it is (Special Edition)");
+		userTransaction.begin();
+		em.joinTransaction();
+		em.merge(track);
+		userTransaction.commit();
+		em.clear();
+
+		TrackListing listing = em.createNamedQuery("findTrackListings", TrackListing.class)
+				.getResultList().get(0);
+
+		///// 検証 /////
+
+		assertThat(listing.getTitle(), is("ELVIS - That's the way it is (Special Edition)"));
+		assertThat(listing.getWavePreview().length, is(WavePreview.SIZE));
+		assertThat(WavePreview.peak(listing.getWavePreview(), 0), is(127));
+	}
+
+	/**
+	 * 作成中にwavが更新された（wavRevisionが進んだ）場合、
+	 * 古いwavから作成したプレビューが格納されないことを確認する。
+	 */
+	@Test
+	public void testStalePreviewIsDiscarded() throws Exception {
+
+		///// 準備 /////
+
+		Track04 track = persist(new byte[0]);
+		waitForPreview(track.getId());
+
+		///// テスト /////
+
+		generator.invalidate(track.getId());
+		Long revision = em.createNamedQuery("findWavRevision", Long.class)
+				.setParameter("id", track.getId()).getSingleResult();
+
+		userTransaction.begin();
+		em.joinTransaction();
+		int stale = em.createNamedQuery("updateWavePreview")
+				.setParameter("wavePreview", new byte[] { 1 })
+				.setParameter("id", track.getId())
+				.setParameter("wavRevision", revision - 1)
+				.executeUpdate();
+		userTransaction.commit();
+
+		byte[] current = generator.generate(track.getId()).get();
+
+		///// 検証 /////
+
+		assertThat(stale, is(0));
+		assertThat(current.length, is(0));
+		assertThat(waitForPreview(track.getId()).getWavePreview().length, is(0));
+	}
+}
@@ -0,0 +1,328 @@
+package org.beginningee6.book.chapter03.ex05;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.ejb.EJB;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.transaction.Status;
+import javax.transaction.UserTransaction;
+
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.shrinkwrap.api.Archive;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.EmptyAsset;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ *
+ * Book05Updaterクラスの動作確認テスト
+ *
+ */
+@RunWith(Arquillian.class)
+public class Book05UpdaterTest {
+
+	private static final Logger logger = Logger.getLogger(Book05UpdaterTest.class.getName());
+
+	@Deployment
+	public static Archive<?> createDeployment() {
+
+		JavaArchive archive = ShrinkWrap.create(JavaArchive.class)
+			.addPackage(Book05.class.getPackage())
+			.addAsManifestResource("test-persistence.xml", "persistence.xml")
+			.addAsManifestResource("jbossas-ds.xml")
+			.addAsManifestResource(EmptyAsset.INSTANCE, "beans.xml");
+
+		logger.info(archive.toString(true));
+
+		return archive;
+	}
+
+	@PersistenceContext
+	EntityManager em;
+
+	@Inject
+	UserTransaction userTransaction;
+
+	@EJB
+	Book05Repository repository;
+
+	@EJB
+	Book05Updater updater;
+
+	@Before
+	public void setUp() throws Exception {
+		clearData();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (userTransaction.getStatus() != Status.STATUS_NO_TRANSACTION) {
+			userTransaction.rollback();
+		}
+	}
+
+	private void clearData() throws Exception {
+		userTransaction.begin();
+		em.joinTransaction();
+
+		logger.info("Dumping old records...");
+
+		em.createQuery("DELETE FROM Book05").executeUpdate();
+		userTransaction.commit();
+	}
+
+	private Book05 persist() {
+		Book05 book = new Book05("The Hitchhiker's Guide to the Galaxy",
+				12.5F, "Scifi book", "1-84023-742-2", 354, false);
+		repository.persist(book);
+		book.clearDirtyAttributes();
+		return book;
+	}
+
+	/**
+	 * 変更したカラムだけが更新され、他のカラムへの
+	 * 同時の変更が上書きされないことを確認する。
+	 */
+	@Test
+	public void testUpdateChangedColumnsOnly() throws Exception {
+
+		///// 準備 /////
+
+		Book05 book = persist();
+
+		// 別の更新でisbnを変更する
+		userTransaction.begin();
+		em.joinTransaction();
+		em.createQuery("UPDATE Book05 b SET b.isbn = :isbn WHERE b.id = :id")
+			.setParameter("isbn", "978-0345391803")
+			.setParameter("id", book.getId())
+			.executeUpdate();
+		userTransaction.commit();
+
+		///// テスト /////
+
+		book.setPrice(9.99F);
+		int updated = updater.update(book);
+
+		///// 検証 /////
+
+		Book05 found = repository.find(book.getId());
+
+		assertThat(updated, is(1));
+		assertThat(book.getDirtyAttributes(), is(0));
+		assertThat(found.getPrice(), is(9.99F));
+		assertThat(found.getIsbn(), is("978-0345391803"));
+		assertThat(found.getTitle(), is("The Hitchhiker's Guide to the Galaxy"));
+	}
+
+	/**
+	 * 変更が無い場合とtitleだけを変更した場合は、
+	 * UPDATE文を発行しないことを確認する。
+	 */
+	@Test
+	public void testNoChanges() throws Exception {
+
+		///// 準備 /////
+
+		Book05 book = persist();
+
+		///// テスト /////
+
+		int unchanged = updater.update(book);
+
+		book.setTitle("H2G2");
+		int titleOnly = updater.update(book);
+
+		///// 検証 /////
+
+		assertThat(unchanged, is(0));
+		assertThat(titleOnly, is(0));
+		assertThat(repository.find(book.getId()).getTitle(), is("The Hitchhiker's Guide to the Galaxy"));
+	}
+
+	/**
+	 * シリアライズしたデタッチ状態のエンティティでも
+	 * 変更が失われず、更新されることを確認する。
+	 */
+	@Test
+	public void testUpdateSerializedEntity() throws Exception {
+
+		///// 準備 /////
+
+		Book05 book = persist();
+		book.setDescription("Comedy");
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(book);
+		out.close();
+		Book05 deserialized = (Book05) new ObjectInputStream(
+				new ByteArrayInputStream(bytes.toByteArray())).readObject();
+
+		///// テスト /////
+
+		int updated = updater.update(deserialized);
+
+		///// 検証 /////
+
+		assertThat(updated, is(1));
+		assertThat(repository.find(book.getId()).getDescription(), is("Comedy"));
+	}
+
+	/**
+	 * 読み込み時と、管理状態のエンティティのフラッシュによる
+	 * 更新の後に、変更の記録がクリアされることを確認する。
+	 */
+	@Test
+	public void testDirtyAttributesClearedByLifecycle() throws Exception {
+
+		///// 準備 /////
+
+		Book05 book = persist();
+
+		///// テスト /////
+
+		userTransaction.begin();
+		em.joinTransaction();
+		Book05 managed = em.find(Book05.class, book.getId());
+		int loaded = managed.getDirtyAttributes();
+		managed.setPrice(9.99F);
+		int changed = managed.getDirtyAttributes();
+		em.flush();
+		int flushed = managed.getDirtyAttributes();
+		userTransaction.commit();
+		em.clear();
+
+		///// 検証 /////
+
+		assertThat(loaded, is(0));
+		assertThat(changed, is(Book05.PRICE));
+		assertThat(flushed, is(0));
+		// フラッシュ済みの変更が再度更新されることはない
+		assertThat(updater.update(managed), is(0));
+	}
+
+	/**
+	 * UPDATE文が変更されたフィールドの組み合わせごとに
+	 * 一度だけ組み立てられることを確認する。
+	 */
+	@Test
+	public void testStatementCache() throws Exception {
+
+		///// テスト /////
+
+		String price = Book05Updater.statement(Book05.PRICE);
+		String priceAndIsbn = Book05Updater.statement(Book05.PRICE | Book05.ISBN);
+		int count = Book05Updater.getStatementCount();
+
+		///// 検証 /////
+
+		assertThat(price, is("UPDATE Book05 b SET b.price = :price WHERE b.id = :id"));
+		assertThat(priceAndIsbn, is("UPDATE Book05 b SET b.price = :price, b.isbn = :isbn WHERE b.id = :id"));
+		assertThat(Book05Updater.statement(Book05.PRICE), is(sameInstance(price)));
+		assertThat(Book05Updater.statement(Book05.ISBN | Book05.PRICE), is(sameInstance(priceAndIsbn)));
+		assertThat(Book05Updater.getStatementCount(), is(count));
+	}
+
+	/**
+	 * 制約に違反した変更はデータベースにアクセスせずに
+	 * 拒否され、変更の記録が残ることを確認する。
+	 */
+	@Test
+	public void testRejectViolation() throws Exception {
+
+		///// 準備 /////
+
+		Book05 book = persist();
+		book.setNbOfPage(null);
+
+		///// テスト /////
+
+		ColumnConstraintViolationException rejected = null;
+		try {
+			updater.update(book);
+		} catch (ColumnConstraintViolationException e) {
+			rejected = e;
+		}
+
+		///// 検証 /////
+
+		assertThat(rejected, is(notNullValue()));
+		assertThat(book.getDirtyAttributes(), is(Book05.NB_OF_PAGE));
+		assertThat(repository.find(book.getId()).getNbOfPage(), is(354));
+	}
+
+	/**
+	 * 1つのフィールドだけを変更する更新を繰り返す場合の、
+	 * em.merge()とBook05Updaterの時間を比較する。
+	 */
+	@Test
+	public void testBenchmark() throws Exception {
+
+		///// 準備 /////
+
+		final int books = 20;
+		final int iterations = 50;
+		List<Book05> detached = new ArrayList<Book05>();
+		for (int i = 0; i < books; i++) {
+			detached.add(persist());
+		}
+
+		///// テスト /////
+
+		long mergeStart = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			userTransaction.begin();
+			em.joinTransaction();
+			for (Book05 book : detached) {
+				book.setPrice((float) i);
+				em.merge(book);
+			}
+			userTransaction.commit();
+			em.clear();
+		}
+		long mergeNanos = System.nanoTime() - mergeStart;
+
+		for (Book05 book : detached) {
+			book.clearDirtyAttributes();
+		}
+
+		long updaterStart = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			userTransaction.begin();
+			for (Book05 book : detached) {
+				book.setPrice((float) i + iterations);
+				updater.update(book);
+			}
+			userTransaction.commit();
+		}
+		long updaterNanos = System.nanoTime() - updaterStart;
+
+		int updates = books * iterations;
+		logger.info("single column update of Book05: em.merge()="
+				+ mergeNanos / updates / 1000 + "us, Book05Updater="
+				+ updaterNanos / updates / 1000 + "us");
+
+		///// 検証 /////
+
+		for (Book05 book : detached) {
+			assertThat(repository.find(book.getId()).getPrice(), is((float) iterations * 2 - 1));
+		}
+	}
+}
@@ -0,0 +1,293 @@
+package org.beginningee6.book.chapter03.ex05;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.ejb.EJB;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceException;
+import javax.transaction.Status;
+import javax.transaction.UserTransaction;
+
+import org.beginningee6.book.chapter03.ex05.ColumnConstraintValidator.Operation;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.shrinkwrap.api.Archive;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.EmptyAsset;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ *
+ * ColumnConstraintValidatorクラスとBook05Repositoryクラスの
+ * 動作確認テスト
+ *
+ */
+@RunWith(Arquillian.class)
+public class ColumnConstraintValidatorTest {
+
+	private static final Logger logger = Logger.getLogger(ColumnConstraintValidatorTest.class.getName());
+
+	@Deployment
+	public static Archive<?> createDeployment() {
+
+		JavaArchive archive = ShrinkWrap.create(JavaArchive.class)
+			.addPackage(Book05.class.getPackage())
+			.addAsManifestResource("test-persistence.xml", "persistence.xml")
+			.addAsManifestResource("jbossas-ds.xml")
+			.addAsManifestResource(EmptyAsset.INSTANCE, "beans.xml");
+
+		logger.info(archive.toString(true));
+
+		return archive;
+	}
+
+	@PersistenceContext
+	EntityManager em;
+
+	@Inject
+	UserTransaction userTransaction;
+
+	@EJB
+	Book05Repository repository;
+
+	private final ColumnConstraintValidator<Book05> validator = ColumnConstraintValidator.forClass(Book05.class);
+
+	@Before
+	public void setUp() throws Exception {
+		clearData();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (userTransaction.getStatus() != Status.STATUS_NO_TRANSACTION) {
+			userTransaction.rollback();
+		}
+	}
+
+	private void clearData() throws Exception {
+		userTransaction.begin();
+		em.joinTransaction();
+
+		logger.info("Dumping old records...");
+
+		em.createQuery("DELETE FROM Book05").executeUpdate();
+		userTransaction.commit();
+	}
+
+	/**
+	 * ＠Columnアノテーションから、挿入時と更新時の
+	 * 検査の手順が作成されることを確認する。
+	 */
+	@Test
+	public void testCompile() throws Exception {
+
+		///// テスト・検証 /////
+
+		// 挿入時：titleのNOT NULLと長さ、description、isbnの長さ、nbOfPageのNOT NULL
+		assertThat(validator.getCheckCount(Operation.INSERT), is(5));
+		// 更新時：updatable = falseのtitleを除く
+		assertThat(validator.getCheckCount(Operation.UPDATE), is(3));
+		assertThat(ColumnConstraintValidator.forClass(Book05.class), is(sameInstance(validator)));
+	}
+
+	/**
+	 * すべての違反が一度に報告されることを確認する。
+	 */
+	@Test
+	public void testReportAllViolations() throws Exception {
+
+		///// 準備 /////
+
+		Book05 book = new Book05(null, 12.5F, "12345678901234567", "1-84023-742-2", null, false);
+
+		///// テスト /////
+
+		List<ColumnConstraintViolation> inserts = validator.validate(book, Operation.INSERT);
+		List<ColumnConstraintViolation> updates = validator.validate(book, Operation.UPDATE);
+
+		///// 検証 /////
+
+		assertThat(inserts.size(), is(3));
+		assertThat(inserts.get(0).getField(), is("title"));
+		assertThat(inserts.get(0).getColumn(), is("book_title"));
+		assertThat(inserts.get(0).getKind(), is(ColumnConstraintViolation.Kind.NOT_NULL));
+		assertThat(inserts.get(1).getField(), is("description"));
+		assertThat(inserts.get(1).getKind(), is(ColumnConstraintViolation.Kind.LENGTH));
+		assertThat(inserts.get(1).getLimit(), is(16));
+		assertThat(inserts.get(1).getActual(), is(17));
+		assertThat(inserts.get(2).getColumn(), is("nb_of_page"));
+
+		// 更新時はtitleを検査しない
+		assertThat(updates.size(), is(2));
+	}
+
+	/**
+	 * Book05Repositoryで違反したエンティティを永続化すると、
+	 * データベースにアクセスせずに例外がスローされ、
+	 * トランザクションがロールバックにマークされないことを確認する。
+	 */
+	@Test
+	public void testRepositoryRejectsBeforeFlush() throws Exception {
+
+		///// 準備 /////
+
+		Book05 invalid = new Book05(null, 12.5F, "12345678901234567", "1-84023-742-2", 354, false);
+		Book05 valid = new Book05("The Hitchhiker's Guide to the Galaxy",
+				12.5F, "1234567890123456", "1-84023-742-2", 354, false);
+
+		///// テスト /////
+
+		userTransaction.begin();
+
+		ColumnConstraintViolationException rejected = null;
+		try {
+			repository.persist(invalid);
+		} catch (ColumnConstraintViolationException e) {
+			rejected = e;
+		}
+		int status = userTransaction.getStatus();
+
+		// 同じトランザクションで続行できる
+		repository.persist(valid);
+		userTransaction.commit();
+
+		///// 検証 /////
+
+		assertThat(rejected, is(notNullValue()));
+		assertThat(rejected.getViolations().size(), is(2));
+		assertThat(status, is(Status.STATUS_ACTIVE));
+		assertThat(invalid.getId(), is(nullValue()));
+		assertThat(repository.find(valid.getId()).getTitle(), is("The Hitchhiker's Guide to the Galaxy"));
+	}
+
+	/**
+	 * 違反したエンティティのマージが拒否されることを確認する。
+	 */
+	@Test
+	public void testRepositoryRejectsMerge() throws Exception {
+
+		///// 準備 /////
+
+		Book05 book = new Book05("The Hitchhiker's Guide to the Galaxy",
+				12.5F, "1234567890123456", "1-84023-742-2", 354, false);
+		repository.persist(book);
+		book.setNbOfPage(null);
+
+		///// テスト /////
+
+		ColumnConstraintViolationException rejected = null;
+		try {
+			repository.merge(book);
+		} catch (ColumnConstraintViolationException e) {
+			rejected = e;
+		}
+
+		///// 検証 /////
+
+		assertThat(rejected, is(notNullValue()));
+		assertThat(rejected.getViolations().get(0).getField(), is("nbOfPage"));
+		assertThat(repository.find(book.getId()).getNbOfPage(), is(354));
+	}
+
+	/**
+	 * 新しいエンティティのマージでは、更新できないカラム
+	 * （updatable = false）も挿入時の制約で検査されることを確認する。
+	 */
+	@Test
+	public void testRepositoryRejectsMergeOfNewEntity() throws Exception {
+
+		///// 準備 /////
+
+		Book05 book = new Book05(null, 12.5F, "1234567890123456", "1-84023-742-2", 354, false);
+
+		///// テスト /////
+
+		userTransaction.begin();
+
+		ColumnConstraintViolationException rejected = null;
+		try {
+			repository.merge(book);
+		} catch (ColumnConstraintViolationException e) {
+			rejected = e;
+		}
+		int status = userTransaction.getStatus();
+
+		userTransaction.commit();
+
+		long books = em.createQuery("SELECT COUNT(b) FROM Book05 b", Long.class).getSingleResult();
+
+		///// 検証 /////
+
+		assertThat(rejected, is(notNullValue()));
+		assertThat(rejected.getViolations().size(), is(1));
+		assertThat(rejected.getViolations().get(0).getField(), is("title"));
+		assertThat(status, is(Status.STATUS_ACTIVE));
+		assertThat(books, is(0L));
+	}
+
+	/**
+	 * 永続化前の検査と、フラッシュ時にデータベースで違反が
+	 * 検出されてロールバックする場合の時間を比較する。
+	 */
+	@Test
+	public void testBenchmark() throws Exception {
+
+		///// 準備 /////
+
+		final int iterations = 200;
+		Book05 invalid = new Book05(null, 12.5F, "12345678901234567", "1-84023-742-2", 354, false);
+
+		// ウォームアップ
+		for (int i = 0; i < iterations; i++) {
+			validator.validate(invalid, Operation.INSERT);
+		}
+
+		///// テスト /////
+
+		long validatorStart = System.nanoTime();
+		int detected = 0;
+		for (int i = 0; i < iterations; i++) {
+			if (!validator.validate(invalid, Operation.INSERT).isEmpty()) {
+				detected++;
+			}
+		}
+		long validatorNanos = System.nanoTime() - validatorStart;
+
+		long providerStart = System.nanoTime();
+		int failed = 0;
+		for (int i = 0; i < iterations; i++) {
+			Book05 book = new Book05(null, 12.5F, "12345678901234567", "1-84023-742-2", 354, false);
+			userTransaction.begin();
+			em.joinTransaction();
+			try {
+				em.persist(book);
+				em.flush();
+			} catch (PersistenceException e) {
+				failed++;
+			} finally {
+				userTransaction.rollback();
+			}
+			em.clear();
+		}
+		long providerNanos = System.nanoTime() - providerStart;
+
+		logger.info("constraint violation detected in: ColumnConstraintValidator="
+				+ validatorNanos / iterations / 1000 + "us, flush and rollback="
+				+ providerNanos / iterations / 1000 + "us");
+
+		///// 検証 /////
+
+		assertThat(detected, is(iterations));
+		assertThat(failed, is(iterations));
+	}
+}
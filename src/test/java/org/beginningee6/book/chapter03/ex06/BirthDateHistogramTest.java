@@ -0,0 +1,283 @@
+package org.beginningee6.book.chapter03.ex06;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.ejb.EJB;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.transaction.UserTransaction;
+
+import org.beginningee6.book.chapter03.customer.CustomerContact;
+import org.beginningee6.book.chapter03.util.TransactionCompletion;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.shrinkwrap.api.Archive;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.EmptyAsset;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ *
+ * BirthDateHistogramクラスの動作確認テスト
+ *
+ */
+@RunWith(Arquillian.class)
+public class BirthDateHistogramTest {
+
+	private static final Logger logger = Logger.getLogger(BirthDateHistogramTest.class.getName());
+
+	private static final int[] AGES = { 0, 20, 30, 40, 50, 65 };
+
+	@Deployment
+	public static Archive<?> createDeployment() {
+
+		JavaArchive archive = ShrinkWrap.create(JavaArchive.class)
+			.addPackage(Customer06.class.getPackage())
+			.addPackage(CustomerContact.class.getPackage())
+			.addClass(TransactionCompletion.class)
+			.addAsManifestResource("test-persistence.xml", "persistence.xml")
+			.addAsManifestResource("jbossas-ds.xml")
+			.addAsManifestResource(EmptyAsset.INSTANCE, "beans.xml");
+
+		logger.info(archive.toString(true));
+
+		return archive;
+	}
+
+	@PersistenceContext
+	EntityManager em;
+
+	@Inject
+	UserTransaction userTransaction;
+
+	@EJB
+	BirthDateHistogram histogram;
+
+	@Before
+	public void setUp() throws Exception {
+		clearData();
+	}
+
+	private void clearData() throws Exception {
+		userTransaction.begin();
+		em.joinTransaction();
+
+		logger.info("Dumping old records...");
+
+		em.createQuery("DELETE FROM Customer06").executeUpdate();
+		userTransaction.commit();
+
+		// 一括削除はリスナーに通知されないため作り直す
+		histogram.rebuild();
+	}
+
+	private static Date date(int year, int month, int day) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.clear();
+		calendar.set(year, month - 1, day);
+		return calendar.getTime();
+	}
+
+	private Customer06 persist(Date dateOfBirth) throws Exception {
+		Customer06 customer = new Customer06("John", "Smith",
+				"jsmith@gmail.com", "1234565", dateOfBirth, new Date());
+		userTransaction.begin();
+		em.joinTransaction();
+		em.persist(customer);
+		userTransaction.commit();
+		em.clear();
+		return customer;
+	}
+
+	/**
+	 * 永続化・更新・削除がコミット後に集計に反映され、
+	 * ロールバックした変更は反映されないことを確認する。
+	 */
+	@Test
+	public void testListener() throws Exception {
+
+		///// 準備 /////
+
+		int today = EpochDays.of(2012, 6, 1);
+
+		///// テスト /////
+
+		Customer06 john = persist(date(1990, 1, 1));		// 22歳
+		persist(date(1975, 5, 27));							// 37歳
+		Customer06 jane = persist(date(1940, 12, 31));		// 71歳
+		persist(null);
+		long[] persisted = histogram.getAgeDistributionOn(today, AGES);
+
+		userTransaction.begin();
+		em.joinTransaction();
+		em.find(Customer06.class, john.getId()).setDateOfBirth(date(1960, 1, 1));	// 52歳
+		em.remove(em.find(Customer06.class, jane.getId()));
+		userTransaction.commit();
+		em.clear();
+		long[] updated = histogram.getAgeDistributionOn(today, AGES);
+
+		userTransaction.begin();
+		em.joinTransaction();
+		em.persist(new Customer06("Jack", "Smith", "jack@gmail.com", "1234565", date(2000, 1, 1), new Date()));
+		userTransaction.rollback();
+		em.clear();
+		long[] rolledBack = histogram.getAgeDistributionOn(today, AGES);
+
+		///// 検証 /////
+
+		assertThat(persisted, is(new long[] { 0, 1, 1, 0, 0, 1 }));
+		assertThat(updated, is(new long[] { 0, 0, 1, 0, 1, 0 }));
+		assertThat(rolledBack, is(updated));
+		assertThat(histogram.getCount(), is(2));
+	}
+
+	/**
+	 * LongIntMapの登録・削除と、削除の後も後続のエントリが
+	 * 検索できること、容量が拡張されることを確認する。
+	 */
+	@Test
+	public void testLongIntMap() throws Exception {
+
+		///// 準備 /////
+
+		LongIntMap map = new LongIntMap();
+
+		///// テスト /////
+
+		for (long id = 1; id <= 1000; id++) {
+			map.put(id * 16, (int) id);
+		}
+		map.put(16, -1);
+		for (long id = 1; id <= 1000; id += 2) {
+			map.remove(id * 16);
+		}
+
+		///// 検証 /////
+
+		assertThat(map.size(), is(500));
+		assertThat(map.containsKey(16), is(false));
+		assertThat(map.remove(16), is(false));
+		assertThat(map.get(32), is(2));
+		assertThat(map.get(16000), is(1000));
+		assertThat(map.containsKey(15984), is(false));
+		assertThat(map.values().length, is(500));
+	}
+
+	/**
+	 * 日付が変わると、年齢の境界が自動的に移動することを確認する。
+	 */
+	@Test
+	public void testBoundariesShift() throws Exception {
+
+		///// 準備 /////
+
+		persist(date(1992, 6, 15));
+		persist(date(1992, 2, 29));
+
+		///// テスト /////
+
+		long[] before = histogram.getAgeDistributionOn(EpochDays.of(2012, 2, 28), 0, 20);
+		long[] leapDay = histogram.getAgeDistributionOn(EpochDays.of(2012, 2, 29), 0, 20);
+		long[] birthday = histogram.getAgeDistributionOn(EpochDays.of(2012, 6, 15), 0, 20);
+		// うるう年でない年の2月29日生まれは、3月1日に年齢が変わる
+		long[] february = histogram.getAgeDistributionOn(EpochDays.of(2013, 2, 28), 0, 21);
+		long[] march = histogram.getAgeDistributionOn(EpochDays.of(2013, 3, 1), 0, 21);
+
+		///// 検証 /////
+
+		assertThat(before, is(new long[] { 2, 0 }));
+		assertThat(leapDay, is(new long[] { 1, 1 }));
+		assertThat(birthday, is(new long[] { 0, 2 }));
+		assertThat(february, is(new long[] { 2, 0 }));
+		assertThat(march, is(new long[] { 1, 1 }));
+	}
+
+	/**
+	 * customer_ex06テーブルから作り直した集計が、
+	 * すべての顧客を読み込んで計算した分布と一致することを確認し、
+	 * それぞれの時間を比較する。
+	 */
+	@Test
+	public void testRebuild() throws Exception {
+
+		///// 準備 /////
+
+		final int customers = 5000;
+		final int iterations = 20;
+
+		userTransaction.begin();
+		em.joinTransaction();
+		for (int i = 0; i < customers; i++) {
+			em.persist(new Customer06("John", "Smith", "jsmith@gmail.com", "1234565",
+					date(1930 + i % 80, i % 12 + 1, i % 28 + 1), new Date()));
+		}
+		userTransaction.commit();
+		em.clear();
+
+		///// テスト /////
+
+		long rebuildStart = System.nanoTime();
+		histogram.rebuild();
+		long rebuildNanos = System.nanoTime() - rebuildStart;
+
+		long[] expected = null;
+		long loadStart = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			expected = distribution(em.createQuery("SELECT c FROM Customer06 c", Customer06.class).getResultList());
+			em.clear();
+		}
+		long loadNanos = System.nanoTime() - loadStart;
+
+		long[] actual = null;
+		long histogramStart = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			actual = histogram.getAgeDistribution(AGES);
+		}
+		long histogramNanos = System.nanoTime() - histogramStart;
+
+		logger.info("age distribution of " + customers + " customers: loading all="
+				+ loadNanos / iterations / 1000 + "us, histogram="
+				+ histogramNanos / iterations / 1000 + "us, rebuild="
+				+ rebuildNanos / 1000 + "us");
+
+		///// 検証 /////
+
+		assertThat(histogram.getCount(), is(customers));
+		assertThat(actual, is(expected));
+	}
+
+	/**
+	 * すべての顧客の生年月日と今日の日付から、年齢の分布を計算する。
+	 */
+	private static long[] distribution(List<Customer06> customers) {
+		Calendar today = Calendar.getInstance();
+		long[] distribution = new long[AGES.length];
+		for (Customer06 customer : customers) {
+			Calendar birth = Calendar.getInstance();
+			birth.setTime(customer.getDateOfBirth());
+			int age = today.get(Calendar.YEAR) - birth.get(Calendar.YEAR);
+			if (today.get(Calendar.MONTH) < birth.get(Calendar.MONTH)
+					|| (today.get(Calendar.MONTH) == birth.get(Calendar.MONTH)
+						&& today.get(Calendar.DAY_OF_MONTH) < birth.get(Calendar.DAY_OF_MONTH))) {
+				age--;
+			}
+			for (int i = AGES.length - 1; i >= 0; i--) {
+				if (age >= AGES[i]) {
+					distribution[i]++;
+					break;
+				}
+			}
+		}
+		return distribution;
+	}
+}
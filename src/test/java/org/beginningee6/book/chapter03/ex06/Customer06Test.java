@@ -11,6 +11,8 @@ import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
 import javax.transaction.UserTransaction;
 
+import org.beginningee6.book.chapter03.customer.CustomerContact;
+import org.beginningee6.book.chapter03.util.TransactionCompletion;
 import org.jboss.arquillian.container.test.api.Deployment;
 import org.jboss.arquillian.junit.Arquillian;
 import org.jboss.shrinkwrap.api.Archive;
@@ -39,6 +41,8 @@ public class Customer06Test {
 		
 		JavaArchive archive = ShrinkWrap.create(JavaArchive.class)
 			.addPackage(Customer06.class.getPackage())
+			.addPackage(CustomerContact.class.getPackage())
+			.addClass(TransactionCompletion.class)
 			.addAsManifestResource("test-persistence.xml", "persistence.xml")
 			.addAsManifestResource("jbossas-ds.xml")
 			.addAsManifestResource(EmptyAsset.INSTANCE, "beans.xml");
@@ -0,0 +1,253 @@
+package org.beginningee6.book.chapter03.ex06;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.transaction.UserTransaction;
+
+import org.beginningee6.book.chapter03.customer.CustomerContact;
+import org.beginningee6.book.chapter03.util.TransactionCompletion;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.shrinkwrap.api.Archive;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.EmptyAsset;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ *
+ * 生年月日と作成日時をプリミティブ型の数値として
+ * マッピングするEpochCustomer06エンティティと、
+ * EpochDaysクラスの動作確認テスト
+ *
+ */
+@RunWith(Arquillian.class)
+public class EpochCustomer06Test {
+
+	private static final Logger logger = Logger.getLogger(EpochCustomer06Test.class.getName());
+
+	@Deployment
+	public static Archive<?> createDeployment() {
+
+		JavaArchive archive = ShrinkWrap.create(JavaArchive.class)
+			.addPackage(EpochCustomer06.class.getPackage())
+			.addPackage(CustomerContact.class.getPackage())
+			.addClass(TransactionCompletion.class)
+			.addAsManifestResource("test-persistence.xml", "persistence.xml")
+			.addAsManifestResource("jbossas-ds.xml")
+			.addAsManifestResource(EmptyAsset.INSTANCE, "beans.xml");
+
+		logger.info(archive.toString(true));
+
+		return archive;
+	}
+
+	@PersistenceContext
+	EntityManager em;
+
+	@Inject
+	UserTransaction userTransaction;
+
+	@Before
+	public void setUp() throws Exception {
+		clearData();
+	}
+
+	private void clearData() throws Exception {
+		userTransaction.begin();
+		em.joinTransaction();
+
+		logger.info("Dumping old records...");
+
+		em.createQuery("DELETE FROM EpochCustomer06").executeUpdate();
+		em.createQuery("DELETE FROM Customer06").executeUpdate();
+		userTransaction.commit();
+	}
+
+	private static Date date(int year, int month, int day) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.clear();
+		calendar.set(year, month - 1, day);
+		return calendar.getTime();
+	}
+
+	/**
+	 * 年月日とエポック日が相互に変換されることを確認する。
+	 */
+	@Test
+	public void testEpochDays() throws Exception {
+
+		///// テスト・検証 /////
+
+		assertThat(EpochDays.of(1970, 1, 1), is(0));
+		assertThat(EpochDays.of(1969, 12, 31), is(-1));
+		assertThat(EpochDays.of(2000, 3, 1), is(11017));
+
+		int leapDay = EpochDays.of(2012, 2, 29);
+		assertThat(EpochDays.year(leapDay), is(2012));
+		assertThat(EpochDays.month(leapDay), is(2));
+		assertThat(EpochDays.dayOfMonth(leapDay), is(29));
+		assertThat(leapDay + 1, is(EpochDays.of(2012, 3, 1)));
+
+		int birth = EpochDays.of(1900, 1, 1);
+		assertThat(EpochDays.year(birth), is(1900));
+		assertThat(EpochDays.of(date(1900, 1, 1)), is(birth));
+		assertThat(EpochDays.toDate(birth), is(date(1900, 1, 1)));
+	}
+
+	/**
+	 * 生年月日と作成日時が数値として永続化され、
+	 * 読み込んだ値が元の日時と一致することを確認する。
+	 */
+	@Test
+	public void testCreateACustomer() throws Exception {
+
+		///// 準備 /////
+
+		Date dateOfBirth = date(1975, 5, 27);
+		Date creationDate = new Date();
+		EpochCustomer06 customer = new EpochCustomer06("John", "Smith",
+				"jsmith@gmail.com", "1234565", dateOfBirth, creationDate);
+
+		///// テスト /////
+
+		userTransaction.begin();
+		em.joinTransaction();
+
+		em.persist(customer);
+
+		userTransaction.commit();
+
+		em.clear();
+
+		EpochCustomer06 persisted = em.find(EpochCustomer06.class, customer.getId());
+
+		///// 検証 /////
+
+		assertThat(persisted.getDateOfBirthDay(), is(EpochDays.of(1975, 5, 27)));
+		assertThat(persisted.getCreationMillis(), is(creationDate.getTime()));
+		assertThat(persisted.getDateOfBirth(), is(dateOfBirth));
+		assertThat(persisted.getCreationDate(), is(creationDate));
+
+		// 返されたDateを変更してもエンティティは変わらない
+		persisted.getCreationDate().setTime(0L);
+		assertThat(persisted.getCreationMillis(), is(creationDate.getTime()));
+	}
+
+	/**
+	 * Customer06とEpochCustomer06の一覧を読み込み、
+	 * 呼び出し側で日付を使用する場合の時間と、
+	 * スレッドが割り当てたメモリの量を比較する。
+	 *
+	 * Customer06の呼び出し側は、Dateを防御的にコピーする。
+	 * （注）割り当てたメモリの量は、JVMが
+	 * com.sun.management.ThreadMXBeanをサポートする場合だけ出力する。
+	 */
+	@Test
+	public void testBenchmark() throws Exception {
+
+		///// 準備 /////
+
+		final int customers = 2000;
+		final int iterations = 20;
+
+		userTransaction.begin();
+		em.joinTransaction();
+		for (int i = 0; i < customers; i++) {
+			Date dateOfBirth = date(1950 + i % 50, i % 12 + 1, i % 28 + 1);
+			Date creationDate = new Date(1325376000000L + i * 60000L);
+			em.persist(new Customer06("John", "Smith", "jsmith@gmail.com", "1234565",
+					dateOfBirth, creationDate));
+			em.persist(new EpochCustomer06("John", "Smith", "jsmith@gmail.com", "1234565",
+					dateOfBirth, creationDate));
+		}
+		userTransaction.commit();
+		em.clear();
+
+		// ウォームアップ
+		hydrateDates();
+		hydrateEpoch();
+
+		///// テスト /////
+
+		long dateBytes = allocatedBytes();
+		long dateStart = System.nanoTime();
+		long dateChecksum = 0;
+		for (int i = 0; i < iterations; i++) {
+			dateChecksum = hydrateDates();
+		}
+		long dateNanos = System.nanoTime() - dateStart;
+		dateBytes = allocatedBytes() - dateBytes;
+
+		long epochBytes = allocatedBytes();
+		long epochStart = System.nanoTime();
+		long epochChecksum = 0;
+		for (int i = 0; i < iterations; i++) {
+			epochChecksum = hydrateEpoch();
+		}
+		long epochNanos = System.nanoTime() - epochStart;
+		epochBytes = allocatedBytes() - epochBytes;
+
+		int rows = customers * iterations;
+		boolean measured = allocatedBytes() >= 0;
+		logger.info("hydrating " + customers + " customers: Customer06="
+				+ dateNanos / rows + "ns/row" + (measured ? ", " + dateBytes / rows + "B/row" : "")
+				+ ", EpochCustomer06=" + epochNanos / rows + "ns/row"
+				+ (measured ? ", " + epochBytes / rows + "B/row" : ""));
+
+		///// 検証 /////
+
+		assertThat(epochChecksum, is(dateChecksum));
+	}
+
+	private long hydrateDates() {
+		long checksum = 0;
+		List<Customer06> customers = em.createQuery("SELECT c FROM Customer06 c", Customer06.class).getResultList();
+		for (Customer06 customer : customers) {
+			Date dateOfBirth = new Date(customer.getDateOfBirth().getTime());
+			Date creationDate = new Date(customer.getCreationDate().getTime());
+			checksum += EpochDays.of(dateOfBirth) + creationDate.getTime();
+		}
+		em.clear();
+		return checksum;
+	}
+
+	private long hydrateEpoch() {
+		long checksum = 0;
+		List<EpochCustomer06> customers = em.createQuery("SELECT c FROM EpochCustomer06 c", EpochCustomer06.class).getResultList();
+		for (EpochCustomer06 customer : customers) {
+			checksum += customer.getDateOfBirthDay() + customer.getCreationMillis();
+		}
+		em.clear();
+		return checksum;
+	}
+
+	/**
+	 * 現在のスレッドが割り当てたメモリの量。
+	 * JVMがサポートしない場合は-1
+	 */
+	private static long allocatedBytes() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		try {
+			Method method = bean.getClass().getMethod("getThreadAllocatedBytes", long.class);
+			method.setAccessible(true);
+			return (Long) method.invoke(bean, Thread.currentThread().getId());
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,396 @@
+package org.beginningee6.book.chapter03.ex06;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.ejb.EJB;
+import javax.ejb.EJBException;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.transaction.UserTransaction;
+
+import org.beginningee6.book.chapter03.customer.CustomerContact;
+import org.beginningee6.book.chapter03.util.TransactionCompletion;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.shrinkwrap.api.Archive;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.EmptyAsset;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ *
+ * PartitionedCustomer06RepositoryクラスとCustomerPartitionRouterクラスの
+ * 動作確認テスト
+ *
+ */
+@RunWith(Arquillian.class)
+public class PartitionedCustomer06RepositoryTest {
+
+	private static final Logger logger = Logger.getLogger(PartitionedCustomer06RepositoryTest.class.getName());
+
+	@Deployment
+	public static Archive<?> createDeployment() {
+
+		JavaArchive archive = ShrinkWrap.create(JavaArchive.class)
+			.addPackage(Customer06.class.getPackage())
+			.addPackage(CustomerContact.class.getPackage())
+			.addClass(TransactionCompletion.class)
+			.addAsManifestResource("test-persistence.xml", "persistence.xml")
+			.addAsManifestResource("jbossas-ds.xml")
+			.addAsManifestResource(EmptyAsset.INSTANCE, "beans.xml");
+
+		logger.info(archive.toString(true));
+
+		return archive;
+	}
+
+	@PersistenceContext
+	EntityManager em;
+
+	@Inject
+	UserTransaction userTransaction;
+
+	@EJB
+	PartitionedCustomer06Repository repository;
+
+	@EJB
+	CustomerPartitionRouter router;
+
+	@Before
+	public void setUp() throws Exception {
+		clearData();
+	}
+
+	private void clearData() throws Exception {
+		userTransaction.begin();
+		em.joinTransaction();
+
+		logger.info("Dumping old records...");
+
+		em.createQuery("DELETE FROM Customer06").executeUpdate();
+		userTransaction.commit();
+
+		router.dropBuckets();
+		router.setRetentionMonths(CustomerPartitionRouter.DEFAULT_RETENTION_MONTHS);
+	}
+
+	private static Date date(int year, int month, int day, int hour) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.clear();
+		calendar.set(year, month - 1, day, hour, 0);
+		return calendar.getTime();
+	}
+
+	private static Customer06 customer(String firstName, Date creationDate) {
+		return new Customer06(firstName, "Smith", "jsmith@gmail.com", "1234565",
+				date(1980, 1, 1, 0), creationDate);
+	}
+
+	/**
+	 * バケットの範囲と年月の計算を確認する。
+	 */
+	@Test
+	public void testBucket() throws Exception {
+
+		///// テスト・検証 /////
+
+		CustomerBucket december = CustomerBucket.of(date(2012, 12, 31, 23));
+
+		assertThat(december.getMonth(), is(201212));
+		assertThat(december.getTableName(), is("customer_ex06_p201212"));
+		assertThat(december.next(), is(CustomerBucket.of(201301)));
+		assertThat(december.minusMonths(12), is(CustomerBucket.of(201112)));
+		assertThat(december.getStart(), is(date(2012, 12, 1, 0)));
+		assertThat(december.getEnd(), is(date(2013, 1, 1, 0)));
+
+		// 終了日時は含まない
+		assertThat(CustomerBucket.range(date(2012, 11, 15, 0), date(2013, 1, 1, 0)),
+				is(Arrays.asList(CustomerBucket.of(201211), december)));
+		assertThat(CustomerBucket.parse("CUSTOMER_EX06_P201212", CustomerBucket.TABLE_PREFIX), is(december));
+		assertThat(CustomerBucket.parse("CUSTOMER_EX06_SEQ", CustomerBucket.TABLE_PREFIX), is(nullValue()));
+	}
+
+	/**
+	 * 顧客がcreationDateの月のバケットに格納され、範囲の検索では
+	 * 重なるバケットだけが検索されて、creationDate順に
+	 * 返されることを確認する。
+	 */
+	@Test
+	public void testFindByCreationDate() throws Exception {
+
+		///// 準備 /////
+
+		Customer06 april = customer("April", date(2012, 4, 20, 12));
+		Customer06 marchLate = customer("MarchLate", date(2012, 3, 31, 23));
+		Customer06 marchEarly = customer("MarchEarly", date(2012, 3, 1, 0));
+		Customer06 february = customer("February", date(2012, 2, 14, 9));
+		Customer06 may = customer("May", date(2012, 5, 1, 0));
+
+		///// テスト /////
+
+		userTransaction.begin();
+		for (Customer06 customer : Arrays.asList(april, marchLate, marchEarly, february, may)) {
+			repository.persist(customer);
+		}
+		userTransaction.commit();
+
+		List<CustomerBucket> buckets = router.getBuckets(date(2012, 3, 1, 0), date(2012, 5, 1, 0));
+		List<Customer06> found = repository.findByCreationDate(date(2012, 3, 1, 0), date(2012, 5, 1, 0));
+		List<Customer06> none = repository.findByCreationDate(date(2012, 6, 1, 0), date(2012, 9, 1, 0));
+
+		///// 検証 /////
+
+		assertThat(router.getBuckets().size(), is(4));
+		assertThat(buckets, is(Arrays.asList(CustomerBucket.of(201203), CustomerBucket.of(201204))));
+
+		assertThat(found.size(), is(3));
+		assertThat(found.get(0).getFirstName(), is("MarchEarly"));
+		assertThat(found.get(0).getId(), is(marchEarly.getId()));
+		assertThat(found.get(1).getFirstName(), is("MarchLate"));
+		assertThat(found.get(2).getFirstName(), is("April"));
+		assertThat(found.get(2).getCreationDate().getTime(), is(april.getCreationDate().getTime()));
+		assertThat(none.isEmpty(), is(true));
+	}
+
+	/**
+	 * 挿入したトランザクションをロールバックすると、
+	 * 顧客がバケットに残らないことを確認する。
+	 */
+	@Test
+	public void testRollback() throws Exception {
+
+		///// テスト /////
+
+		userTransaction.begin();
+		repository.persist(customer("John", date(2012, 7, 1, 0)));
+		userTransaction.rollback();
+
+		List<Customer06> found = repository.findByCreationDate(date(2012, 7, 1, 0), date(2012, 8, 1, 0));
+
+		///// 検証 /////
+
+		// バケットのテーブルはトランザクションの外で作成される
+		assertThat(router.getBuckets(), is(Arrays.asList(CustomerBucket.of(201207))));
+		assertThat(found.isEmpty(), is(true));
+	}
+
+	/**
+	 * 古いバケットがテーブルごとアーカイブされ、検索の対象から
+	 * 外れることと、アーカイブしたバケットには追加できないことを
+	 * 確認する。
+	 */
+	@Test
+	public void testArchive() throws Exception {
+
+		///// 準備 /////
+
+		for (int month = 1; month <= 6; month++) {
+			repository.persist(customer("Month" + month, date(2011, month, 10, 0)));
+		}
+
+		///// テスト /////
+
+		int archived = router.archive(CustomerBucket.of(201104));
+		List<Customer06> found = repository.findByCreationDate(date(2011, 1, 1, 0), date(2012, 1, 1, 0));
+
+		EJBException rejected = null;
+		try {
+			repository.persist(customer("Late", date(2011, 2, 28, 0)));
+		} catch (EJBException e) {
+			rejected = e;
+		}
+
+		///// 検証 /////
+
+		assertThat(archived, is(3));
+		assertThat(router.getArchivedBuckets(), is(Arrays.asList(
+				CustomerBucket.of(201101), CustomerBucket.of(201102), CustomerBucket.of(201103))));
+		assertThat(found.size(), is(3));
+		assertThat(found.get(0).getFirstName(), is("Month4"));
+		assertThat(rejected, is(notNullValue()));
+
+		// アーカイブしたテーブルに行が残っていることを確認
+		long rows = ((Number) em.createNativeQuery("SELECT COUNT(*) FROM "
+				+ CustomerBucket.of(201101).getArchiveTableName()).getSingleResult()).longValue();
+		assertThat(rows, is(1L));
+	}
+
+	/**
+	 * バケットのテーブルを使用している間は、アーカイブが
+	 * 使用の終了まで待たされることを確認する。
+	 */
+	@Test
+	public void testArchiveWaitsForQueries() throws Exception {
+
+		///// 準備 /////
+
+		repository.persist(customer("January", date(2011, 1, 10, 0)));
+		repository.persist(customer("February", date(2011, 2, 10, 0)));
+
+		///// テスト /////
+
+		final int[] archived = new int[1];
+		Thread archiver = new Thread(new Runnable() {
+
+			public void run() {
+				archived[0] = router.archive(CustomerBucket.of(201102));
+			}
+		});
+
+		List<Customer06> found;
+		router.acquireBuckets();
+		try {
+			archiver.start();
+			archiver.join(500);
+			// 使用中はアーカイブされず、検索できる
+			found = repository.findByCreationDate(date(2011, 1, 1, 0), date(2011, 3, 1, 0));
+			assertThat(archiver.isAlive(), is(true));
+		} finally {
+			router.releaseBuckets();
+		}
+		archiver.join(10000);
+
+		///// 検証 /////
+
+		assertThat(found.size(), is(2));
+		assertThat(archiver.isAlive(), is(false));
+		assertThat(archived[0], is(1));
+		assertThat(router.getBuckets(), is(Arrays.asList(CustomerBucket.of(201102))));
+	}
+
+	/**
+	 * 挿入したトランザクションが完了するまでは、アーカイブが
+	 * 待たされることを確認する。
+	 */
+	@Test
+	public void testArchiveWaitsForTransaction() throws Exception {
+
+		///// 準備 /////
+
+		repository.persist(customer("January", date(2011, 1, 10, 0)));
+
+		///// テスト /////
+
+		final int[] archived = new int[1];
+		Thread archiver = new Thread(new Runnable() {
+
+			public void run() {
+				archived[0] = router.archive(CustomerBucket.of(201102));
+			}
+		});
+
+		userTransaction.begin();
+		repository.persist(customer("Late January", date(2011, 1, 20, 0)));
+		archiver.start();
+		archiver.join(500);
+		// 挿入の後もトランザクションが完了するまではアーカイブされない
+		boolean waited = archiver.isAlive();
+		userTransaction.commit();
+		archiver.join(10000);
+
+		///// 検証 /////
+
+		assertThat(waited, is(true));
+		assertThat(archiver.isAlive(), is(false));
+		assertThat(archived[0], is(1));
+		assertThat(router.getBuckets().isEmpty(), is(true));
+
+		long rows = ((Number) em.createNativeQuery("SELECT COUNT(*) FROM "
+				+ CustomerBucket.of(201101).getArchiveTableName()).getSingleResult()).longValue();
+		assertThat(rows, is(2L));
+	}
+
+	/**
+	 * 保持する月数より前のバケットがロールオフされることを確認する。
+	 */
+	@Test
+	public void testRollOff() throws Exception {
+
+		///// 準備 /////
+
+		CustomerBucket current = CustomerBucket.of(new Date());
+		repository.persist(customer("Old", current.minusMonths(3).getStart()));
+		repository.persist(customer("Recent", current.minusMonths(1).getStart()));
+		repository.persist(customer("Current", new Date()));
+		router.setRetentionMonths(2);
+
+		///// テスト /////
+
+		router.rollOff();
+
+		///// 検証 /////
+
+		assertThat(router.getBuckets(), is(Arrays.asList(current.minusMonths(1), current)));
+		assertThat(router.getArchivedBuckets(), is(Arrays.asList(current.minusMonths(3))));
+	}
+
+	/**
+	 * 1か月の範囲の検索について、customer_ex06テーブルに対する
+	 * JPQLの検索とバケットの検索の時間を比較する。
+	 */
+	@Test
+	public void testBenchmark() throws Exception {
+
+		///// 準備 /////
+
+		final int months = 24;
+		final int perMonth = 200;
+		final int iterations = 20;
+
+		for (int month = 0; month < months; month++) {
+			userTransaction.begin();
+			em.joinTransaction();
+			for (int i = 0; i < perMonth; i++) {
+				Date creationDate = date(2010 + month / 12, month % 12 + 1, i % 28 + 1, i % 24);
+				em.persist(customer("Customer" + i, creationDate));
+				repository.persist(customer("Customer" + i, creationDate));
+			}
+			userTransaction.commit();
+			em.clear();
+		}
+
+		Date from = date(2011, 3, 1, 0);
+		Date to = date(2011, 6, 1, 0);
+
+		///// テスト /////
+
+		int scanned = 0;
+		long scanStart = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			scanned = em.createQuery("SELECT c FROM Customer06 c WHERE c.creationDate >= :from"
+					+ " AND c.creationDate < :to ORDER BY c.creationDate, c.id", Customer06.class)
+				.setParameter("from", from)
+				.setParameter("to", to)
+				.getResultList().size();
+			em.clear();
+		}
+		long scanNanos = System.nanoTime() - scanStart;
+
+		int partitioned = 0;
+		long partitionedStart = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			partitioned = repository.findByCreationDate(from, to).size();
+		}
+		long partitionedNanos = System.nanoTime() - partitionedStart;
+
+		logger.info("quarter of " + months * perMonth + " Customer06: customer_ex06="
+				+ scanNanos / iterations / 1000 + "us, buckets="
+				+ partitionedNanos / iterations / 1000 + "us");
+
+		///// 検証 /////
+
+		assertThat(scanned, is(3 * perMonth));
+		assertThat(partitioned, is(3 * perMonth));
+	}
+}